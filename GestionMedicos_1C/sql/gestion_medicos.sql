@@ -2,11 +2,15 @@ drop table medico cascade constraints;
 drop table cliente cascade constraints;
 drop table anulacion cascade constraints;
 drop table consulta cascade constraints;
+drop table anulacion_hist cascade constraints;
+drop table consulta_hist cascade constraints;
+drop table cambio_consulta cascade constraints;
 
 
 drop sequence seq_medico;
 drop sequence seq_consulta;
 drop sequence seq_anulacion;
+drop sequence seq_cambio;
 
 
 create table cliente(
@@ -44,6 +48,48 @@ create table anulacion (
 	motivo_anulacion varchar(100) not null
 );
 
+-- Busquedas de consultas por medico y de la anulacion de cada consulta
+create index consulta_id_medico_idx on consulta(id_medico);
+create index anulacion_id_consulta_idx on anulacion(id_consulta);
+create index consulta_fecha_idx on consulta(fecha_consulta);
+
+-- Archivo de las consultas antiguas y sus anulaciones (ver Archivador)
+create table consulta_hist (
+	id_consulta	integer primary key,
+	fecha_consulta	date not null,
+	id_medico integer not null references medico,
+	NIF varchar(9) not null references cliente
+);
+
+create table anulacion_hist (
+	id_anulacion	integer primary key,
+	id_consulta integer not null references consulta_hist,
+	fecha_anulacion date not null,
+	motivo_anulacion varchar(100) not null
+);
+
+create index consulta_hist_id_medico_idx on consulta_hist(id_medico);
+create index anulacion_hist_id_consulta_idx on anulacion_hist(id_consulta);
+
+-- Cambios confirmados de cada medico, para invalidar las caches de otros nodos (ver BusInvalidacionTabla)
+create sequence seq_cambio;
+create table cambio_consulta (
+	id_cambio	integer primary key,
+	id_medico	integer not null,
+	nodo	varchar(36) not null,
+	instante	number(19) not null
+);
+
+create index cambio_consulta_instante_idx on cambio_consulta(instante);
+
+-- Consultas de las tablas activas y del archivo, con la anulacion si la tienen
+create or replace view consulta_completa as
+	select c.id_consulta, c.fecha_consulta, c.id_medico, c.NIF, a.id_anulacion
+	from consulta c left join anulacion a on c.id_consulta=a.id_consulta
+	union all
+	select c.id_consulta, c.fecha_consulta, c.id_medico, c.NIF, a.id_anulacion
+	from consulta_hist c left join anulacion_hist a on c.id_consulta=a.id_consulta;
+
 
 
 create or replace procedure reset_seq( p_seq_name varchar ) is
@@ -69,14 +115,36 @@ begin
 end;
 /
 
+create or replace procedure avanza_seq( p_seq_name varchar, p_valor number ) is
+--Avanza la secuencia para que el siguiente valor sea mayor que p_valor (tras una carga masiva)
+    l_val number;
+begin
+    execute immediate
+    'select ' || p_seq_name || '.nextval from dual' INTO l_val;
+
+    if p_valor > l_val then
+      execute immediate
+      'alter sequence ' || p_seq_name || ' increment by ' || (p_valor - l_val);
+      execute immediate
+      'select ' || p_seq_name || '.nextval from dual' INTO l_val;
+      execute immediate
+      'alter sequence ' || p_seq_name || ' increment by 1';
+    end if;
+end;
+/
+
 create or replace procedure inicializa_test is
 begin
   reset_seq( 'seq_medico' );
   reset_seq( 'seq_consulta' );
   reset_seq( 'seq_anulacion' );
+  reset_seq( 'seq_cambio' );
   
  
         
+	delete from cambio_consulta;
+	delete from anulacion_hist;
+	delete from consulta_hist;
 	delete from anulacion;
 	delete from consulta;
 	delete from cliente;
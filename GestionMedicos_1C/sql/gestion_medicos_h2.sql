@@ -0,0 +1,104 @@
+-- Esquema de gestion_medicos.sql para H2 en modo Oracle (ver DialectoH2).
+-- Los procedimientos se implementan en lsi.ubu.util.ProcedimientosH2.
+
+drop view if exists consulta_completa;
+drop table if exists anulacion_hist cascade;
+drop table if exists consulta_hist cascade;
+drop table if exists cambio_consulta cascade;
+drop table if exists anulacion cascade;
+drop table if exists consulta cascade;
+drop table if exists medico cascade;
+drop table if exists cliente cascade;
+
+drop sequence if exists seq_medico;
+drop sequence if exists seq_consulta;
+drop sequence if exists seq_anulacion;
+drop sequence if exists seq_cambio;
+
+drop alias if exists reset_seq;
+drop alias if exists avanza_seq;
+drop alias if exists inicializa_test;
+
+
+create table cliente(
+	NIF	varchar(9) primary key,
+	nombre	varchar(20) not null,
+	ape1	varchar(20) not null,
+	ape2	varchar(20) not null,
+	direccion varchar(40)
+);
+
+create sequence seq_medico;
+create table medico(
+	id_medico integer primary key,
+	NIF	varchar(9) not null,
+	nombre	varchar(20) not null,
+	ape1	varchar(20) not null,
+	ape2	varchar(20) not null,
+	especialidad varchar(20) not null,
+	consultas int not null check (consultas >= 0)
+);
+
+create sequence seq_consulta;
+create table consulta (
+	id_consulta	integer primary key,
+	fecha_consulta	date not null,
+	id_medico integer not null references medico,
+	NIF varchar(9) not null references cliente
+);
+
+create sequence seq_anulacion;
+create table anulacion (
+	id_anulacion	integer primary key,
+	id_consulta integer not null references consulta,
+	fecha_anulacion date not null,
+	motivo_anulacion varchar(100) not null
+);
+
+-- Busquedas de consultas por medico y de la anulacion de cada consulta
+create index consulta_id_medico_idx on consulta(id_medico);
+create index anulacion_id_consulta_idx on anulacion(id_consulta);
+create index consulta_fecha_idx on consulta(fecha_consulta);
+
+-- Archivo de las consultas antiguas y sus anulaciones (ver Archivador)
+create table consulta_hist (
+	id_consulta	integer primary key,
+	fecha_consulta	date not null,
+	id_medico integer not null references medico,
+	NIF varchar(9) not null references cliente
+);
+
+create table anulacion_hist (
+	id_anulacion	integer primary key,
+	id_consulta integer not null references consulta_hist,
+	fecha_anulacion date not null,
+	motivo_anulacion varchar(100) not null
+);
+
+create index consulta_hist_id_medico_idx on consulta_hist(id_medico);
+create index anulacion_hist_id_consulta_idx on anulacion_hist(id_consulta);
+
+-- Cambios confirmados de cada medico, para invalidar las caches de otros nodos (ver BusInvalidacionTabla)
+create sequence seq_cambio;
+create table cambio_consulta (
+	id_cambio	integer primary key,
+	id_medico	integer not null,
+	nodo	varchar(36) not null,
+	instante	bigint not null
+);
+
+create index cambio_consulta_instante_idx on cambio_consulta(instante);
+
+-- Consultas de las tablas activas y del archivo, con la anulacion si la tienen
+create view consulta_completa as
+	select c.id_consulta, c.fecha_consulta, c.id_medico, c.NIF, a.id_anulacion
+	from consulta c left join anulacion a on c.id_consulta=a.id_consulta
+	union all
+	select c.id_consulta, c.fecha_consulta, c.id_medico, c.NIF, a.id_anulacion
+	from consulta_hist c left join anulacion_hist a on c.id_consulta=a.id_consulta;
+
+create alias reset_seq for 'lsi.ubu.util.ProcedimientosH2.resetSeq';
+create alias avanza_seq for 'lsi.ubu.util.ProcedimientosH2.avanzaSeq';
+create alias inicializa_test for 'lsi.ubu.util.ProcedimientosH2.inicializaTest';
+
+exit;
@@ -101,7 +101,7 @@ public class EsqueletoGestionMedicos {
 		}		
 	}
 	
-	static public void creaTablas() {
+	static public void creaTablas() throws SQLException {
 		ExecuteScript.run(script_path + "gestion_medicos.sql");
 	}
 
@@ -25,6 +25,7 @@ public class GestionMedicosException extends SQLException {
 	public static final int CONSULTA_NO_EXISTE = 4;
 	public static final int CONSULTA_NO_ANULA = 5;
 	public static final int MOTIVO_VACIO = 6;
+	public static final int TIEMPO_AGOTADO = 7;
 
 	private int codigo; // = -1;
 	private String mensaje;
@@ -54,6 +55,9 @@ public class GestionMedicosException extends SQLException {
 		case MOTIVO_VACIO:
 			mensaje = "Motivo de anulación inexistente";
 			break;
+		case TIEMPO_AGOTADO:
+			mensaje = "Tiempo agotado para la operación";
+			break;
 			
 		}					
 
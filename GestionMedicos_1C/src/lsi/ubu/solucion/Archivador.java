@@ -0,0 +1,299 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Archivador:
+ * Pasa las consultas anteriores a un horizonte de retencion, con sus
+ * anulaciones, de CONSULTA y ANULACION a CONSULTA_HIST y ANULACION_HIST.
+ *
+ * Las reservas y anulaciones solo tocan fechas futuras, asi que trabajan con
+ * las tablas activas, que se mantienen pequeñas. El historial completo de un
+ * medico (ver GestionMedicos.historial_medico) lee de la vista
+ * CONSULTA_COMPLETA, que une las activas y el archivo. MEDICO.consultas sigue
+ * contando tambien las consultas archivadas.
+ *
+ * Las consultas se mueven en lotes por orden de id_consulta, cada lote en su
+ * propia transaccion y con una pausa entre lotes para no cargar la base de
+ * datos. Si un lote choca con una anulacion que llega a la vez, se deshace y
+ * se reintenta.
+ *
+ * Se configura con las propiedades del sistema
+ * gestionmedicos.archivo.retencionDias (365 por defecto),
+ * gestionmedicos.archivo.lote (1000) y gestionmedicos.archivo.pausaMs (100).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Archivador {
+
+	private static Logger logger = LoggerFactory.getLogger(Archivador.class);
+
+	/** Intentos de cada lote antes de abandonar. */
+	private static final int INTENTOS = 3;
+
+	/** Mayor id_consulta del siguiente lote. */
+	private static final String SQL_CORTE = "SELECT MAX(id_consulta) FROM (SELECT id_consulta FROM consulta"+
+			" WHERE fecha_consulta<? ORDER BY id_consulta) WHERE ROWNUM<=?";
+	private static final String SQL_BLOQUEA = "SELECT id_medico FROM consulta"+
+			" WHERE fecha_consulta<? AND id_consulta<=? FOR UPDATE";
+	private static final String SQL_COPIA_CONSULTAS = "INSERT INTO consulta_hist"+
+			" (id_consulta,fecha_consulta,id_medico,NIF) SELECT id_consulta,fecha_consulta,id_medico,NIF"+
+			" FROM consulta WHERE fecha_consulta<? AND id_consulta<=?";
+	private static final String SQL_COPIA_ANULACIONES = "INSERT INTO anulacion_hist"+
+			" (id_anulacion,id_consulta,fecha_anulacion,motivo_anulacion)"+
+			" SELECT a.id_anulacion,a.id_consulta,a.fecha_anulacion,a.motivo_anulacion"+
+			" FROM anulacion a JOIN consulta c ON a.id_consulta=c.id_consulta"+
+			" WHERE c.fecha_consulta<? AND c.id_consulta<=?";
+	private static final String SQL_BORRA_ANULACIONES = "DELETE FROM anulacion WHERE id_consulta IN"+
+			" (SELECT id_consulta FROM consulta WHERE fecha_consulta<? AND id_consulta<=?)";
+	private static final String SQL_BORRA_CONSULTAS = "DELETE FROM consulta"+
+			" WHERE fecha_consulta<? AND id_consulta<=?";
+
+	private Date horizonte;
+	private int lote = Integer.getInteger("gestionmedicos.archivo.lote", 1000);
+	private long pausaMs = Long.getLong("gestionmedicos.archivo.pausaMs", 100L);
+
+	/**
+	 * Resultado de un archivado.
+	 */
+	public static class Resultado {
+		private final int lotes;
+		private final long consultas;
+		private final long anulaciones;
+		private final long nanos;
+
+		Resultado(int lotes, long consultas, long anulaciones, long nanos) {
+			this.lotes = lotes;
+			this.consultas = consultas;
+			this.anulaciones = anulaciones;
+			this.nanos = nanos;
+		}
+
+		public int getLotes() {
+			return lotes;
+		}
+
+		/** @return consultas archivadas */
+		public long getConsultas() {
+			return consultas;
+		}
+
+		/** @return anulaciones archivadas */
+		public long getAnulaciones() {
+			return anulaciones;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d consultas y %d anulaciones archivadas en %d lotes, %.2f s",
+					consultas, anulaciones, lotes, nanos / 1e9);
+		}
+	}
+
+	/**
+	 * Archivador con la retencion por defecto.
+	 */
+	public Archivador() {
+		setRetencionDias(Integer.getInteger("gestionmedicos.archivo.retencionDias", 365));
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            opcionalmente, los dias de retencion, las consultas por lote
+	 *            y la pausa entre lotes en milisegundos
+	 * @throws Exception
+	 *             si el archivado no se puede completar
+	 */
+	public static void main(String[] args) throws Exception {
+		Archivador a = new Archivador();
+		if (args.length > 0)
+			a.setRetencionDias(Integer.parseInt(args[0]));
+		if (args.length > 1)
+			a.setLote(Integer.parseInt(args[1]));
+		if (args.length > 2)
+			a.setPausaMs(Long.parseLong(args[2]));
+		System.out.println(a.archiva());
+	}
+
+	/**
+	 * @param dias
+	 *            se archivan las consultas de hace mas de estos dias
+	 */
+	public Archivador setRetencionDias(int dias) {
+		this.horizonte = new Date(System.currentTimeMillis() - dias * 86400000L);
+		return this;
+	}
+
+	/**
+	 * @param horizonte
+	 *            se archivan las consultas anteriores a esta fecha
+	 */
+	public Archivador setHorizonte(Date horizonte) {
+		this.horizonte = horizonte;
+		return this;
+	}
+
+	public Archivador setLote(int lote) {
+		this.lote = Math.max(1, lote);
+		return this;
+	}
+
+	public Archivador setPausaMs(long pausaMs) {
+		this.pausaMs = Math.max(0, pausaMs);
+		return this;
+	}
+
+	/**
+	 * Archiva por lotes todas las consultas anteriores al horizonte.
+	 *
+	 * @return resumen del archivado
+	 * @throws SQLException
+	 *             si hay un error con la base de datos o un lote falla tras
+	 *             varios intentos
+	 */
+	public Resultado archiva() throws SQLException {
+		long inicio = System.nanoTime();
+		java.sql.Date limite = new java.sql.Date(horizonte.getTime());
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		int lotes = 0;
+		long[] cuenta = new long[2];
+
+		try {
+			con = pool.getConnection();
+			while (true) {
+				long corte = corte(con, limite);
+				if (corte < 0)
+					break;
+				for (int intento = 1;; intento++) {
+					try {
+						mueveLote(con, limite, corte, cuenta);
+						break;
+					} catch (SQLException e) {
+						con.rollback();
+						if (intento == INTENTOS)
+							throw e;
+						logger.warn("Lote hasta la consulta {} deshecho, se reintenta: {}", corte, e.getMessage());
+					}
+				}
+				lotes++;
+				if (pausaMs > 0)
+					Thread.sleep(pausaMs);
+			}
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Archivado interrumpido", e);
+		} finally {
+			if (con != null) con.close();
+		}
+
+		Resultado r = new Resultado(lotes, cuenta[0], cuenta[1], System.nanoTime() - inicio);
+		logger.info(r.toString());
+		return r;
+	}
+
+	/**
+	 * @return mayor id_consulta del siguiente lote, o -1 si no queda nada que
+	 *         archivar
+	 */
+	private long corte(Connection con, java.sql.Date limite) throws SQLException {
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			st = con.prepareStatement(SQL_CORTE);
+			st.setDate(1, limite);
+			st.setInt(2, lote);
+			rs = st.executeQuery();
+			rs.next();
+			long corte = rs.getLong(1);
+			return rs.wasNull() ? -1 : corte;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+		}
+	}
+
+	/**
+	 * Mueve un lote en una transaccion e invalida en la cache el historial de
+	 * sus medicos.
+	 */
+	private void mueveLote(Connection con, java.sql.Date limite, long corte, long[] cuenta)
+			throws SQLException {
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		Set<Integer> medicos = new HashSet<Integer>();
+		long consultas;
+		long anulaciones;
+
+		try {
+			//Se bloquean las consultas del lote para que no se anulen mientras se mueven.
+			st = con.prepareStatement(SQL_BLOQUEA);
+			st.setDate(1, limite);
+			st.setLong(2, corte);
+			rs = st.executeQuery();
+			while (rs.next())
+				medicos.add(rs.getInt(1));
+			rs.close();
+			rs = null;
+			st.close();
+
+			st = con.prepareStatement(SQL_COPIA_CONSULTAS);
+			st.setDate(1, limite);
+			st.setLong(2, corte);
+			consultas = st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(SQL_COPIA_ANULACIONES);
+			st.setDate(1, limite);
+			st.setLong(2, corte);
+			anulaciones = st.executeUpdate();
+			st.close();
+
+			st = con.prepareStatement(SQL_BORRA_ANULACIONES);
+			st.setDate(1, limite);
+			st.setLong(2, corte);
+			if (st.executeUpdate() != anulaciones)
+				throw new SQLException("Las anulaciones del lote han cambiado mientras se archivaban");
+			st.close();
+
+			st = con.prepareStatement(SQL_BORRA_CONSULTAS);
+			st.setDate(1, limite);
+			st.setLong(2, corte);
+			if (st.executeUpdate() != consultas)
+				throw new SQLException("Las consultas del lote han cambiado mientras se archivaban");
+			st.close();
+			st = null;
+
+			con.commit();
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+		}
+
+		cuenta[0] += consultas;
+		cuenta[1] += anulaciones;
+		CacheConsultas cache = CacheConsultas.getInstance();
+		for (int id : medicos)
+			cache.invalida(id);
+		logger.debug("Lote hasta la consulta {}: {} consultas, {} anulaciones", corte, consultas, anulaciones);
+	}
+}
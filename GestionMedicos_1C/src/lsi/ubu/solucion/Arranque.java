@@ -0,0 +1,303 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Arranque:
+ * Precalienta el pool antes de atender peticiones.
+ *
+ * Busca el pool en JNDI, abre en paralelo las conexiones iniciales y en cada
+ * una prepara todas las sentencias que usan las operaciones, incluido el
+ * registro de cambios del bus de tabla, igual que ellas (la insercion de la
+ * consulta pidiendo su clave generada), para que queden en la cache de
+ * sentencias de la conexion. Las consultas y las actualizaciones se
+ * ejecutan con valores que no afectan a ninguna fila para que la base de datos
+ * las analice; las inserciones solo se preparan, porque ejecutarlas consumiria
+ * valores de las secuencias. Opcionalmente recorre la busqueda de medicos
+ * para cargar su indice. Al terminar se marca como listo.
+ *
+ * Mientras dura el arranque, reservar_consulta, anular_consulta y
+ * historial_medico esperan a que termine. Si no se llama a arranca() no
+ * esperan nunca.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Arranque {
+
+	private static Logger logger = LoggerFactory.getLogger(Arranque.class);
+
+	/** Sentencias de las operaciones de GestionMedicos; hay que mantenerla al dia con ellas. */
+	static final List<String> SENTENCIAS = Arrays.asList(GestionMedicos.SQL_ID_MEDICO,
+			GestionMedicos.SQL_INSERTA_CONSULTA, GestionMedicos.SQL_OCUPA_MEDICO, GestionMedicos.SQL_EXISTE_CLIENTE,
+			GestionMedicos.SQL_CONSULTA_ACTIVA, GestionMedicos.SQL_INSERTA_ANULACION,
+			GestionMedicos.SQL_LIBERA_MEDICO, GestionMedicos.SQL_HISTORIAL, GestionMedicos.SQL_HISTORIAL_COMPLETO,
+			BusInvalidacionTabla.SQL_REGISTRA_CAMBIO);
+
+	private static final String SQL_NIFS_MEDICOS = "SELECT NIF FROM medico";
+
+	/** Se abre mientras no hay arranque en curso. */
+	private static volatile CountDownLatch enCurso = new CountDownLatch(0);
+	private static volatile boolean listo = false;
+	private static volatile Informe informe;
+	private static final AtomicBoolean primeraMedida = new AtomicBoolean(false);
+	private static volatile long primeraPeticionMicros = -1;
+
+	/**
+	 * Tiempos del arranque.
+	 */
+	public static class Informe {
+		private long jndiMs;
+		private long conexionesMs;
+		private long cebadoMs;
+		private long totalMs;
+		private int conexiones;
+		private int sentencias;
+		private int medicos;
+
+		public long getJndiMs() {
+			return jndiMs;
+		}
+
+		/** @return tiempo de abrir las conexiones y preparar sus sentencias */
+		public long getConexionesMs() {
+			return conexionesMs;
+		}
+
+		public long getCebadoMs() {
+			return cebadoMs;
+		}
+
+		public long getTotalMs() {
+			return totalMs;
+		}
+
+		public int getConexiones() {
+			return conexiones;
+		}
+
+		/** @return sentencias preparadas en total, sumando todas las conexiones */
+		public int getSentencias() {
+			return sentencias;
+		}
+
+		public int getMedicos() {
+			return medicos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Arranque en %d ms: JNDI %d ms, %d conexiones y %d sentencias en %d ms,"
+					+ " %d medicos cebados en %d ms", totalMs, jndiMs, conexiones, sentencias, conexionesMs,
+					medicos, cebadoMs);
+		}
+	}
+
+	private Arranque() {
+	}
+
+	/**
+	 * Precalienta el pool y marca la aplicacion como lista.
+	 *
+	 * @param cebaMedicos
+	 *            si se recorre la busqueda de todos los medicos
+	 * @return tiempos del arranque
+	 * @throws SQLException
+	 *             si no se puede abrir alguna conexion o preparar alguna
+	 *             sentencia; la aplicacion queda como lista igualmente, sin
+	 *             precalentar
+	 */
+	public static synchronized Informe arranca(boolean cebaMedicos) throws SQLException {
+		CountDownLatch puerta = new CountDownLatch(1);
+		enCurso = puerta;
+		listo = false;
+		primeraMedida.set(false);
+		primeraPeticionMicros = -1;
+		Informe inf = new Informe();
+		long inicio = System.nanoTime();
+		try {
+			//Se busca el pool en JNDI.
+			PoolDeConexiones pool = PoolDeConexiones.getInstance();
+			inf.jndiMs = (System.nanoTime() - inicio) / 1000000;
+
+			//Se abren las conexiones iniciales a la vez, cada una en su hilo.
+			long t = System.nanoTime();
+			pool.aseguraCacheSentencias(SENTENCIAS.size());
+			inf.conexiones = Math.max(1, pool.getTamInicial());
+			inf.sentencias = abreConexiones(pool, inf.conexiones);
+			inf.conexionesMs = (System.nanoTime() - t) / 1000000;
+
+			if (cebaMedicos) {
+				t = System.nanoTime();
+				inf.medicos = cebaMedicos(pool);
+				inf.cebadoMs = (System.nanoTime() - t) / 1000000;
+			}
+			inf.totalMs = (System.nanoTime() - inicio) / 1000000;
+			informe = inf;
+			logger.info(inf.toString());
+			return inf;
+		} finally {
+			listo = true;
+			puerta.countDown();
+		}
+	}
+
+	private static int abreConexiones(final PoolDeConexiones pool, int n) throws SQLException {
+		ExecutorService hilos = Executors.newFixedThreadPool(n);
+		//Cada hilo retiene su conexion hasta que todos la tienen, para que sean conexiones distintas.
+		final CountDownLatch todas = new CountDownLatch(n);
+		final AtomicInteger preparadas = new AtomicInteger();
+		List<Future<Void>> tareas = new ArrayList<Future<Void>>(n);
+		try {
+			for (int i = 0; i < n; i++) {
+				tareas.add(hilos.submit(() -> {
+					Connection con = null;
+					try {
+						con = pool.getConnection();
+						preparadas.addAndGet(preparaSentencias(con));
+						con.rollback();
+					} finally {
+						todas.countDown();
+						todas.await(30, TimeUnit.SECONDS);
+						if (con != null) con.close();
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> f : tareas)
+				f.get();
+			return preparadas.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido durante el arranque", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException("Error abriendo conexiones", e.getCause());
+		} finally {
+			hilos.shutdown();
+		}
+	}
+
+	/**
+	 * Prepara las sentencias de las operaciones en una conexion. Al cerrarlas
+	 * quedan en la cache de sentencias de la conexion, que las distingue
+	 * tambien por las claves generadas que se piden.
+	 */
+	private static int preparaSentencias(Connection con) throws SQLException {
+		int n = 0;
+		for (String sql : SENTENCIAS) {
+			PreparedStatement st = sql.equals(GestionMedicos.SQL_INSERTA_CONSULTA)
+					? con.prepareStatement(sql, GestionMedicos.CLAVES_CONSULTA) : con.prepareStatement(sql);
+			try {
+				if (!sql.startsWith("INSERT")) {
+					//Valores que no corresponden a ninguna fila.
+					int numParametros = st.getParameterMetaData().getParameterCount();
+					for (int i = 1; i <= numParametros; i++)
+						st.setNull(i, Types.VARCHAR);
+					if (st.execute())
+						st.getResultSet().close();
+				}
+				n++;
+			} finally {
+				st.close();
+			}
+		}
+		return n;
+	}
+
+	private static int cebaMedicos(PoolDeConexiones pool) throws SQLException {
+		Connection con = null;
+		PreparedStatement st_nifs = null;
+		PreparedStatement st_id = null;
+		ResultSet rs = null;
+		int n = 0;
+		try {
+			con = pool.getConnection();
+			st_nifs = con.prepareStatement(SQL_NIFS_MEDICOS);
+			st_nifs.setFetchSize(1000);
+			st_id = con.prepareStatement(GestionMedicos.SQL_ID_MEDICO);
+			rs = st_nifs.executeQuery();
+			while (rs.next()) {
+				st_id.setString(1, rs.getString(1));
+				ResultSet rs_id = st_id.executeQuery();
+				rs_id.close();
+				n++;
+			}
+			con.commit();
+			return n;
+		} finally {
+			if (rs != null) rs.close();
+			if (st_id != null) st_id.close();
+			if (st_nifs != null) st_nifs.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Espera a que termine el arranque, si hay uno en curso.
+	 *
+	 * @return instante, en nanosegundos, en que empieza la peticion
+	 * @throws SQLException
+	 *             si se interrumpe la espera
+	 */
+	static long espera() throws SQLException {
+		long inicio = System.nanoTime();
+		try {
+			enCurso.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando el arranque", e);
+		}
+		return inicio;
+	}
+
+	/**
+	 * Anota la latencia de la primera peticion terminada tras el arranque.
+	 *
+	 * @param inicio
+	 *            valor devuelto por espera()
+	 */
+	static void terminada(long inicio) {
+		if (listo && !primeraMedida.get() && primeraMedida.compareAndSet(false, true)) {
+			primeraPeticionMicros = (System.nanoTime() - inicio) / 1000;
+			logger.info("Primera peticion tras el arranque en {} us", primeraPeticionMicros);
+		}
+	}
+
+	/** @return true si el arranque ha terminado */
+	public static boolean isListo() {
+		return listo;
+	}
+
+	/** @return tiempos del ultimo arranque, o null si no se ha hecho */
+	public static Informe getInforme() {
+		return informe;
+	}
+
+	/** @return latencia de la primera peticion tras el arranque, o -1 si aun no la hay */
+	public static long getPrimeraPeticionMicros() {
+		return primeraPeticionMicros;
+	}
+}
@@ -0,0 +1,247 @@
+package lsi.ubu.solucion;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BusInvalidacion:
+ * Lleva a la CacheConsultas de este proceso las reservas y anulaciones que
+ * confirman otros nodos contra el mismo esquema, y limita el desfase: la
+ * cache solo sirve historiales mientras el bus haya confirmado en la ventana
+ * configurada que esta al dia con los demas nodos.
+ *
+ * Hay dos transportes: BusInvalidacionTabla, que sigue la tabla
+ * cambio_consulta escrita en la misma transaccion que cada cambio, y
+ * BusInvalidacionSocket, que envia los cambios por UDP entre nodos locales
+ * (para pruebas sin base de datos compartida).
+ *
+ * Se activa con la propiedad del sistema gestionmedicos.bus (tabla o
+ * socket) al crear la cache. La ventana y el intervalo de sondeo o latido se
+ * configuran con gestionmedicos.bus.ventanaMs (1000 por defecto) y
+ * gestionmedicos.bus.intervaloMs (100 por defecto); el socket con
+ * gestionmedicos.bus.puerto y gestionmedicos.bus.nodos (host:puerto,...).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public abstract class BusInvalidacion implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(BusInvalidacion.class);
+
+	private static BusInvalidacion bus;
+
+	protected final CacheConsultas cache;
+	/** Identificador de este nodo, para no aplicar sus propios cambios. */
+	protected final String nodo = UUID.randomUUID().toString();
+	protected final long ventanaMs;
+	protected final long intervaloMs;
+
+	private final List<Thread> hilos = new ArrayList<Thread>();
+	protected volatile boolean cerrado = false;
+
+	private volatile long ultimaSincronizacion = System.nanoTime();
+	private final AtomicLong invalidaciones = new AtomicLong();
+	private final AtomicLong retrasoTotalMs = new AtomicLong();
+	private final AtomicLong retrasoMaxMs = new AtomicLong();
+	private volatile long ultimoRetrasoMs = 0;
+
+	/**
+	 * @param cache
+	 *            cache que se invalida
+	 * @param ventanaMs
+	 *            desfase maximo con los otros nodos
+	 * @param intervaloMs
+	 *            periodo de sondeo o de latido
+	 */
+	protected BusInvalidacion(CacheConsultas cache, long ventanaMs, long intervaloMs) {
+		this.cache = cache;
+		this.ventanaMs = ventanaMs;
+		this.intervaloMs = intervaloMs;
+	}
+
+	/**
+	 * Arranca el bus configurado con la propiedad gestionmedicos.bus, si no
+	 * estaba ya arrancado.
+	 *
+	 * @param cache
+	 *            cache que se invalida
+	 * @return el bus, o null si no se ha configurado
+	 * @throws Exception
+	 *             si no se puede arrancar
+	 */
+	public static synchronized BusInvalidacion activa(CacheConsultas cache) throws Exception {
+		String tipo = System.getProperty("gestionmedicos.bus");
+		if (bus != null || tipo == null || tipo.isEmpty())
+			return bus;
+		long ventanaMs = Long.getLong("gestionmedicos.bus.ventanaMs", 1000L);
+		long intervaloMs = Long.getLong("gestionmedicos.bus.intervaloMs", 100L);
+		if (tipo.equals("tabla")) {
+			bus = new BusInvalidacionTabla(cache, ventanaMs, intervaloMs);
+		} else if (tipo.equals("socket")) {
+			bus = new BusInvalidacionSocket(cache, Integer.getInteger("gestionmedicos.bus.puerto", 0),
+					nodos(System.getProperty("gestionmedicos.bus.nodos", "")), ventanaMs, intervaloMs);
+		} else {
+			throw new IllegalArgumentException("Bus de invalidacion desconocido: " + tipo);
+		}
+		logger.info("Bus de invalidacion {} con ventana de {} ms", tipo, ventanaMs);
+		return bus;
+	}
+
+	/**
+	 * @return el bus arrancado con activa(), o null
+	 */
+	public static synchronized BusInvalidacion getInstance() {
+		return bus;
+	}
+
+	/**
+	 * @param lista
+	 *            direcciones host:puerto separadas por comas
+	 * @return las direcciones
+	 */
+	static List<InetSocketAddress> nodos(String lista) {
+		List<InetSocketAddress> nodos = new ArrayList<InetSocketAddress>();
+		for (String n : lista.split(",")) {
+			n = n.trim();
+			if (n.isEmpty())
+				continue;
+			int dosPuntos = n.lastIndexOf(':');
+			nodos.add(new InetSocketAddress(n.substring(0, dosPuntos), Integer.parseInt(n.substring(dosPuntos + 1))));
+		}
+		return nodos;
+	}
+
+	/**
+	 * Limita el desfase de la cache y arranca los hilos del bus, con
+	 * prioridad minima para no quitar tiempo a las operaciones.
+	 *
+	 * @param tareas
+	 *            bucles de los hilos, que terminan al cerrar el bus
+	 */
+	protected void arranca(Runnable... tareas) {
+		cache.limitaDesfase(ventanaMs);
+		for (Runnable tarea : tareas) {
+			Thread hilo = new Thread(tarea, "bus-invalidacion-" + hilos.size());
+			hilo.setDaemon(true);
+			hilo.setPriority(Thread.MIN_PRIORITY);
+			hilos.add(hilo);
+			hilo.start();
+		}
+	}
+
+	/**
+	 * Invalida el historial de un medico que ha cambiado en otro nodo.
+	 *
+	 * @param idMedico
+	 *            id del medico
+	 * @param instanteMs
+	 *            instante del cambio en el otro nodo (currentTimeMillis)
+	 */
+	protected void aplica(int idMedico, long instanteMs) {
+		cache.invalida(idMedico);
+		long retraso = Math.max(0, System.currentTimeMillis() - instanteMs);
+		ultimoRetrasoMs = retraso;
+		invalidaciones.incrementAndGet();
+		retrasoTotalMs.addAndGet(retraso);
+		retrasoMaxMs.accumulateAndGet(retraso, Math::max);
+	}
+
+	/**
+	 * Ya se han aplicado todos los cambios que los otros nodos confirmaron
+	 * antes de un instante.
+	 *
+	 * @param instante
+	 *            instante segun System.nanoTime()
+	 */
+	protected void sincronizada(long instante) {
+		ultimaSincronizacion = instante;
+		cache.sincronizada(instante);
+	}
+
+	/**
+	 * Espera un intervalo entre sondeos o latidos.
+	 *
+	 * @return false si se ha cerrado el bus
+	 */
+	protected boolean espera() {
+		try {
+			Thread.sleep(intervaloMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !cerrado;
+	}
+
+	/**
+	 * Libera los recursos del transporte. Se llama al cerrar el bus, despues
+	 * de interrumpir sus hilos.
+	 */
+	protected abstract void detiene();
+
+	@Override
+	public void close() {
+		cerrado = true;
+		for (Thread hilo : hilos)
+			hilo.interrupt();
+		detiene();
+		for (Thread hilo : hilos) {
+			try {
+				hilo.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		cache.limitaDesfase(0);
+		synchronized (BusInvalidacion.class) {
+			if (bus == this)
+				bus = null;
+		}
+	}
+
+	/** @return identificador de este nodo */
+	public String getNodo() {
+		return nodo;
+	}
+
+	/** @return historiales invalidados por cambios de otros nodos */
+	public long getInvalidaciones() {
+		return invalidaciones.get();
+	}
+
+	/** @return retraso medio entre el cambio en otro nodo y su invalidacion aqui */
+	public double getRetrasoMedioMs() {
+		long n = invalidaciones.get();
+		return n == 0 ? 0 : (double) retrasoTotalMs.get() / n;
+	}
+
+	/** @return mayor retraso de invalidacion */
+	public long getRetrasoMaxMs() {
+		return retrasoMaxMs.get();
+	}
+
+	/** @return retraso de la ultima invalidacion */
+	public long getUltimoRetrasoMs() {
+		return ultimoRetrasoMs;
+	}
+
+	/** @return tiempo desde la ultima vez que se confirmo estar al dia */
+	public long getDesfaseMs() {
+		return (System.nanoTime() - ultimaSincronizacion) / 1000000L;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[invalidaciones=%d, retraso medio=%.1f ms, max=%d ms, desfase=%d ms, ventana=%d ms]",
+				getClass().getSimpleName(), invalidaciones.get(), getRetrasoMedioMs(), retrasoMaxMs.get(),
+				getDesfaseMs(), ventanaMs);
+	}
+}
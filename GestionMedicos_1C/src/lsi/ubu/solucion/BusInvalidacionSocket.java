@@ -0,0 +1,173 @@
+package lsi.ubu.solucion;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BusInvalidacionSocket:
+ * Bus de invalidacion por UDP entre nodos de la misma maquina, para probar
+ * varios procesos sin una base de datos compartida. Es un oyente de
+ * GestionMedicos: cada cambio confirmado se envia a todos los nodos.
+ *
+ * Cada nodo numera sus mensajes y envia un latido en cada intervalo. Un
+ * numero que falta significa un mensaje perdido, y se vacia la cache. Un
+ * nodo esta al dia con otro hasta el ultimo mensaje recibido de el; si algun
+ * nodo lleva mas de la ventana sin enviar nada, la cache deja de servir.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class BusInvalidacionSocket extends BusInvalidacion implements OyenteConsultas {
+
+	private static Logger logger = LoggerFactory.getLogger(BusInvalidacionSocket.class);
+
+	private static final byte LATIDO = 0;
+	private static final byte CAMBIO = 1;
+	/** Tipo, numero de mensaje, id_medico e instante. */
+	private static final int TAM_MENSAJE = 1 + 8 + 4 + 8;
+
+	private final DatagramSocket socket;
+	private final List<InetSocketAddress> nodos;
+	/** Estado de cada nodo, que solo modifica el hilo receptor. */
+	private final Map<InetSocketAddress, Nodo> estados = new HashMap<InetSocketAddress, Nodo>();
+	private long numero = 0;
+	private final AtomicLong perdidos = new AtomicLong();
+
+	private static class Nodo {
+		volatile long ultimo = -1;
+		volatile long recibido = System.nanoTime();
+	}
+
+	/**
+	 * Abre el socket en el puerto local y arranca la recepcion y los latidos.
+	 *
+	 * @param cache
+	 *            cache que se invalida
+	 * @param puerto
+	 *            puerto UDP de este nodo en la interfaz local
+	 * @param nodos
+	 *            direcciones de los otros nodos
+	 * @param ventanaMs
+	 *            desfase maximo con los otros nodos
+	 * @param intervaloMs
+	 *            periodo de los latidos
+	 * @throws SocketException
+	 *             si no se puede abrir el socket
+	 */
+	public BusInvalidacionSocket(CacheConsultas cache, int puerto, List<InetSocketAddress> nodos, long ventanaMs,
+			long intervaloMs) throws SocketException {
+		super(cache, ventanaMs, intervaloMs);
+		this.nodos = nodos;
+		for (InetSocketAddress n : nodos)
+			estados.put(n, new Nodo());
+		this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto));
+		this.socket.setSoTimeout((int) intervaloMs);
+		GestionMedicos.registraOyente(this);
+		arranca(this::recibe, this::latidos);
+	}
+
+	@Override
+	public void consultaReservada(int idMedico, Date fecha) {
+		envia(CAMBIO, idMedico);
+	}
+
+	@Override
+	public void consultaAnulada(int idMedico, Date fecha) {
+		envia(CAMBIO, idMedico);
+	}
+
+	/**
+	 * Envia un mensaje a todos los nodos. Es sincronizado para que los
+	 * numeros salgan en orden.
+	 */
+	private synchronized void envia(byte tipo, int idMedico) {
+		ByteBuffer buf = ByteBuffer.allocate(TAM_MENSAJE);
+		buf.put(tipo).putLong(++numero).putInt(idMedico).putLong(System.currentTimeMillis());
+		for (InetSocketAddress n : nodos) {
+			try {
+				socket.send(new DatagramPacket(buf.array(), TAM_MENSAJE, n));
+			} catch (IOException e) {
+				//El receptor vera el hueco en la numeracion.
+				logger.warn("No se puede enviar a {}: {}", n, e.getMessage());
+			}
+		}
+	}
+
+	private void latidos() {
+		while (espera())
+			envia(LATIDO, 0);
+	}
+
+	private void recibe() {
+		DatagramPacket paquete = new DatagramPacket(new byte[TAM_MENSAJE], TAM_MENSAJE);
+		while (!cerrado) {
+			try {
+				socket.receive(paquete);
+				Nodo n = estados.get(paquete.getSocketAddress());
+				if (n != null && paquete.getLength() == TAM_MENSAJE) {
+					ByteBuffer buf = ByteBuffer.wrap(paquete.getData(), 0, TAM_MENSAJE);
+					byte tipo = buf.get();
+					long num = buf.getLong();
+					if (n.ultimo >= 0 && num > n.ultimo + 1) {
+						perdidos.addAndGet(num - n.ultimo - 1);
+						logger.warn("Perdidos {} mensajes de {}: se vacia la cache", num - n.ultimo - 1,
+								paquete.getSocketAddress());
+						cache.vacia();
+					}
+					n.ultimo = Math.max(n.ultimo, num);
+					n.recibido = System.nanoTime();
+					if (tipo == CAMBIO)
+						aplica(buf.getInt(), buf.getLong());
+				}
+			} catch (SocketTimeoutException e) {
+				//Sin mensajes en el intervalo: solo se recalcula el desfase.
+			} catch (IOException e) {
+				if (!cerrado)
+					logger.error("Error recibiendo del bus de invalidacion: {}", e.getMessage());
+				continue;
+			}
+			//Al dia hasta el mensaje mas antiguo de entre los ultimos de cada nodo.
+			long sincronizada = System.nanoTime();
+			for (Nodo n : estados.values()) {
+				if (n.recibido - sincronizada < 0)
+					sincronizada = n.recibido;
+			}
+			sincronizada(sincronizada);
+		}
+	}
+
+	/** @return true si ya se ha recibido algun mensaje de todos los nodos */
+	public boolean isConectado() {
+		for (Nodo n : estados.values()) {
+			if (n.ultimo < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** @return mensajes de otros nodos que no han llegado */
+	public long getPerdidos() {
+		return perdidos.get();
+	}
+
+	@Override
+	protected void detiene() {
+		GestionMedicos.eliminaOyente(this);
+		socket.close();
+	}
+}
@@ -0,0 +1,242 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Sentencias;
+
+/**
+ * BusInvalidacionTabla:
+ * Bus de invalidacion sobre la tabla cambio_consulta. Mientras esta activo,
+ * reservar_consulta y anular_consulta insertan una fila por cambio en la
+ * misma transaccion, y un hilo de prioridad minima con su propia conexion
+ * lee por lotes las filas nuevas de los otros nodos.
+ *
+ * Los id_cambio se piden antes del commit, asi que pueden aparecer
+ * desordenados: los huecos que se ven se vuelven a buscar hasta que aparecen
+ * o pasa el margen (el plazo de una operacion), tras el que se dan por
+ * deshechos. Al arrancar se repasan los cambios de ese mismo margen.
+ *
+ * Configuracion con las propiedades del sistema gestionmedicos.bus.jndi
+ * (pool para el sondeo; el de la aplicacion por defecto),
+ * gestionmedicos.bus.lote (1000 filas), gestionmedicos.bus.margenMs
+ * (gestionmedicos.plazoMs o 10000) y gestionmedicos.bus.retencionMs (una
+ * hora; los cambios mas antiguos se borran).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class BusInvalidacionTabla extends BusInvalidacion {
+
+	private static Logger logger = LoggerFactory.getLogger(BusInvalidacionTabla.class);
+
+	static final String SQL_REGISTRA_CAMBIO = "INSERT INTO cambio_consulta VALUES (seq_cambio.nextval,?,?,?)";
+	private static final String SQL_INICIO = "SELECT NVL((SELECT MIN(id_cambio)-1 FROM cambio_consulta"+
+			" WHERE instante>=?), (SELECT NVL(MAX(id_cambio),0) FROM cambio_consulta)) FROM dual";
+	private static final String SQL_NUEVOS = "SELECT id_cambio, id_medico, nodo, instante FROM cambio_consulta"+
+			" WHERE id_cambio>? ORDER BY id_cambio";
+	private static final String SQL_HUECOS = "SELECT id_cambio, id_medico, nodo, instante FROM cambio_consulta"+
+			" WHERE id_cambio BETWEEN ? AND ?";
+	private static final String SQL_PURGA = "DELETE FROM cambio_consulta WHERE instante<?";
+
+	/** Saltos de la secuencia mayores no se tratan como huecos. */
+	private static final int MAX_HUECO = 10000;
+	private static final long PERIODO_PURGA_MS = 60000;
+
+	/** Nodo que registra sus cambios, o null si no hay bus de tabla activo. */
+	private static volatile String escritor;
+
+	private final PoolDeConexiones pool;
+	private final int lote;
+	private final long margenMs;
+	private final long retencionMs;
+
+	private Connection con;
+	private long ultimo = -1;
+	/** Huecos pendientes: id_cambio e instante (nanoTime) en que se vio. */
+	private final TreeMap<Long, Long> huecos = new TreeMap<Long, Long>();
+	private long ultimaPurga = System.currentTimeMillis();
+
+	/**
+	 * Arranca el sondeo de la tabla y el registro de los cambios de este nodo.
+	 *
+	 * @param cache
+	 *            cache que se invalida
+	 * @param ventanaMs
+	 *            desfase maximo con los otros nodos
+	 * @param intervaloMs
+	 *            periodo de sondeo
+	 */
+	public BusInvalidacionTabla(CacheConsultas cache, long ventanaMs, long intervaloMs) {
+		super(cache, ventanaMs, intervaloMs);
+		String jndi = System.getProperty("gestionmedicos.bus.jndi");
+		this.pool = jndi == null ? PoolDeConexiones.getInstance() : PoolDeConexiones.getInstance(jndi);
+		this.lote = Integer.getInteger("gestionmedicos.bus.lote", 1000);
+		this.margenMs = Long.getLong("gestionmedicos.bus.margenMs", Long.getLong("gestionmedicos.plazoMs", 10000L));
+		this.retencionMs = Long.getLong("gestionmedicos.bus.retencionMs", 3600000L);
+		escritor = nodo;
+		arranca(this::sondeos);
+	}
+
+	/**
+	 * Registra el cambio de un medico en la transaccion en curso, si hay un
+	 * bus de tabla activo.
+	 *
+	 * @param s
+	 *            sentencias de la transaccion
+	 * @param idMedico
+	 *            id del medico que cambia
+	 * @throws SQLException
+	 *             si falla la insercion
+	 */
+	static void registra(Sentencias s, int idMedico) throws SQLException {
+		String nodo = escritor;
+		if (nodo == null)
+			return;
+		PreparedStatement st = s.prepara(SQL_REGISTRA_CAMBIO);
+		st.setInt(1, idMedico);
+		st.setString(2, nodo);
+		st.setLong(3, System.currentTimeMillis());
+		st.executeUpdate();
+	}
+
+	private void sondeos() {
+		do {
+			long inicio = System.nanoTime();
+			try {
+				sondea();
+				sincronizada(inicio);
+			} catch (SQLException e) {
+				//Se reintenta en el siguiente sondeo con otra conexion; mientras, la ventana sigue corriendo.
+				logger.error("Sondeo de cambio_consulta fallido: {}", e.getMessage());
+				cierraConexion();
+			}
+		} while (espera());
+		cierraConexion();
+	}
+
+	/**
+	 * Aplica los cambios confirmados desde el ultimo sondeo. Todo lo
+	 * confirmado antes de empezar o es nuevo o es un hueco pendiente.
+	 */
+	private void sondea() throws SQLException {
+		if (con == null)
+			con = pool.getConnection();
+		try {
+			if (ultimo < 0)
+				ultimo = inicio();
+			long ahora = System.nanoTime();
+
+			if (!huecos.isEmpty()) {
+				PreparedStatement st = con.prepareStatement(SQL_HUECOS);
+				try {
+					st.setLong(1, huecos.firstKey());
+					st.setLong(2, huecos.lastKey());
+					ResultSet rs = st.executeQuery();
+					while (rs.next()) {
+						if (huecos.remove(rs.getLong(1)) != null)
+							aplica(rs.getInt(2), rs.getString(3), rs.getLong(4));
+					}
+					rs.close();
+				} finally {
+					st.close();
+				}
+			}
+
+			PreparedStatement st = con.prepareStatement(SQL_NUEVOS);
+			try {
+				st.setFetchSize(lote);
+				st.setMaxRows(lote);
+				int leidas;
+				do {
+					leidas = 0;
+					st.setLong(1, ultimo);
+					ResultSet rs = st.executeQuery();
+					while (rs.next()) {
+						long id = rs.getLong(1);
+						if (id - ultimo > 1 && id - ultimo <= MAX_HUECO) {
+							for (long h = ultimo + 1; h < id; h++)
+								huecos.put(h, ahora);
+						}
+						ultimo = id;
+						aplica(rs.getInt(2), rs.getString(3), rs.getLong(4));
+						leidas++;
+					}
+					rs.close();
+				} while (leidas == lote);
+			} finally {
+				st.close();
+			}
+
+			//Los huecos que no aparecen en el margen son transacciones deshechas.
+			Iterator<Map.Entry<Long, Long>> it = huecos.entrySet().iterator();
+			while (it.hasNext()) {
+				if (ahora - it.next().getValue() > margenMs * 1000000L)
+					it.remove();
+			}
+
+			if (System.currentTimeMillis() - ultimaPurga > PERIODO_PURGA_MS)
+				purga();
+			con.commit();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		}
+	}
+
+	private long inicio() throws SQLException {
+		PreparedStatement st = con.prepareStatement(SQL_INICIO);
+		try {
+			st.setLong(1, System.currentTimeMillis() - margenMs);
+			ResultSet rs = st.executeQuery();
+			rs.next();
+			long id = rs.getLong(1);
+			rs.close();
+			return id;
+		} finally {
+			st.close();
+		}
+	}
+
+	private void purga() throws SQLException {
+		PreparedStatement st = con.prepareStatement(SQL_PURGA);
+		try {
+			st.setLong(1, System.currentTimeMillis() - retencionMs);
+			int n = st.executeUpdate();
+			logger.debug("{} cambios antiguos borrados de cambio_consulta", n);
+		} finally {
+			st.close();
+		}
+		ultimaPurga = System.currentTimeMillis();
+	}
+
+	private void aplica(int idMedico, String origen, long instanteMs) {
+		if (!nodo.equals(origen))
+			aplica(idMedico, instanteMs);
+	}
+
+	private void cierraConexion() {
+		try {
+			if (con != null) con.close();
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		}
+		con = null;
+	}
+
+	@Override
+	protected void detiene() {
+		if (escritor == nodo)
+			escritor = null;
+	}
+}
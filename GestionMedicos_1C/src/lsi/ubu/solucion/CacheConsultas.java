@@ -0,0 +1,325 @@
+package lsi.ubu.solucion;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CacheConsultas:
+ * Cache del historial de consultas de cada medico que devuelve consulta_medico.
+ *
+ * Cada medico tiene un contador de version que reservar_consulta y
+ * anular_consulta incrementan tras el commit. Una entrada solo se sirve si
+ * su version sigue siendo la actual, asi que despues de una escritura
+ * confirmada en este proceso nunca se devuelve un historial antiguo. El
+ * historial completo (con las consultas archivadas) se guarda aparte del de
+ * las tablas activas. Las entradas se expulsan por tamaño (la menos usada) y
+ * por antiguedad.
+ *
+ * Con varios nodos, un BusInvalidacion trae los cambios de los demas y limita
+ * el desfase: si no ha podido confirmar que esta al dia en la ventana
+ * configurada, la cache deja de servir historiales hasta que lo consiga.
+ *
+ * Se configura con las propiedades del sistema gestionmedicos.cache.activa
+ * (true por defecto), gestionmedicos.cache.maxMedicos y
+ * gestionmedicos.cache.maxEdadMs.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class CacheConsultas implements OyenteConsultas {
+
+	private static Logger logger = LoggerFactory.getLogger(CacheConsultas.class);
+
+	private static CacheConsultas cache;
+
+	private volatile boolean activa;
+	private final int maxMedicos;
+	private final long maxEdadNanos;
+
+	/** Historiales por clave (NIF del medico y variante), en orden de uso. */
+	private final LinkedHashMap<String, Entrada> entradas;
+	/** Version actual del historial de cada medico. */
+	private final Map<Integer, AtomicLong> versiones = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	/** Desfase maximo con los otros nodos, en nanosegundos; 0 si no se limita. */
+	private volatile long ventanaNanos = 0;
+	/** Instante (System.nanoTime) hasta el que se han aplicado los cambios de los otros nodos. */
+	private volatile long sincronizada;
+
+	private final AtomicLong aciertos = new AtomicLong();
+	private final AtomicLong fallos = new AtomicLong();
+	private final AtomicLong expulsiones = new AtomicLong();
+
+	private static class Entrada {
+		final int idMedico;
+		final long version;
+		final long instante;
+		final List<FilaConsulta> filas;
+
+		Entrada(int idMedico, long version, List<FilaConsulta> filas) {
+			this.idMedico = idMedico;
+			this.version = version;
+			this.instante = System.nanoTime();
+			this.filas = filas;
+		}
+	}
+
+	private CacheConsultas(boolean activa, final int maxMedicos, long maxEdadMs) {
+		this.activa = activa;
+		this.maxMedicos = maxMedicos;
+		this.maxEdadNanos = maxEdadMs * 1000000L;
+		this.entradas = new LinkedHashMap<String, Entrada>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entrada> eldest) {
+				if (size() > CacheConsultas.this.maxMedicos) {
+					expulsiones.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Obtiene la cache, creandola y registrandola en GestionMedicos si no existia.
+	 * Si se ha configurado gestionmedicos.bus, arranca tambien el bus de
+	 * invalidacion.
+	 *
+	 * @return la cache
+	 */
+	public static synchronized CacheConsultas getInstance() {
+		if (cache == null) {
+			cache = new CacheConsultas(
+					Boolean.parseBoolean(System.getProperty("gestionmedicos.cache.activa", "true")),
+					Integer.getInteger("gestionmedicos.cache.maxMedicos", 1000),
+					Long.getLong("gestionmedicos.cache.maxEdadMs", 60000L));
+			GestionMedicos.registraOyente(cache);
+			try {
+				BusInvalidacion.activa(cache);
+			} catch (Exception e) {
+				//Sin bus los cambios de otros nodos no llegan: la cache no es segura.
+				logger.error("No se puede arrancar el bus de invalidacion: {}", e.getMessage());
+				cache.setActiva(false);
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Busca el historial de un medico.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @return el historial, o null si no esta en cache o ha cambiado
+	 */
+	public List<FilaConsulta> busca(String m_NIF_medico) {
+		return busca(m_NIF_medico, false);
+	}
+
+	/**
+	 * Busca el historial de un medico.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @param completo
+	 *            true para el historial con las consultas archivadas
+	 * @return el historial, o null si no esta en cache o ha cambiado
+	 */
+	public List<FilaConsulta> busca(String m_NIF_medico, boolean completo) {
+		if (!activa)
+			return null;
+		if (isDesfasada()) {
+			fallos.incrementAndGet();
+			return null;
+		}
+		String clave = clave(m_NIF_medico, completo);
+		Entrada e;
+		synchronized (entradas) {
+			e = entradas.get(clave);
+			if (e != null && (e.version != version(e.idMedico)
+					|| System.nanoTime() - e.instante > maxEdadNanos)) {
+				entradas.remove(clave);
+				e = null;
+			}
+		}
+		if (e == null) {
+			fallos.incrementAndGet();
+			return null;
+		}
+		aciertos.incrementAndGet();
+		return e.filas;
+	}
+
+	/**
+	 * Version actual del historial de un medico. Hay que leerla antes de
+	 * consultar la base de datos y pasarla despues a guarda().
+	 *
+	 * @param idMedico
+	 *            id del medico
+	 * @return version actual
+	 */
+	public long version(int idMedico) {
+		AtomicLong v = versiones.get(idMedico);
+		return v == null ? 0 : v.get();
+	}
+
+	/**
+	 * Guarda el historial leido de la base de datos, salvo que haya cambiado
+	 * la version mientras se leia.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @param idMedico
+	 *            id del medico
+	 * @param version
+	 *            version leida antes de la consulta
+	 * @param filas
+	 *            historial, que no se debe modificar despues
+	 */
+	public void guarda(String m_NIF_medico, int idMedico, long version, List<FilaConsulta> filas) {
+		guarda(m_NIF_medico, false, idMedico, version, filas);
+	}
+
+	/**
+	 * Guarda una variante del historial leido de la base de datos, salvo que
+	 * haya cambiado la version mientras se leia.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @param completo
+	 *            true si es el historial con las consultas archivadas
+	 * @param idMedico
+	 *            id del medico
+	 * @param version
+	 *            version leida antes de la consulta
+	 * @param filas
+	 *            historial, que no se debe modificar despues
+	 */
+	public void guarda(String m_NIF_medico, boolean completo, int idMedico, long version,
+			List<FilaConsulta> filas) {
+		if (!activa || version != version(idMedico))
+			return;
+		synchronized (entradas) {
+			entradas.put(clave(m_NIF_medico, completo), new Entrada(idMedico, version, filas));
+		}
+	}
+
+	private static String clave(String m_NIF_medico, boolean completo) {
+		return completo ? m_NIF_medico + "+archivo" : m_NIF_medico;
+	}
+
+	@Override
+	public void consultaReservada(int idMedico, Date fecha) {
+		invalida(idMedico);
+	}
+
+	@Override
+	public void consultaAnulada(int idMedico, Date fecha) {
+		invalida(idMedico);
+	}
+
+	/**
+	 * Incrementa la version del historial de un medico.
+	 *
+	 * @param idMedico
+	 *            id del medico
+	 */
+	public void invalida(int idMedico) {
+		versiones.computeIfAbsent(idMedico, k -> new AtomicLong()).incrementAndGet();
+	}
+
+	/**
+	 * Limita el desfase con los otros nodos: las entradas solo se sirven si
+	 * se ha llamado a sincronizada() en los ultimos ventanaMs.
+	 *
+	 * @param ventanaMs
+	 *            desfase maximo, o 0 para no limitarlo
+	 */
+	public void limitaDesfase(long ventanaMs) {
+		sincronizada = System.nanoTime();
+		ventanaNanos = ventanaMs * 1000000L;
+	}
+
+	/**
+	 * Indica que ya se han aplicado todos los cambios que los otros nodos
+	 * confirmaron antes de un instante.
+	 *
+	 * @param instante
+	 *            instante segun System.nanoTime()
+	 */
+	public void sincronizada(long instante) {
+		if (instante - sincronizada > 0)
+			sincronizada = instante;
+	}
+
+	/** @return true si se limita el desfase y se ha superado la ventana */
+	public boolean isDesfasada() {
+		long ventana = ventanaNanos;
+		return ventana > 0 && System.nanoTime() - sincronizada > ventana;
+	}
+
+	/**
+	 * Activa o desactiva la cache. Al desactivarla se vacia.
+	 *
+	 * @param activa
+	 *            true para activarla
+	 */
+	public void setActiva(boolean activa) {
+		this.activa = activa;
+		if (!activa) {
+			synchronized (entradas) {
+				entradas.clear();
+			}
+		}
+		logger.info("Cache de consultas {}", activa ? "activada" : "desactivada");
+	}
+
+	/**
+	 * Vacia la cache, por ejemplo tras modificar las tablas sin pasar por
+	 * GestionMedicos.
+	 */
+	public void vacia() {
+		synchronized (entradas) {
+			entradas.clear();
+		}
+	}
+
+	public boolean isActiva() {
+		return activa;
+	}
+
+	public long getAciertos() {
+		return aciertos.get();
+	}
+
+	public long getFallos() {
+		return fallos.get();
+	}
+
+	public long getExpulsiones() {
+		return expulsiones.get();
+	}
+
+	/** @return fraccion de busquedas servidas desde la cache */
+	public double getRatioAciertos() {
+		long a = aciertos.get();
+		long total = a + fallos.get();
+		return total == 0 ? 0 : (double) a / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CacheConsultas[activa=%s, aciertos=%d, fallos=%d, ratio=%.2f, expulsiones=%d]",
+				activa, aciertos.get(), fallos.get(), getRatioAciertos(), expulsiones.get());
+	}
+}
@@ -0,0 +1,69 @@
+package lsi.ubu.solucion;
+
+import java.util.Date;
+
+/**
+ * Cambio:
+ * Reserva o anulacion de una consulta, tal como se confirma en la base de
+ * datos. Es lo que reciben los oyentes de GestionMedicos.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public final class Cambio {
+
+	private final boolean reserva;
+	private final int idConsulta;
+	private final int idMedico;
+	private final String nifCliente;
+	private final Date fecha;
+
+	/**
+	 * @param reserva
+	 *            true si es una reserva, false si es una anulacion
+	 * @param idConsulta
+	 *            id de la consulta reservada o anulada
+	 * @param idMedico
+	 *            id del medico
+	 * @param nifCliente
+	 *            NIF del cliente
+	 * @param fecha
+	 *            fecha de la consulta
+	 */
+	public Cambio(boolean reserva, int idConsulta, int idMedico, String nifCliente, Date fecha) {
+		this.reserva = reserva;
+		this.idConsulta = idConsulta;
+		this.idMedico = idMedico;
+		this.nifCliente = nifCliente;
+		this.fecha = fecha;
+	}
+
+	/** @return true si es una reserva, false si es una anulacion */
+	public boolean isReserva() {
+		return reserva;
+	}
+
+	public int getIdConsulta() {
+		return idConsulta;
+	}
+
+	public int getIdMedico() {
+		return idMedico;
+	}
+
+	public String getNifCliente() {
+		return nifCliente;
+	}
+
+	/** @return fecha de la consulta */
+	public Date getFecha() {
+		return fecha;
+	}
+
+	@Override
+	public String toString() {
+		return (reserva ? "Reserva" : "Anulacion") + " consulta=" + idConsulta + " medico=" + idMedico
+				+ " cliente=" + nifCliente + " fecha=" + fecha;
+	}
+}
@@ -0,0 +1,464 @@
+package lsi.ubu.solucion;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.FragmentosFichero;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * CargaMasiva:
+ * Importa clientes, medicos, consultas y anulaciones desde ficheros CSV.
+ *
+ * Cada fichero se divide en fragmentos que se cargan en paralelo, cada uno
+ * con su propia conexion del pool y en lotes JDBC grandes. Las filas que la
+ * base de datos rechaza se escriben en el fichero '.rechazados' junto al
+ * original. Al final se recalcula MEDICO.consultas y se avanzan las secuencias
+ * por encima de los identificadores cargados.
+ *
+ * Formato de las filas, separadas por comas y sin cabecera (las fechas en
+ * formato yyyy-MM-dd):
+ * <ul>
+ * <li>cliente.csv: NIF,nombre,ape1,ape2,direccion</li>
+ * <li>medico.csv: id_medico,NIF,nombre,ape1,ape2,especialidad</li>
+ * <li>consulta.csv: id_consulta,fecha_consulta,id_medico,NIF</li>
+ * <li>anulacion.csv: id_anulacion,id_consulta,fecha_anulacion,motivo_anulacion</li>
+ * </ul>
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class CargaMasiva {
+
+	private static Logger logger = LoggerFactory.getLogger(CargaMasiva.class);
+
+	/** Filas por lote JDBC. */
+	private static final int TAM_LOTE = 5000;
+
+	/** Recalcula el numero de consultas no anuladas de cada medico, incluidas las archivadas. */
+	static final String SQL_RECALCULA_CONSULTAS = "UPDATE medico m SET consultas=(SELECT COUNT(*)"+
+			" FROM consulta_completa c WHERE c.id_medico=m.id_medico AND c.id_anulacion IS NULL)";
+
+	/**
+	 * Tablas que se pueden cargar, en orden de dependencias.
+	 * Los tipos de columna son I (entero), D (fecha) y S (cadena).
+	 */
+	public enum Tabla {
+		CLIENTE("cliente", "INSERT INTO cliente (NIF,nombre,ape1,ape2,direccion) VALUES (?,?,?,?,?)",
+				"SSSSS", null, null),
+		MEDICO("medico", "INSERT INTO medico (id_medico,NIF,nombre,ape1,ape2,especialidad,consultas)"+
+				" VALUES (?,?,?,?,?,?,0)", "ISSSSS", "seq_medico", "id_medico"),
+		CONSULTA("consulta", "INSERT INTO consulta (id_consulta,fecha_consulta,id_medico,NIF) VALUES (?,?,?,?)",
+				"IDIS", "seq_consulta", "id_consulta"),
+		ANULACION("anulacion", "INSERT INTO anulacion (id_anulacion,id_consulta,fecha_anulacion,motivo_anulacion)"+
+				" VALUES (?,?,?,?)", "IIDS", "seq_anulacion", "id_anulacion");
+
+		private final String nombre;
+		private final String insert;
+		private final String tipos;
+		private final String secuencia;
+		private final String clave;
+
+		Tabla(String nombre, String insert, String tipos, String secuencia, String clave) {
+			this.nombre = nombre;
+			this.insert = insert;
+			this.tipos = tipos;
+			this.secuencia = secuencia;
+			this.clave = clave;
+		}
+
+		/** @return nombre de la tabla en la base de datos */
+		public String getNombre() {
+			return nombre;
+		}
+
+		/** @return sentencia de insercion de una fila */
+		public String getInsert() {
+			return insert;
+		}
+
+		/** @return tipos de las columnas del CSV */
+		public String getTipos() {
+			return tipos;
+		}
+	}
+
+	/**
+	 * Resultado de la carga de un fichero.
+	 */
+	public static class Resultado {
+		private final Tabla tabla;
+		private final long cargadas;
+		private final long rechazadas;
+		private final long nanos;
+
+		Resultado(Tabla tabla, long cargadas, long rechazadas, long nanos) {
+			this.tabla = tabla;
+			this.cargadas = cargadas;
+			this.rechazadas = rechazadas;
+			this.nanos = nanos;
+		}
+
+		public long getCargadas() {
+			return cargadas;
+		}
+
+		public long getRechazadas() {
+			return rechazadas;
+		}
+
+		/** @return filas cargadas por segundo */
+		public double getFilasPorSegundo() {
+			return nanos == 0 ? 0 : cargadas * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d filas en %.2f s (%.0f filas/s), %d rechazadas",
+					tabla.nombre, cargadas, nanos / 1e9, getFilasPorSegundo(), rechazadas);
+		}
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            directorio con los ficheros &lt;tabla&gt;.csv y,
+	 *            opcionalmente, el numero de hilos
+	 * @throws Exception
+	 *             si la carga no se puede completar
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Uso: CargaMasiva <directorio> [hilos]");
+			return;
+		}
+		int hilos = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		for (Resultado r : cargaDirectorio(Paths.get(args[0]), hilos))
+			System.out.println(r);
+	}
+
+	/**
+	 * Carga los ficheros de las tablas que existan en el directorio, en orden
+	 * de dependencias, y recalcula MEDICO.consultas.
+	 *
+	 * @param directorio
+	 *            directorio con los ficheros &lt;tabla&gt;.csv
+	 * @param hilos
+	 *            numero de hilos por fichero
+	 * @return resultados de cada fichero cargado
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si hay un error con los ficheros
+	 */
+	public static List<Resultado> cargaDirectorio(Path directorio, int hilos) throws SQLException, IOException {
+		List<Resultado> resultados = new ArrayList<Resultado>();
+		for (Tabla t : Tabla.values()) {
+			Path fichero = directorio.resolve(t.nombre + ".csv");
+			if (Files.exists(fichero))
+				resultados.add(carga(t, fichero, hilos));
+		}
+		long inicio = System.nanoTime();
+		recalculaConsultas();
+		logger.info("MEDICO.consultas recalculado en {} ms", (System.nanoTime() - inicio) / 1000000);
+		return resultados;
+	}
+
+	/**
+	 * Carga un fichero CSV en la tabla indicada.
+	 *
+	 * @param tabla
+	 *            tabla destino
+	 * @param fichero
+	 *            fichero CSV
+	 * @param hilos
+	 *            numero de hilos, cada uno con su conexion
+	 * @return filas cargadas y rechazadas
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si hay un error con los ficheros
+	 */
+	public static Resultado carga(final Tabla tabla, Path fichero, int hilos) throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		Path ficheroRechazos = Paths.get(fichero.toString() + ".rechazados");
+		long cargadas = 0;
+		long rechazadas = 0;
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ);
+				final BufferedWriter rechazos = Files.newBufferedWriter(ficheroRechazos, StandardCharsets.UTF_8)) {
+			long[] cortes = FragmentosFichero.divide(canal, hilos);
+			List<Future<long[]>> tareas = new ArrayList<Future<long[]>>();
+			for (int i = 0; i < hilos; i++) {
+				if (cortes[i] == cortes[i + 1])
+					continue;
+				final FragmentosFichero.LectorLineas lector =
+						new FragmentosFichero.LectorLineas(canal, cortes[i], cortes[i + 1]);
+				tareas.add(ejecutor.submit(() -> cargaFragmento(tabla, lector, rechazos)));
+			}
+			for (Future<long[]> f : tareas) {
+				long[] cuenta = f.get();
+				cargadas += cuenta[0];
+				rechazadas += cuenta[1];
+			}
+			if (tabla.secuencia != null)
+				avanzaSecuencia(tabla);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Carga interrumpida", e);
+		} finally {
+			ejecutor.shutdownNow();
+		}
+
+		if (rechazadas == 0)
+			Files.deleteIfExists(ficheroRechazos);
+		Resultado r = new Resultado(tabla, cargadas, rechazadas, System.nanoTime() - inicio);
+		logger.info(r.toString());
+		return r;
+	}
+
+	/**
+	 * Carga un fragmento del fichero con una conexion propia.
+	 *
+	 * @return filas cargadas y filas rechazadas
+	 */
+	private static long[] cargaFragmento(Tabla tabla, FragmentosFichero.LectorLineas lector,
+			BufferedWriter rechazos) throws SQLException, IOException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st_insert = null;
+		List<String[]> filas = new ArrayList<String[]>(TAM_LOTE);
+		List<String> lineas = new ArrayList<String>(TAM_LOTE);
+		long[] cuenta = new long[2];
+
+		try {
+			con = pool.getConnection();
+			st_insert = con.prepareStatement(tabla.insert);
+			String linea;
+			while ((linea = lector.siguiente()) != null) {
+				if (linea.isEmpty())
+					continue;
+				String[] campos = campos(linea, tabla.tipos.length());
+				if (campos == null) {
+					rechaza(rechazos, linea, "numero de columnas incorrecto", cuenta);
+					continue;
+				}
+				try {
+					asigna(st_insert, tabla.tipos, campos);
+				} catch (IllegalArgumentException e) {
+					rechaza(rechazos, linea, "valor incorrecto: " + e.getMessage(), cuenta);
+					continue;
+				}
+				st_insert.addBatch();
+				filas.add(campos);
+				lineas.add(linea);
+				if (filas.size() >= TAM_LOTE)
+					ejecutaLote(con, st_insert, tabla, filas, lineas, rechazos, cuenta);
+			}
+			ejecutaLote(con, st_insert, tabla, filas, lineas, rechazos, cuenta);
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (st_insert != null) st_insert.close();
+			if (con != null) con.close();
+		}
+		return cuenta;
+	}
+
+	/**
+	 * Envia el lote y lo confirma. Si falla, se repite fila a fila para
+	 * separar las filas rechazadas.
+	 */
+	private static void ejecutaLote(Connection con, PreparedStatement st_insert, Tabla tabla,
+			List<String[]> filas, List<String> lineas, BufferedWriter rechazos, long[] cuenta)
+			throws SQLException, IOException {
+		if (filas.isEmpty())
+			return;
+		try {
+			st_insert.executeBatch();
+			con.commit();
+			cuenta[0] += filas.size();
+		} catch (SQLException e) {
+			con.rollback();
+			st_insert.clearBatch();
+			logger.debug("Lote de {} rechazado, se reintenta fila a fila: {}", tabla.nombre, e.getMessage());
+			for (int i = 0; i < filas.size(); i++) {
+				try {
+					asigna(st_insert, tabla.tipos, filas.get(i));
+					st_insert.executeUpdate();
+					cuenta[0]++;
+				} catch (SQLException ex) {
+					rechaza(rechazos, lineas.get(i), ex.getMessage(), cuenta);
+				}
+			}
+			con.commit();
+		} finally {
+			filas.clear();
+			lineas.clear();
+		}
+	}
+
+	private static void rechaza(BufferedWriter rechazos, String linea, String motivo, long[] cuenta)
+			throws IOException {
+		cuenta[1]++;
+		synchronized (rechazos) {
+			rechazos.write(linea);
+			rechazos.write("\t-- ");
+			rechazos.write(motivo == null ? "" : motivo.replace('\n', ' '));
+			rechazos.newLine();
+		}
+	}
+
+	/**
+	 * Separa los campos de una linea CSV. Admite campos entre comillas dobles.
+	 *
+	 * @return los campos, o null si no hay el numero esperado
+	 */
+	static String[] campos(String linea, int n) {
+		String[] campos = new String[n];
+		int i = 0;
+		int pos = 0;
+		int len = linea.length();
+		while (pos <= len) {
+			if (i == n)
+				return null;
+			if (pos < len && linea.charAt(pos) == '"') {
+				StringBuilder sb = new StringBuilder();
+				pos++;
+				while (pos < len) {
+					char c = linea.charAt(pos++);
+					if (c == '"') {
+						if (pos < len && linea.charAt(pos) == '"') {
+							sb.append('"');
+							pos++;
+						} else
+							break;
+					} else
+						sb.append(c);
+				}
+				campos[i++] = sb.toString();
+				if (pos < len && linea.charAt(pos) != ',')
+					return null;
+				pos++;
+			} else {
+				int coma = linea.indexOf(',', pos);
+				if (coma < 0)
+					coma = len;
+				campos[i++] = linea.substring(pos, coma).trim();
+				pos = coma + 1;
+			}
+		}
+		return i == n ? campos : null;
+	}
+
+	/**
+	 * Asigna los campos a los parametros de la sentencia.
+	 *
+	 * @throws IllegalArgumentException
+	 *             si un numero o una fecha no tienen el formato correcto
+	 */
+	static void asigna(PreparedStatement st, String tipos, String[] campos) throws SQLException {
+		for (int i = 0; i < campos.length; i++) {
+			String v = campos[i];
+			char tipo = tipos.charAt(i);
+			if (v.isEmpty()) {
+				st.setNull(i + 1, tipo == 'I' ? Types.INTEGER : tipo == 'D' ? Types.DATE : Types.VARCHAR);
+			} else if (tipo == 'I') {
+				st.setInt(i + 1, Integer.parseInt(v));
+			} else if (tipo == 'D') {
+				st.setDate(i + 1, java.sql.Date.valueOf(v));
+			} else {
+				st.setString(i + 1, v);
+			}
+		}
+	}
+
+	/**
+	 * Recalcula MEDICO.consultas con una unica sentencia.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static void recalculaConsultas() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			st.executeUpdate(SQL_RECALCULA_CONSULTAS);
+			con.commit();
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Avanza la secuencia de la tabla hasta el mayor identificador cargado.
+	 */
+	static void avanzaSecuencia(Tabla tabla) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		CallableStatement cll_avanza = null;
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			rs = st.executeQuery("SELECT MAX(" + tabla.clave + ") FROM " + tabla.nombre);
+			rs.next();
+			cll_avanza = con.prepareCall("{call avanza_seq(?,?)}");
+			cll_avanza.setString(1, tabla.secuencia);
+			cll_avanza.setLong(2, rs.getLong(1));
+			cll_avanza.execute();
+			con.commit();
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (cll_avanza != null) cll_avanza.close();
+			if (con != null) con.close();
+		}
+	}
+}
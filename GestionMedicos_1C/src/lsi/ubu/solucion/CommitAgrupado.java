@@ -0,0 +1,256 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.PerfilJDBC;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Sentencias;
+
+/**
+ * CommitAgrupado:
+ * Agrupa las reservas y anulaciones de varios hilos en una sola transaccion.
+ *
+ * Un hilo combinador recoge las operaciones que llegan durante una ventana de
+ * tiempo (o hasta un numero maximo), ejecuta cada una bajo su propio savepoint
+ * sobre una conexion compartida y hace un unico commit. Si una operacion falla
+ * se vuelve a su savepoint y solo esa operacion recibe el error; las demas se
+ * confirman. Cada llamante espera a que se confirme su grupo.
+ *
+ * Se activa con GestionMedicos.setCommitAgrupado().
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class CommitAgrupado implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(CommitAgrupado.class);
+
+	/**
+	 * Operacion que se ejecuta dentro de la transaccion del grupo.
+	 */
+	public interface Operacion {
+		/**
+		 * @param s
+		 *            sentencias de la conexion compartida
+		 * @return reserva o anulacion hecha, o null si no cambia consultas
+		 * @throws SQLException
+		 *             si la operacion no se puede completar
+		 */
+		Cambio ejecuta(Sentencias s) throws SQLException;
+	}
+
+	private static class Peticion {
+		final Operacion operacion;
+		/** Perfil de quien la pide, si se esta midiendo. */
+		final PerfilJDBC.Perfil perfil = PerfilJDBC.getActual();
+		final CountDownLatch hecha = new CountDownLatch(1);
+		Cambio resultado;
+		SQLException error;
+
+		Peticion(Operacion operacion) {
+			this.operacion = operacion;
+		}
+	}
+
+	private final long ventanaNanos;
+	private final int maxLote;
+	private final BlockingQueue<Peticion> cola = new LinkedBlockingQueue<Peticion>();
+	private final Thread combinador;
+	/** Solo cambia con el cerrojo de la cola, asi que tras cerrar no entra ninguna peticion. */
+	private volatile boolean cerrado = false;
+
+	private final AtomicLong grupos = new AtomicLong();
+	private final AtomicLong operaciones = new AtomicLong();
+
+	/**
+	 * Crea el combinador y arranca su hilo.
+	 *
+	 * @param ventanaMicros
+	 *            tiempo maximo que se espera a otras operaciones desde que
+	 *            llega la primera del grupo, en microsegundos
+	 * @param maxLote
+	 *            numero maximo de operaciones por commit
+	 */
+	public CommitAgrupado(long ventanaMicros, int maxLote) {
+		this.ventanaNanos = ventanaMicros * 1000L;
+		this.maxLote = maxLote;
+		this.combinador = new Thread(this::combina, "commit-agrupado");
+		this.combinador.setDaemon(true);
+		this.combinador.start();
+	}
+
+	/**
+	 * Ejecuta una operacion en el siguiente grupo y espera a su commit.
+	 *
+	 * @param operacion
+	 *            operacion a ejecutar
+	 * @return resultado de la operacion
+	 * @throws SQLException
+	 *             el error de la operacion, o del commit del grupo
+	 */
+	public Cambio ejecuta(Operacion operacion) throws SQLException {
+		Peticion p = new Peticion(operacion);
+		synchronized (cola) {
+			if (cerrado)
+				throw new SQLException("Commit agrupado cerrado");
+			cola.add(p);
+		}
+		try {
+			p.hecha.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando el commit agrupado", e);
+		}
+		if (p.error != null)
+			throw p.error;
+		return p.resultado;
+	}
+
+	private void combina() {
+		List<Peticion> lote = new ArrayList<Peticion>(maxLote);
+		Connection con = null;
+		Sentencias s = null;
+
+		while (!cerrado || !cola.isEmpty()) {
+			try {
+				Peticion primera = cola.poll(100, TimeUnit.MILLISECONDS);
+				if (primera == null)
+					continue;
+				lote.add(primera);
+				long limite = System.nanoTime() + ventanaNanos;
+				while (lote.size() < maxLote) {
+					long resto = limite - System.nanoTime();
+					Peticion p = resto > 0 ? cola.poll(resto, TimeUnit.NANOSECONDS) : cola.poll();
+					if (p == null)
+						break;
+					lote.add(p);
+				}
+
+				if (con == null) {
+					con = PoolDeConexiones.getInstance().getConnection();
+					s = new Sentencias(con);
+				}
+				ejecutaLote(con, s, lote);
+			} catch (InterruptedException e) {
+				//Las peticiones recogidas aun no se han ejecutado: fallan en lugar de parecer confirmadas.
+				cierraCola();
+				for (Peticion p : lote)
+					p.error = new SQLException("Commit agrupado interrumpido", e);
+			} catch (SQLException e) {
+				//Fallo del commit o de la conexion: falla todo el grupo y se renueva la conexion.
+				logger.error("Commit agrupado fallido: {}", e.getMessage());
+				for (Peticion p : lote) {
+					if (p.error == null)
+						p.error = e;
+				}
+				try {
+					if (con != null) con.rollback();
+				} catch (SQLException ex) {
+					logger.error(ex.getMessage());
+				}
+				cierra(con, s);
+				con = null;
+				s = null;
+			} finally {
+				for (Peticion p : lote)
+					p.hecha.countDown();
+				lote.clear();
+			}
+		}
+		cierra(con, s);
+	}
+
+	private void ejecutaLote(Connection con, Sentencias s, List<Peticion> lote) throws SQLException {
+		for (Peticion p : lote) {
+			//Las llamadas de una operacion que se esta midiendo se cuentan en el perfil de quien la pide.
+			Connection c = PerfilJDBC.envuelve(con, p.perfil);
+			Sentencias sp_s = c == con ? s : new Sentencias(c);
+			Savepoint sp = c.setSavepoint();
+			try {
+				p.resultado = p.operacion.ejecuta(sp_s);
+			} catch (SQLException e) {
+				c.rollback(sp);
+				if (!(e instanceof GestionMedicosException))
+					logger.error(e.getMessage());
+				p.error = e;
+			} finally {
+				if (sp_s != s) sp_s.close();
+			}
+		}
+		try {
+			con.commit();
+		} catch (SQLException e) {
+			//Como en GestionMedicos: si se pierde la conexion en el commit, el grupo no se repite.
+			if (GestionMedicos.conexionPerdida(e))
+				throw GestionMedicos.commitIncierto(e);
+			throw e;
+		}
+		//El commit es uno para todo el grupo, pero cada operacion medida espera su ida y vuelta.
+		for (Peticion p : lote)
+			PerfilJDBC.cuentaCommit(p.perfil);
+		grupos.incrementAndGet();
+		operaciones.addAndGet(lote.size());
+	}
+
+	private static void cierra(Connection con, Sentencias s) {
+		try {
+			if (s != null) s.close();
+			if (con != null) con.close();
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+		}
+	}
+
+	/** @return numero de commits realizados */
+	public long getGrupos() {
+		return grupos.get();
+	}
+
+	/** @return numero medio de operaciones por commit */
+	public double getOperacionesPorGrupo() {
+		long g = grupos.get();
+		return g == 0 ? 0 : (double) operaciones.get() / g;
+	}
+
+	/**
+	 * Termina las operaciones pendientes y para el hilo combinador.
+	 */
+	@Override
+	public void close() {
+		cierraCola();
+		try {
+			combinador.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		//Peticiones sin atender si el combinador no llego a vaciar la cola.
+		Peticion p;
+		while ((p = cola.poll()) != null) {
+			p.error = new SQLException("Commit agrupado cerrado");
+			p.hecha.countDown();
+		}
+	}
+
+	/**
+	 * Deja de admitir peticiones. Las que ya estan en la cola se ejecutan.
+	 */
+	private void cierraCola() {
+		synchronized (cola) {
+			cerrado = true;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.MapaDias;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Disponibilidad:
+ * Mantiene en memoria los dias ocupados de cada medico, agrupados por
+ * especialidad, para responder a busquedas de huecos sin ir a la base de datos.
+ *
+ * Se construye con un unico recorrido de CONSULTA y ANULACION y despues se
+ * actualiza con los avisos de reservar_consulta y anular_consulta. Los avisos
+ * que llegan durante el recorrido se aplican al terminarlo.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Disponibilidad implements OyenteConsultas {
+
+	private static Logger logger = LoggerFactory.getLogger(Disponibilidad.class);
+
+	private static final String SQL_OCUPACION = "SELECT m.id_medico, m.NIF, m.especialidad, c.fecha_consulta"+
+			" FROM medico m LEFT JOIN (SELECT id_medico, fecha_consulta FROM consulta"+
+			" WHERE id_consulta NOT IN (SELECT id_consulta FROM anulacion)) c ON c.id_medico=m.id_medico";
+
+	private final Map<Integer, MapaDias> ocupacion = new ConcurrentHashMap<Integer, MapaDias>();
+	private final Map<String, Integer> idPorNif = new ConcurrentHashMap<String, Integer>();
+	private final Map<Integer, String> nifPorId = new ConcurrentHashMap<Integer, String>();
+	private final Map<String, List<Integer>> medicosPorEspecialidad = new ConcurrentHashMap<String, List<Integer>>();
+
+	/** Avisos recibidos mientras se recorre la base de datos: dia, o -(dia+1) si es anulacion. */
+	private volatile List<int[]> pendientes = new ArrayList<int[]>();
+
+	/**
+	 * Hueco libre de un medico.
+	 */
+	public static class Hueco {
+		private final String nifMedico;
+		private final Date fecha;
+
+		Hueco(String nifMedico, Date fecha) {
+			this.nifMedico = nifMedico;
+			this.fecha = fecha;
+		}
+
+		public String getNifMedico() {
+			return nifMedico;
+		}
+
+		public Date getFecha() {
+			return fecha;
+		}
+	}
+
+	private Disponibilidad() {
+	}
+
+	/**
+	 * Construye la disponibilidad de todos los medicos y la registra para
+	 * recibir los cambios de GestionMedicos.
+	 *
+	 * @return la disponibilidad, ya registrada
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static Disponibilidad construye() throws SQLException {
+		Disponibilidad d = new Disponibilidad();
+		GestionMedicos.registraOyente(d);
+		try {
+			d.carga();
+		} catch (SQLException e) {
+			GestionMedicos.eliminaOyente(d);
+			throw e;
+		}
+		return d;
+	}
+
+	private void carga() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		long inicio = System.nanoTime();
+		int filas = 0;
+
+		try {
+			con = pool.getConnection();
+			st = con.prepareStatement(SQL_OCUPACION);
+			st.setFetchSize(1000);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				int idMedico = rs.getInt(1);
+				MapaDias mapa = ocupacion.get(idMedico);
+				if (mapa == null) {
+					mapa = new MapaDias();
+					ocupacion.put(idMedico, mapa);
+					String nif = rs.getString(2);
+					idPorNif.put(nif, idMedico);
+					nifPorId.put(idMedico, nif);
+					medicosPorEspecialidad.computeIfAbsent(rs.getString(3), k -> new ArrayList<Integer>())
+							.add(idMedico);
+				}
+				java.sql.Date fecha = rs.getDate(4);
+				if (fecha != null) {
+					mapa.marca(Misc.diaEpoca(fecha));
+					filas++;
+				}
+			}
+			con.commit();
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+
+		//Se aplican los avisos que han llegado durante el recorrido.
+		synchronized (this) {
+			for (int[] aviso : pendientes)
+				aplica(aviso[0], aviso[1]);
+			pendientes = null;
+		}
+		logger.info("Disponibilidad de {} medicos ({} consultas) cargada en {} ms", ocupacion.size(), filas,
+				(System.nanoTime() - inicio) / 1000000);
+	}
+
+	@Override
+	public void consultaReservada(int idMedico, Date fecha) {
+		avisa(idMedico, Misc.diaEpoca(fecha));
+	}
+
+	@Override
+	public void consultaAnulada(int idMedico, Date fecha) {
+		avisa(idMedico, -(Misc.diaEpoca(fecha) + 1));
+	}
+
+	private void avisa(int idMedico, int dia) {
+		if (pendientes != null) {
+			synchronized (this) {
+				if (pendientes != null) {
+					pendientes.add(new int[] { idMedico, dia });
+					return;
+				}
+			}
+		}
+		aplica(idMedico, dia);
+	}
+
+	private void aplica(int idMedico, int dia) {
+		MapaDias mapa = ocupacion.get(idMedico);
+		if (mapa == null)
+			return;
+		synchronized (mapa) {
+			if (dia >= 0)
+				mapa.marca(dia);
+			else
+				mapa.desmarca(-dia - 1);
+		}
+	}
+
+	/**
+	 * Dias libres de un medico.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @param desde
+	 *            primer dia a considerar
+	 * @param dias
+	 *            numero de dias a considerar
+	 * @return los dias libres en orden, o null si el medico no existe
+	 */
+	public List<Date> diasLibres(String m_NIF_medico, Date desde, int dias) {
+		MapaDias mapa = mapa(m_NIF_medico);
+		if (mapa == null)
+			return null;
+		int inicio = Misc.diaEpoca(desde);
+		int[] libres;
+		synchronized (mapa) {
+			libres = mapa.libres(inicio, inicio + dias - 1);
+		}
+		List<Date> fechas = new ArrayList<Date>(libres.length);
+		for (int dia : libres)
+			fechas.add(Misc.fechaDeDiaEpoca(dia));
+		return fechas;
+	}
+
+	/**
+	 * Primer dia libre de un medico.
+	 *
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @param desde
+	 *            primer dia a considerar
+	 * @return el primer dia libre, o null si el medico no existe
+	 */
+	public Date primerDiaLibre(String m_NIF_medico, Date desde) {
+		MapaDias mapa = mapa(m_NIF_medico);
+		if (mapa == null)
+			return null;
+		synchronized (mapa) {
+			return Misc.fechaDeDiaEpoca(mapa.siguienteLibre(Misc.diaEpoca(desde)));
+		}
+	}
+
+	/**
+	 * Primer hueco libre de cualquier medico de una especialidad.
+	 *
+	 * @param especialidad
+	 *            especialidad buscada
+	 * @param desde
+	 *            primer dia a considerar
+	 * @return el medico y el dia del primer hueco, o null si no hay medicos
+	 *         de esa especialidad
+	 */
+	public Hueco primerHueco(String especialidad, Date desde) {
+		List<Integer> medicos = medicosPorEspecialidad.get(especialidad);
+		if (medicos == null)
+			return null;
+		int inicio = Misc.diaEpoca(desde);
+		int mejorDia = Integer.MAX_VALUE;
+		int mejorMedico = -1;
+		for (int idMedico : medicos) {
+			MapaDias mapa = ocupacion.get(idMedico);
+			int dia;
+			synchronized (mapa) {
+				dia = mapa.siguienteLibre(inicio);
+			}
+			if (dia < mejorDia) {
+				mejorDia = dia;
+				mejorMedico = idMedico;
+				if (dia == inicio)
+					break;
+			}
+		}
+		return new Hueco(nifPorId.get(mejorMedico), Misc.fechaDeDiaEpoca(mejorDia));
+	}
+
+	private MapaDias mapa(String m_NIF_medico) {
+		Integer idMedico = idPorNif.get(m_NIF_medico);
+		return idMedico == null ? null : ocupacion.get(idMedico);
+	}
+
+	/**
+	 * Deja de recibir los cambios de GestionMedicos.
+	 */
+	public void cierra() {
+		GestionMedicos.eliminaOyente(this);
+	}
+}
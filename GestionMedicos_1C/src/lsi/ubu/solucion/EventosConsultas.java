@@ -0,0 +1,266 @@
+package lsi.ubu.solucion;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.RegistroMapeado;
+
+/**
+ * EventosConsultas:
+ * Registro en disco de las reservas y anulaciones confirmadas, para que
+ * otros procesos las sigan sin consultar la base de datos.
+ *
+ * Es un oyente de GestionMedicos: cada cambio confirmado se añade como un
+ * evento de tamaño fijo a un RegistroMapeado, sin bloqueos entre los hilos
+ * que reservan. Los consumidores leen desde su ultimo offset guardado, o
+ * desde cualquier offset retenido para reprocesar.
+ *
+ * Tamaños configurables con las propiedades del sistema
+ * gestionmedicos.eventos.registrosPorSegmento (65536 por defecto) y
+ * gestionmedicos.eventos.maxMB (64 por defecto).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class EventosConsultas implements OyenteConsultas, Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(EventosConsultas.class);
+
+	/** Tipo, id_consulta, id_medico, NIF, dia de la consulta e instante. */
+	static final int TAM_EVENTO = 1 + 4 + 4 + 9 + 4 + 8;
+
+	private final RegistroMapeado registro;
+
+	/**
+	 * Evento leido del registro.
+	 */
+	public static class Evento {
+		private final long offset;
+		private final boolean reserva;
+		private final int idConsulta;
+		private final int idMedico;
+		private final String nifCliente;
+		private final int diaEpoca;
+		private final long instante;
+
+		private Evento(long offset, ByteBuffer bb) {
+			this.offset = offset;
+			this.reserva = bb.get() == 'R';
+			this.idConsulta = bb.getInt();
+			this.idMedico = bb.getInt();
+			byte[] nif = new byte[9];
+			bb.get(nif);
+			this.nifCliente = new String(nif, StandardCharsets.US_ASCII).trim();
+			this.diaEpoca = bb.getInt();
+			this.instante = bb.getLong();
+		}
+
+		/** @return offset del evento en el registro */
+		public long getOffset() {
+			return offset;
+		}
+
+		/** @return true si es una reserva, false si es una anulacion */
+		public boolean isReserva() {
+			return reserva;
+		}
+
+		public int getIdConsulta() {
+			return idConsulta;
+		}
+
+		public int getIdMedico() {
+			return idMedico;
+		}
+
+		public String getNifCliente() {
+			return nifCliente;
+		}
+
+		/** @return fecha de la consulta */
+		public Date getFecha() {
+			return Misc.fechaDeDiaEpoca(diaEpoca);
+		}
+
+		/** @return instante del commit en milisegundos */
+		public long getInstante() {
+			return instante;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d %s consulta=%d medico=%d cliente=%s dia=%d", offset, reserva ? "R" : "A",
+					idConsulta, idMedico, nifCliente, diaEpoca);
+		}
+	}
+
+	/**
+	 * Consumidor de eventos. Cada consumidor es de un solo hilo.
+	 */
+	public static class Consumidor {
+		private final RegistroMapeado.Lector lector;
+
+		private Consumidor(RegistroMapeado.Lector lector) {
+			this.lector = lector;
+		}
+
+		/**
+		 * @return el siguiente evento, o null si no hay ninguno nuevo
+		 */
+		public Evento siguiente() {
+			long offset = lector.getOffset();
+			byte[] datos = lector.siguiente();
+			return datos == null ? null : decodifica(lector.getOffset() - 1, datos, offset);
+		}
+
+		/**
+		 * Espera al siguiente evento.
+		 *
+		 * @param timeoutMs
+		 *            espera maxima en milisegundos
+		 * @return el evento, o null si no llega a tiempo
+		 * @throws InterruptedException
+		 *             si se interrumpe la espera
+		 */
+		public Evento espera(long timeoutMs) throws InterruptedException {
+			long offset = lector.getOffset();
+			byte[] datos = lector.espera(timeoutMs);
+			return datos == null ? null : decodifica(lector.getOffset() - 1, datos, offset);
+		}
+
+		/** @return offset del siguiente evento que se leera */
+		public long getOffset() {
+			return lector.getOffset();
+		}
+
+		/**
+		 * Guarda el offset del consumidor: al volver a abrirlo sigue despues
+		 * del ultimo evento leido.
+		 *
+		 * @throws IOException
+		 *             si no se puede escribir
+		 */
+		public void confirma() throws IOException {
+			lector.confirma();
+		}
+	}
+
+	private EventosConsultas(RegistroMapeado registro) {
+		this.registro = registro;
+	}
+
+	/**
+	 * Abre o crea el registro de eventos, sin registrarlo como oyente.
+	 *
+	 * @param directorio
+	 *            directorio del registro
+	 * @return el registro de eventos
+	 * @throws IOException
+	 *             si no se puede abrir el directorio
+	 */
+	public static EventosConsultas abre(Path directorio) throws IOException {
+		int registrosPorSegmento = Integer.getInteger("gestionmedicos.eventos.registrosPorSegmento", 65536);
+		long maxBytes = Long.getLong("gestionmedicos.eventos.maxMB", 64) << 20;
+		return new EventosConsultas(new RegistroMapeado(directorio, TAM_EVENTO, registrosPorSegmento, maxBytes));
+	}
+
+	/**
+	 * Abre el registro de eventos y lo registra como oyente de
+	 * GestionMedicos.
+	 *
+	 * @param directorio
+	 *            directorio del registro
+	 * @return el registro de eventos, ya registrado
+	 * @throws IOException
+	 *             si no se puede abrir el directorio
+	 */
+	public static EventosConsultas activa(Path directorio) throws IOException {
+		EventosConsultas eventos = abre(directorio);
+		GestionMedicos.registraOyente(eventos);
+		logger.info("Eventos de consultas en {} desde el offset {}", directorio,
+				eventos.registro.getSiguienteOffset());
+		return eventos;
+	}
+
+	@Override
+	public void cambioConfirmado(Cambio cambio) {
+		ByteBuffer bb = ByteBuffer.allocate(TAM_EVENTO);
+		bb.put((byte) (cambio.isReserva() ? 'R' : 'A'));
+		bb.putInt(cambio.getIdConsulta());
+		bb.putInt(cambio.getIdMedico());
+		bb.put(String.format("%-9.9s", cambio.getNifCliente()).getBytes(StandardCharsets.US_ASCII));
+		bb.putInt(Misc.diaEpoca(cambio.getFecha()));
+		bb.putLong(System.currentTimeMillis());
+		registro.escribe(bb.array());
+	}
+
+	@Override
+	public void consultaReservada(int idMedico, Date fecha) {
+		//No se usa: cambioConfirmado recibe el cambio completo.
+	}
+
+	@Override
+	public void consultaAnulada(int idMedico, Date fecha) {
+		//No se usa: cambioConfirmado recibe el cambio completo.
+	}
+
+	/**
+	 * Consumidor que empieza en el offset guardado con su nombre, o en el
+	 * primer evento retenido si no tiene.
+	 *
+	 * @param nombre
+	 *            nombre del consumidor
+	 * @return el consumidor
+	 * @throws IOException
+	 *             si no se puede leer su offset
+	 */
+	public Consumidor consumidor(String nombre) throws IOException {
+		return new Consumidor(registro.lector(nombre));
+	}
+
+	/**
+	 * Consumidor sin nombre para reprocesar desde un offset.
+	 *
+	 * @param desde
+	 *            primer offset que se lee
+	 * @return el consumidor
+	 */
+	public Consumidor consumidor(long desde) {
+		return new Consumidor(registro.lector(desde));
+	}
+
+	/** @return offset del primer evento retenido */
+	public long getPrimerOffset() {
+		return registro.getPrimerOffset();
+	}
+
+	/** @return offset que tendra el siguiente evento */
+	public long getSiguienteOffset() {
+		return registro.getSiguienteOffset();
+	}
+
+	/**
+	 * Deja de recibir cambios y fuerza el registro a disco.
+	 */
+	@Override
+	public void close() {
+		GestionMedicos.eliminaOyente(this);
+		registro.close();
+	}
+
+	private static Evento decodifica(long offset, byte[] datos, long leidoDesde) {
+		if (datos.length != TAM_EVENTO)
+			throw new IllegalStateException("Evento " + offset + " con " + datos.length + " bytes");
+		if (offset != leidoDesde)
+			logger.debug("Saltados {} offsets antes del evento {}", offset - leidoDesde, offset);
+		return new Evento(offset, ByteBuffer.wrap(datos));
+	}
+}
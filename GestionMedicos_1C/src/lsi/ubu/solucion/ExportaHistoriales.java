@@ -0,0 +1,392 @@
+package lsi.ubu.solucion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * ExportaHistoriales:
+ * Exporta el historial completo de todos los medicos (consultas activas y
+ * archivadas) con las columnas de consulta_medico: id_consulta,
+ * fecha_consulta (yyyy-MM-dd), id_medico, NIF y anulada (Sí/No).
+ *
+ * El rango de id_medico se divide en particiones que se exportan en
+ * paralelo, cada una con su propia conexion de solo lectura y un fetch size
+ * grande, a un fichero historial_&lt;desde&gt;-&lt;hasta&gt;.csv (o .csv.gz).
+ * Las filas se codifican directamente en un buffer de bytes de tamaño fijo,
+ * asi que la memoria no depende del tamaño de las tablas.
+ *
+ * Cada particion se escribe primero en un fichero '.parcial' que se renombra
+ * al terminar: si la exportacion se interrumpe, al repetirla con las mismas
+ * particiones se saltan las que ya estan completas.
+ *
+ * Fetch size con la propiedad del sistema gestionmedicos.exporta.fetchSize
+ * (5000 por defecto).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ExportaHistoriales {
+
+	private static Logger logger = LoggerFactory.getLogger(ExportaHistoriales.class);
+
+	private static final String SQL_RANGO_MEDICOS = "SELECT MIN(id_medico), MAX(id_medico) FROM medico";
+	private static final String SQL_HISTORIALES = "SELECT id_consulta, fecha_consulta, id_medico, NIF,"+
+			" case when id_anulacion is null then 0 else 1 end"+
+			" from consulta_completa WHERE id_medico between ? and ? order by id_medico, fecha_consulta,"+
+			" id_anulacion nulls first";
+
+	private static final byte[] CABECERA = "id_consulta,fecha_consulta,id_medico,NIF,anulada\n"
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SI = "Sí".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NO = "No".getBytes(StandardCharsets.UTF_8);
+
+	/** Tamaño del buffer de escritura de cada particion. */
+	private static final int TAM_BUFFER = 1 << 16;
+	/** Longitud maxima de una fila codificada, con NIF de hasta 9 caracteres. */
+	private static final int MAX_FILA = 256;
+
+	/**
+	 * Resultado de una exportacion.
+	 */
+	public static class Resultado {
+		private final int particiones;
+		private final int saltadas;
+		private final long filas;
+		private final long bytes;
+		private final long nanos;
+
+		Resultado(int particiones, int saltadas, long filas, long bytes, long nanos) {
+			this.particiones = particiones;
+			this.saltadas = saltadas;
+			this.filas = filas;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		/** @return particiones exportadas en esta ejecucion */
+		public int getParticiones() {
+			return particiones;
+		}
+
+		/** @return particiones que ya estaban completas */
+		public int getSaltadas() {
+			return saltadas;
+		}
+
+		public long getFilas() {
+			return filas;
+		}
+
+		/** @return bytes escritos, comprimidos si se ha pedido */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** @return filas exportadas por segundo */
+		public double getFilasPorSegundo() {
+			return nanos == 0 ? 0 : filas * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d particiones (%d ya completas): %d filas, %.1f MB en %.2f s (%.0f filas/s, %.1f MB/s)",
+					particiones, saltadas, filas, bytes / 1e6, nanos / 1e9, getFilasPorSegundo(),
+					nanos == 0 ? 0 : bytes * 1e3 / nanos);
+		}
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            directorio destino y, opcionalmente, numero de hilos, numero
+	 *            de particiones y 'gz' para comprimir
+	 * @throws Exception
+	 *             si la exportacion no se puede completar
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Uso: ExportaHistoriales <directorio> [hilos] [particiones] [gz]");
+			return;
+		}
+		int hilos = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int particiones = args.length > 2 ? Integer.parseInt(args[2]) : hilos * 4;
+		boolean comprimido = args.length > 3 && args[3].equals("gz");
+		System.out.println(exporta(Paths.get(args[0]), hilos, particiones, comprimido));
+	}
+
+	/**
+	 * Exporta los historiales de todos los medicos, saltando las particiones
+	 * que ya esten en el directorio.
+	 *
+	 * @param directorio
+	 *            directorio destino
+	 * @param hilos
+	 *            numero de hilos, cada uno con su conexion
+	 * @param particiones
+	 *            numero de rangos de id_medico
+	 * @param comprimido
+	 *            true para escribir ficheros .csv.gz
+	 * @return particiones, filas y bytes exportados
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si hay un error con los ficheros
+	 */
+	public static Resultado exporta(Path directorio, int hilos, int particiones, boolean comprimido)
+			throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		Files.createDirectories(directorio);
+		long[] rango = rangoMedicos();
+		if (rango == null)
+			return new Resultado(0, 0, 0, 0, System.nanoTime() - inicio);
+
+		long total = rango[1] - rango[0] + 1;
+		particiones = (int) Math.max(1, Math.min(particiones, total));
+		int saltadas = 0;
+		long filas = 0;
+		long bytes = 0;
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		try {
+			List<Future<long[]>> tareas = new ArrayList<Future<long[]>>();
+			for (int i = 0; i < particiones; i++) {
+				final long desde = rango[0] + total * i / particiones;
+				final long hasta = rango[0] + total * (i + 1) / particiones - 1;
+				final Path fichero = directorio.resolve("historial_" + desde + "-" + hasta
+						+ (comprimido ? ".csv.gz" : ".csv"));
+				if (Files.exists(fichero)) {
+					saltadas++;
+					continue;
+				}
+				tareas.add(ejecutor.submit(() -> exportaParticion(desde, hasta, fichero, comprimido)));
+			}
+			for (Future<long[]> f : tareas) {
+				long[] cuenta = f.get();
+				filas += cuenta[0];
+				bytes += cuenta[1];
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Exportacion interrumpida", e);
+		} finally {
+			ejecutor.shutdownNow();
+		}
+
+		Resultado r = new Resultado(particiones - saltadas, saltadas, filas, bytes, System.nanoTime() - inicio);
+		logger.info(r.toString());
+		return r;
+	}
+
+	/**
+	 * @return menor y mayor id_medico, o null si no hay medicos
+	 */
+	private static long[] rangoMedicos() throws SQLException {
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConexionSoloLectura();
+			st = con.createStatement();
+			rs = st.executeQuery(SQL_RANGO_MEDICOS);
+			rs.next();
+			long min = rs.getLong(1);
+			if (rs.wasNull())
+				return null;
+			return new long[] { min, rs.getLong(2) };
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) {
+				con.rollback();
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Exporta los historiales de un rango de medicos con una conexion propia.
+	 *
+	 * @return filas y bytes escritos
+	 */
+	private static long[] exportaParticion(long desde, long hasta, Path fichero, boolean comprimido)
+			throws SQLException, IOException {
+		Path parcial = Paths.get(fichero.toString() + ".parcial");
+		Connection con = null;
+		PreparedStatement st_select = null;
+		ResultSet rs = null;
+		long filas = 0;
+		try {
+			con = PoolDeConexiones.getInstance().getConexionSoloLectura();
+			st_select = con.prepareStatement(SQL_HISTORIALES);
+			st_select.setFetchSize(Integer.getInteger("gestionmedicos.exporta.fetchSize", 5000));
+			st_select.setLong(1, desde);
+			st_select.setLong(2, hasta);
+			rs = st_select.executeQuery();
+
+			try (Escritor salida = new Escritor(parcial, comprimido)) {
+				salida.pon(CABECERA);
+				long ultimaFecha = Long.MIN_VALUE;
+				int anyo = 0, mes = 0, dia = 0;
+				while (rs.next()) {
+					ByteBuffer buf = salida.reserva(MAX_FILA);
+					ponEntero(buf, rs.getInt(1));
+					buf.put((byte) ',');
+					//Las filas de un medico van por fecha: se reutiliza la ultima fecha convertida.
+					java.sql.Date fecha = rs.getDate(2);
+					if (fecha.getTime() != ultimaFecha) {
+						ultimaFecha = fecha.getTime();
+						LocalDate f = fecha.toLocalDate();
+						anyo = f.getYear();
+						mes = f.getMonthValue();
+						dia = f.getDayOfMonth();
+					}
+					ponEntero(buf, anyo);
+					buf.put((byte) '-');
+					ponDosCifras(buf, mes);
+					buf.put((byte) '-');
+					ponDosCifras(buf, dia);
+					buf.put((byte) ',');
+					ponEntero(buf, rs.getInt(3));
+					buf.put((byte) ',');
+					ponTexto(buf, rs.getString(4));
+					buf.put((byte) ',');
+					buf.put(rs.getInt(5) == 1 ? SI : NO);
+					buf.put((byte) '\n');
+					filas++;
+				}
+			}
+			Files.move(parcial, fichero, StandardCopyOption.ATOMIC_MOVE);
+			logger.debug("Historiales de los medicos {} a {}: {} filas", desde, hasta, filas);
+			return new long[] { filas, Files.size(fichero) };
+		} finally {
+			if (rs != null) rs.close();
+			if (st_select != null) st_select.close();
+			if (con != null) {
+				con.rollback();
+				con.close();
+			}
+			Files.deleteIfExists(parcial);
+		}
+	}
+
+	private static void ponEntero(ByteBuffer buf, int n) {
+		if (n < 0) {
+			buf.put((byte) '-');
+			n = -n;
+		}
+		int inicio = buf.position();
+		do {
+			buf.put((byte) ('0' + n % 10));
+			n /= 10;
+		} while (n > 0);
+		//Las cifras se han escrito al reves.
+		for (int i = inicio, j = buf.position() - 1; i < j; i++, j--) {
+			byte b = buf.get(i);
+			buf.put(i, buf.get(j));
+			buf.put(j, b);
+		}
+	}
+
+	private static void ponDosCifras(ByteBuffer buf, int n) {
+		buf.put((byte) ('0' + n / 10));
+		buf.put((byte) ('0' + n % 10));
+	}
+
+	private static void ponTexto(ByteBuffer buf, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				//Fuera de ASCII, que en un NIF no deberia darse: se codifica entero.
+				buf.position(buf.position() - i);
+				buf.put(s.getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			buf.put((byte) c);
+		}
+	}
+
+	/**
+	 * Buffer de tamaño fijo sobre el canal del fichero, comprimido o no.
+	 */
+	private static class Escritor implements AutoCloseable {
+		private final FileChannel canal;
+		private final OutputStream gzip;
+		private final ByteBuffer buf = ByteBuffer.allocate(TAM_BUFFER);
+
+		Escritor(Path fichero, boolean comprimido) throws IOException {
+			canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			gzip = comprimido ? new GZIPOutputStream(Channels.newOutputStream(canal), TAM_BUFFER) : null;
+		}
+
+		/** @return el buffer, con al menos n bytes libres */
+		ByteBuffer reserva(int n) throws IOException {
+			if (buf.remaining() < n)
+				vuelca();
+			return buf;
+		}
+
+		void pon(byte[] bytes) throws IOException {
+			reserva(bytes.length).put(bytes);
+		}
+
+		private void vuelca() throws IOException {
+			buf.flip();
+			if (gzip != null) {
+				gzip.write(buf.array(), 0, buf.limit());
+			} else {
+				while (buf.hasRemaining())
+					canal.write(buf);
+			}
+			buf.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				vuelca();
+				if (gzip != null)
+					gzip.close();
+				else
+					canal.force(false);
+			} finally {
+				canal.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package lsi.ubu.solucion;
+
+/**
+ * FilaConsulta:
+ * Fila del historial de consultas de un medico, con las columnas que
+ * muestra consulta_medico.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class FilaConsulta {
+
+	/** Cabecera del listado de consulta_medico. */
+	public static final String CABECERA = "IDCONSULTA"+"\t"+"FECHA"+"\t\t"+"IDMEDICO"+"\t"+"NIFCLIENTE"+"\t"+"ANULADA";
+
+	private final int idConsulta;
+	private final java.sql.Date fecha;
+	private final int idMedico;
+	private final String nifCliente;
+	private final String anulada;
+
+	public FilaConsulta(int idConsulta, java.sql.Date fecha, int idMedico, String nifCliente, String anulada) {
+		this.idConsulta = idConsulta;
+		this.fecha = fecha;
+		this.idMedico = idMedico;
+		this.nifCliente = nifCliente;
+		this.anulada = anulada;
+	}
+
+	public int getIdConsulta() {
+		return idConsulta;
+	}
+
+	public java.sql.Date getFecha() {
+		return fecha;
+	}
+
+	public int getIdMedico() {
+		return idMedico;
+	}
+
+	public String getNifCliente() {
+		return nifCliente;
+	}
+
+	/** @return 'Sí' si la consulta esta anulada y 'No' si no lo esta */
+	public String getAnulada() {
+		return anulada;
+	}
+
+	@Override
+	public String toString() {
+		return idConsulta + "\t\t" + fecha + "\t" + idMedico + "\t\t" + nifCliente + "\t" + anulada;
+	}
+}
@@ -0,0 +1,495 @@
+package lsi.ubu.solucion;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * GeneradorDatos:
+ * Genera datos sinteticos y reproducibles de clientes, medicos, consultas y
+ * anulaciones para pruebas de volumen.
+ *
+ * Con la misma semilla y configuracion se generan siempre los mismos datos.
+ * Cada medico usa su propio generador aleatorio derivado de la semilla, asi
+ * que los datos se producen medico a medico sin guardarlos en memoria.
+ *
+ * Los datos cumplen las reglas de GestionMedicos: un medico no tiene dos
+ * consultas no anuladas el mismo dia, las anulaciones se hacen al menos dos
+ * dias antes de la consulta y MEDICO.consultas coincide con el numero de
+ * consultas no anuladas.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class GeneradorDatos {
+
+	private static Logger logger = LoggerFactory.getLogger(GeneradorDatos.class);
+
+	/** Letras de control del NIF, indexadas por el resto de dividir entre 23. */
+	private static final String LETRAS_NIF = "TRWAGMYFPDXBNJZSQVHLCKE";
+
+	private static final String[] NOMBRES = { "Juan", "Rosa", "Ana Maria", "Jose", "Alejandra", "Pablo",
+			"Lucia", "Carlos", "Marta", "Javier", "Elena", "Luis", "Carmen", "David", "Laura", "Sergio" };
+	private static final String[] APELLIDOS = { "Garcia", "Ramos", "Martin", "Sanchez", "Amos", "Porras",
+			"Benito", "Lopez", "Perez", "Gomez", "Diaz", "Moreno", "Alonso", "Romero", "Navarro", "Torres" };
+	private static final String[] ESPECIALIDADES = { "Medicina General", "Oncologia", "Pediatria",
+			"Cardiologia", "Dermatologia", "Traumatologia", "Ginecologia", "Oftalmologia" };
+	private static final String[] MOTIVOS = { "Viaje", "Enfermedad infecciosa", "Trabajo",
+			"Cambio de fecha", "Motivos personales" };
+
+	/** Multiplicadores primos con 10^8 para obtener NIFs distintos a partir de un indice. */
+	private static final long MULT_NIF_CLIENTE = 7919;
+	private static final long MULT_NIF_MEDICO = 104729;
+
+	private static final int SIN_ANULAR = Integer.MIN_VALUE;
+
+	private final long semilla;
+	private final long numConsultas;
+	private int consultasPorMedico = 200;
+	private double ocupacion = 0.6;
+	private double ratioAnulacion = 0.1;
+	private int consultasPorCliente = 10;
+	private LocalDate fechaInicio = LocalDate.of(2022, 1, 1);
+
+	/**
+	 * Destino de los datos generados.
+	 */
+	public interface Destino extends AutoCloseable {
+		void cliente(String nif, String nombre, String ape1, String ape2, String direccion) throws Exception;
+
+		void medico(int idMedico, String nif, String nombre, String ape1, String ape2, String especialidad,
+				int consultas) throws Exception;
+
+		void consulta(int idConsulta, long diaConsulta, int idMedico, String nifCliente) throws Exception;
+
+		void anulacion(int idAnulacion, int idConsulta, long diaAnulacion, String motivo) throws Exception;
+
+		@Override
+		void close() throws IOException, SQLException;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param semilla
+	 *            semilla de los generadores aleatorios
+	 * @param numConsultas
+	 *            numero aproximado de consultas a generar (de 10^3 a 10^8)
+	 */
+	public GeneradorDatos(long semilla, long numConsultas) {
+		this.semilla = semilla;
+		this.numConsultas = numConsultas;
+	}
+
+	/** @param consultasPorMedico numero medio de consultas de cada medico */
+	public void setConsultasPorMedico(int consultasPorMedico) {
+		this.consultasPorMedico = consultasPorMedico;
+	}
+
+	/** @param ocupacion fraccion media de dias con consulta de cada medico, entre 0 y 1 */
+	public void setOcupacion(double ocupacion) {
+		this.ocupacion = ocupacion;
+	}
+
+	/** @param ratioAnulacion fraccion de consultas que se anulan, entre 0 y 1 */
+	public void setRatioAnulacion(double ratioAnulacion) {
+		this.ratioAnulacion = ratioAnulacion;
+	}
+
+	/** @param consultasPorCliente numero medio de consultas de cada cliente */
+	public void setConsultasPorCliente(int consultasPorCliente) {
+		this.consultasPorCliente = consultasPorCliente;
+	}
+
+	/** @param fechaInicio fecha de la primera consulta posible */
+	public void setFechaInicio(LocalDate fechaInicio) {
+		this.fechaInicio = fechaInicio;
+	}
+
+	public int getNumMedicos() {
+		return (int) Math.max(1, (numConsultas + consultasPorMedico - 1) / consultasPorMedico);
+	}
+
+	public int getNumClientes() {
+		return (int) Math.max(3, numConsultas / consultasPorCliente);
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            numero de consultas, semilla y destino: 'jdbc' o el directorio
+	 *            donde escribir los CSV para CargaMasiva
+	 * @throws Exception
+	 *             si no se pueden escribir los datos
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Uso: GeneradorDatos <consultas> <semilla> jdbc|<directorio>");
+			return;
+		}
+		GeneradorDatos generador = new GeneradorDatos(Long.parseLong(args[1]), Long.parseLong(args[0]));
+		long inicio = System.nanoTime();
+		if (args[2].equals("jdbc")) {
+			generador.generaJDBC();
+			System.out.println("Medicos con MEDICO.consultas incorrecto: " + compruebaConsultas());
+		} else {
+			generador.generaCSV(Paths.get(args[2]));
+		}
+		System.out.printf("Datos generados en %.2f s%n", (System.nanoTime() - inicio) / 1e9);
+	}
+
+	/**
+	 * Genera los datos en el destino indicado.
+	 *
+	 * @param destino
+	 *            destino de las filas
+	 * @throws Exception
+	 *             si el destino no puede escribir las filas
+	 */
+	public void genera(Destino destino) throws Exception {
+		int numClientes = getNumClientes();
+		int numMedicos = getNumMedicos();
+		int dias = (int) Math.ceil(consultasPorMedico / ocupacion);
+		long diaInicio = fechaInicio.toEpochDay();
+		int idConsulta = 0;
+		int idAnulacion = 0;
+
+		try {
+			SplittableRandom rnd = new SplittableRandom(semilla);
+			for (int i = 0; i < numClientes; i++) {
+				destino.cliente(nif(i, MULT_NIF_CLIENTE, 0), elige(rnd, NOMBRES), elige(rnd, APELLIDOS),
+						elige(rnd, APELLIDOS), "C/" + elige(rnd, APELLIDOS) + " n" + (1 + rnd.nextInt(99)));
+			}
+
+			//Agenda de un medico: dia, cliente y dia de anulacion (SIN_ANULAR si no esta anulada).
+			int[] diaCons = new int[2 * dias];
+			int[] cliCons = new int[2 * dias];
+			int[] diaAnul = new int[2 * dias];
+			long generadas = 0;
+
+			for (int idMedico = 1; idMedico <= numMedicos && generadas < numConsultas; idMedico++) {
+				SplittableRandom rndMedico = new SplittableRandom(semilla ^ (idMedico * 0x9E3779B97F4A7C15L));
+				//Cada medico tiene una densidad de reservas entre la mitad y 1,5 veces la media.
+				double densidad = Math.min(1.0, ocupacion * (0.5 + rndMedico.nextDouble()));
+				int n = 0;
+				int activas = 0;
+				for (int d = 0; d < dias && generadas + n < numConsultas; d++) {
+					if (rndMedico.nextDouble() >= densidad)
+						continue;
+					diaCons[n] = d;
+					cliCons[n] = rndMedico.nextInt(numClientes);
+					if (rndMedico.nextDouble() < ratioAnulacion) {
+						diaAnul[n++] = d - 2 - rndMedico.nextInt(60);
+						//La mitad de los huecos anulados se vuelven a reservar.
+						if (rndMedico.nextBoolean() && generadas + n < numConsultas) {
+							diaCons[n] = d;
+							cliCons[n] = rndMedico.nextInt(numClientes);
+							diaAnul[n++] = SIN_ANULAR;
+							activas++;
+						}
+					} else {
+						diaAnul[n++] = SIN_ANULAR;
+						activas++;
+					}
+				}
+
+				destino.medico(idMedico, nif(idMedico, MULT_NIF_MEDICO, 50000000), elige(rndMedico, NOMBRES),
+						elige(rndMedico, APELLIDOS), elige(rndMedico, APELLIDOS), elige(rndMedico, ESPECIALIDADES),
+						activas);
+				for (int i = 0; i < n; i++) {
+					idConsulta++;
+					destino.consulta(idConsulta, diaInicio + diaCons[i], idMedico, nif(cliCons[i], MULT_NIF_CLIENTE, 0));
+					if (diaAnul[i] != SIN_ANULAR)
+						destino.anulacion(++idAnulacion, idConsulta, diaInicio + diaAnul[i], elige(rndMedico, MOTIVOS));
+				}
+				generadas += n;
+			}
+		} finally {
+			destino.close();
+		}
+		logger.info("Generados {} clientes, {} medicos, {} consultas y {} anulaciones", numClientes,
+				numMedicos, idConsulta, idAnulacion);
+	}
+
+	/**
+	 * Escribe los datos en ficheros CSV con el formato de CargaMasiva.
+	 *
+	 * @param directorio
+	 *            directorio de salida
+	 * @throws Exception
+	 *             si hay un error escribiendo los ficheros
+	 */
+	public void generaCSV(Path directorio) throws Exception {
+		Files.createDirectories(directorio);
+		genera(new DestinoCSV(directorio));
+	}
+
+	/**
+	 * Inserta los datos en la base de datos por lotes, con una conexion del
+	 * pool. Las tablas deben estar vacias.
+	 *
+	 * @throws Exception
+	 *             si hay un error con la base de datos
+	 */
+	public void generaJDBC() throws Exception {
+		genera(new DestinoJDBC());
+		for (CargaMasiva.Tabla t : CargaMasiva.Tabla.values()) {
+			if (t != CargaMasiva.Tabla.CLIENTE)
+				CargaMasiva.avanzaSecuencia(t);
+		}
+	}
+
+	/**
+	 * Cuenta los medicos cuyo MEDICO.consultas no coincide con el numero de
+	 * consultas no anuladas.
+	 *
+	 * @return numero de medicos con el contador incorrecto
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static int compruebaConsultas() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			rs = st.executeQuery("SELECT COUNT(*) FROM medico m WHERE consultas<>(SELECT COUNT(*)"+
+					" FROM consulta_completa c WHERE c.id_medico=m.id_medico AND c.id_anulacion IS NULL)");
+			rs.next();
+			int n = rs.getInt(1);
+			con.commit();
+			return n;
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * NIF valido (8 cifras y letra de control) distinto para cada indice.
+	 */
+	static String nif(long indice, long multiplicador, long desplazamiento) {
+		long numero = (indice * multiplicador + desplazamiento) % 100000000L;
+		StringBuilder sb = new StringBuilder(9);
+		String cifras = Long.toString(numero);
+		for (int i = cifras.length(); i < 8; i++)
+			sb.append('0');
+		return sb.append(cifras).append(LETRAS_NIF.charAt((int) (numero % 23))).toString();
+	}
+
+	private static String elige(SplittableRandom rnd, String[] valores) {
+		return valores[rnd.nextInt(valores.length)];
+	}
+
+	/**
+	 * Escribe un fichero CSV por tabla.
+	 */
+	private static class DestinoCSV implements Destino {
+		private final BufferedWriter clientes;
+		private final BufferedWriter medicos;
+		private final BufferedWriter consultas;
+		private final BufferedWriter anulaciones;
+
+		DestinoCSV(Path directorio) throws IOException {
+			BufferedWriter cli = null, med = null, cons = null;
+			try {
+				cli = abre(directorio, CargaMasiva.Tabla.CLIENTE);
+				med = abre(directorio, CargaMasiva.Tabla.MEDICO);
+				cons = abre(directorio, CargaMasiva.Tabla.CONSULTA);
+				anulaciones = abre(directorio, CargaMasiva.Tabla.ANULACION);
+			} catch (IOException e) {
+				//Se cierran los que ya se habian abierto.
+				for (BufferedWriter w : new BufferedWriter[] { cli, med, cons }) {
+					try {
+						if (w != null) w.close();
+					} catch (IOException ex) {
+						e.addSuppressed(ex);
+					}
+				}
+				throw e;
+			}
+			clientes = cli;
+			medicos = med;
+			consultas = cons;
+		}
+
+		private static BufferedWriter abre(Path directorio, CargaMasiva.Tabla t) throws IOException {
+			return Files.newBufferedWriter(directorio.resolve(t.getNombre() + ".csv"), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void cliente(String nif, String nombre, String ape1, String ape2, String direccion)
+				throws IOException {
+			clientes.append(nif).append(',').append(nombre).append(',').append(ape1).append(',')
+					.append(ape2).append(',').append(direccion).append('\n');
+		}
+
+		@Override
+		public void medico(int idMedico, String nif, String nombre, String ape1, String ape2,
+				String especialidad, int consultas) throws IOException {
+			//CargaMasiva recalcula MEDICO.consultas al terminar.
+			medicos.append(Integer.toString(idMedico)).append(',').append(nif).append(',').append(nombre)
+					.append(',').append(ape1).append(',').append(ape2).append(',').append(especialidad)
+					.append('\n');
+		}
+
+		@Override
+		public void consulta(int idConsulta, long diaConsulta, int idMedico, String nifCliente)
+				throws IOException {
+			consultas.append(Integer.toString(idConsulta)).append(',')
+					.append(LocalDate.ofEpochDay(diaConsulta).toString()).append(',')
+					.append(Integer.toString(idMedico)).append(',').append(nifCliente).append('\n');
+		}
+
+		@Override
+		public void anulacion(int idAnulacion, int idConsulta, long diaAnulacion, String motivo)
+				throws IOException {
+			anulaciones.append(Integer.toString(idAnulacion)).append(',').append(Integer.toString(idConsulta))
+					.append(',').append(LocalDate.ofEpochDay(diaAnulacion).toString()).append(',')
+					.append(motivo).append('\n');
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				clientes.close();
+			} finally {
+				try {
+					medicos.close();
+				} finally {
+					try {
+						consultas.close();
+					} finally {
+						anulaciones.close();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Inserta las filas por lotes sobre una unica conexion. Los lotes se
+	 * envian siempre en orden de dependencias de las claves ajenas.
+	 */
+	private static class DestinoJDBC implements Destino {
+		private static final int TAM_LOTE = 5000;
+
+		private final Connection con;
+		private final PreparedStatement[] st_insert = new PreparedStatement[4];
+		private final int[] pendientes = new int[4];
+
+		DestinoJDBC() throws SQLException {
+			con = PoolDeConexiones.getInstance().getConnection();
+			CargaMasiva.Tabla[] tablas = CargaMasiva.Tabla.values();
+			for (int i = 0; i < tablas.length; i++) {
+				String sql = tablas[i] == CargaMasiva.Tabla.MEDICO
+						? "INSERT INTO medico (id_medico,NIF,nombre,ape1,ape2,especialidad,consultas) VALUES (?,?,?,?,?,?,?)"
+						: tablas[i].getInsert();
+				st_insert[i] = con.prepareStatement(sql);
+			}
+		}
+
+		private void anade(int tabla) throws SQLException {
+			st_insert[tabla].addBatch();
+			if (++pendientes[tabla] >= TAM_LOTE)
+				envia();
+		}
+
+		private void envia() throws SQLException {
+			for (int i = 0; i < st_insert.length; i++) {
+				if (pendientes[i] > 0) {
+					st_insert[i].executeBatch();
+					pendientes[i] = 0;
+				}
+			}
+			con.commit();
+		}
+
+		@Override
+		public void cliente(String nif, String nombre, String ape1, String ape2, String direccion)
+				throws SQLException {
+			PreparedStatement st = st_insert[0];
+			st.setString(1, nif);
+			st.setString(2, nombre);
+			st.setString(3, ape1);
+			st.setString(4, ape2);
+			st.setString(5, direccion);
+			anade(0);
+		}
+
+		@Override
+		public void medico(int idMedico, String nif, String nombre, String ape1, String ape2,
+				String especialidad, int consultas) throws SQLException {
+			PreparedStatement st = st_insert[1];
+			st.setInt(1, idMedico);
+			st.setString(2, nif);
+			st.setString(3, nombre);
+			st.setString(4, ape1);
+			st.setString(5, ape2);
+			st.setString(6, especialidad);
+			st.setInt(7, consultas);
+			anade(1);
+		}
+
+		@Override
+		public void consulta(int idConsulta, long diaConsulta, int idMedico, String nifCliente)
+				throws SQLException {
+			PreparedStatement st = st_insert[2];
+			st.setInt(1, idConsulta);
+			st.setDate(2, java.sql.Date.valueOf(LocalDate.ofEpochDay(diaConsulta)));
+			st.setInt(3, idMedico);
+			st.setString(4, nifCliente);
+			anade(2);
+		}
+
+		@Override
+		public void anulacion(int idAnulacion, int idConsulta, long diaAnulacion, String motivo)
+				throws SQLException {
+			PreparedStatement st = st_insert[3];
+			st.setInt(1, idAnulacion);
+			st.setInt(2, idConsulta);
+			st.setDate(3, java.sql.Date.valueOf(LocalDate.ofEpochDay(diaAnulacion)));
+			st.setString(4, motivo);
+			anade(3);
+		}
+
+		@Override
+		public void close() throws SQLException {
+			try {
+				envia();
+			} catch (SQLException e) {
+				con.rollback();
+				logger.error(e.getMessage());
+				throw e;
+			} finally {
+				for (PreparedStatement st : st_insert)
+					if (st != null) st.close();
+				con.close();
+			}
+		}
+	}
+}
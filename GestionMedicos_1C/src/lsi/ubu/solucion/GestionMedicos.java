@@ -9,19 +9,30 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.Dialecto;
 import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PerfilJDBC;
+import lsi.ubu.util.Plazo;
 import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Reintentos;
+import lsi.ubu.util.SeguimientoConexiones;
+import lsi.ubu.util.Sentencias;
 import lsi.ubu.util.exceptions.SGBDError;
-import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
 
 
 /**
@@ -38,112 +49,322 @@ public class GestionMedicos {
 
 	private static final String script_path = "sql/";
 
+	//Sentencias de las operaciones.
+	static final String SQL_ID_MEDICO = "SELECT id_medico FROM MEDICO WHERE NIF=?";
+	static final String SQL_INSERTA_CONSULTA = "INSERT INTO CONSULTA VALUES (seq_consulta.nextval,?,?,?)";
+	/** Columnas generadas que devuelve SQL_INSERTA_CONSULTA. */
+	static final String[] CLAVES_CONSULTA = { "ID_CONSULTA" };
+	static final String SQL_OCUPA_MEDICO = "UPDATE MEDICO SET consultas=consultas+1 WHERE id_medico=?"+
+			" and (SELECT COUNT(*) FROM CONSULTA join ANULACION ON consulta.id_consulta=anulacion.id_consulta"+
+			" where fecha_consulta=? and id_medico=?)+1=(SELECT COUNT(*) FROM CONSULTA WHERE "+
+			" fecha_consulta=? and id_medico=?)";
+	static final String SQL_EXISTE_CLIENTE = "SELECT NIF FROM CLIENTE WHERE NIF=?";
+	static final String SQL_CONSULTA_ACTIVA = "SELECT id_consulta FROM CONSULTA WHERE fecha_consulta=?"+
+			" and NIF = ? and id_medico = ? and id_consulta not in (SELECT id_consulta from ANULACION)";
+	static final String SQL_INSERTA_ANULACION = "INSERT INTO ANULACION VALUES (seq_anulacion.nextval,?,?,?)";
+	static final String SQL_LIBERA_MEDICO = "UPDATE MEDICO SET consultas=consultas-1 WHERE id_medico=?"+
+			" AND 2<=?";
+	static final String SQL_HISTORIAL = "SELECT consulta.id_consulta,fecha_consulta,"+
+			" id_medico, NIF, case when id_anulacion is null then 'No' else 'Sí' end"+
+			" from consulta left join anulacion on consulta.id_consulta=anulacion.id_consulta"+
+			" WHERE id_medico=? order by fecha_consulta, id_anulacion nulls first";
+	static final String SQL_HISTORIAL_COMPLETO = "SELECT id_consulta,fecha_consulta,"+
+			" id_medico, NIF, case when id_anulacion is null then 'No' else 'Sí' end"+
+			" from consulta_completa WHERE id_medico=? order by fecha_consulta, id_anulacion nulls first";
+
+	/** Oyentes avisados tras confirmar cada reserva o anulación. */
+	private static final List<OyenteConsultas> oyentes = new CopyOnWriteArrayList<OyenteConsultas>();
+	
+	/** Combinador de commits; si es null cada operación hace su propio commit. */
+	private static volatile CommitAgrupado commitAgrupado = null;
+	
+	/** Motor en memoria; si es null las operaciones van a la base de datos. */
+	private static volatile MotorMemoria motor = null;
+
 	public static void main(String[] args) throws SQLException{		
 		tests();
 
 		System.out.println("FIN.............");
 	}
 	
-	public static void reservar_consulta(String m_NIF_cliente, 
-			String m_NIF_medico,  Date m_Fecha_Consulta) throws SQLException {
-		
+	public static void reservar_consulta(final String m_NIF_cliente, 
+			final String m_NIF_medico, final Date m_Fecha_Consulta) throws SQLException {
+		reservar_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, Plazo.porDefecto());
+	}
+	
+	/**
+	 * Reserva una consulta sin superar un plazo. Si vence, se cancela la sentencia
+	 * en curso, se hace rollback y se lanza 'tiempo_agotado'. Con el commit
+	 * agrupado activo el plazo no se aplica.
+	 * 
+	 * @throws SQLException con el código de GestionMedicosException si no se puede reservar
+	 */
+	public static void reservar_consulta(final String m_NIF_cliente, 
+			final String m_NIF_medico, final Date m_Fecha_Consulta, Plazo plazo) throws SQLException {
+		PerfilJDBC.Ambito perfil = PerfilJDBC.inicia("reservar_consulta");
+		try (perfil) {
+			reservar(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, plazo);
+		}
+	}
+	
+	private static void reservar(final String m_NIF_cliente, 
+			final String m_NIF_medico, final Date m_Fecha_Consulta, Plazo plazo) throws SQLException {
+		MotorMemoria m = motor;
+		if (m != null) {
+			avisa(m.reserva(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta));
+			return;
+		}
+		long inicio = Arranque.espera();
+		CommitAgrupado grupo = commitAgrupado;
+		Cambio cambio;
+		if (grupo != null) {
+			cambio = Reintentos.getInstance().ejecuta("reservar_consulta", plazo,
+					() -> grupo.ejecuta(s -> reserva(s, m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta)));
+		} else {
+			//Cada intento con su propia conexión y transacción.
+			cambio = Reintentos.getInstance().ejecuta("reservar_consulta", plazo,
+					() -> reservaUnaVez(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, plazo));
+		}
+	
+		avisa(cambio);
+		Arranque.terminada(inicio);
+	}
+	
+	/**
+	 * Un intento de reserva en su propia transacción.
+	 * 
+	 * @return la reserva hecha
+	 * @throws SQLException si no se puede reservar, con el código de GestionMedicosException
+	 */
+	private static Cambio reservaUnaVez(String m_NIF_cliente, 
+			String m_NIF_medico, Date m_Fecha_Consulta, Plazo plazo) throws SQLException {
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 		Connection con=null;
-		PreparedStatement st_select = null;
-		PreparedStatement st_insert = null;
-		PreparedStatement st_update = null;
-		ResultSet rs = null;
-		
-		
-		try{
-			con = pool.getConnection();
-			
-			//Se obtiene el id del médico. Se lanza la excepción 'medico_no_existe' si no existe.
-			st_select = con.prepareStatement("SELECT id_medico FROM MEDICO WHERE NIF=?");
-			st_select.setString(1, m_NIF_medico);
-			rs = st_select.executeQuery();
-			if(!rs.next())
-				throw new GestionMedicosException(GestionMedicosException.MEDICO_NO_EXISTE);
-			int num_medico = rs.getInt(1);
-			
-			//Se inserta la nueva consulta.
-			java.sql.Date m_sqlFecha= new java.sql.Date(m_Fecha_Consulta.getTime());
-			st_insert = con.prepareStatement("INSERT INTO CONSULTA VALUES (seq_consulta.nextval,?,?,?)");
-			st_insert.setDate(1, m_sqlFecha);
-			st_insert.setInt(2, num_medico);
-			st_insert.setString(3,m_NIF_cliente);
-			st_insert.executeUpdate();
-			
-			//Se actualiza el num. de consultas del médico si no existe otra consulta no anulada en la misma fecha.
-			//Si existe otra consulta no anulada en la misma fecha se lanza el error 'medico_ocupado'.
-			st_update = con.prepareStatement("UPDATE MEDICO SET consultas=consultas+1 WHERE id_medico=?"+
-					" and (SELECT COUNT(*) FROM CONSULTA join ANULACION ON consulta.id_consulta=anulacion.id_consulta"+
-					" where fecha_consulta=? and id_medico=?)+1=(SELECT COUNT(*) FROM CONSULTA WHERE "+
-					" fecha_consulta=? and id_medico=?)");
-			st_update.setInt(1, num_medico);
-			st_update.setDate(2, m_sqlFecha);
-			st_update.setInt(3, num_medico);
-			st_update.setDate(4, m_sqlFecha);
-			st_update.setInt(5, num_medico);
-			int n = st_update.executeUpdate();
-			if (n==0) {
-				throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
-			}
+		Sentencias s = null;
+		boolean commitEnviado = false;
 			
+		try{
+			con = pool.getConnection(plazo);
+			s = new Sentencias(con, plazo);
+			Cambio cambio = reserva(s, m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta);
+			commitEnviado = true;
 			con.commit();
+			return cambio;
 		} catch (SQLException e) {
-			//Rollback con cualquier error.
-			con.rollback();
+			//Si se pierde la conexión en el commit no se sabe si se ha confirmado: no se repite.
+			if (commitEnviado && conexionPerdida(e))
+				throw commitIncierto(e);
+			//Rollback con cualquier error. La conexión es null si no se ha podido obtener.
+			if (con!=null) con.rollback();
 			//Relanzar excepción.
 			if (e instanceof GestionMedicosException)
 				throw (GestionMedicosException)e;			
+			//Si ha vencido el plazo se lanza 'tiempo_agotado'.
+			if (agotado(e, plazo))
+				throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
+			//Si es cualquier otra excepción, se registra el mensaje y se lanza.
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			//Se liberan los recursos.
+			plazo.termina();
+			if (s!=null) s.close();
+			if (con!=null) con.close();
+		}
+	}
+	
+	/**
+	 * Reserva una consulta sin confirmar la transacción.
+	 * 
+	 * @return la reserva hecha
+	 * @throws SQLException si no se puede reservar, con el código de GestionMedicosException
+	 */
+	static Cambio reserva(Sentencias s, String m_NIF_cliente, 
+			String m_NIF_medico,  Date m_Fecha_Consulta) throws SQLException {
+		
+		//Se obtiene el id del médico. Se lanza la excepción 'medico_no_existe' si no existe.
+		int num_medico = id_medico(s, m_NIF_medico);
+		int num_consulta = reserva(s, m_NIF_cliente, num_medico, m_Fecha_Consulta);
+		return new Cambio(true, num_consulta, num_medico, m_NIF_cliente, m_Fecha_Consulta);
+	}
+	
+	/**
+	 * Reserva una consulta de un médico ya resuelto, sin confirmar la transacción.
+	 * 
+	 * @return id de la consulta reservada
+	 * @throws SQLException si no se puede reservar, con el código de GestionMedicosException
+	 */
+	static int reserva(Sentencias s, String m_NIF_cliente, 
+			int num_medico,  Date m_Fecha_Consulta) throws SQLException {
+		
+		//Se inserta la nueva consulta.
+		java.sql.Date m_sqlFecha= new java.sql.Date(m_Fecha_Consulta.getTime());
+		//El id de la consulta vuelve con la respuesta del insert.
+		PreparedStatement st_insert = s.preparaConClaves(SQL_INSERTA_CONSULTA, CLAVES_CONSULTA);
+		st_insert.setDate(1, m_sqlFecha);
+		st_insert.setInt(2, num_medico);
+		st_insert.setString(3,m_NIF_cliente);
+		int num_consulta;
+		try {
+			st_insert.executeUpdate();
+			ResultSet rs_clave = st_insert.getGeneratedKeys();
+			try {
+				rs_clave.next();
+				num_consulta = rs_clave.getInt(1);
+			} finally {
+				rs_clave.close();
+			}
+		} catch (SQLException e) {
 			//Si insertar la consulta levanta la excepción 'violación de fk' significa que el cliente no existe.
 			//Se lanza el error 'cliente_no_existe'.
-			if ( new OracleSGBDErrorUtil().checkExceptionToCode( e, SGBDError.FK_VIOLATED)) {
+			if ( Dialecto.actual().getErrores().checkExceptionToCode( e, SGBDError.FK_VIOLATED)) {
 				throw new GestionMedicosException(GestionMedicosException.CLIENTE_NO_EXISTE);
 			}
+			throw e;
+		}
+		
+		//Se actualiza el num. de consultas del médico si no existe otra consulta no anulada en la misma fecha.
+		//Si existe otra consulta no anulada en la misma fecha se lanza el error 'medico_ocupado'.
+		PreparedStatement st_update = s.prepara(SQL_OCUPA_MEDICO);
+		st_update.setInt(1, num_medico);
+		st_update.setDate(2, m_sqlFecha);
+		st_update.setInt(3, num_medico);
+		st_update.setDate(4, m_sqlFecha);
+		st_update.setInt(5, num_medico);
+		int n = st_update.executeUpdate();
+		if (n==0) {
+			throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
+		}
+		//Los otros nodos se enteran del cambio si se confirma.
+		BusInvalidacionTabla.registra(s, num_medico);
+		return num_consulta;
+	}
+	
+	public static void anular_consulta(final String m_NIF_cliente, final String m_NIF_medico,  
+			final Date m_Fecha_Consulta, final Date m_Fecha_Anulacion, final String motivo)
+			throws SQLException {
+		anular_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo,
+				Plazo.porDefecto());
+	}
+	
+	/**
+	 * Anula una consulta sin superar un plazo. Si vence, se cancela la sentencia
+	 * en curso, se hace rollback y se lanza 'tiempo_agotado'. Con el commit
+	 * agrupado activo el plazo no se aplica.
+	 * 
+	 * @throws SQLException con el código de GestionMedicosException si no se puede anular
+	 */
+	public static void anular_consulta(final String m_NIF_cliente, final String m_NIF_medico,  
+			final Date m_Fecha_Consulta, final Date m_Fecha_Anulacion, final String motivo, Plazo plazo)
+			throws SQLException {
+		PerfilJDBC.Ambito perfil = PerfilJDBC.inicia("anular_consulta");
+		try (perfil) {
+			anular(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo, plazo);
+		}
+	}
+	
+	private static void anular(final String m_NIF_cliente, final String m_NIF_medico,  
+			final Date m_Fecha_Consulta, final Date m_Fecha_Anulacion, final String motivo, Plazo plazo)
+			throws SQLException {
+		MotorMemoria m = motor;
+		if (m != null) {
+			avisa(m.anula(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo));
+			return;
+		}
+		long inicio = Arranque.espera();
+		CommitAgrupado grupo = commitAgrupado;
+		Cambio cambio;
+		if (grupo != null) {
+			cambio = Reintentos.getInstance().ejecuta("anular_consulta", plazo,
+					() -> grupo.ejecuta(s -> anula(s, m_NIF_cliente, m_NIF_medico,
+							m_Fecha_Consulta, m_Fecha_Anulacion, motivo)));
+		} else {
+			//Cada intento con su propia conexión y transacción.
+			cambio = Reintentos.getInstance().ejecuta("anular_consulta", plazo,
+					() -> anulaUnaVez(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo, plazo));
+		}
+	
+		avisa(cambio);
+		Arranque.terminada(inicio);
+	}
+	
+	/**
+	 * Un intento de anulación en su propia transacción.
+	 * 
+	 * @return la anulación hecha
+	 * @throws SQLException si no se puede anular, con el código de GestionMedicosException
+	 */
+	private static Cambio anulaUnaVez(String m_NIF_cliente, String m_NIF_medico,  
+			Date m_Fecha_Consulta, Date m_Fecha_Anulacion, String motivo, Plazo plazo)
+			throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con=null;
+		Sentencias s = null;
+		boolean commitEnviado = false;
+		
+		try{
+			con = pool.getConnection(plazo);
+			s = new Sentencias(con, plazo);
+			Cambio cambio = anula(s, m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo);
+			commitEnviado = true;
+			con.commit();
+			return cambio;
+		} catch (SQLException e) {
+			//Si se pierde la conexión en el commit no se sabe si se ha confirmado: no se repite.
+			if (commitEnviado && conexionPerdida(e))
+				throw commitIncierto(e);
+			//Rollback con cualquier error. La conexión es null si no se ha podido obtener.
+			if (con!=null) con.rollback();
+			//Relanzar excepción.
+			if (e instanceof GestionMedicosException) {
+				throw (GestionMedicosException)e;
+			}
+			//Si ha vencido el plazo se lanza 'tiempo_agotado'.
+			if (agotado(e, plazo))
+				throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
 			//Si es cualquier otra excepción, se registra el mensaje y se lanza.
 			logger.error(e.getMessage());
 			throw e;
 		} finally {
 			//Se liberan los recursos.
-			if(rs!=null) rs.close();
-			if(st_select!=null) st_select.close();
-			if(st_insert!=null) st_insert.close();
-			if(st_update!=null) st_update.close();
-			if(con!=null) con.close();
-		}	
+			plazo.termina();
+			if (s!=null) s.close();
+			if (con!=null) con.close();
+		}
 	}
 	
-	public static void anular_consulta(String m_NIF_cliente, String m_NIF_medico,  
+	/**
+	 * Anula una consulta sin confirmar la transacción.
+	 * 
+	 * @return la anulación hecha
+	 * @throws SQLException si no se puede anular, con el código de GestionMedicosException
+	 */
+	static Cambio anula(Sentencias s, String m_NIF_cliente, String m_NIF_medico,  
+			Date m_Fecha_Consulta, Date m_Fecha_Anulacion, String motivo)
+			throws SQLException {
+		
+		//Se obtiene el id del médico. Se lanza la excepción 'medico_no_existe' si no existe.
+		int num_medico = id_medico(s, m_NIF_medico);
+		int num_consulta = anula(s, m_NIF_cliente, num_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo);
+		return new Cambio(false, num_consulta, num_medico, m_NIF_cliente, m_Fecha_Consulta);
+	}
+	
+	/**
+	 * Anula una consulta de un médico ya resuelto, sin confirmar la transacción.
+	 * 
+	 * @return id de la consulta anulada
+	 * @throws SQLException si no se puede anular, con el código de GestionMedicosException
+	 */
+	static int anula(Sentencias s, String m_NIF_cliente, int num_medico,  
 			Date m_Fecha_Consulta, Date m_Fecha_Anulacion, String motivo)
 			throws SQLException {
 		
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
-		Connection con=null;
-		PreparedStatement st_select_med = null;
-		ResultSet rs_med = null;
-		PreparedStatement st_select_cli = null;
 		ResultSet rs_cli = null;
-		PreparedStatement st_select_cons = null;
 		ResultSet rs_cons = null;
-		PreparedStatement st_insert = null;
-		PreparedStatement st_update = null;
-
-	
-		try{
-			con = pool.getConnection();
-			
-			//Se obtiene el id del médico. Se lanza la excepción 'medico_no_existe' si no existe.
-			st_select_med = con.prepareStatement("SELECT id_medico FROM MEDICO WHERE NIF=?");
-			st_select_med.setString(1, m_NIF_medico);
-			rs_med = st_select_med.executeQuery();
-			if(!rs_med.next())
-				throw new GestionMedicosException(GestionMedicosException.MEDICO_NO_EXISTE);
-			int num_medico = rs_med.getInt(1);
-			
+		
+		try {
 			//Se comprueba si existe el cliente. Si no existe se lanza el error 'cliente_no_existe'.
-			st_select_cli = con.prepareStatement("SELECT NIF FROM CLIENTE WHERE NIF=?");
+			PreparedStatement st_select_cli = s.prepara(SQL_EXISTE_CLIENTE);
 			st_select_cli.setString(1,m_NIF_cliente);
 			rs_cli = st_select_cli.executeQuery();
 			if(!rs_cli.next())
@@ -151,8 +372,7 @@ public class GestionMedicos {
 			
 			//Se obtiene el id de la consulta si existe y no está anulada.
 			//Si está anulada o no existe la consulta, se lanza el error 'consulta_no_existe'.
-			st_select_cons = con.prepareStatement("SELECT id_consulta FROM CONSULTA WHERE fecha_consulta=?"+
-					" and NIF = ? and id_medico = ? and id_consulta not in (SELECT id_consulta from ANULACION)");
+			PreparedStatement st_select_cons = s.prepara(SQL_CONSULTA_ACTIVA);
 			st_select_cons.setDate(1, new java.sql.Date(m_Fecha_Consulta.getTime()));
 			st_select_cons.setString(2, m_NIF_cliente);
 			st_select_cons.setInt(3, num_medico);
@@ -163,122 +383,365 @@ public class GestionMedicos {
 			int num_consulta = rs_cons.getInt(1);
 			
 			//Se inserta la anulación.
-			st_insert = con.prepareStatement("INSERT INTO ANULACION VALUES (seq_anulacion.nextval,?,?,?)");
+			PreparedStatement st_insert = s.prepara(SQL_INSERTA_ANULACION);
 			st_insert.setInt(1,num_consulta);
 			st_insert.setDate(2, new java.sql.Date(m_Fecha_Anulacion.getTime()));
 			st_insert.setString(3, motivo);
-			st_insert.executeQuery();
+			try {
+				st_insert.executeUpdate();
+			} catch (SQLException e) {
+				//Al insertar el registro de anulación, si el motivo es vacío se lanza la excepción 'motivo_vacio'.
+				if ( Dialecto.actual().getErrores().checkExceptionToCode( e, SGBDError.NOT_NULL_VIOLATED)) {
+					throw new GestionMedicosException(GestionMedicosException.MOTIVO_VACIO);
+				}
+				throw e;
+			}
 			
 			//Se actualiza el num. de consultas del médico si la fecha de anulación es como mínimo 2 días
 			//anterior a la fecha de consulta.
 			//Si la fecha de anulación no cumple ese mínimo, se lanza el error 'consulta_no_anula'.
-			st_update = con.prepareStatement("UPDATE MEDICO SET consultas=consultas-1 WHERE id_medico=?"+
-					" AND 2<=?");
+			PreparedStatement st_update = s.prepara(SQL_LIBERA_MEDICO);
 			st_update.setInt(1, num_medico);
 			st_update.setInt(2, Misc.howManyDaysBetween(m_Fecha_Consulta,m_Fecha_Anulacion));
 			int n = st_update.executeUpdate();
 			if (n==0) {
 				throw new GestionMedicosException(GestionMedicosException.CONSULTA_NO_ANULA);
 			}
-			
-			con.commit();
-		} catch (SQLException e) {
-			//Rollback con cualquier error.
-			con.rollback();
-			//Relanzar excepción.
-			if (e instanceof GestionMedicosException) {
-				throw (GestionMedicosException)e;
-			}
-			//Al insertar el registro de anulación, si el motivo es vacío se lanza la excepción 'motivo_vacio'.
-			if ( new OracleSGBDErrorUtil().checkExceptionToCode( e, SGBDError.NOT_NULL_VIOLATED)) {
-				throw new GestionMedicosException(GestionMedicosException.MOTIVO_VACIO);
-			}
-			//Si es cualquier otra excepción, se registra el mensaje y se lanza.
-			logger.error(e.getMessage());
-			throw e;
+			//Los otros nodos se enteran del cambio si se confirma.
+			BusInvalidacionTabla.registra(s, num_medico);
+			return num_consulta;
 		} finally {
-			//Se liberan los recursos.
-			if (rs_med!=null) rs_med.close();
-			if (st_select_med!=null) st_select_med.close();
 			if (rs_cli!=null) rs_cli.close();
-			if (st_select_cli!=null) st_select_cli.close();
 			if (rs_cons!=null) rs_cons.close();
-			if (st_select_cons!=null) st_select_cons.close();
-			if (st_insert!=null) st_insert.close();
-			if (st_update!=null) st_update.close();
-			if (con!=null) con.close();
-		}		
+		}
+	}
+	
+	/**
+	 * Obtiene el id de un médico.
+	 * 
+	 * @throws SQLException 'medico_no_existe' si no existe
+	 */
+	static int id_medico(Sentencias s, String m_NIF_medico) throws SQLException {
+		PreparedStatement st_med = s.prepara(SQL_ID_MEDICO);
+		st_med.setString(1, m_NIF_medico);
+		ResultSet rs_med = st_med.executeQuery();
+		try {
+			if(!rs_med.next())
+				throw new GestionMedicosException(GestionMedicosException.MEDICO_NO_EXISTE);
+			return rs_med.getInt(1);
+		} finally {
+			rs_med.close();
+		}
+	}
+	
+	/**
+	 * Cambia una consulta de fecha: anula la consulta actual y reserva la nueva
+	 * en una única transacción. Si la nueva fecha no se puede reservar (por ejemplo,
+	 * 'medico_ocupado') la consulta actual queda como estaba.
+	 * 
+	 * @param m_NIF_cliente NIF del cliente
+	 * @param m_NIF_medico NIF del médico
+	 * @param m_Fecha_Consulta fecha de la consulta actual
+	 * @param m_Fecha_Nueva fecha de la nueva consulta
+	 * @param m_Fecha_Anulacion fecha de anulación de la consulta actual
+	 * @param motivo motivo de la anulación
+	 * @throws SQLException con el código de GestionMedicosException de la operación que falla
+	 */
+	public static void reprogramar_consulta(String m_NIF_cliente, String m_NIF_medico,
+			Date m_Fecha_Consulta, Date m_Fecha_Nueva, Date m_Fecha_Anulacion, String motivo)
+			throws SQLException {
+		PerfilJDBC.Ambito perfil = PerfilJDBC.inicia("reprogramar_consulta");
+		try (perfil) {
+			reprogramar(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Nueva, m_Fecha_Anulacion, motivo);
+		}
+	}
+	
+	private static void reprogramar(String m_NIF_cliente, String m_NIF_medico,
+			Date m_Fecha_Consulta, Date m_Fecha_Nueva, Date m_Fecha_Anulacion, String motivo)
+			throws SQLException {
+		MotorMemoria m = motor;
+		if (m != null) {
+			for (Cambio cambio : m.reprograma(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Nueva,
+					m_Fecha_Anulacion, motivo))
+				avisa(cambio);
+			return;
+		}
+		Plazo plazo = Plazo.porDefecto();
+		Reintentos.getInstance().ejecuta("reprogramar_consulta", plazo, () -> {
+			try (UnidadDeTrabajo uw = new UnidadDeTrabajo(plazo)) {
+				uw.anular_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo);
+				uw.reservar_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Nueva);
+				uw.commit();
+			}
+			return null;
+		});
 	}
 	
 	public static void consulta_medico(String m_NIF_medico)
 			throws SQLException {
+		consulta_medico(m_NIF_medico, false);
+	}
+	
+	/**
+	 * Muestra las consultas de un médico.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @param completo true para incluir las consultas archivadas
+	 * @throws SQLException si el médico no existe o hay un error con la base de datos
+	 */
+	public static void consulta_medico(String m_NIF_medico, boolean completo)
+			throws SQLException {
 
-				
+		List<FilaConsulta> filas = historial_medico(m_NIF_medico, completo, Plazo.porDefecto());
+		//Se muestran las consultas del médico junto a una columna que indica si están anuladas o no.
+		System.out.println(FilaConsulta.CABECERA);
+		for (FilaConsulta fila : filas) {
+			System.out.println(fila);
+		}
+	}
+	
+	/**
+	 * Obtiene las consultas anuladas y no anuladas de un médico, ordenadas por fecha.
+	 * Si el historial está en la caché y no ha cambiado no se accede a la base de datos.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @return consultas del médico, que no se deben modificar
+	 * @throws SQLException si el médico no existe o hay un error con la base de datos
+	 */
+	public static List<FilaConsulta> historial_medico(String m_NIF_medico)
+			throws SQLException {
+		return historial_medico(m_NIF_medico, Plazo.porDefecto());
+	}
+	
+	/**
+	 * Obtiene el historial de un médico sin superar un plazo.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @param plazo plazo de la operación
+	 * @return consultas del médico, que no se deben modificar
+	 * @throws SQLException 'tiempo_agotado' si vence el plazo, 'medico_no_existe' si el médico
+	 * no existe, o si hay un error con la base de datos
+	 */
+	public static List<FilaConsulta> historial_medico(String m_NIF_medico, Plazo plazo)
+			throws SQLException {
+		return historial_medico(m_NIF_medico, false, plazo);
+	}
+	
+	/**
+	 * Obtiene el historial de un médico sin superar un plazo. El historial
+	 * completo incluye las consultas que Archivador ha pasado al archivo.
+	 * 
+	 * @param m_NIF_medico NIF del médico
+	 * @param completo true para incluir las consultas archivadas
+	 * @param plazo plazo de la operación
+	 * @return consultas del médico, que no se deben modificar
+	 * @throws SQLException 'tiempo_agotado' si vence el plazo, 'medico_no_existe' si el médico
+	 * no existe, o si hay un error con la base de datos
+	 */
+	public static List<FilaConsulta> historial_medico(String m_NIF_medico, boolean completo, Plazo plazo)
+			throws SQLException {
+		PerfilJDBC.Ambito perfil = PerfilJDBC.inicia("historial_medico");
+		try (perfil) {
+			return historial(m_NIF_medico, completo, plazo);
+		}
+	}
+	
+	private static List<FilaConsulta> historial(String m_NIF_medico, boolean completo, Plazo plazo)
+			throws SQLException {
+		MotorMemoria m = motor;
+		if (m != null) {
+			//El motor solo tiene las consultas de CONSULTA; el archivo se lee de las tablas al día.
+			if (!completo)
+				return m.historial(m_NIF_medico);
+			sincroniza();
+		}
+		long inicio = Arranque.espera();
+		CacheConsultas cache = CacheConsultas.getInstance();
+		List<FilaConsulta> filas = cache.busca(m_NIF_medico, completo);
+		if (filas != null) {
+			Arranque.terminada(inicio);
+			return filas;
+		}
+			
 		PoolDeConexiones pool = PoolDeConexiones.getInstance();
 		Connection con=null;
-		PreparedStatement st_med = null;
-		ResultSet rs_med = null;
-		PreparedStatement st_cons = null;
+		Sentencias s = null;
 		ResultSet rs_cons = null;
 
-	
+
 		try{
-			con = pool.getConnection();
-			
+			con = pool.getConnection(plazo);
+			s = new Sentencias(con, plazo);
+		
 			//Se obtiene el id del médico. Se lanza la excepción 'medico_no_existe' si no existe.
-			st_med = con.prepareStatement("SELECT id_medico FROM MEDICO WHERE NIF=?");
-			st_med.setString(1, m_NIF_medico);
-			rs_med = st_med.executeQuery();
-			if(!rs_med.next())
-				throw new GestionMedicosException(GestionMedicosException.MEDICO_NO_EXISTE);
-			int num_medico = rs_med.getInt(1);
-			
+			int num_medico = id_medico(s, m_NIF_medico);
+			//La versión se lee antes de la consulta para no guardar un historial ya modificado.
+			long version = cache.version(num_medico);
+		
 			//Se obtienen las consultas anuladas y no anuladas del médico junto a un campo que indica si está anulada.
-			st_cons = con.prepareStatement("SELECT consulta.id_consulta,fecha_consulta,"+
-			" id_medico, NIF, case when id_anulacion is null then 'No' else 'Sí' end"+
-			" from consulta left join anulacion on consulta.id_consulta=anulacion.id_consulta"+
-			" WHERE id_medico=? order by fecha_consulta");
+			PreparedStatement st_cons = s.prepara(completo ? SQL_HISTORIAL_COMPLETO : SQL_HISTORIAL);
 			st_cons.setInt(1, num_medico);
 			rs_cons = st_cons.executeQuery();
-			//Se muestran las consultas del médico junto a una columna que indica si están anuladas o no.
-			System.out.println("IDCONSULTA"+"\t"+"FECHA"+"\t\t"+"IDMEDICO"+"\t"+"NIFCLIENTE"+"\t"+"ANULADA");
+			filas = new ArrayList<FilaConsulta>();
 			while (rs_cons.next()) {
-				System.out.println(rs_cons.getInt(1) + "\t\t" + rs_cons.getDate(2) +"\t"+
-						rs_cons.getInt(3)+"\t\t"+rs_cons.getString(4)+"\t"+rs_cons.getString(5));
+				filas.add(new FilaConsulta(rs_cons.getInt(1), rs_cons.getDate(2),
+						rs_cons.getInt(3), rs_cons.getString(4), rs_cons.getString(5)));
 			}
-			
+		
 			con.commit();
+			filas = Collections.unmodifiableList(filas);
+			cache.guarda(m_NIF_medico, completo, num_medico, version, filas);
+			Arranque.terminada(inicio);
+			return filas;
 		} catch (SQLException e) {
-			//Rollback con cualquier error.
-			con.rollback();
+			//Rollback con cualquier error. La conexión es null si no se ha podido obtener.
+			if (con!=null) con.rollback();
 			//Relanzar excepción.
 			if (e instanceof GestionMedicosException) {
 				throw (GestionMedicosException)e;
 			}
+			//Si ha vencido el plazo se lanza 'tiempo_agotado'.
+			if (agotado(e, plazo))
+				throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
 			//Si es cualquier otra excepción, se registra el mensaje y se lanza.
 			logger.error(e.getMessage());
 			throw e;
 		} finally {
 			//Se liberan los recursos.
-			if (rs_med!=null) rs_med.close();
-			if (st_med!=null) st_med.close();
+			plazo.termina();
 			if (rs_cons!=null) rs_cons.close();
-			if (st_cons!=null) st_cons.close();
+			if (s!=null) s.close();
 			if (con!=null) con.close();
 		}		
 	}
 	
-	static public void creaTablas() {
-		ExecuteScript.run(script_path + "gestion_medicos.sql");
+	/**
+	 * Indica si un error se debe a que se ha perdido la conexión.
+	 */
+	static boolean conexionPerdida(SQLException e) {
+		String estado = e.getSQLState();
+		return Dialecto.actual().getErrores().translate(e.getErrorCode()) == SGBDError.CONNECTION_LOST
+				|| (estado != null && estado.startsWith("08")) || e instanceof SQLRecoverableException;
+	}
+	
+	/**
+	 * Error para una conexión perdida después de enviar el commit. No se sabe
+	 * si la transacción se ha confirmado, así que no es transitorio y
+	 * Reintentos no la repite.
+	 * 
+	 * @param e error del commit
+	 * @return el error a lanzar
+	 */
+	static SQLException commitIncierto(SQLException e) {
+		logger.error("Conexión perdida durante el commit: {}", e.getMessage());
+		return new SQLException("Conexión perdida durante el commit: no se sabe si se ha confirmado", e);
+	}
+	
+	/**
+	 * Indica si un error se debe a que ha vencido el plazo: la sentencia se ha
+	 * cancelado, ha saltado su query timeout o no se ha obtenido conexión a tiempo.
+	 */
+	static boolean agotado(SQLException e, Plazo plazo) {
+		if (e instanceof SQLTimeoutException || plazo.isCancelado() || plazo.vencido()) {
+			logger.warn("Plazo agotado: {}", e.getMessage());
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Activa el commit agrupado de reservas y anulaciones, o lo desactiva si
+	 * se pasa null. El combinador anterior, si lo había, no se cierra.
+	 * 
+	 * @param grupo combinador de commits
+	 */
+	public static void setCommitAgrupado(CommitAgrupado grupo) {
+		commitAgrupado = grupo;
+	}
+	
+	/**
+	 * Activa el motor en memoria para reservar, anular, reprogramar y leer
+	 * historiales, o vuelve a la base de datos si se pasa null. El motor
+	 * anterior, si lo había, no se cierra.
+	 * 
+	 * @param m motor ya arrancado
+	 */
+	public static void setMotor(MotorMemoria m) {
+		motor = m;
+	}
+	
+	/**
+	 * Espera a que el motor en memoria, si está activo, haya copiado sus
+	 * cambios a las tablas.
+	 * 
+	 * @throws SQLException si no se copian en 30 segundos
+	 */
+	static void sincroniza() throws SQLException {
+		MotorMemoria m = motor;
+		try {
+			if (m != null && !m.sincroniza(30000))
+				throw new SQLException("El motor en memoria no ha copiado sus cambios a tiempo");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando al motor en memoria", e);
+		}
+	}
+	
+	/**
+	 * Registra un oyente de las reservas y anulaciones confirmadas.
+	 * 
+	 * @param oyente oyente a registrar
+	 */
+	public static void registraOyente(OyenteConsultas oyente) {
+		oyentes.add(oyente);
+	}
+	
+	/**
+	 * Elimina un oyente registrado.
+	 * 
+	 * @param oyente oyente a eliminar
+	 */
+	public static void eliminaOyente(OyenteConsultas oyente) {
+		oyentes.remove(oyente);
+	}
+	
+	/**
+	 * Avisa a los oyentes de una reserva o anulación ya confirmada.
+	 */
+	static void avisa(Cambio cambio) {
+		for (OyenteConsultas o : oyentes) {
+			//Un fallo del oyente no deshace una operación ya confirmada.
+			try {
+				o.cambioConfirmado(cambio);
+			} catch (RuntimeException e) {
+				logger.error("Error en el oyente "+o+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Reinicia las filas de prueba. Con el motor en memoria activo se espera
+	 * a que copie lo pendiente y se recarga después.
+	 */
+	private static CallableStatement reinicia(Connection conn) throws SQLException {
+		sincroniza();
+		CallableStatement cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+		cll_reinicia.execute();
+		MotorMemoria m = motor;
+		if (m != null)
+			m.recarga();
+		return cll_reinicia;
+	}
+	
+	static public void creaTablas() throws SQLException {
+		ExecuteScript.run(script_path + Dialecto.actual().getScript());
 	}
 
-	static void tests() throws SQLException{
-		creaTablas();
-		
-		PoolDeConexiones pool = PoolDeConexiones.getInstance();
-		
-		//Relatar caso por caso utilizando el siguiente procedure para inicializar los datos
-		
+	/**
+	 * Casos de reservar_consulta, anular_consulta y consulta_medico, que se
+	 * prueban con la base de datos y con el motor en memoria.
+	 */
+	private static void casosOperaciones(PoolDeConexiones pool) throws SQLException {
 		CallableStatement cll_reinicia=null;
 		Connection conn = null;
 		
@@ -288,8 +751,7 @@ public class GestionMedicos {
 		try {
 			//Reinicio filas
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			reservar_consulta("11111111A","222222B",Misc.getCurrentDate());
 			System.out.println("MAL: Cliente inexistente no levanta excepcion");
 		} catch (SQLException e) {
@@ -306,8 +768,7 @@ public class GestionMedicos {
 		//Caso 2: El médico no existe.
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			reservar_consulta("12345678A","111111B",Misc.getCurrentDate());
 			System.out.println("MAL: Medico inexistente no levanta excepcion");
 		} catch (SQLException e) {
@@ -326,8 +787,7 @@ public class GestionMedicos {
 		java.util.Date fecha = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha = format.parse("25-03-2022");
 			reservar_consulta("12345678A","8766788Y",fecha);
 			System.out.println("MAL: Medico ocupado no levanta excepcion");
@@ -350,12 +810,12 @@ public class GestionMedicos {
 		fecha = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha = format.parse("20-03-2022");
 			reservar_consulta("12345678A","8766788Y",fecha);
+			sincroniza();
 			st = conn.createStatement();
-			rs = st.executeQuery("SELECT id_consulta||fecha_consulta||consulta.NIF||consulta.id_medico"+
+			rs = st.executeQuery("SELECT id_consulta||to_char(fecha_consulta,'DD/MM/RR')||consulta.NIF||consulta.id_medico"+
 			"||medico.NIF||nombre||ape1||ape2||especialidad||consultas"+
 					" from consulta join medico on consulta.id_medico=medico.id_medico"+
 			" order by consulta.id_consulta");
@@ -391,8 +851,7 @@ public class GestionMedicos {
 		java.util.Date fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("25-03-2022");
 			fecha_anulacion = format.parse("10-03-2022");
 			anular_consulta("87654322B","8766788Y",fecha_consulta,fecha_anulacion,"Viaje");
@@ -415,8 +874,7 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("25-03-2022");
 			fecha_anulacion = format.parse("10-03-2022");
 			anular_consulta("87654321B","8766777Y",fecha_consulta,fecha_anulacion,"Viaje");
@@ -439,8 +897,7 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("24-03-2023");
 			fecha_anulacion = format.parse("10-03-2022");
 			anular_consulta("87654321B","8766788Y",fecha_consulta,fecha_anulacion,"Viaje");
@@ -464,8 +921,7 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("24-03-2023");
 			fecha_anulacion = format.parse("10-03-2023");
 			anular_consulta("12345678A","222222B",fecha_consulta,fecha_anulacion,"Viaje");
@@ -489,8 +945,7 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("25-03-2022");
 			fecha_anulacion = format.parse("24-03-2022");
 			anular_consulta("87654321B","8766788Y",fecha_consulta,fecha_anulacion,"Viaje");
@@ -514,8 +969,7 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("25-03-2022");
 			fecha_anulacion = format.parse("22-03-2022");
 			anular_consulta("87654321B","8766788Y",fecha_consulta,fecha_anulacion,"");
@@ -539,13 +993,13 @@ public class GestionMedicos {
 		fecha_anulacion = null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_consulta = format.parse("25-03-2022");
 			fecha_anulacion = format.parse("22-03-2022");
 			anular_consulta("87654321B","8766788Y",fecha_consulta,fecha_anulacion,"Viaje");
+			sincroniza();
 			st = conn.createStatement();
-			rs = st.executeQuery("SELECT id_anulacion||anulacion.id_consulta||fecha_anulacion"+
+			rs = st.executeQuery("SELECT id_anulacion||anulacion.id_consulta||to_char(fecha_anulacion,'DD/MM/RR')"+
 			"||motivo_anulacion||medico.id_medico||medico.NIF||nombre||ape1||ape2||especialidad||consultas"+
 			" from anulacion join consulta on anulacion.id_consulta=consulta.id_consulta"+
 			" join medico on consulta.id_medico=medico.id_medico"+
@@ -579,8 +1033,7 @@ public class GestionMedicos {
 		//Caso 1: El médico no existe.
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			consulta_medico("12345678A");
 			System.out.println("MAL: Medico inexistente no levanta excepcion");
 			} catch (SQLException e) {
@@ -597,8 +1050,7 @@ public class GestionMedicos {
 		//Caso 2: Todo OK. Se muestran las consultas del médico 2. 
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			ByteArrayOutputStream b = new ByteArrayOutputStream();
 			PrintStream ps = new PrintStream(b);
 			System.setOut(ps); 
@@ -625,8 +1077,7 @@ public class GestionMedicos {
 		//Caso 3: Todo OK. Se muestran las consultas del médico 1.
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			ByteArrayOutputStream b = new ByteArrayOutputStream();
 			PrintStream ps = new PrintStream(b);
 			System.setOut(ps);
@@ -664,16 +1115,16 @@ public class GestionMedicos {
 		java.util.Date fecha_anul= null;
 		try {
 			conn = pool.getConnection();
-			cll_reinicia = conn.prepareCall("{call inicializa_test}");
-			cll_reinicia.execute();
+			cll_reinicia = reinicia(conn);
 			fecha_reserva1 = format.parse("24-03-2023");
 			fecha_reserva2 = format.parse("28-04-2022");
 			fecha_anul = format.parse("26-04-2022");
 			reservar_consulta("12345678A","222222B",fecha_reserva1);
 			reservar_consulta("78677433R","8766788Y",fecha_reserva2);
 			anular_consulta("78677433R","8766788Y",fecha_reserva2,fecha_anul,"Viaje");
+			sincroniza();
 			st_cons = conn.createStatement();
-			rs_cons = st_cons.executeQuery("SELECT id_consulta||fecha_consulta||consulta.NIF||consulta.id_medico"+
+			rs_cons = st_cons.executeQuery("SELECT id_consulta||to_char(fecha_consulta,'DD/MM/RR')||consulta.NIF||consulta.id_medico"+
 			"||medico.id_medico||medico.NIF||nombre||ape1||ape2||especialidad||consultas"+
 			" from consulta join medico on consulta.id_medico=medico.id_medico"+
 			" order by consulta.id_consulta");
@@ -682,8 +1133,8 @@ public class GestionMedicos {
 				resultado+=rs_cons.getString(1);
 			}
 			st_anul = conn.createStatement();
-			rs_anul = st_anul.executeQuery("SELECT id_anulacion||anulacion.id_consulta||fecha_anulacion"+
-			"||motivo_anulacion||consulta.id_consulta||fecha_consulta||NIF||id_medico"+
+			rs_anul = st_anul.executeQuery("SELECT id_anulacion||anulacion.id_consulta||to_char(fecha_anulacion,'DD/MM/RR')"+
+			"||motivo_anulacion||consulta.id_consulta||to_char(fecha_consulta,'DD/MM/RR')||NIF||id_medico"+
 			" from anulacion join consulta on anulacion.id_consulta=consulta.id_consulta"+
 			" order by anulacion.id_anulacion");
 			while (rs_anul.next()) {
@@ -735,4 +1186,1268 @@ public class GestionMedicos {
 			if (conn!=null) conn.close();
 		}
 	}
+	
+	/**
+	 * Filas de las tablas de la instantánea, para compararlas antes y después
+	 * de restaurarla.
+	 */
+	private static String filasInstantanea(Connection conn) throws SQLException {
+		StringBuilder sb = new StringBuilder();
+		Statement st = conn.createStatement();
+		try {
+			for (String tabla : new String[] {"cliente", "medico", "consulta", "anulacion", "consulta_hist",
+					"anulacion_hist"}) {
+				sb.append(tabla).append(":");
+				ResultSet rs = st.executeQuery("SELECT * FROM " + tabla + " ORDER BY 1");
+				int columnas = rs.getMetaData().getColumnCount();
+				while (rs.next()) {
+					for (int c = 1; c <= columnas; c++) {
+						sb.append(" ").append(rs.getString(c));
+					}
+					sb.append(";");
+				}
+				rs.close();
+			}
+		} finally {
+			st.close();
+		}
+		return sb.toString();
+	}
+	
+	static void tests() throws SQLException{
+		creaTablas();
+		
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		
+		//Relatar caso por caso utilizando el siguiente procedure para inicializar los datos
+		
+		CallableStatement cll_reinicia=null;
+		Connection conn = null;
+		
+		casosOperaciones(pool);
+		
+		SimpleDateFormat format = new SimpleDateFormat("dd-MM-yyyy");
+		java.util.Date fecha = null;
+		
+		//Casos disponibilidad
+		
+		//Caso 1: Primer día libre de un médico y de una especialidad, antes y después de reservar.
+		Disponibilidad disponibilidad = null;
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			disponibilidad = Disponibilidad.construye();
+			fecha = format.parse("25-03-2022");
+			String libre1 = format.format(disponibilidad.primerDiaLibre("8766788Y", fecha));
+			reservar_consulta("12345678A","8766788Y",format.parse("26-03-2022"));
+			String libre2 = format.format(disponibilidad.primerDiaLibre("8766788Y", fecha));
+			Disponibilidad.Hueco hueco = disponibilidad.primerHueco("Oncologia", fecha);
+			String resultado = libre1+" "+libre2+" "+hueco.getNifMedico()+" "+format.format(hueco.getFecha());
+			String esperado = "26-03-2022 27-03-2022 8766788Y 27-03-2022";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: La disponibilidad se calcula y se actualiza correctamente");
+			}else {
+				System.out.println("MAL: La disponibilidad no se calcula o no se actualiza correctamente");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (disponibilidad!=null) disponibilidad.cierra();
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos caché de consultas
+		
+		//Caso 1: La segunda lectura se sirve desde la caché y una reserva la invalida.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			CacheConsultas cache = CacheConsultas.getInstance();
+			cache.vacia();
+			long aciertos = cache.getAciertos();
+			historial_medico("8766788Y");
+			int antes = historial_medico("8766788Y").size();
+			reservar_consulta("12345678A","8766788Y",format.parse("26-03-2022"));
+			int despues = historial_medico("8766788Y").size();
+			String resultado = (cache.getAciertos()-aciertos)+" "+antes+" "+despues;
+			String esperado = "1 1 2";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: La caché sirve las lecturas repetidas y se invalida al reservar");
+			}else {
+				System.out.println("MAL: La caché no sirve las lecturas repetidas o no se invalida al reservar");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos reprogramar consulta
+		
+		//Caso 1: La nueva fecha está ocupada. La consulta original no se anula.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			reservar_consulta("12345678A","8766788Y",format.parse("28-03-2022"));
+			try {
+				reprogramar_consulta("87654321B","8766788Y",format.parse("25-03-2022"),
+						format.parse("28-03-2022"),format.parse("20-03-2022"),"Cambio de fecha");
+				System.out.println("MAL: Reprogramar a una fecha ocupada no levanta excepcion");
+			} catch (SQLException e) {
+				if (e.getErrorCode()!=GestionMedicosException.MEDICO_OCUPADO)
+					System.out.println("MAL: Reprogramar a una fecha ocupada levanta excepcion "+e.getMessage());
+			}
+			StringBuilder resultado = new StringBuilder();
+			for (FilaConsulta fila : historial_medico("8766788Y")) {
+				if (resultado.length()>0) resultado.append(" ");
+				resultado.append(format.format(fila.getFecha())).append(":").append(fila.getAnulada());
+			}
+			String esperado = "25-03-2022:No 28-03-2022:No";
+			if (resultado.toString().equals(esperado)) {
+				System.out.println("OK: Reprogramar a una fecha ocupada mantiene la consulta original");
+			}else {
+				System.out.println("MAL: Reprogramar a una fecha ocupada modifica la consulta original");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Caso 2: Se reprograma la consulta a una fecha libre.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			reprogramar_consulta("87654321B","8766788Y",format.parse("25-03-2022"),
+					format.parse("30-03-2022"),format.parse("20-03-2022"),"Cambio de fecha");
+			StringBuilder resultado = new StringBuilder();
+			for (FilaConsulta fila : historial_medico("8766788Y")) {
+				if (resultado.length()>0) resultado.append(" ");
+				resultado.append(format.format(fila.getFecha())).append(":").append(fila.getAnulada());
+			}
+			String esperado = "25-03-2022:Sí 30-03-2022:No";
+			if (resultado.toString().equals(esperado)) {
+				System.out.println("OK: Se anula la consulta original y se reserva la nueva");
+			}else {
+				System.out.println("MAL: No se reprograma correctamente la consulta");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos plazos
+		
+		//Caso 1: Otra sesión bloquea la fila del médico. Las reservas deben terminar con
+		//'tiempo_agotado' al vencer su plazo y el p99 de su latencia no debe superarlo mucho.
+		Connection conn_bloqueo = null;
+		PreparedStatement st_bloqueo = null;
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			conn_bloqueo = pool.getConnection();
+			st_bloqueo = conn_bloqueo.prepareStatement("SELECT consultas FROM medico WHERE NIF=? FOR UPDATE");
+			st_bloqueo.setString(1, "8766788Y");
+			st_bloqueo.executeQuery().close();
+			
+			final long plazoMs = 500;
+			final int n = 10;
+			long[] latencias = new long[n];
+			int agotadas = 0;
+			java.util.Date dia = format.parse("01-04-2022");
+			for (int i = 0; i < n; i++) {
+				long t = System.nanoTime();
+				try {
+					reservar_consulta("12345678A","8766788Y",new Date(dia.getTime()+i*86400000L),Plazo.en(plazoMs));
+				} catch (SQLException e) {
+					if (e.getErrorCode()==GestionMedicosException.TIEMPO_AGOTADO)
+						agotadas++;
+				}
+				latencias[i] = (System.nanoTime() - t) / 1000000;
+			}
+			java.util.Arrays.sort(latencias);
+			long p99 = latencias[(int) Math.ceil(0.99 * n) - 1];
+			if (agotadas==n && p99 < 2*plazoMs) {
+				System.out.println("OK: Las reservas bloqueadas agotan su plazo (p99 "+p99+" ms)");
+			}else {
+				System.out.println("MAL: Las reservas bloqueadas no respetan su plazo");
+				System.out.println("Se obtiene...*" + agotadas + " agotadas, p99 " + p99 + " ms*");
+				System.out.println("Y deberia ser*" + n + " agotadas, p99 menor que " + 2*plazoMs + " ms*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (st_bloqueo!=null) st_bloqueo.close();
+			if (conn_bloqueo!=null) {
+				conn_bloqueo.rollback();
+				conn_bloqueo.close();
+			}
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos presupuesto de idas y vueltas
+		
+		//Caso 1: Cada operación no supera su número de idas y vueltas al servidor.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			CacheConsultas.getInstance().vacia();
+			final java.util.Date dia_reserva = format.parse("26-03-2022");
+			final java.util.Date dia_consulta = format.parse("25-03-2022");
+			final java.util.Date dia_anulacion = format.parse("20-03-2022");
+			//Préstamo (autocommit y aislamiento), sentencias de la operación y commit.
+			PerfilJDBC.Perfil p_reserva = PerfilJDBC.mide("reservar_consulta",
+					() -> reservar_consulta("12345678A","8766788Y",dia_reserva));
+			PerfilJDBC.Perfil p_anula = PerfilJDBC.mide("anular_consulta",
+					() -> anular_consulta("87654321B","8766788Y",dia_consulta,dia_anulacion,"Viaje"));
+			PerfilJDBC.Perfil p_historial = PerfilJDBC.mide("historial_medico",
+					() -> historial_medico("8766788Y"));
+			if (p_reserva.dentroDe(6) && p_anula.dentroDe(8) && p_historial.dentroDe(5)) {
+				System.out.println("OK: Las operaciones no superan su presupuesto de idas y vueltas");
+			}else {
+				System.out.println("MAL: Alguna operación supera su presupuesto de idas y vueltas");
+				System.out.println("Se obtiene...*" + p_reserva.getIdasYVueltas() + " " + p_anula.getIdasYVueltas()
+						+ " " + p_historial.getIdasYVueltas() + "*");
+				System.out.println("Y deberia ser como mucho*6 8 5*");
+				System.out.println(p_reserva + "\n" + p_anula + "\n" + p_historial);
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Caso 2: Con el commit agrupado la reserva se cuenta en el perfil de quien la pide.
+		CommitAgrupado grupo = new CommitAgrupado(500, 16);
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = reinicia(conn);
+			CacheConsultas.getInstance().vacia();
+			final java.util.Date dia_reserva = format.parse("26-03-2022");
+			setCommitAgrupado(grupo);
+			PerfilJDBC.Perfil p_reserva = PerfilJDBC.mide("reservar_consulta",
+					() -> reservar_consulta("12345678A","8766788Y",dia_reserva));
+			if (p_reserva.getEjecuciones() > 0 && p_reserva.getCommits() == 1 && p_reserva.dentroDe(6)) {
+				System.out.println("OK: Las operaciones del commit agrupado se cuentan en su perfil");
+			}else {
+				System.out.println("MAL: Las operaciones del commit agrupado no se cuentan bien");
+				System.out.println("Se obtiene...*" + p_reserva + "*");
+				System.out.println("Y deberia tener ejecuciones, un commit y como mucho 6 idas y vueltas");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			setCommitAgrupado(null);
+			grupo.close();
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Caso 3: En un mismo grupo, la reserva con el médico ocupado vuelve a su savepoint y recibe su
+		//error, y la otra se confirma.
+		grupo = new CommitAgrupado(500000, 2);
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = reinicia(conn);
+			final java.util.Date[] dias = { format.parse("25-03-2022"), format.parse("26-03-2022") };
+			final String[] resultados = new String[dias.length];
+			Thread[] hilos = new Thread[dias.length];
+			setCommitAgrupado(grupo);
+			for (int i = 0; i < dias.length; i++) {
+				final int k = i;
+				hilos[k] = new Thread(() -> {
+					try {
+						reservar_consulta("12345678A","8766788Y",dias[k]);
+						resultados[k] = "reservada";
+					} catch (SQLException e) {
+						resultados[k] = String.valueOf(e.getErrorCode());
+					}
+				});
+				hilos[k].start();
+			}
+			for (Thread h : hilos)
+				h.join();
+			Statement st = null;
+			ResultSet rs = null;
+			String resultado = resultados[0] + " " + resultados[1] + " " + grupo.getGrupos();
+			try {
+				st = conn.createStatement();
+				rs = st.executeQuery("SELECT consultas FROM medico WHERE NIF='8766788Y'");
+				rs.next();
+				resultado += " " + rs.getInt(1);
+			} finally {
+				if (rs!=null) rs.close();
+				if (st!=null) st.close();
+			}
+			String esperado = GestionMedicosException.MEDICO_OCUPADO + " reservada 1 2";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Un error en el commit agrupado solo deshace su operación");
+			}else {
+				System.out.println("MAL: Un error en el commit agrupado afecta a las demás operaciones");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			setCommitAgrupado(null);
+			grupo.close();
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos seguimiento de conexiones
+		
+		//Caso 1: Las sentencias devuelven la conexión prestada y no se pueden usar tras devolverla.
+		if (SeguimientoConexiones.getInstance() != null) {
+			Statement st = null;
+			PreparedStatement pst = null;
+			try {
+				conn = pool.getConnection();
+				st = conn.createStatement();
+				pst = conn.prepareStatement("SELECT 1 FROM dual");
+				boolean misma = st.getConnection() == conn && pst.getConnection() == conn;
+				conn.close();
+				boolean rechazada = false;
+				try {
+					pst.executeQuery();
+				} catch (SQLException e) {
+					rechazada = true;
+				}
+				if (misma && rechazada) {
+					System.out.println("OK: Las sentencias de una conexión prestada devuelven su proxy");
+				}else {
+					System.out.println("MAL: Las sentencias escapan del seguimiento de su conexión");
+					System.out.println("Se obtiene...*" + misma + " " + rechazada + "*");
+					System.out.println("Y deberia ser*true true*");
+				}
+			} catch (SQLException e) {
+				System.out.println("MAL: Ha surgido un error.");
+				logger.error(e.getMessage());
+			} finally {
+				if (pst!=null) pst.close();
+				if (st!=null) st.close();
+				if (conn!=null) conn.close();
+			}
+		}
+		
+		//Casos reconciliación de MEDICO.consultas
+		
+		//Caso 1: Se desvían los contadores de los dos médicos y la reconciliación los corrige.
+		Statement st_desvia = null;
+		ResultSet rs_contadores = null;
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			st_desvia = conn.createStatement();
+			st_desvia.executeUpdate("UPDATE medico SET consultas=consultas+3");
+			conn.commit();
+			java.nio.file.Path control = java.nio.file.Files.createTempFile("reconcilia", ".control");
+			java.nio.file.Files.delete(control);
+			ReconciliaConsultas.Resultado r = new ReconciliaConsultas().setTamRango(1).setControl(control)
+					.reconcilia();
+			rs_contadores = st_desvia.executeQuery("SELECT NIF||':'||consultas FROM medico ORDER BY id_medico");
+			String resultado = "";
+			while (rs_contadores.next()) {
+				resultado+=rs_contadores.getString(1)+" ";
+			}
+			conn.commit();
+			String esperado = "222222B:0 8766788Y:1 ";
+			if (resultado.equals(esperado) && r.getReparadas() == 2 && !java.nio.file.Files.exists(control)) {
+				System.out.println("OK: La reconciliación corrige los contadores desviados");
+			}else {
+				System.out.println("MAL: La reconciliación no corrige los contadores desviados");
+				System.out.println("Se obtiene...*" + resultado + r.getReparadas() + "*");
+				System.out.println("Y deberia ser*" + esperado + "2*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con el fichero de control.");
+			logger.error(e.getMessage());
+		} finally {
+			if (rs_contadores!=null) rs_contadores.close();
+			if (st_desvia!=null) st_desvia.close();
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos archivo de consultas antiguas
+		
+		//Caso 1: Se archivan todas las consultas. El historial normal queda vacío y el completo
+		//las sigue mostrando, con sus anulaciones; MEDICO.consultas no cambia.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			CacheConsultas.getInstance().vacia();
+			int antes = historial_medico("8766788Y").size();
+			Archivador.Resultado r = new Archivador().setHorizonte(format.parse("01-01-2024"))
+					.setLote(1).setPausaMs(0).archiva();
+			StringBuilder resultado = new StringBuilder();
+			resultado.append(antes).append(" ").append(historial_medico("8766788Y").size());
+			for (String nif : new String[] {"222222B", "8766788Y"}) {
+				for (FilaConsulta fila : historial_medico(nif, true, Plazo.porDefecto())) {
+					resultado.append(" ").append(format.format(fila.getFecha())).append(":").append(fila.getAnulada());
+				}
+			}
+			resultado.append(" ").append(r.getConsultas()).append(" ").append(r.getAnulaciones())
+					.append(" ").append(GeneradorDatos.compruebaConsultas());
+			String esperado = "1 0 24-03-2023:Sí 25-03-2022:No 2 1 0";
+			if (resultado.toString().equals(esperado)) {
+				System.out.println("OK: Las consultas archivadas solo aparecen en el historial completo");
+			}else {
+				System.out.println("MAL: El archivo de consultas no es correcto");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos registro de eventos de consultas
+		
+		//Caso 1: Una reserva y una anulación quedan en el registro, en orden, y un consumidor
+		//que confirma su offset sigue después de lo leído al volver a abrirlo.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			java.nio.file.Path directorio = java.nio.file.Files.createTempDirectory("eventos");
+			String resultado = "";
+			EventosConsultas eventos = EventosConsultas.activa(directorio);
+			try {
+				reservar_consulta("12345678A", "8766788Y", format.parse("26-03-2022"));
+				anular_consulta("87654321B", "8766788Y", format.parse("25-03-2022"), format.parse("20-03-2022"), "Prueba");
+				EventosConsultas.Consumidor consumidor = eventos.consumidor("prueba");
+				for (EventosConsultas.Evento ev = consumidor.siguiente(); ev != null; ev = consumidor.siguiente()) {
+					resultado += (ev.isReserva() ? "R" : "A") + ":" + ev.getIdConsulta() + ":" + ev.getIdMedico()
+							+ ":" + ev.getNifCliente() + ":" + format.format(ev.getFecha()) + " ";
+				}
+				consumidor.confirma();
+			} finally {
+				eventos.close();
+			}
+			eventos = EventosConsultas.abre(directorio);
+			resultado += eventos.consumidor("prueba").getOffset() + " " + eventos.getSiguienteOffset();
+			eventos.close();
+			String esperado = "R:3:2:12345678A:26-03-2022 A:2:2:87654321B:25-03-2022 2 2";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Los cambios confirmados quedan en el registro de eventos");
+			}else {
+				System.out.println("MAL: El registro de eventos no es correcto");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con el registro de eventos.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos generador de datos
+		
+		//Caso 1: Con la misma semilla se generan los mismos CSV, byte a byte, y los datos cumplen las
+		//reglas: NIFs válidos, como mucho una consulta no anulada por médico y día y anulaciones
+		//hechas al menos dos días antes de la consulta.
+		try {
+			java.nio.file.Path[] directorios = { java.nio.file.Files.createTempDirectory("generador"),
+					java.nio.file.Files.createTempDirectory("generador") };
+			for (java.nio.file.Path d : directorios) {
+				GeneradorDatos generador = new GeneradorDatos(42, 3000);
+				generador.setConsultasPorMedico(100);
+				generador.setRatioAnulacion(0.3);
+				generador.generaCSV(d);
+			}
+			boolean iguales = true;
+			for (CargaMasiva.Tabla t : CargaMasiva.Tabla.values()) {
+				String fichero = t.getNombre() + ".csv";
+				iguales &= java.util.Arrays.equals(java.nio.file.Files.readAllBytes(directorios[0].resolve(fichero)),
+						java.nio.file.Files.readAllBytes(directorios[1].resolve(fichero)));
+			}
+			boolean nifs = true;
+			for (String t : new String[] { "cliente.csv", "medico.csv" }) {
+				for (String linea : java.nio.file.Files.readAllLines(directorios[0].resolve(t))) {
+					String[] campos = linea.split(",");
+					String nif = campos[t.equals("cliente.csv") ? 0 : 1];
+					nifs &= nif.matches("[0-9]{8}[A-Z]") && "TRWAGMYFPDXBNJZSQVHLCKE".charAt(
+							Integer.parseInt(nif.substring(0, 8)) % 23) == nif.charAt(8);
+				}
+			}
+			//id_consulta -> id_medico y día; las anuladas se quitan al leer anulacion.csv.
+			java.util.Map<String, String> activas = new java.util.HashMap<String, String>();
+			java.util.Map<String, java.time.LocalDate> dias = new java.util.HashMap<String, java.time.LocalDate>();
+			for (String linea : java.nio.file.Files.readAllLines(directorios[0].resolve("consulta.csv"))) {
+				String[] campos = linea.split(",");
+				activas.put(campos[0], campos[2] + " " + campos[1]);
+				dias.put(campos[0], java.time.LocalDate.parse(campos[1]));
+			}
+			boolean antelacion = true;
+			for (String linea : java.nio.file.Files.readAllLines(directorios[0].resolve("anulacion.csv"))) {
+				String[] campos = linea.split(",");
+				antelacion &= !java.time.LocalDate.parse(campos[2]).isAfter(dias.get(campos[1]).minusDays(2));
+				activas.remove(campos[1]);
+			}
+			boolean unaPorDia = new java.util.HashSet<String>(activas.values()).size() == activas.size();
+			String resultado = iguales + " " + nifs + " " + unaPorDia + " " + antelacion + " "
+					+ (activas.size() < dias.size());
+			String esperado = "true true true true true";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: El generador es reproducible y cumple las reglas de las consultas");
+			}else {
+				System.out.println("MAL: El generador de datos no es correcto");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (Exception e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		}
+		
+		//Casos carga masiva
+		
+		//Caso 1: Se cargan unos CSV pequeños en paralelo: la fila con un médico inexistente se rechaza,
+		//se cuentan las filas de cada tabla y se recalcula MEDICO.consultas.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			java.nio.file.Path directorio = java.nio.file.Files.createTempDirectory("carga");
+			java.nio.file.Files.write(directorio.resolve("cliente.csv"), java.util.Arrays.asList(
+					"11111111C,Luis,Perez,Gil,C/Mayor n1", "22222222D,Eva,Lopez,Sanz,"));
+			java.nio.file.Files.write(directorio.resolve("medico.csv"), java.util.Arrays.asList(
+					"10,333333C,Pedro,Ruiz,Diaz,Pediatria"));
+			java.nio.file.Files.write(directorio.resolve("consulta.csv"), java.util.Arrays.asList(
+					"10,2022-05-02,10,11111111C", "11,2022-05-03,10,22222222D", "12,2022-05-04,99,11111111C"));
+			java.nio.file.Files.write(directorio.resolve("anulacion.csv"), java.util.Arrays.asList(
+					"10,11,2022-05-01,Viaje"));
+			
+			String resultado = "";
+			for (CargaMasiva.Resultado r : CargaMasiva.cargaDirectorio(directorio, 2)) {
+				resultado += r.getCargadas() + "/" + r.getRechazadas() + " ";
+			}
+			Statement st = conn.createStatement();
+			ResultSet rs = null;
+			try {
+				rs = st.executeQuery("SELECT (SELECT COUNT(*) FROM cliente)||' '||(SELECT COUNT(*) FROM medico)"+
+						"||' '||(SELECT COUNT(*) FROM consulta)||' '||(SELECT COUNT(*) FROM anulacion)"+
+						"||' '||(SELECT consultas FROM medico WHERE id_medico=10) FROM dual");
+				rs.next();
+				resultado += rs.getString(1);
+			} finally {
+				if (rs!=null) rs.close();
+				st.close();
+			}
+			String esperado = "2/0 1/0 2/1 1/0 5 3 4 2 1";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: La carga masiva carga los CSV y rechaza las filas incorrectas");
+			}else {
+				System.out.println("MAL: La carga masiva no es correcta");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con los ficheros de la carga.");
+			logger.error(e.getMessage());
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos instantánea
+
+		//Caso 1: Se restaura una instantánea sobre datos distintos: quedan las filas exportadas
+		//y las secuencias siguen después de las de la base de datos exportada.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			reservar_consulta("12345678A", "8766788Y", format.parse("26-03-2022"));
+			java.nio.file.Path directorio = java.nio.file.Files.createTempDirectory("instantanea");
+			Instantanea.exporta(directorio);
+			cll_reinicia.execute();
+			Instantanea.restaura(directorio, 2);
+			reservar_consulta("78677433R", "222222B", format.parse("27-03-2022"));
+			
+			String resultado = "";
+			Statement st = conn.createStatement();
+			ResultSet rs = st.executeQuery("SELECT id_consulta||':'||NIF FROM consulta ORDER BY id_consulta");
+			while (rs.next()) {
+				resultado += rs.getString(1) + " ";
+			}
+			rs.close();
+			rs = st.executeQuery("SELECT NIF||':'||consultas FROM medico ORDER BY NIF");
+			while (rs.next()) {
+				resultado += rs.getString(1) + " ";
+			}
+			rs.close();
+			rs = st.executeQuery("SELECT id_anulacion||':'||id_consulta FROM anulacion");
+			while (rs.next()) {
+				resultado += rs.getString(1);
+			}
+			rs.close();
+			st.close();
+			String esperado = "1:12345678A 2:87654321B 3:12345678A 5:78677433R 222222B:1 8766788Y:2 1:1";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: La instantánea restaura las tablas y las secuencias");
+			}else {
+				System.out.println("MAL: La restauración de la instantánea no es correcta");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con la instantánea.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+
+		//Caso 2: Se exporta y se restaura sobre los mismos datos: todas las filas de todas las
+		//tablas quedan igual, también las archivadas.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			reservar_consulta("78677433R", "8766788Y", format.parse("26-03-2022"));
+			anular_consulta("78677433R", "8766788Y", format.parse("26-03-2022"), format.parse("20-03-2022"), "Viaje");
+			new Archivador().setHorizonte(format.parse("01-01-2023")).setPausaMs(0).archiva();
+			String antes = filasInstantanea(conn);
+			java.nio.file.Path directorio = java.nio.file.Files.createTempDirectory("instantanea");
+			Instantanea.exporta(directorio);
+			Instantanea.restaura(directorio, 2);
+			String despues = filasInstantanea(conn);
+			if (despues.equals(antes) && antes.contains("consulta_hist: ")) {
+				System.out.println("OK: La instantánea exportada y restaurada conserva todas las filas");
+			}else {
+				System.out.println("MAL: La instantánea restaurada no conserva las filas exportadas");
+				System.out.println("Se obtiene...*" + despues + "*");
+				System.out.println("Y deberia ser*" + antes + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con la instantánea.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+
+		//Casos informes
+		
+		//Caso 1: Los informes cuentan consultas, anulaciones y antelación por médico y por mes,
+		//y la segunda actualización solo lee las filas nuevas.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			Informes informes = Informes.getInstance();
+			informes.invalida();
+			StringBuilder resultado = new StringBuilder();
+			for (Informes.Linea l : informes.actualiza().getPorMedico()) {
+				resultado.append(l.getClave()).append(":").append(l.getConsultas()).append(":")
+						.append(l.getAnuladas()).append(":").append(l.getAntelacionMedia()).append(" ");
+			}
+			reservar_consulta("12345678A", "8766788Y", format.parse("26-03-2022"));
+			anular_consulta("87654321B", "8766788Y", format.parse("25-03-2022"), format.parse("20-03-2022"), "Prueba");
+			Informes.Informe informe = informes.actualiza();
+			resultado.append(informe.isIncremental());
+			for (Informes.Linea l : informe.getPorMedico()) {
+				resultado.append(" ").append(l.getClave()).append(":").append(l.getConsultas()).append(":")
+						.append(l.getAnuladas()).append(":").append(l.getAntelacionMedia());
+			}
+			for (Informes.Linea l : informe.getPorMes()) {
+				resultado.append(" ").append(l.getClave()).append(":").append(l.getConsultas()).append(":")
+						.append(l.getAnuladas());
+			}
+			String esperado = "222222B:1:1:28.0 8766788Y:1:0:0.0 true 222222B:1:1:28.0 8766788Y:2:1:5.0"
+					+ " 2022-03:2:1 2023-03:1:1";
+			if (resultado.toString().equals(esperado)) {
+				System.out.println("OK: Los informes se calculan y se actualizan con las filas nuevas");
+			}else {
+				System.out.println("MAL: Los informes no son correctos");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos servicio HTTP
+		
+		//Caso 1: Se reserva por HTTP, la misma reserva devuelve 409 con el código de la excepción,
+		//el historial llega en JSON y un médico inexistente da 404.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			String resultado = "";
+			try (ServicioHttp servicio = ServicioHttp.arranca(0)) {
+				java.net.http.HttpClient cliente = java.net.http.HttpClient.newHttpClient();
+				String url = "http://127.0.0.1:" + servicio.getPuerto();
+				java.net.http.HttpRequest reserva = java.net.http.HttpRequest.newBuilder(
+						java.net.URI.create(url + "/consultas"))
+						.header("Content-Type", "application/x-www-form-urlencoded")
+						.POST(java.net.http.HttpRequest.BodyPublishers.ofString(
+								"cliente=12345678A&medico=8766788Y&fecha=26-03-2022")).build();
+				for (int i = 0; i < 2; i++) {
+					java.net.http.HttpResponse<String> r = cliente.send(reserva,
+							java.net.http.HttpResponse.BodyHandlers.ofString());
+					resultado += r.statusCode() + " ";
+				}
+				resultado += cliente.send(java.net.http.HttpRequest.newBuilder(
+						java.net.URI.create(url + "/medicos/8766788Y/consultas")).build(),
+						java.net.http.HttpResponse.BodyHandlers.ofString()).body() + " ";
+				resultado += cliente.send(java.net.http.HttpRequest.newBuilder(
+						java.net.URI.create(url + "/medicos/99999999Z/consultas")).build(),
+						java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode();
+			}
+			String esperado = "201 409 [{\"idConsulta\":2,\"fecha\":\"2022-03-25\",\"idMedico\":2,"
+					+ "\"nifCliente\":\"87654321B\",\"anulada\":false},{\"idConsulta\":3,\"fecha\":\"2022-03-26\","
+					+ "\"idMedico\":2,\"nifCliente\":\"12345678A\",\"anulada\":false}] 404";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: El servicio HTTP reserva, devuelve el historial y traduce los errores");
+			}else {
+				System.out.println("MAL: El servicio HTTP no responde lo esperado");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con el servicio HTTP.");
+			logger.error(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos dialecto
+		
+		//Caso 1: Cada dialecto traduce sus códigos de error; H2 también por SQLState.
+		{
+			lsi.ubu.util.exceptions.SGBDErrorUtil oracle = Dialecto.de("oracle").getErrores();
+			lsi.ubu.util.exceptions.SGBDErrorUtil h2 = Dialecto.de("h2").getErrores();
+			String resultado = oracle.translate(2291) + " " + h2.translate(23506) + " "
+					+ h2.checkExceptionToCode(new SQLException("Duplicada", "23505", 0), SGBDError.PK_VIOLATED) + " "
+					+ h2.translate(2291) + " " + Dialecto.actual().getErrores().translate(-1);
+			String esperado = "FK_VIOLATED FK_VIOLATED true UNKNOWN UNKNOWN";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Los dialectos traducen los errores de su SGBD");
+			}else {
+				System.out.println("MAL: La traducción de errores de los dialectos no es correcta");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		}
+		
+		//Casos reintentos
+		
+		//Caso 1: Los interbloqueos se repiten hasta que salen bien; los errores de la aplicación
+		//y los no transitorios se lanzan en el primer intento.
+		{
+			lsi.ubu.util.exceptions.SGBDErrorUtil oracle = Dialecto.de("oracle").getErrores();
+			Reintentos r = new Reintentos(3, 0, 0, 1);
+			final int[] intentos = new int[3];
+			String resultado = oracle.translate(60) + " " + oracle.isTransient(new SQLException("Interbloqueo", "61000", 60))
+					+ " " + oracle.isTransient(new SQLException("Clave ajena", "23000", 2291));
+			try {
+				resultado += " " + r.ejecuta("prueba", Plazo.ILIMITADO, () -> {
+					if (++intentos[0] < 3)
+						throw new SQLException("Interbloqueo", "40001", 60);
+					return "hecha";
+				});
+				r.ejecuta("prueba", Plazo.ILIMITADO, () -> {
+					intentos[1]++;
+					throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
+				});
+			} catch (SQLException e) {
+				resultado += " " + e.getErrorCode();
+			}
+			try {
+				r.ejecuta("prueba", Plazo.ILIMITADO, () -> {
+					intentos[2]++;
+					throw new SQLException("Clave ajena", "23000", 2291);
+				});
+			} catch (SQLException e) {
+				resultado += " " + e.getErrorCode();
+			}
+			resultado += " " + intentos[0] + ":" + intentos[1] + ":" + intentos[2] + " " + r.getReintentos()
+					+ " " + r.getRecuperadas();
+			String esperado = "DEADLOCK true false hecha " + GestionMedicosException.MEDICO_OCUPADO + " 2291 3:1:1 2 1";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Solo se reintentan los errores transitorios");
+			}else {
+				System.out.println("MAL: Los reintentos no son correctos");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		}
+		
+		//Caso 2: Una conexión perdida antes del commit se reintenta; después del commit no, porque
+		//no se sabe si la transacción se ha confirmado.
+		{
+			Reintentos r = new Reintentos(3, 0, 0, 1);
+			final int[] intentos = new int[2];
+			final SQLException perdida = new SQLException("Conexión perdida", "08006", 17002);
+			String resultado = conexionPerdida(perdida) + " " + conexionPerdida(new SQLException("Interbloqueo", "40001", 60));
+			try {
+				resultado += " " + r.ejecuta("prueba", Plazo.ILIMITADO, () -> {
+					if (++intentos[0] < 2)
+						throw perdida;
+					return "hecha";
+				});
+				r.ejecuta("prueba", Plazo.ILIMITADO, () -> {
+					intentos[1]++;
+					throw commitIncierto(perdida);
+				});
+			} catch (SQLException e) {
+				resultado += " " + (e.getCause() == perdida);
+			}
+			resultado += " " + intentos[0] + ":" + intentos[1];
+			String esperado = "true false hecha true 2:1";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Una conexión perdida en el commit no se reintenta");
+			}else {
+				System.out.println("MAL: Se reintenta una transacción que puede estar confirmada");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		}
+		
+		//Caso 3: Si se pierde la conexión en el commit de reprogramar_consulta, la reprogramación
+		//no se repite aunque sí se haya confirmado.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			final SQLException perdida = new SQLException("Conexión perdida", "08006", 17002);
+			final int[] commits = new int[1];
+			//Pool de pruebas: el primer commit se confirma y después pierde la conexión.
+			final PoolDeConexiones original = PoolDeConexiones.getInstance();
+			javax.sql.DataSource fallo = (javax.sql.DataSource) java.lang.reflect.Proxy.newProxyInstance(
+					javax.sql.DataSource.class.getClassLoader(), new Class<?>[] { javax.sql.DataSource.class },
+					(p, metodo, args) -> {
+						if (!metodo.getName().equals("getConnection") || args != null)
+							throw new UnsupportedOperationException(metodo.getName());
+						final Connection real = original.getConnection();
+						return java.lang.reflect.Proxy.newProxyInstance(Connection.class.getClassLoader(),
+								new Class<?>[] { Connection.class }, (c, m, a) -> {
+									try {
+										Object r = m.invoke(real, a);
+										if (m.getName().equals("commit") && commits[0]++ == 0)
+											throw perdida;
+										return r;
+									} catch (java.lang.reflect.InvocationTargetException e) {
+										throw e.getCause();
+									}
+								});
+					});
+			String resultado;
+			PoolDeConexiones.registra(original.getNombre(), fallo);
+			try {
+				reprogramar_consulta("87654321B","8766788Y",format.parse("25-03-2022"),
+						format.parse("30-03-2022"),format.parse("20-03-2022"),"Cambio de fecha");
+				resultado = "sin error";
+			} catch (SQLException e) {
+				resultado = String.valueOf(e.getCause() == perdida);
+			} finally {
+				PoolDeConexiones.registra(original);
+			}
+			Statement st = null;
+			ResultSet rs = null;
+			try {
+				st = conn.createStatement();
+				rs = st.executeQuery("SELECT to_char(fecha_consulta, 'DD-MM-YYYY') FROM consulta c WHERE id_medico=2"
+						+ " AND NOT EXISTS (SELECT * FROM anulacion a WHERE a.id_consulta=c.id_consulta)");
+				resultado += " " + commits[0];
+				while (rs.next())
+					resultado += " " + rs.getString(1);
+			} finally {
+				if (rs!=null) rs.close();
+				if (st!=null) st.close();
+			}
+			String esperado = "true 1 30-03-2022";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Una reprogramación con la conexión perdida en el commit no se reintenta");
+			}else {
+				System.out.println("MAL: Se reintenta una reprogramación que puede estar confirmada");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos arranque
+		
+		//Caso 1: Las operaciones esperan a que termine el arranque, que prepara en su conexión las
+		//mismas sentencias, y de la misma forma, que usan reservar_consulta, anular_consulta y
+		//historial_medico.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			final java.util.Set<String> preparadas = java.util.concurrent.ConcurrentHashMap.newKeySet();
+			final java.util.Set<String> usadas = java.util.concurrent.ConcurrentHashMap.newKeySet();
+			final java.util.concurrent.CountDownLatch pedida = new java.util.concurrent.CountDownLatch(1);
+			final java.util.concurrent.CountDownLatch suelta = new java.util.concurrent.CountDownLatch(1);
+			final java.util.concurrent.atomic.AtomicBoolean primera = new java.util.concurrent.atomic.AtomicBoolean(true);
+			final Thread principal = Thread.currentThread();
+			final Thread[] operacion = new Thread[1];
+			//Pool de pruebas: la primera conexión, la del arranque, espera a que se suelte, y se
+			//anotan las sentencias que prepara cada hilo.
+			final PoolDeConexiones original = PoolDeConexiones.getInstance();
+			javax.sql.DataSource anota = (javax.sql.DataSource) java.lang.reflect.Proxy.newProxyInstance(
+					javax.sql.DataSource.class.getClassLoader(), new Class<?>[] { javax.sql.DataSource.class },
+					(p, metodo, args) -> {
+						if (!metodo.getName().equals("getConnection") || args != null)
+							throw new UnsupportedOperationException(metodo.getName());
+						if (primera.getAndSet(false)) {
+							pedida.countDown();
+							suelta.await();
+						}
+						final Connection real = original.getConnection();
+						return java.lang.reflect.Proxy.newProxyInstance(Connection.class.getClassLoader(),
+								new Class<?>[] { Connection.class }, (c, m, a) -> {
+									if (m.getName().equals("prepareStatement")) {
+										Thread t = Thread.currentThread();
+										(t == principal || t == operacion[0] ? usadas : preparadas)
+												.add(a[0] + (a.length > 1 ? " (claves)" : ""));
+									}
+									try {
+										return m.invoke(real, a);
+									} catch (java.lang.reflect.InvocationTargetException e) {
+										throw e.getCause();
+									}
+								});
+					});
+			final Arranque.Informe[] informe = new Arranque.Informe[1];
+			final SQLException[] errores = new SQLException[2];
+			Thread arranque = new Thread(() -> {
+				try {
+					informe[0] = Arranque.arranca(false);
+				} catch (SQLException e) {
+					errores[0] = e;
+				}
+			});
+			operacion[0] = new Thread(() -> {
+				try {
+					reservar_consulta("12345678A","8766788Y",format.parse("28-03-2022"));
+				} catch (SQLException e) {
+					errores[1] = e;
+				} catch (ParseException e) {
+					logger.error("Error en el test al parsear la fecha desde cadena.");
+				}
+			});
+			String resultado;
+			PoolDeConexiones.registra(original.getNombre(), anota);
+			try {
+				arranque.start();
+				pedida.await();
+				operacion[0].start();
+				operacion[0].join(200);
+				resultado = operacion[0].isAlive() + " " + Arranque.isListo();
+				suelta.countDown();
+				arranque.join();
+				operacion[0].join();
+				anular_consulta("12345678A","8766788Y",format.parse("28-03-2022"),format.parse("20-03-2022"),"Prueba");
+				historial_medico("8766788Y");
+				historial_medico("8766788Y", true, Plazo.porDefecto());
+			} finally {
+				suelta.countDown();
+				PoolDeConexiones.registra(original);
+			}
+			usadas.removeAll(preparadas);
+			resultado += " " + Arranque.isListo() + " " + (errores[0] == null && errores[1] == null)
+					+ " " + (informe[0] != null && informe[0].getSentencias() == informe[0].getConexiones() * Arranque.SENTENCIAS.size()
+							&& preparadas.size() == Arranque.SENTENCIAS.size()) + " " + usadas;
+			String esperado = "true false true true true []";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: El arranque prepara las sentencias de las operaciones, que lo esperan");
+			}else {
+				System.out.println("MAL: El arranque no es correcto");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos exportación de historiales
+		
+		//Caso 1: Se exporta una partición por médico con las columnas y el orden de consulta_medico,
+		//también en un día con una consulta anulada y otra reservada; al repetir la exportación se
+		//saltan las particiones ya completas.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			reservar_consulta("87654321B","222222B",format.parse("24-03-2023"));
+			java.nio.file.Path directorio = java.nio.file.Files.createTempDirectory("historiales");
+			ExportaHistoriales.Resultado r1 = ExportaHistoriales.exporta(directorio, 2, 2, false);
+			ExportaHistoriales.Resultado r2 = ExportaHistoriales.exporta(directorio, 2, 2, false);
+			
+			String resultado = r1.getParticiones() + " " + r1.getFilas() + " " + r2.getSaltadas() + " " + r2.getFilas();
+			for (String fichero : new String[] { "historial_1-1.csv", "historial_2-2.csv" }) {
+				List<String> lineas = java.nio.file.Files.readAllLines(directorio.resolve(fichero));
+				resultado += " " + String.join("|", lineas.subList(1, lineas.size()));
+			}
+			String esperado = "2 3 2 0 3,2023-03-24,1,87654321B,No|1,2023-03-24,1,12345678A,Sí"
+					+ " 2,2022-03-25,2,87654321B,No";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: Se exportan los historiales por particiones");
+			}else {
+				System.out.println("MAL: La exportación de historiales no es correcta");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: Ha surgido un error con los ficheros exportados.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Casos bus de invalidación
+		
+		//Caso 1: Con el bus de tabla cada reserva deja su cambio en cambio_consulta, y los cambios
+		//de otros nodos invalidan la cache.
+		try {
+			conn = pool.getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			CacheConsultas cache = CacheConsultas.getInstance();
+			BusInvalidacionTabla bus = new BusInvalidacionTabla(cache, 1000, 20);
+			Statement st = null;
+			ResultSet rs = null;
+			try {
+				reservar_consulta("12345678A", "222222B", format.parse("26-03-2022"));
+				long version = cache.version(2);
+				st = conn.createStatement();
+				st.executeUpdate("INSERT INTO cambio_consulta VALUES (seq_cambio.nextval, 2, 'otro nodo', "
+						+ System.currentTimeMillis() + ")");
+				conn.commit();
+				long limite = System.currentTimeMillis() + 2000;
+				while (cache.version(2) == version && System.currentTimeMillis() < limite)
+					Thread.sleep(20);
+				rs = st.executeQuery("SELECT COUNT(*) FROM cambio_consulta WHERE id_medico=1 AND nodo='"
+						+ bus.getNodo() + "'");
+				rs.next();
+				String resultado = rs.getInt(1) + " " + (cache.version(2) > version) + " " + bus.getInvalidaciones();
+				String esperado = "1 true 1";
+				if (resultado.equals(esperado)) {
+					System.out.println("OK: El bus de tabla registra los cambios e invalida los de otros nodos");
+				}else {
+					System.out.println("MAL: El bus de tabla no es correcto");
+					System.out.println("Se obtiene...*" + resultado + "*");
+					System.out.println("Y deberia ser*" + esperado + "*");
+				}
+			} finally {
+				if (rs!=null) rs.close();
+				if (st!=null) st.close();
+				bus.close();
+			}
+		} catch (SQLException e) {
+			System.out.println("MAL: Ha surgido un error.");
+			logger.error(e.getMessage());
+		} catch (ParseException e) {
+			logger.error("Error en el test al parsear la fecha desde cadena.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (cll_reinicia!=null) cll_reinicia.close();
+			if (conn!=null) conn.close();
+		}
+		
+		//Caso 2: Si un nodo deja de dar señales, la cache deja de servir al pasar la ventana,
+		//y vuelve a servir al cerrar el bus.
+		try {
+			CacheConsultas cache = CacheConsultas.getInstance();
+			java.net.DatagramSocket mudo = new java.net.DatagramSocket(
+					new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0));
+			List<FilaConsulta> vacio = Collections.emptyList();
+			cache.guarda("99999999Z", -1, cache.version(-1), vacio);
+			BusInvalidacionSocket bus = new BusInvalidacionSocket(cache, 0,
+					Collections.singletonList((java.net.InetSocketAddress) mudo.getLocalSocketAddress()), 200, 20);
+			String resultado = (cache.busca("99999999Z") != null) + " ";
+			Thread.sleep(400);
+			resultado += (cache.busca("99999999Z") != null) + " ";
+			bus.close();
+			mudo.close();
+			resultado += cache.busca("99999999Z") != null;
+			String esperado = "true false true";
+			if (resultado.equals(esperado)) {
+				System.out.println("OK: La cache deja de servir al superar el desfase del bus");
+			}else {
+				System.out.println("MAL: El límite de desfase de la cache no es correcto");
+				System.out.println("Se obtiene...*" + resultado + "*");
+				System.out.println("Y deberia ser*" + esperado + "*");
+			}
+		} catch (java.net.SocketException e) {
+			System.out.println("MAL: Ha surgido un error con el socket del bus.");
+			logger.error(e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		//Casos motor en memoria: se repiten los casos de las operaciones con el motor activo.
+		MotorMemoria m = null;
+		try {
+			m = MotorMemoria.arranca(java.nio.file.Files.createTempDirectory("motor"));
+			setMotor(m);
+			casosOperaciones(pool);
+			
+			//Caso 1: Un cambio que las tablas rechazan se aparta y los demás se copian.
+			Statement st = null;
+			ResultSet rs = null;
+			try {
+				conn = pool.getConnection();
+				cll_reinicia = reinicia(conn);
+				//El motor aún tiene el cliente, pero la consulta no se podrá insertar.
+				st = conn.createStatement();
+				st.executeUpdate("DELETE FROM cliente WHERE NIF='78677433R'");
+				conn.commit();
+				reservar_consulta("78677433R","222222B",format.parse("26-03-2022"));
+				reservar_consulta("12345678A","8766788Y",format.parse("27-03-2022"));
+				boolean copiados = m.sincroniza(10000);
+				rs = st.executeQuery("SELECT COUNT(*) FROM consulta WHERE NIF='12345678A'");
+				rs.next();
+				String resultado = copiados + " " + m.getApartados() + " " + rs.getInt(1);
+				String esperado = "true 1 2";
+				if (resultado.equals(esperado)) {
+					System.out.println("OK: El motor aparta los cambios que no se pueden copiar");
+				}else {
+					System.out.println("MAL: El motor no aparta bien los cambios que no se pueden copiar");
+					System.out.println("Se obtiene...*" + resultado + "*");
+					System.out.println("Y deberia ser*" + esperado + "*");
+				}
+			} catch (SQLException | InterruptedException e) {
+				System.out.println("MAL: Ha surgido un error.");
+				logger.error(e.getMessage());
+			} catch (ParseException e) {
+				logger.error("Error en el test al parsear la fecha desde cadena.");
+			} finally {
+				if (rs!=null) rs.close();
+				if (st!=null) st.close();
+				if (cll_reinicia!=null) cll_reinicia.close();
+				if (conn!=null) conn.close();
+			}
+		} catch (java.io.IOException e) {
+			System.out.println("MAL: No se puede arrancar el motor en memoria.");
+			logger.error(e.getMessage());
+		} finally {
+			setMotor(null);
+			if (m!=null) {
+				try {
+					m.close();
+				} catch (java.io.IOException e) {
+					logger.error(e.getMessage());
+				}
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.EnrutadorShards;
+import lsi.ubu.util.Plazo;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Sentencias;
+
+/**
+ * GestionMedicosShards:
+ * Operaciones de GestionMedicos repartidas entre varias bases de datos.
+ *
+ * Cada medico, con sus consultas y anulaciones, vive en un solo shard, que
+ * decide EnrutadorShards a partir de su NIF; cada operacion se ejecuta
+ * entera en ese shard con su pool. Los clientes se replican en todos los
+ * shards (ver alta_cliente) para que la clave ajena de CONSULTA se compruebe
+ * en local.
+ *
+ * Las operaciones no pasan por la cache de historiales ni avisan a los
+ * oyentes de GestionMedicos, que trabajan con los ids del pool por defecto.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class GestionMedicosShards {
+
+	private static Logger logger = LoggerFactory.getLogger(GestionMedicosShards.class);
+
+	private static final String SQL_INSERTA_CLIENTE = "INSERT INTO CLIENTE (NIF,nombre,ape1,ape2,direccion)"+
+			" VALUES (?,?,?,?,?)";
+	private static final String SQL_INSERTA_MEDICO = "INSERT INTO MEDICO"+
+			" (id_medico,NIF,nombre,ape1,ape2,especialidad,consultas) VALUES (seq_medico.nextval,?,?,?,?,?,0)";
+
+	private final EnrutadorShards enrutador;
+
+	/**
+	 * @param enrutador
+	 *            reparto de los medicos entre los shards
+	 */
+	public GestionMedicosShards(EnrutadorShards enrutador) {
+		this.enrutador = enrutador;
+	}
+
+	public EnrutadorShards getEnrutador() {
+		return enrutador;
+	}
+
+	/**
+	 * Reserva una consulta en el shard del medico.
+	 *
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede reservar
+	 */
+	public void reservar_consulta(final String m_NIF_cliente, final String m_NIF_medico,
+			final Date m_Fecha_Consulta) throws SQLException {
+		reservar_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, Plazo.porDefecto());
+	}
+
+	/**
+	 * Reserva una consulta en el shard del medico sin superar un plazo.
+	 *
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede reservar
+	 */
+	public void reservar_consulta(final String m_NIF_cliente, final String m_NIF_medico,
+			final Date m_Fecha_Consulta, Plazo plazo) throws SQLException {
+		ejecuta(enrutador.pool(m_NIF_medico), plazo,
+				s -> GestionMedicos.reserva(s, m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta));
+	}
+
+	/**
+	 * Anula una consulta en el shard del medico.
+	 *
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede anular
+	 */
+	public void anular_consulta(final String m_NIF_cliente, final String m_NIF_medico,
+			final Date m_Fecha_Consulta, final Date m_Fecha_Anulacion, final String motivo)
+			throws SQLException {
+		anular_consulta(m_NIF_cliente, m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo,
+				Plazo.porDefecto());
+	}
+
+	/**
+	 * Anula una consulta en el shard del medico sin superar un plazo.
+	 *
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede anular
+	 */
+	public void anular_consulta(final String m_NIF_cliente, final String m_NIF_medico,
+			final Date m_Fecha_Consulta, final Date m_Fecha_Anulacion, final String motivo, Plazo plazo)
+			throws SQLException {
+		ejecuta(enrutador.pool(m_NIF_medico), plazo, s -> GestionMedicos.anula(s, m_NIF_cliente,
+				m_NIF_medico, m_Fecha_Consulta, m_Fecha_Anulacion, motivo));
+	}
+
+	/**
+	 * Muestra las consultas de un medico, leidas de su shard.
+	 *
+	 * @throws SQLException si el medico no existe o hay un error con la base de datos
+	 */
+	public void consulta_medico(String m_NIF_medico) throws SQLException {
+		System.out.println(FilaConsulta.CABECERA);
+		for (FilaConsulta fila : historial_medico(m_NIF_medico, Plazo.porDefecto())) {
+			System.out.println(fila);
+		}
+	}
+
+	/**
+	 * Obtiene el historial de un medico de su shard.
+	 *
+	 * @return consultas del medico ordenadas por fecha
+	 * @throws SQLException 'medico_no_existe' si el medico no existe, o si hay
+	 *             un error con la base de datos
+	 */
+	public List<FilaConsulta> historial_medico(final String m_NIF_medico, Plazo plazo) throws SQLException {
+		final List<FilaConsulta> filas = new ArrayList<FilaConsulta>();
+		ejecuta(enrutador.pool(m_NIF_medico), plazo, s -> {
+			int num_medico = GestionMedicos.id_medico(s, m_NIF_medico);
+			PreparedStatement st_cons = s.prepara(GestionMedicos.SQL_HISTORIAL);
+			st_cons.setInt(1, num_medico);
+			ResultSet rs_cons = st_cons.executeQuery();
+			try {
+				while (rs_cons.next()) {
+					filas.add(new FilaConsulta(rs_cons.getInt(1), rs_cons.getDate(2),
+							rs_cons.getInt(3), rs_cons.getString(4), rs_cons.getString(5)));
+				}
+			} finally {
+				rs_cons.close();
+			}
+			return null;
+		});
+		return Collections.unmodifiableList(filas);
+	}
+
+	/**
+	 * Da de alta un medico en su shard.
+	 *
+	 * @throws SQLException si hay un error con la base de datos
+	 */
+	public void alta_medico(final String m_NIF_medico, final String nombre, final String ape1,
+			final String ape2, final String especialidad) throws SQLException {
+		ejecuta(enrutador.pool(m_NIF_medico), Plazo.porDefecto(), s -> {
+			PreparedStatement st_insert = s.prepara(SQL_INSERTA_MEDICO);
+			st_insert.setString(1, m_NIF_medico);
+			st_insert.setString(2, nombre);
+			st_insert.setString(3, ape1);
+			st_insert.setString(4, ape2);
+			st_insert.setString(5, especialidad);
+			st_insert.executeUpdate();
+			return null;
+		});
+	}
+
+	/**
+	 * Da de alta un cliente en todos los shards. Se inserta en todos antes de
+	 * confirmar ninguno y, si alguno falla, se deshace en todos. Si falla un
+	 * commit a mitad, el cliente queda solo en algunos shards y se puede
+	 * repetir el alta en los que falte.
+	 *
+	 * @throws SQLException si hay un error con alguna base de datos
+	 */
+	public void alta_cliente(String m_NIF_cliente, String nombre, String ape1, String ape2, String direccion)
+			throws SQLException {
+		List<Connection> conexiones = new ArrayList<Connection>();
+		List<PreparedStatement> sentencias = new ArrayList<PreparedStatement>();
+		try {
+			//Se inserta en todos los shards sin confirmar.
+			for (PoolDeConexiones pool : enrutador.getShards()) {
+				Connection con = pool.getConnection();
+				conexiones.add(con);
+				PreparedStatement st_insert = con.prepareStatement(SQL_INSERTA_CLIENTE);
+				sentencias.add(st_insert);
+				st_insert.setString(1, m_NIF_cliente);
+				st_insert.setString(2, nombre);
+				st_insert.setString(3, ape1);
+				st_insert.setString(4, ape2);
+				st_insert.setString(5, direccion);
+				st_insert.executeUpdate();
+			}
+			//Se confirma en todos.
+			for (int i = 0; i < conexiones.size(); i++) {
+				try {
+					conexiones.get(i).commit();
+				} catch (SQLException e) {
+					logger.error("Cliente {} confirmado solo en {} de {} shards", m_NIF_cliente, i,
+							conexiones.size());
+					throw e;
+				}
+			}
+		} catch (SQLException e) {
+			for (Connection con : conexiones)
+				con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			for (PreparedStatement st : sentencias)
+				st.close();
+			for (Connection con : conexiones)
+				con.close();
+		}
+	}
+
+	/**
+	 * Ejecuta una operacion en una transaccion de un shard.
+	 */
+	private static void ejecuta(PoolDeConexiones pool, Plazo plazo, CommitAgrupado.Operacion operacion)
+			throws SQLException {
+		Connection con = null;
+		Sentencias s = null;
+
+		try {
+			con = pool.getConnection(plazo);
+			s = new Sentencias(con, plazo);
+			operacion.ejecuta(s);
+			con.commit();
+		} catch (SQLException e) {
+			//Rollback con cualquier error. La conexion es null si no se ha podido obtener.
+			if (con != null) con.rollback();
+			if (e instanceof GestionMedicosException)
+				throw (GestionMedicosException) e;
+			if (GestionMedicos.agotado(e, plazo))
+				throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
+			logger.error("Shard {}: {}", pool.getNombre(), e.getMessage());
+			throw e;
+		} finally {
+			plazo.termina();
+			if (s != null) s.close();
+			if (con != null) con.close();
+		}
+	}
+}
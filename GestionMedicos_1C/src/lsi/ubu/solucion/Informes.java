@@ -0,0 +1,601 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Informes:
+ * Informes de consultas, anulaciones, antelacion de las anulaciones y
+ * ocupacion por medico, por especialidad y por mes.
+ *
+ * Las tablas CONSULTA y ANULACION se leen por rangos de clave, en una
+ * transaccion de la conexion de solo lectura del pool, a columnas de
+ * enteros (ids y dias desde la epoca). Las cuentas se agregan en paralelo
+ * con fork/join y se guardan: cada actualizacion solo lee y agrega las filas
+ * con ids posteriores a los ya leidos. Si el numero de filas no cuadra (por
+ * ejemplo porque el Archivador ha borrado consultas) se vuelve a leer todo.
+ *
+ * La antelacion es la diferencia en dias entre la consulta y su anulacion,
+ * la misma que calcula Misc.howManyDaysBetween. La ocupacion son las
+ * consultas no anuladas entre los dias en los que el medico podria pasar
+ * consulta, uno por dia, desde la primera consulta hasta la ultima.
+ *
+ * Tamaño de los rangos con la propiedad del sistema
+ * gestionmedicos.informes.trozo (100000 ids por defecto).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Informes {
+
+	private static Logger logger = LoggerFactory.getLogger(Informes.class);
+
+	private static final Informes instancia = new Informes();
+
+	/** Filas por debajo de las cuales una tarea de agregacion no se divide. */
+	private static final int UMBRAL = 16384;
+
+	private static final String SQL_CONSULTAS = "SELECT id_consulta, id_medico, fecha_consulta FROM consulta"+
+			" WHERE id_consulta > ? AND id_consulta <= ? ORDER BY id_consulta";
+	private static final String SQL_ANULACIONES = "SELECT id_consulta, fecha_anulacion FROM anulacion"+
+			" WHERE id_anulacion > ? AND id_anulacion <= ? ORDER BY id_anulacion";
+
+	private final int trozo = Integer.getInteger("gestionmedicos.informes.trozo", 100000);
+
+	/** Columnas de las consultas leidas, ordenadas por id. */
+	private int[] idConsulta = new int[1024];
+	private int[] medico = new int[1024];
+	private int[] dia = new int[1024];
+	private int[] mes = new int[1024];
+	private int consultas = 0;
+
+	/** Columnas de las anulaciones leidas: posicion de su consulta y dia. */
+	private int[] consultaAnulada = new int[1024];
+	private int[] diaAnulacion = new int[1024];
+	private int anulaciones = 0;
+	private long anulacionesLeidas = 0;
+
+	private long ultimaConsulta = 0;
+	private long ultimaAnulacion = 0;
+
+	/** Acumulados por id de medico y por mes (año * 12 + mes - 1). */
+	private Parcial porMedico = new Parcial(0);
+	private final Map<Integer, long[]> porMes = new TreeMap<Integer, long[]>();
+	private int diaMin = Integer.MAX_VALUE;
+	private int diaMax = Integer.MIN_VALUE;
+
+	private volatile Informe informe;
+
+	/**
+	 * Consultas, anulaciones y suma de antelaciones de un grupo de filas, por
+	 * posicion.
+	 */
+	private static class Parcial {
+		final long[] consultas;
+		final long[] anuladas;
+		final long[] antelacion;
+
+		Parcial(int tam) {
+			consultas = new long[tam];
+			anuladas = new long[tam];
+			antelacion = new long[tam];
+		}
+
+		Parcial suma(Parcial otro) {
+			for (int i = 0; i < otro.consultas.length; i++) {
+				consultas[i] += otro.consultas[i];
+				anuladas[i] += otro.anuladas[i];
+				antelacion[i] += otro.antelacion[i];
+			}
+			return this;
+		}
+
+		Parcial amplia(int tam) {
+			if (tam <= consultas.length)
+				return this;
+			Parcial p = new Parcial(tam);
+			return p.suma(this);
+		}
+	}
+
+	/**
+	 * Agrega un rango de consultas o de anulaciones por medico y por mes.
+	 */
+	private class Agrega extends RecursiveTask<Parcial[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final boolean deAnulaciones;
+		private final int desde;
+		private final int hasta;
+		private final int medicos;
+		private final int mesBase;
+		private final int meses;
+
+		Agrega(boolean deAnulaciones, int desde, int hasta, int medicos, int mesBase, int meses) {
+			this.deAnulaciones = deAnulaciones;
+			this.desde = desde;
+			this.hasta = hasta;
+			this.medicos = medicos;
+			this.mesBase = mesBase;
+			this.meses = meses;
+		}
+
+		@Override
+		protected Parcial[] compute() {
+			if (hasta - desde > UMBRAL) {
+				int medio = (desde + hasta) >>> 1;
+				Agrega izquierda = new Agrega(deAnulaciones, desde, medio, medicos, mesBase, meses);
+				izquierda.fork();
+				Parcial[] derecha = new Agrega(deAnulaciones, medio, hasta, medicos, mesBase, meses).compute();
+				Parcial[] p = izquierda.join();
+				p[0].suma(derecha[0]);
+				p[1].suma(derecha[1]);
+				return p;
+			}
+			Parcial pm = new Parcial(medicos);
+			Parcial pmes = new Parcial(meses);
+			for (int i = desde; i < hasta; i++) {
+				if (deAnulaciones) {
+					int c = consultaAnulada[i];
+					int antelacion = dia[c] - diaAnulacion[i];
+					pm.anuladas[medico[c]]++;
+					pm.antelacion[medico[c]] += antelacion;
+					pmes.anuladas[mes[c] - mesBase]++;
+					pmes.antelacion[mes[c] - mesBase] += antelacion;
+				} else {
+					pm.consultas[medico[i]]++;
+					pmes.consultas[mes[i] - mesBase]++;
+				}
+			}
+			return new Parcial[] {pm, pmes};
+		}
+	}
+
+	/**
+	 * Linea de un informe.
+	 */
+	public static class Linea {
+		private final String clave;
+		private final long consultas;
+		private final long anuladas;
+		private final long antelacion;
+		private final long diasPosibles;
+
+		Linea(String clave, long consultas, long anuladas, long antelacion, long diasPosibles) {
+			this.clave = clave;
+			this.consultas = consultas;
+			this.anuladas = anuladas;
+			this.antelacion = antelacion;
+			this.diasPosibles = diasPosibles;
+		}
+
+		/** @return NIF del medico, especialidad o mes (aaaa-mm) */
+		public String getClave() {
+			return clave;
+		}
+
+		public long getConsultas() {
+			return consultas;
+		}
+
+		public long getAnuladas() {
+			return anuladas;
+		}
+
+		/** @return fraccion de consultas anuladas */
+		public double getTasaAnulacion() {
+			return consultas == 0 ? 0 : (double) anuladas / consultas;
+		}
+
+		/** @return antelacion media de las anulaciones en dias */
+		public double getAntelacionMedia() {
+			return anuladas == 0 ? 0 : (double) antelacion / anuladas;
+		}
+
+		/** @return consultas no anuladas entre los dias posibles */
+		public double getOcupacion() {
+			return diasPosibles == 0 ? 0 : (double) (consultas - anuladas) / diasPosibles;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-20s %8d consultas %8d anuladas (%5.1f%%) antelacion %6.1f dias ocupacion %5.1f%%",
+					clave, consultas, anuladas, 100 * getTasaAnulacion(), getAntelacionMedia(), 100 * getOcupacion());
+		}
+	}
+
+	/**
+	 * Informes calculados en una actualizacion.
+	 */
+	public static class Informe {
+		private final List<Linea> porMedico;
+		private final List<Linea> porEspecialidad;
+		private final List<Linea> porMes;
+		private final boolean incremental;
+		private final long filasLeidas;
+		private final long bytes;
+		private final long nanos;
+
+		Informe(List<Linea> porMedico, List<Linea> porEspecialidad, List<Linea> porMes, boolean incremental,
+				long filasLeidas, long bytes, long nanos) {
+			this.porMedico = Collections.unmodifiableList(porMedico);
+			this.porEspecialidad = Collections.unmodifiableList(porEspecialidad);
+			this.porMes = Collections.unmodifiableList(porMes);
+			this.incremental = incremental;
+			this.filasLeidas = filasLeidas;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		/** @return lineas por NIF de medico */
+		public List<Linea> getPorMedico() {
+			return porMedico;
+		}
+
+		/** @return lineas por especialidad */
+		public List<Linea> getPorEspecialidad() {
+			return porEspecialidad;
+		}
+
+		/** @return lineas por mes de la consulta */
+		public List<Linea> getPorMes() {
+			return porMes;
+		}
+
+		/** @return true si solo se han leido las filas nuevas */
+		public boolean isIncremental() {
+			return incremental;
+		}
+
+		/** @return filas de consulta y anulacion leidas en la actualizacion */
+		public long getFilasLeidas() {
+			return filasLeidas;
+		}
+
+		/** @return memoria de las columnas y acumulados guardados */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** @return duracion de la actualizacion */
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("POR MEDICO\n");
+			for (Linea l : porMedico)
+				sb.append(l).append('\n');
+			sb.append("POR ESPECIALIDAD\n");
+			for (Linea l : porEspecialidad)
+				sb.append(l).append('\n');
+			sb.append("POR MES\n");
+			for (Linea l : porMes)
+				sb.append(l).append('\n');
+			sb.append(String.format("%s: %d filas leidas en %.3f s, %d KB en memoria",
+					incremental ? "Incremental" : "Completo", filasLeidas, nanos / 1e9, bytes / 1024));
+			return sb.toString();
+		}
+	}
+
+	private Informes() {
+	}
+
+	/**
+	 * @return la instancia de los informes
+	 */
+	public static Informes getInstance() {
+		return instancia;
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            numero de actualizaciones (2 por defecto), para ver el coste
+	 *            de las incrementales
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static void main(String[] args) throws SQLException {
+		int veces = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		Informe informe = null;
+		for (int i = 0; i < veces; i++) {
+			informe = getInstance().actualiza();
+			System.out.println(String.format("Actualizacion %d %s: %d filas, %.3f s, %d KB", i + 1,
+					informe.isIncremental() ? "incremental" : "completa", informe.getFilasLeidas(),
+					informe.getNanos() / 1e9, informe.getBytes() / 1024));
+		}
+		System.out.println(informe);
+		Runtime rt = Runtime.getRuntime();
+		System.out.println(String.format("Memoria usada por la JVM: %d MB", (rt.totalMemory() - rt.freeMemory()) >> 20));
+	}
+
+	/**
+	 * @return los ultimos informes calculados, sin consultar la base de
+	 *         datos, o null si no se han calculado
+	 */
+	public Informe getInforme() {
+		return informe;
+	}
+
+	/**
+	 * Descarta lo leido: la siguiente actualizacion lo vuelve a leer todo.
+	 */
+	public synchronized void invalida() {
+		reinicia();
+		informe = null;
+	}
+
+	/**
+	 * Lee las filas nuevas, o todas si es la primera vez o no cuadran, y
+	 * recalcula los informes.
+	 *
+	 * @return los informes actualizados
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public synchronized Informe actualiza() throws SQLException {
+		long inicio = System.nanoTime();
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+
+		try {
+			con = pool.getConexionSoloLectura();
+			st = con.createStatement();
+			//Todo se lee en la misma transaccion de solo lectura: las cuentas cuadran con las filas.
+			List<String> nifs = new ArrayList<String>();
+			List<String> especialidades = new ArrayList<String>();
+			rs = st.executeQuery("SELECT id_medico, NIF, especialidad FROM medico");
+			while (rs.next()) {
+				int id = rs.getInt(1);
+				while (nifs.size() <= id) {
+					nifs.add(null);
+					especialidades.add(null);
+				}
+				nifs.set(id, rs.getString(2));
+				especialidades.set(id, rs.getString(3));
+			}
+			rs.close();
+			rs = st.executeQuery("SELECT count(*), nvl(max(id_consulta), 0) FROM consulta");
+			rs.next();
+			long totalConsultas = rs.getLong(1);
+			long maxConsulta = rs.getLong(2);
+			rs.close();
+			rs = st.executeQuery("SELECT count(*), nvl(max(id_anulacion), 0) FROM anulacion");
+			rs.next();
+			long totalAnulaciones = rs.getLong(1);
+			long maxAnulacion = rs.getLong(2);
+			rs.close();
+			rs = null;
+
+			boolean incremental = informe != null;
+			int desdeConsulta = consultas;
+			int desdeAnulacion = anulaciones;
+			long leidas = leeConsultas(con, maxConsulta) + leeAnulaciones(con, maxAnulacion);
+			if (consultas != totalConsultas || anulacionesLeidas != totalAnulaciones) {
+				if (incremental)
+					logger.info("Informes: las filas no cuadran con lo leido antes, se vuelven a leer todas");
+				reinicia();
+				incremental = false;
+				desdeConsulta = 0;
+				desdeAnulacion = 0;
+				leidas = leeConsultas(con, maxConsulta) + leeAnulaciones(con, maxAnulacion);
+			}
+			con.commit();
+
+			agrega(desdeConsulta, desdeAnulacion, nifs.size());
+			informe = construye(nifs, especialidades, incremental, leidas, System.nanoTime() - inicio);
+			logger.info("Informes actualizados: {} filas leidas en {} ms", leidas,
+					(System.nanoTime() - inicio) / 1000000);
+			return informe;
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			//Lo leido a medias no se puede completar: la siguiente vez se lee todo.
+			invalida();
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	private void reinicia() {
+		consultas = 0;
+		anulaciones = 0;
+		anulacionesLeidas = 0;
+		ultimaConsulta = 0;
+		ultimaAnulacion = 0;
+		porMedico = new Parcial(0);
+		porMes.clear();
+		diaMin = Integer.MAX_VALUE;
+		diaMax = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Lee por rangos de id las consultas posteriores a la ultima leida.
+	 *
+	 * @return filas leidas
+	 */
+	private long leeConsultas(Connection con, long hasta) throws SQLException {
+		PreparedStatement st_select = null;
+		ResultSet rs = null;
+		long leidas = 0;
+		try {
+			st_select = con.prepareStatement(SQL_CONSULTAS);
+			st_select.setFetchSize(5000);
+			for (long desde = ultimaConsulta; desde < hasta; desde += trozo) {
+				st_select.setLong(1, desde);
+				st_select.setLong(2, Math.min(desde + trozo, hasta));
+				rs = st_select.executeQuery();
+				while (rs.next()) {
+					if (consultas == idConsulta.length) {
+						int tam = consultas * 2;
+						idConsulta = Arrays.copyOf(idConsulta, tam);
+						medico = Arrays.copyOf(medico, tam);
+						dia = Arrays.copyOf(dia, tam);
+						mes = Arrays.copyOf(mes, tam);
+					}
+					int d = Misc.diaEpoca(rs.getDate(3));
+					LocalDate fecha = LocalDate.ofEpochDay(d);
+					idConsulta[consultas] = rs.getInt(1);
+					medico[consultas] = rs.getInt(2);
+					dia[consultas] = d;
+					mes[consultas] = fecha.getYear() * 12 + fecha.getMonthValue() - 1;
+					diaMin = Math.min(diaMin, d);
+					diaMax = Math.max(diaMax, d);
+					consultas++;
+					leidas++;
+				}
+				rs.close();
+				rs = null;
+			}
+			ultimaConsulta = Math.max(ultimaConsulta, hasta);
+			return leidas;
+		} finally {
+			if (rs != null) rs.close();
+			if (st_select != null) st_select.close();
+		}
+	}
+
+	/**
+	 * Lee por rangos de id las anulaciones posteriores a la ultima leida y
+	 * las enlaza con su consulta.
+	 *
+	 * @return filas leidas
+	 */
+	private long leeAnulaciones(Connection con, long hasta) throws SQLException {
+		PreparedStatement st_select = null;
+		ResultSet rs = null;
+		long leidas = 0;
+		try {
+			st_select = con.prepareStatement(SQL_ANULACIONES);
+			st_select.setFetchSize(5000);
+			for (long desde = ultimaAnulacion; desde < hasta; desde += trozo) {
+				st_select.setLong(1, desde);
+				st_select.setLong(2, Math.min(desde + trozo, hasta));
+				rs = st_select.executeQuery();
+				while (rs.next()) {
+					leidas++;
+					int c = Arrays.binarySearch(idConsulta, 0, consultas, rs.getInt(1));
+					if (c < 0) {
+						logger.warn("Informes: anulacion de la consulta {}, que no se ha leido", rs.getInt(1));
+						continue;
+					}
+					if (anulaciones == consultaAnulada.length) {
+						consultaAnulada = Arrays.copyOf(consultaAnulada, anulaciones * 2);
+						diaAnulacion = Arrays.copyOf(diaAnulacion, anulaciones * 2);
+					}
+					consultaAnulada[anulaciones] = c;
+					diaAnulacion[anulaciones] = Misc.diaEpoca(rs.getDate(2));
+					anulaciones++;
+				}
+				rs.close();
+				rs = null;
+			}
+			ultimaAnulacion = Math.max(ultimaAnulacion, hasta);
+			anulacionesLeidas += leidas;
+			return leidas;
+		} finally {
+			if (rs != null) rs.close();
+			if (st_select != null) st_select.close();
+		}
+	}
+
+	/**
+	 * Agrega en paralelo las filas nuevas y las suma a los acumulados.
+	 */
+	private void agrega(int desdeConsulta, int desdeAnulacion, int medicos) {
+		if (consultas == 0)
+			return;
+		//Las fechas no van en orden de id: los meses posibles salen de diaMin y diaMax.
+		LocalDate primero = LocalDate.ofEpochDay(diaMin);
+		LocalDate ultimo = LocalDate.ofEpochDay(diaMax);
+		int mesBase = primero.getYear() * 12 + primero.getMonthValue() - 1;
+		int meses = ultimo.getYear() * 12 + ultimo.getMonthValue() - mesBase;
+		medicos = Math.max(medicos, porMedico.consultas.length);
+		for (int i = desdeConsulta; i < consultas; i++)
+			medicos = Math.max(medicos, medico[i] + 1);
+
+		ForkJoinPool fj = ForkJoinPool.commonPool();
+		Parcial[] c = fj.invoke(new Agrega(false, desdeConsulta, consultas, medicos, mesBase, meses));
+		Parcial[] a = fj.invoke(new Agrega(true, desdeAnulacion, anulaciones, medicos, mesBase, meses));
+		porMedico = porMedico.amplia(medicos).suma(c[0].suma(a[0]));
+		Parcial pmes = c[1].suma(a[1]);
+		for (int m = 0; m < meses; m++) {
+			if (pmes.consultas[m] == 0 && pmes.anuladas[m] == 0)
+				continue;
+			long[] acumulado = porMes.get(mesBase + m);
+			if (acumulado == null) {
+				acumulado = new long[3];
+				porMes.put(mesBase + m, acumulado);
+			}
+			acumulado[0] += pmes.consultas[m];
+			acumulado[1] += pmes.anuladas[m];
+			acumulado[2] += pmes.antelacion[m];
+		}
+	}
+
+	private Informe construye(List<String> nifs, List<String> especialidades, boolean incremental, long leidas,
+			long nanos) {
+		long diasPeriodo = consultas == 0 ? 0 : diaMax - diaMin + 1;
+		List<Linea> lineasMedico = new ArrayList<Linea>();
+		Map<String, long[]> esp = new TreeMap<String, long[]>();
+		for (int id = 0; id < porMedico.consultas.length; id++) {
+			String nif = id < nifs.size() ? nifs.get(id) : null;
+			if (nif == null)
+				continue;
+			lineasMedico.add(new Linea(nif, porMedico.consultas[id], porMedico.anuladas[id],
+					porMedico.antelacion[id], diasPeriodo));
+			long[] e = esp.get(especialidades.get(id));
+			if (e == null) {
+				e = new long[4];
+				esp.put(especialidades.get(id), e);
+			}
+			e[0] += porMedico.consultas[id];
+			e[1] += porMedico.anuladas[id];
+			e[2] += porMedico.antelacion[id];
+			e[3] += diasPeriodo;
+		}
+		Collections.sort(lineasMedico, (x, y) -> x.getClave().compareTo(y.getClave()));
+		List<Linea> lineasEsp = new ArrayList<Linea>();
+		for (Map.Entry<String, long[]> e : esp.entrySet())
+			lineasEsp.add(new Linea(e.getKey(), e.getValue()[0], e.getValue()[1], e.getValue()[2], e.getValue()[3]));
+		long numMedicos = lineasMedico.size();
+		List<Linea> lineasMes = new ArrayList<Linea>();
+		for (Map.Entry<Integer, long[]> e : porMes.entrySet()) {
+			int m = e.getKey();
+			LocalDate inicioMes = LocalDate.of(m / 12, m % 12 + 1, 1);
+			lineasMes.add(new Linea(String.format("%04d-%02d", m / 12, m % 12 + 1), e.getValue()[0],
+					e.getValue()[1], e.getValue()[2], numMedicos * inicioMes.lengthOfMonth()));
+		}
+
+		long bytes = 4L * (idConsulta.length * 4 + consultaAnulada.length * 2)
+				+ 8L * 3 * porMedico.consultas.length + 40L * porMes.size();
+		return new Informe(lineasMedico, lineasEsp, lineasMes, incremental, leidas, bytes, nanos);
+	}
+}
@@ -0,0 +1,903 @@
+package lsi.ubu.solucion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.Dialecto;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * Instantanea:
+ * Exporta las tablas de gestion_medicos.sql a ficheros binarios y las
+ * restaura despues, para copiar un conjunto de datos grande a otra base de
+ * datos de pruebas sin pasar por CSV ni por SQL.
+ *
+ * Cada tabla va a su fichero &lt;tabla&gt;.inst, que se escribe en paralelo
+ * con las demas. El fichero tiene una cabecera (tabla, tipos de columna,
+ * posicion de su secuencia y numero de filas) y bloques de hasta 65536 filas
+ * guardados por columnas: los enteros y las fechas (en dias) como
+ * diferencias con el valor anterior en varint, y las cadenas como un
+ * diccionario por bloque mas un indice por fila, asi que los NIF y los
+ * motivos repetidos ocupan muy poco.
+ *
+ * La restauracion desactiva las claves ajenas, vacia las tablas con
+ * TRUNCATE, deja inservibles los indices no unicos, inserta los bloques en
+ * lotes con varios hilos y al final reconstruye los indices, vuelve a
+ * activar las claves ajenas (comprobandolas de una vez) y avanza las
+ * secuencias con avanza_seq. MEDICO.consultas se restaura tal cual.
+ * En H2, que no desactiva claves ni indices sueltos, se desactiva la
+ * integridad referencial de cada tabla y se comprueba al reactivarla.
+ *
+ * Las tablas se leen en transacciones distintas: se debe exportar sin
+ * reservas ni anulaciones en curso.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Instantanea {
+
+	private static Logger logger = LoggerFactory.getLogger(Instantanea.class);
+
+	/** "GMIN" al principio de cada fichero. */
+	private static final int MAGICO = 0x474D494E;
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".inst";
+
+	/** Filas por bloque del fichero. */
+	static final int FILAS_BLOQUE = 65536;
+
+	/** Filas por lote JDBC al restaurar. */
+	private static final int TAM_LOTE = 5000;
+
+	/** Bloque que marca el final de la cola de un hilo de insercion. */
+	private static final Bloque FIN = new Bloque(0, 0);
+
+	/**
+	 * Tablas de la instantanea. Los tipos de columna son I (entero), D (fecha)
+	 * y S (cadena); los enteros y las fechas no pueden ser null.
+	 */
+	private enum Tabla {
+		CLIENTE("cliente", "NIF,nombre,ape1,ape2,direccion", "SSSSS", "NIF", null),
+		MEDICO("medico", "id_medico,NIF,nombre,ape1,ape2,especialidad,consultas", "ISSSSSI", "id_medico",
+				"seq_medico"),
+		CONSULTA("consulta", "id_consulta,fecha_consulta,id_medico,NIF", "IDIS", "id_consulta", "seq_consulta"),
+		ANULACION("anulacion", "id_anulacion,id_consulta,fecha_anulacion,motivo_anulacion", "IIDS",
+				"id_anulacion", "seq_anulacion"),
+		CONSULTA_HIST("consulta_hist", "id_consulta,fecha_consulta,id_medico,NIF", "IDIS", "id_consulta", null),
+		ANULACION_HIST("anulacion_hist", "id_anulacion,id_consulta,fecha_anulacion,motivo_anulacion", "IIDS",
+				"id_anulacion", null);
+
+		private final String nombre;
+		private final String columnas;
+		private final String tipos;
+		private final String clave;
+		private final String secuencia;
+
+		Tabla(String nombre, String columnas, String tipos, String clave, String secuencia) {
+			this.nombre = nombre;
+			this.columnas = columnas;
+			this.tipos = tipos;
+			this.clave = clave;
+			this.secuencia = secuencia;
+		}
+
+		String select() {
+			return "SELECT " + columnas + " FROM " + nombre + " ORDER BY " + clave;
+		}
+
+		String insert() {
+			StringBuilder sb = new StringBuilder("INSERT INTO " + nombre + " (" + columnas + ") VALUES (?");
+			for (int i = 1; i < tipos.length(); i++)
+				sb.append(",?");
+			return sb.append(')').toString();
+		}
+	}
+
+	/**
+	 * Resultado de exportar o restaurar una tabla.
+	 */
+	public static class Resultado {
+		private final String tabla;
+		private final long filas;
+		private final long bytes;
+		private final long nanos;
+
+		Resultado(String tabla, long filas, long bytes, long nanos) {
+			this.tabla = tabla;
+			this.filas = filas;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public long getFilas() {
+			return filas;
+		}
+
+		/** @return tamaño del fichero */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** @return filas por segundo */
+		public double getFilasPorSegundo() {
+			return nanos == 0 ? 0 : filas * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d filas, %d KB en %.2f s (%.0f filas/s, %.1f bytes/fila)", tabla, filas,
+					bytes / 1024, nanos / 1e9, getFilasPorSegundo(), filas == 0 ? 0.0 : (double) bytes / filas);
+		}
+	}
+
+	/**
+	 * Filas de un bloque, por columnas.
+	 */
+	private static class Bloque {
+		final int filas;
+		final int[][] enteros;
+		final String[][] cadenas;
+
+		Bloque(int columnas, int filas) {
+			this.filas = filas;
+			this.enteros = new int[columnas][];
+			this.cadenas = new String[columnas][];
+		}
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            'exporta' o 'restaura', el directorio de la instantanea y,
+	 *            opcionalmente, el numero de hilos; o 'compara', el numero de
+	 *            consultas a generar y un directorio de trabajo
+	 * @throws Exception
+	 *             si hay un error con la base de datos o con los ficheros
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Uso: Instantanea exporta|restaura <directorio> [hilos]");
+			System.out.println("     Instantanea compara <consultas> <directorio> [hilos]");
+			return;
+		}
+		int hilos = Runtime.getRuntime().availableProcessors();
+		if (args[0].equals("compara")) {
+			if (args.length > 3)
+				hilos = Integer.parseInt(args[3]);
+			System.out.println(compara(Long.parseLong(args[1]), Paths.get(args[2]), hilos));
+			return;
+		}
+		if (args.length > 2)
+			hilos = Integer.parseInt(args[2]);
+		List<Resultado> resultados = args[0].equals("exporta") ? exporta(Paths.get(args[1]))
+				: restaura(Paths.get(args[1]), hilos);
+		for (Resultado r : resultados)
+			System.out.println(r);
+	}
+
+	/**
+	 * Exporta todas las tablas, cada una con su hilo y su conexion.
+	 *
+	 * @param directorio
+	 *            directorio de la instantanea
+	 * @return resultado de cada tabla
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si hay un error con los ficheros
+	 */
+	public static List<Resultado> exporta(final Path directorio) throws SQLException, IOException {
+		Files.createDirectories(directorio);
+		ExecutorService ejecutor = Executors.newFixedThreadPool(Tabla.values().length);
+		try {
+			List<Future<Resultado>> tareas = new ArrayList<Future<Resultado>>();
+			for (final Tabla t : Tabla.values())
+				tareas.add(ejecutor.submit(() -> exporta(t, directorio.resolve(t.nombre + EXTENSION))));
+			return espera(tareas);
+		} finally {
+			ejecutor.shutdownNow();
+		}
+	}
+
+	private static Resultado exporta(Tabla tabla, Path fichero) throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		long filas = 0;
+
+		try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			con = pool.getConnection();
+			st = con.createStatement();
+			//El siguiente valor de la secuencia se gasta; al restaurar se sigue despues de el.
+			long secuencia = -1;
+			if (tabla.secuencia != null) {
+				rs = st.executeQuery("SELECT " + tabla.secuencia + ".nextval FROM dual");
+				rs.next();
+				secuencia = rs.getLong(1);
+				rs.close();
+			}
+			con.commit();
+			//En Oracle la siguiente transaccion es SET TRANSACTION READ ONLY: ve los datos de un unico instante.
+			con.setReadOnly(true);
+
+			long posFilas = escribeCabecera(canal, tabla, secuencia);
+			Salida salida = new Salida();
+			String tipos = tabla.tipos;
+			int n = tipos.length();
+			st.setFetchSize(5000);
+			rs = st.executeQuery(tabla.select());
+			Bloque bloque = nuevoBloque(tipos, FILAS_BLOQUE);
+			int f = 0;
+			while (rs.next()) {
+				for (int c = 0; c < n; c++) {
+					char tipo = tipos.charAt(c);
+					if (tipo == 'I')
+						bloque.enteros[c][f] = rs.getInt(c + 1);
+					else if (tipo == 'D')
+						bloque.enteros[c][f] = Misc.diaEpoca(rs.getDate(c + 1));
+					else
+						bloque.cadenas[c][f] = rs.getString(c + 1);
+				}
+				if (++f == FILAS_BLOQUE) {
+					escribeBloque(canal, salida, tipos, bloque, f);
+					filas += f;
+					f = 0;
+				}
+			}
+			escribeBloque(canal, salida, tipos, bloque, f);
+			filas += f;
+			con.commit();
+			canal.write(ByteBuffer.allocate(8).putLong(0, filas), posFilas);
+			canal.force(true);
+
+			Resultado r = new Resultado(tabla.nombre, filas, canal.size(), System.nanoTime() - inicio);
+			logger.info("Exportado {}", r);
+			return r;
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Restaura todas las tablas de una instantanea. Se borra todo lo que
+	 * hubiera en ellas.
+	 *
+	 * @param directorio
+	 *            directorio de la instantanea
+	 * @param hilos
+	 *            hilos de insercion por tabla, cada uno con su conexion
+	 * @return resultado de cada tabla
+	 * @throws SQLException
+	 *             si hay un error con la base de datos o los datos no
+	 *             cumplen las claves ajenas
+	 * @throws IOException
+	 *             si falta un fichero o no es valido
+	 */
+	public static List<Resultado> restaura(Path directorio, int hilos) throws SQLException, IOException {
+		for (Tabla t : Tabla.values()) {
+			if (!Files.exists(directorio.resolve(t.nombre + EXTENSION)))
+				throw new IOException("Falta " + t.nombre + EXTENSION + " en " + directorio);
+		}
+		List<Resultado> resultados = new ArrayList<Resultado>();
+		Map<String, Long> secuencias = new HashMap<String, Long>();
+		List<String> deshacer = new ArrayList<String>();
+		boolean completa = false;
+		try {
+			desactiva(true, deshacer);
+			for (Tabla t : Tabla.values())
+				resultados.add(restaura(t, directorio.resolve(t.nombre + EXTENSION), hilos, secuencias));
+			completa = true;
+		} finally {
+			//Las claves ajenas y los indices se restauran siempre, aunque la restauracion falle.
+			long inicio = System.nanoTime();
+			try {
+				reactiva(deshacer);
+				logger.info("Indices y claves ajenas restaurados en {} ms", (System.nanoTime() - inicio) / 1000000);
+			} catch (SQLException e) {
+				//Si ya habia fallado la restauracion, se lanza ese error.
+				if (completa)
+					throw e;
+			}
+		}
+		for (Map.Entry<String, Long> e : secuencias.entrySet())
+			avanzaSecuencia(e.getKey(), e.getValue());
+		CacheConsultas.getInstance().vacia();
+		return resultados;
+	}
+
+	private static Resultado restaura(Tabla tabla, Path fichero, int hilos, Map<String, Long> secuencias)
+			throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		final String tipos = tabla.tipos;
+		final String insert = tabla.insert();
+		final BlockingQueue<Bloque> cola = new ArrayBlockingQueue<Bloque>(2 * hilos);
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		long filas = 0;
+
+		try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+			ByteBuffer cabecera = leeCabecera(canal, fichero, tabla);
+			long secuencia = cabecera.getLong();
+			long esperadas = cabecera.getLong();
+			if (tabla.secuencia != null)
+				secuencias.put(tabla.secuencia, secuencia);
+
+			List<Future<Long>> tareas = new ArrayList<Future<Long>>();
+			for (int i = 0; i < hilos; i++)
+				tareas.add(ejecutor.submit(() -> inserta(insert, tipos, cola)));
+
+			//Este hilo decodifica los bloques y los de insercion los cargan.
+			Entrada entrada = new Entrada();
+			Bloque bloque;
+			while ((bloque = leeBloque(canal, fichero, tipos, entrada)) != null)
+				encola(cola, bloque, tareas);
+			for (int i = 0; i < hilos; i++)
+				encola(cola, FIN, tareas);
+			for (Long n : espera(tareas))
+				filas += n;
+			if (filas != esperadas)
+				throw new IOException(fichero + ": " + filas + " filas restauradas de " + esperadas);
+
+			Resultado r = new Resultado(tabla.nombre, filas, canal.size(), System.nanoTime() - inicio);
+			logger.info("Restaurado {}", r);
+			return r;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Restauracion interrumpida", e);
+		} finally {
+			ejecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Encola un bloque sin quedarse bloqueado si los hilos de insercion han
+	 * terminado por un error.
+	 */
+	private static <T> void encola(BlockingQueue<Bloque> cola, Bloque bloque, List<Future<T>> tareas)
+			throws SQLException, IOException, InterruptedException {
+		while (!cola.offer(bloque, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<T> f : tareas) {
+				if (f.isDone())
+					espera(tareas);
+			}
+		}
+	}
+
+	/**
+	 * Hilo de insercion: carga los bloques de la cola en lotes con su propia
+	 * conexion y confirma cada bloque.
+	 *
+	 * @return filas insertadas
+	 */
+	private static long inserta(String insert, String tipos, BlockingQueue<Bloque> cola)
+			throws SQLException, InterruptedException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st_insert = null;
+		long filas = 0;
+		int n = tipos.length();
+		try {
+			con = pool.getConnection();
+			st_insert = con.prepareStatement(insert);
+			Bloque bloque;
+			while ((bloque = cola.take()) != FIN) {
+				for (int f = 0; f < bloque.filas; f++) {
+					for (int c = 0; c < n; c++) {
+						char tipo = tipos.charAt(c);
+						if (tipo == 'I') {
+							st_insert.setInt(c + 1, bloque.enteros[c][f]);
+						} else if (tipo == 'D') {
+							st_insert.setDate(c + 1, new java.sql.Date(Misc.fechaDeDiaEpoca(bloque.enteros[c][f]).getTime()));
+						} else if (bloque.cadenas[c][f] == null) {
+							st_insert.setNull(c + 1, Types.VARCHAR);
+						} else {
+							st_insert.setString(c + 1, bloque.cadenas[c][f]);
+						}
+					}
+					st_insert.addBatch();
+					if ((f + 1) % TAM_LOTE == 0)
+						st_insert.executeBatch();
+				}
+				st_insert.executeBatch();
+				con.commit();
+				filas += bloque.filas;
+			}
+			return filas;
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (st_insert != null) st_insert.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Desactiva las claves ajenas de las tablas de la instantanea, deja
+	 * inservibles sus indices no unicos y, si se indica, las vacia. Cada
+	 * sentencia que se ejecuta deja en deshacer la que la deshace, asi que
+	 * si falla alguna basta con pasar la lista a reactiva().
+	 */
+	private static void desactiva(boolean vaciar, List<String> deshacer) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		ResultSet rs = null;
+		StringBuilder tablas = new StringBuilder();
+		for (Tabla t : Tabla.values())
+			tablas.append(tablas.length() == 0 ? "'" : ",'").append(t.nombre.toUpperCase()).append('\'');
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			List<String> claves = new ArrayList<String>();
+			List<String> indices = new ArrayList<String>();
+			String desactivar, activar;
+			if (Dialecto.actual().getNombre().equals("oracle")) {
+				rs = st.executeQuery("SELECT table_name, constraint_name FROM user_constraints"+
+						" WHERE constraint_type='R' AND status='ENABLED' AND table_name IN (" + tablas + ")");
+				while (rs.next())
+					claves.add("ALTER TABLE " + rs.getString(1) + " %s CONSTRAINT " + rs.getString(2));
+				rs.close();
+				rs = st.executeQuery("SELECT index_name FROM user_indexes"+
+						" WHERE uniqueness='NONUNIQUE' AND status='VALID' AND table_name IN (" + tablas + ")");
+				while (rs.next())
+					indices.add(rs.getString(1));
+				rs.close();
+				rs = null;
+				desactivar = "DISABLE";
+				activar = "ENABLE";
+			} else {
+				//H2 no desactiva claves sueltas ni indices: se desactiva la integridad referencial de cada tabla.
+				for (Tabla t : Tabla.values())
+					claves.add("ALTER TABLE " + t.nombre + " SET REFERENTIAL_INTEGRITY %s");
+				desactivar = "FALSE";
+				activar = "TRUE CHECK";
+			}
+
+			for (String clave : claves) {
+				ejecuta(st, String.format(clave, desactivar));
+				deshacer.add(String.format(clave, activar));
+			}
+			if (vaciar) {
+				for (Tabla t : Tabla.values())
+					ejecuta(st, "TRUNCATE TABLE " + t.nombre);
+			}
+			for (String indice : indices) {
+				ejecuta(st, "ALTER INDEX " + indice + " UNUSABLE");
+				//Los indices se reconstruyen antes de comprobar las claves ajenas.
+				deshacer.add(0, "ALTER INDEX " + indice + " REBUILD");
+			}
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	private static void ejecuta(Statement st, String sql) throws SQLException {
+		logger.debug(sql);
+		st.execute(sql);
+	}
+
+	/**
+	 * Reconstruye los indices y reactiva las claves ajenas. Se intentan
+	 * todas las sentencias aunque falle alguna.
+	 *
+	 * @throws SQLException
+	 *             el primer error, por ejemplo si los datos no cumplen una
+	 *             clave ajena
+	 */
+	private static void reactiva(List<String> sentencias) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		Statement st = null;
+		SQLException error = null;
+		try {
+			con = pool.getConnection();
+			st = con.createStatement();
+			for (String sql : sentencias) {
+				try {
+					logger.debug(sql);
+					st.execute(sql);
+				} catch (SQLException e) {
+					logger.error("{}: {}", sql, e.getMessage());
+					if (error == null)
+						error = e;
+				}
+			}
+		} finally {
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Vacia las tablas de la instantanea.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static void vacia() throws SQLException {
+		List<String> deshacer = new ArrayList<String>();
+		try {
+			desactiva(true, deshacer);
+		} finally {
+			reactiva(deshacer);
+		}
+		CacheConsultas.getInstance().vacia();
+	}
+
+	private static void avanzaSecuencia(String secuencia, long valor) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		CallableStatement cll_avanza = null;
+		try {
+			con = pool.getConnection();
+			cll_avanza = con.prepareCall("{call avanza_seq(?,?)}");
+			cll_avanza.setString(1, secuencia);
+			cll_avanza.setLong(2, valor);
+			cll_avanza.execute();
+			con.commit();
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (cll_avanza != null) cll_avanza.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Genera datos con GeneradorDatos y compara la carga de los CSV con
+	 * CargaMasiva con la restauracion de una instantanea de los mismos datos.
+	 *
+	 * @param consultas
+	 *            consultas a generar
+	 * @param directorio
+	 *            directorio de trabajo para los CSV y la instantanea
+	 * @param hilos
+	 *            hilos de carga
+	 * @return tabla de tiempos con una linea OK/MAL
+	 * @throws Exception
+	 *             si hay un error con la base de datos o con los ficheros
+	 */
+	public static String compara(long consultas, Path directorio, int hilos) throws Exception {
+		Path csv = directorio.resolve("csv");
+		Path inst = directorio.resolve("instantanea");
+		new GeneradorDatos(1, consultas).generaCSV(csv);
+
+		vacia();
+		long inicio = System.nanoTime();
+		CargaMasiva.cargaDirectorio(csv, hilos);
+		double sCsv = (System.nanoTime() - inicio) / 1e9;
+
+		inicio = System.nanoTime();
+		List<Resultado> exportados = exporta(inst);
+		double sExporta = (System.nanoTime() - inicio) / 1e9;
+		long bytesCsv = 0;
+		long bytesInst = 0;
+		for (Resultado r : exportados)
+			bytesInst += r.getBytes();
+		try (java.util.stream.Stream<Path> ficheros = Files.list(csv)) {
+			for (Path p : (Iterable<Path>) ficheros::iterator)
+				bytesCsv += Files.size(p);
+		}
+
+		vacia();
+		inicio = System.nanoTime();
+		restaura(inst, hilos);
+		double sRestaura = (System.nanoTime() - inicio) / 1e9;
+
+		double fraccion = sRestaura / sCsv;
+		StringBuilder sb = new StringBuilder("MODO\t\tSEGUNDOS\tMB\n");
+		sb.append(String.format("CSV\t\t%.2f\t\t%.1f%n", sCsv, bytesCsv / 1048576.0));
+		sb.append(String.format("exporta\t\t%.2f\t\t%.1f%n", sExporta, bytesInst / 1048576.0));
+		sb.append(String.format("restaura\t%.2f%n", sRestaura));
+		sb.append(String.format("%s: la restauracion tarda %.2f veces lo que la carga CSV", fraccion <= 0.5 ? "OK"
+				: "MAL", fraccion));
+		return sb.toString();
+	}
+
+	private static Bloque nuevoBloque(String tipos, int filas) {
+		Bloque b = new Bloque(tipos.length(), filas);
+		for (int c = 0; c < tipos.length(); c++) {
+			if (tipos.charAt(c) == 'S')
+				b.cadenas[c] = new String[filas];
+			else
+				b.enteros[c] = new int[filas];
+		}
+		return b;
+	}
+
+	private static long escribeCabecera(FileChannel canal, Tabla tabla, long secuencia) throws IOException {
+		byte[] nombre = tabla.nombre.getBytes(StandardCharsets.UTF_8);
+		byte[] tipos = tabla.tipos.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer bb = ByteBuffer.allocate(4 + 4 + 2 + nombre.length + 2 + tipos.length + 8 + 8);
+		bb.putInt(MAGICO).putInt(VERSION);
+		bb.putShort((short) nombre.length).put(nombre);
+		bb.putShort((short) tipos.length).put(tipos);
+		bb.putLong(secuencia);
+		long posFilas = bb.position();
+		bb.putLong(0).flip();
+		escribe(canal, bb);
+		return posFilas;
+	}
+
+	/**
+	 * Lee y comprueba la cabecera: MAGICO, VERSION, nombre de la tabla y
+	 * tipos (cada uno precedido de su longitud), secuencia y filas.
+	 *
+	 * @return buffer colocado en la posicion de la secuencia
+	 */
+	private static ByteBuffer leeCabecera(FileChannel canal, Path fichero, Tabla tabla) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(512);
+		lee(canal, bb, 4 + 4 + 2);
+		if (bb.getInt() != MAGICO || bb.getInt() != VERSION)
+			throw new IOException(fichero + ": no es una instantanea de version " + VERSION);
+		String nombre = cadena(canal, fichero, bb, bb.getShort());
+		lee(canal, bb, 2);
+		String tipos = cadena(canal, fichero, bb, bb.getShort());
+		if (!nombre.equals(tabla.nombre) || !tipos.equals(tabla.tipos))
+			throw new IOException("Instantanea de " + nombre + " (" + tipos + ") en el fichero de " + tabla.nombre);
+		lee(canal, bb, 16);
+		return bb;
+	}
+
+	private static String cadena(FileChannel canal, Path fichero, ByteBuffer bb, int len) throws IOException {
+		if (len < 0 || len > bb.capacity())
+			throw new IOException(fichero + ": cabecera no valida");
+		lee(canal, bb, len);
+		return new String(bb.array(), 0, len, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Escribe un bloque: numero de filas, bytes del cuerpo y las columnas.
+	 */
+	private static void escribeBloque(FileChannel canal, Salida salida, String tipos, Bloque bloque, int filas)
+			throws IOException {
+		if (filas == 0)
+			return;
+		salida.reinicia();
+		salida.buf.putInt(filas).putInt(0);
+		for (int c = 0; c < tipos.length(); c++) {
+			if (tipos.charAt(c) == 'S')
+				escribeCadenas(salida, bloque.cadenas[c], filas);
+			else
+				escribeEnteros(salida, bloque.enteros[c], filas);
+		}
+		ByteBuffer bb = salida.buf;
+		bb.putInt(4, bb.position() - 8);
+		bb.flip();
+		escribe(canal, bb);
+	}
+
+	private static void escribeEnteros(Salida salida, int[] valores, int filas) {
+		long anterior = 0;
+		for (int f = 0; f < filas; f++) {
+			salida.varint(valores[f] - anterior);
+			anterior = valores[f];
+		}
+	}
+
+	private static void escribeCadenas(Salida salida, String[] valores, int filas) {
+		Map<String, Integer> diccionario = new HashMap<String, Integer>();
+		List<String> orden = new ArrayList<String>();
+		int[] indices = new int[filas];
+		for (int f = 0; f < filas; f++) {
+			String v = valores[f];
+			if (v == null)
+				continue;
+			Integer i = diccionario.get(v);
+			if (i == null) {
+				i = orden.size();
+				diccionario.put(v, i);
+				orden.add(v);
+			}
+			//0 es null.
+			indices[f] = i + 1;
+		}
+		salida.varint(orden.size());
+		for (String v : orden) {
+			byte[] b = v.getBytes(StandardCharsets.UTF_8);
+			salida.varint(b.length);
+			salida.asegura(b.length);
+			salida.buf.put(b);
+		}
+		for (int f = 0; f < filas; f++)
+			salida.varint(indices[f]);
+	}
+
+	/**
+	 * Lee el siguiente bloque.
+	 *
+	 * @return el bloque, o null al final del fichero
+	 * @throws IOException
+	 *             si el bloque esta incompleto o no es valido
+	 */
+	private static Bloque leeBloque(FileChannel canal, Path fichero, String tipos, Entrada entrada)
+			throws IOException {
+		ByteBuffer cab = entrada.cabecera;
+		cab.clear();
+		while (cab.hasRemaining()) {
+			if (canal.read(cab) < 0) {
+				if (cab.position() == 0)
+					return null;
+				throw new EOFException("Bloque incompleto");
+			}
+		}
+		int filas = cab.getInt(0);
+		int len = cab.getInt(4);
+		if (filas <= 0 || filas > FILAS_BLOQUE || len < 0)
+			throw new IOException(fichero + ": bloque no valido");
+		ByteBuffer buf = entrada.asegura(len);
+		lee(canal, buf, len);
+		try {
+			return decodificaBloque(buf, tipos, filas);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException(fichero + ": bloque no valido", e);
+		}
+	}
+
+	private static Bloque decodificaBloque(ByteBuffer buf, String tipos, int filas) {
+		Bloque bloque = nuevoBloque(tipos, filas);
+		for (int c = 0; c < tipos.length(); c++) {
+			if (tipos.charAt(c) == 'S') {
+				String[] dic = new String[(int) varint(buf)];
+				for (int i = 0; i < dic.length; i++) {
+					int n = (int) varint(buf);
+					dic[i] = new String(buf.array(), buf.position(), n, StandardCharsets.UTF_8);
+					buf.position(buf.position() + n);
+				}
+				String[] valores = bloque.cadenas[c];
+				for (int f = 0; f < filas; f++) {
+					int i = (int) varint(buf);
+					valores[f] = i == 0 ? null : dic[i - 1];
+				}
+			} else {
+				int[] valores = bloque.enteros[c];
+				long anterior = 0;
+				for (int f = 0; f < filas; f++) {
+					anterior += varint(buf);
+					valores[f] = (int) anterior;
+				}
+			}
+		}
+		return bloque;
+	}
+
+	/** Lee exactamente n bytes al principio del buffer y lo deja listo para leerlos. */
+	private static void lee(FileChannel canal, ByteBuffer bb, int n) throws IOException {
+		bb.clear().limit(n);
+		while (bb.hasRemaining()) {
+			if (canal.read(bb) < 0)
+				throw new EOFException("Instantanea incompleta");
+		}
+		bb.flip();
+	}
+
+	private static void escribe(FileChannel canal, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining())
+			canal.write(bb);
+	}
+
+	/** Varint con zigzag, para que las diferencias negativas tambien ocupen poco. */
+	private static long varint(ByteBuffer bb) {
+		long v = 0;
+		int desp = 0;
+		byte b;
+		do {
+			b = bb.get();
+			v |= (long) (b & 0x7f) << desp;
+			desp += 7;
+		} while (b < 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Buffer de escritura de un bloque que crece segun hace falta.
+	 */
+	private static class Salida {
+		ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+
+		void reinicia() {
+			buf.clear();
+		}
+
+		void asegura(int n) {
+			if (buf.remaining() < n) {
+				ByteBuffer mayor = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+				buf.flip();
+				mayor.put(buf);
+				buf = mayor;
+			}
+		}
+
+		void varint(long v) {
+			asegura(10);
+			long z = (v << 1) ^ (v >> 63);
+			while ((z & ~0x7fL) != 0) {
+				buf.put((byte) ((z & 0x7f) | 0x80));
+				z >>>= 7;
+			}
+			buf.put((byte) z);
+		}
+	}
+
+	/**
+	 * Buffers de lectura de los bloques, que crecen segun hace falta.
+	 */
+	private static class Entrada {
+		final ByteBuffer cabecera = ByteBuffer.allocate(8);
+		ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+
+		ByteBuffer asegura(int n) {
+			if (buf.capacity() < n)
+				buf = ByteBuffer.allocate(n);
+			return buf;
+		}
+	}
+
+	private static <T> List<T> espera(List<Future<T>> tareas) throws SQLException, IOException {
+		List<T> resultados = new ArrayList<T>();
+		try {
+			for (Future<T> f : tareas)
+				resultados.add(f.get());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Instantanea interrumpida", e);
+		}
+		return resultados;
+	}
+}
@@ -1,5 +1,8 @@
 package lsi.ubu.solucion;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
@@ -52,4 +55,12 @@ public class Misc {
 		   long diff = d1.getTime() - d2.getTime();
 		   return (int)TimeUnit.DAYS.convert(diff, TimeUnit.MILLISECONDS);
 	}
+	
+	public static int diaEpoca( Date d ) {
+		return (int)Instant.ofEpochMilli(d.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+	
+	public static Date fechaDeDiaEpoca( long dia ) {
+		return Date.from(LocalDate.ofEpochDay(dia).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
 }
@@ -0,0 +1,826 @@
+package lsi.ubu.solucion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.Dialecto;
+import lsi.ubu.util.Diario;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * MotorMemoria:
+ * Motor de reservas en memoria que sustituye a la base de datos en las
+ * operaciones de GestionMedicos.
+ *
+ * Al arrancar carga los medicos, los clientes y las consultas de las tablas
+ * y aplica lo que quede en el diario. Cada medico es una particion con su
+ * propio cerrojo donde se comprueban las mismas reglas y en el mismo orden
+ * que en la base de datos, con los mismos codigos de GestionMedicosException.
+ * Cada cambio se anota en un Diario con fsync agrupado antes de responder y
+ * un hilo lo copia despues a las tablas en lotes. Los ids salen de las
+ * secuencias de la base de datos en bloques, asi que coinciden con los que
+ * daria la via JDBC.
+ *
+ * Las altas de medicos y clientes, el archivo de consultas y los cambios
+ * hechos a las tablas por otras vias no se ven hasta llamar a recarga().
+ *
+ * Se activa con GestionMedicos.setMotor(). Propiedades del sistema:
+ * gestionmedicos.motor.lote (500 cambios por commit),
+ * gestionmedicos.motor.ventanaMs (10 ms para juntar un lote),
+ * gestionmedicos.motor.pausaMs (1000 ms entre reintentos si falla la copia),
+ * gestionmedicos.motor.reintentos (10 reintentos seguidos de un lote) y
+ * gestionmedicos.motor.bloqueIds (100 ids por acceso a una secuencia).
+ *
+ * Si un lote falla por un error transitorio se reintenta entero; si se
+ * agotan los reintentos la copia se para y el motor deja de aceptar
+ * operaciones, con los cambios a salvo en el diario. Si falla por un error
+ * permanente se copian los cambios de uno en uno y los que fallan se apartan
+ * a motor.cuarentena, junto al diario, para revisarlos a mano: las tablas
+ * no los tendran aunque la memoria si, hasta recarga().
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class MotorMemoria implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(MotorMemoria.class);
+
+	private static final String SQL_MEDICOS = "SELECT id_medico, NIF, consultas FROM medico";
+	private static final String SQL_CLIENTES = "SELECT NIF FROM cliente";
+	private static final String SQL_CONSULTAS = "SELECT c.id_consulta, c.fecha_consulta, c.id_medico, c.NIF,"+
+			" a.id_anulacion FROM consulta c LEFT JOIN anulacion a ON a.id_consulta=c.id_consulta"+
+			" ORDER BY c.id_consulta";
+	private static final String SQL_INSERTA_CONSULTA = "INSERT INTO consulta VALUES (?,?,?,?)";
+	private static final String SQL_INSERTA_ANULACION = "INSERT INTO anulacion VALUES (?,?,?,?)";
+	private static final String SQL_CUENTA = "UPDATE medico SET consultas=consultas+? WHERE id_medico=?";
+
+	private static final byte RESERVA = 'R';
+	private static final byte ANULACION = 'A';
+
+	/** Orden del historial: por fecha y, en el mismo dia, la consulta activa primero. */
+	private static final Comparator<FilaConsulta> ORDEN_HISTORIAL = Comparator
+			.comparing(FilaConsulta::getFecha).thenComparing(f -> !"No".equals(f.getAnulada()));
+
+	/**
+	 * Consulta en memoria. Se modifica con el cerrojo de su medico.
+	 */
+	private static class Consulta {
+		final int id;
+		final int dia;
+		final String nif;
+		boolean anulada;
+
+		Consulta(int id, int dia, String nif, boolean anulada) {
+			this.id = id;
+			this.dia = dia;
+			this.nif = nif;
+			this.anulada = anulada;
+		}
+	}
+
+	/**
+	 * Medico con su agenda. Cada medico es una particion: sus datos solo se
+	 * leen y modifican con su cerrojo.
+	 */
+	private static class Medico {
+		final int id;
+		final String nif;
+		int consultas;
+		/** Consulta activa de cada dia. */
+		final Map<Integer, Consulta> activas = new HashMap<Integer, Consulta>();
+		final List<Consulta> historial = new ArrayList<Consulta>();
+
+		Medico(int id, String nif, int consultas) {
+			this.id = id;
+			this.nif = nif;
+			this.consultas = consultas;
+		}
+	}
+
+	/**
+	 * Cambio anotado en el diario y pendiente de copiar a las tablas.
+	 */
+	private static class Apunte {
+		final byte tipo;
+		final int idConsulta;
+		final int idMedico;
+		final String nif;
+		final int dia;
+		final int idAnulacion;
+		final int diaAnulacion;
+		final String motivo;
+		/** Registro del diario; 0 si viene del diario de un arranque anterior. */
+		long secuencia;
+
+		Apunte(byte tipo, int idConsulta, int idMedico, String nif, int dia, int idAnulacion, int diaAnulacion,
+				String motivo) {
+			this.tipo = tipo;
+			this.idConsulta = idConsulta;
+			this.idMedico = idMedico;
+			this.nif = nif;
+			this.dia = dia;
+			this.idAnulacion = idAnulacion;
+			this.diaAnulacion = diaAnulacion;
+			this.motivo = motivo;
+		}
+
+		void escribe(DataOutputStream out) throws IOException {
+			out.writeByte(tipo);
+			out.writeInt(idConsulta);
+			out.writeInt(idMedico);
+			out.writeUTF(nif);
+			out.writeInt(dia);
+			if (tipo == ANULACION) {
+				out.writeInt(idAnulacion);
+				out.writeInt(diaAnulacion);
+				out.writeUTF(motivo);
+			}
+		}
+
+		static Apunte lee(DataInputStream in) throws IOException {
+			byte tipo = in.readByte();
+			int idConsulta = in.readInt();
+			int idMedico = in.readInt();
+			String nif = in.readUTF();
+			int dia = in.readInt();
+			if (tipo != ANULACION)
+				return new Apunte(tipo, idConsulta, idMedico, nif, dia, 0, 0, null);
+			return new Apunte(tipo, idConsulta, idMedico, nif, dia, in.readInt(), in.readInt(), in.readUTF());
+		}
+	}
+
+	/**
+	 * Ids de una secuencia de la base de datos, pedidos en bloques.
+	 */
+	private class Secuencia {
+		private final String nombre;
+		private final Deque<Integer> libres = new ArrayDeque<Integer>();
+
+		Secuencia(String nombre) {
+			this.nombre = nombre;
+		}
+
+		synchronized int siguiente() throws SQLException {
+			if (libres.isEmpty())
+				pide();
+			return libres.poll();
+		}
+
+		synchronized void descarta() {
+			libres.clear();
+		}
+
+		private void pide() throws SQLException {
+			Connection con = null;
+			PreparedStatement st = null;
+			ResultSet rs = null;
+			try {
+				con = PoolDeConexiones.getInstance().getConnection();
+				st = con.prepareStatement(Dialecto.actual().bloqueSecuencia(nombre));
+				st.setInt(1, bloqueIds);
+				rs = st.executeQuery();
+				List<Integer> ids = new ArrayList<Integer>(bloqueIds);
+				while (rs.next())
+					ids.add(rs.getInt(1));
+				con.commit();
+				Collections.sort(ids);
+				libres.addAll(ids);
+			} finally {
+				if (rs != null) rs.close();
+				if (st != null) st.close();
+				if (con != null) con.close();
+			}
+		}
+	}
+
+	private final Map<String, Medico> medicos = new ConcurrentHashMap<String, Medico>();
+	private final Map<Integer, Medico> medicosPorId = new ConcurrentHashMap<Integer, Medico>();
+	private final Set<String> clientes = ConcurrentHashMap.newKeySet();
+	/** Consultas por id, para reaplicar el diario. */
+	private final Map<Integer, Consulta> consultas = new ConcurrentHashMap<Integer, Consulta>();
+
+	private final Diario diario;
+	private final Path cuarentena;
+	/** Anotar en el diario y encolar se hacen juntos para que la cola siga el orden del diario. */
+	private final Object orden = new Object();
+	private final BlockingQueue<Apunte> pendientes = new LinkedBlockingQueue<Apunte>();
+	private final AtomicLong encolados = new AtomicLong();
+	private final AtomicLong copiados = new AtomicLong();
+	private final AtomicLong lotes = new AtomicLong();
+	private final AtomicLong apartados = new AtomicLong();
+	private volatile long sincronizado = 0;
+
+	private final Secuencia idsConsulta = new Secuencia("seq_consulta");
+	private final Secuencia idsAnulacion = new Secuencia("seq_anulacion");
+
+	private final int tamLote = Integer.getInteger("gestionmedicos.motor.lote", 500);
+	private final long ventanaMs = Long.getLong("gestionmedicos.motor.ventanaMs", 10);
+	private final long pausaMs = Long.getLong("gestionmedicos.motor.pausaMs", 1000);
+	private final int maxReintentos = Integer.getInteger("gestionmedicos.motor.reintentos", 10);
+	private final int bloqueIds = Integer.getInteger("gestionmedicos.motor.bloqueIds", 100);
+
+	private final Thread copiador;
+	private volatile boolean cerrado = false;
+	private volatile boolean parado = false;
+
+	private MotorMemoria(Path directorio) throws IOException, SQLException {
+		Files.createDirectories(directorio);
+		diario = new Diario(directorio.resolve("motor.diario"));
+		cuarentena = directorio.resolve("motor.cuarentena");
+		try {
+			carga();
+			reaplica();
+		} catch (SQLException e) {
+			diario.close();
+			throw e;
+		}
+		copiador = new Thread(this::copia, "motor-memoria-copia");
+		copiador.setDaemon(true);
+		copiador.start();
+	}
+
+	/**
+	 * Carga el estado de las tablas y del diario y arranca la copia a la base
+	 * de datos.
+	 *
+	 * @param directorio
+	 *            directorio del diario
+	 * @return el motor, sin activar en GestionMedicos
+	 * @throws IOException
+	 *             si no se puede abrir el diario
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public static MotorMemoria arranca(Path directorio) throws IOException, SQLException {
+		long inicio = System.nanoTime();
+		MotorMemoria motor = new MotorMemoria(directorio);
+		logger.info("Motor en memoria: {} medicos, {} clientes, {} consultas y {} cambios del diario en {} ms",
+				motor.medicos.size(), motor.clientes.size(), motor.consultas.size(), motor.pendientes.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+		return motor;
+	}
+
+	private void carga() throws SQLException {
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			st = con.prepareStatement(SQL_MEDICOS);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				Medico m = new Medico(rs.getInt(1), rs.getString(2), rs.getInt(3));
+				medicos.put(m.nif, m);
+				medicosPorId.put(m.id, m);
+			}
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_CLIENTES);
+			st.setFetchSize(1000);
+			rs = st.executeQuery();
+			while (rs.next())
+				clientes.add(rs.getString(1));
+			rs.close();
+			st.close();
+
+			st = con.prepareStatement(SQL_CONSULTAS);
+			st.setFetchSize(1000);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				Medico m = medicosPorId.get(rs.getInt(3));
+				Consulta c = new Consulta(rs.getInt(1), Misc.diaEpoca(rs.getDate(2)), rs.getString(4),
+						rs.getObject(5) != null);
+				m.historial.add(c);
+				if (!c.anulada && m.activas.put(c.dia, c) != null)
+					logger.warn("Medico {} con dos consultas activas el dia {}", m.nif, rs.getDate(2));
+				consultas.put(c.id, c);
+			}
+			con.commit();
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Aplica los cambios del diario que no llegaron a las tablas. Los que ya
+	 * estan se reconocen por su id y se saltan.
+	 */
+	private void reaplica() throws IOException {
+		for (byte[] registro : diario.getRecuperados()) {
+			for (Apunte a : decodifica(registro)) {
+				Medico m = medicosPorId.get(a.idMedico);
+				if (m == null) {
+					logger.warn("Cambio del diario para el medico {}, que no existe", a.idMedico);
+					continue;
+				}
+				Consulta c = consultas.get(a.idConsulta);
+				if (a.tipo == RESERVA ? c != null : c == null || c.anulada)
+					continue;
+				aplica(m, a);
+				pendientes.add(a);
+				encolados.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Reserva una consulta.
+	 *
+	 * @return la reserva hecha, ya en el diario
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede reservar
+	 */
+	public Cambio reserva(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta) throws SQLException {
+		Medico m = medico(m_NIF_medico);
+		if (!clientes.contains(m_NIF_cliente))
+			throw new GestionMedicosException(GestionMedicosException.CLIENTE_NO_EXISTE);
+		int dia = Misc.diaEpoca(m_Fecha_Consulta);
+		Apunte a;
+		long secuencia;
+		synchronized (m) {
+			if (m.activas.containsKey(dia))
+				throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
+			a = new Apunte(RESERVA, idsConsulta.siguiente(), m.id, m_NIF_cliente, dia, 0, 0, null);
+			secuencia = anota(a);
+			aplica(m, a);
+		}
+		confirma(secuencia);
+		return new Cambio(true, a.idConsulta, m.id, m_NIF_cliente, m_Fecha_Consulta);
+	}
+
+	/**
+	 * Anula una consulta.
+	 *
+	 * @return la anulacion hecha, ya en el diario
+	 * @throws SQLException con el codigo de GestionMedicosException si no se puede anular
+	 */
+	public Cambio anula(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
+			Date m_Fecha_Anulacion, String motivo) throws SQLException {
+		Medico m = medico(m_NIF_medico);
+		if (!clientes.contains(m_NIF_cliente))
+			throw new GestionMedicosException(GestionMedicosException.CLIENTE_NO_EXISTE);
+		Apunte a;
+		long secuencia;
+		synchronized (m) {
+			a = anulacion(m, m_NIF_cliente, m_Fecha_Consulta, m_Fecha_Anulacion, motivo);
+			secuencia = anota(a);
+			aplica(m, a);
+		}
+		confirma(secuencia);
+		return new Cambio(false, a.idConsulta, m.id, m_NIF_cliente, m_Fecha_Consulta);
+	}
+
+	/**
+	 * Anula una consulta y reserva otra fecha del mismo medico en un unico
+	 * registro del diario. Si la reserva no se puede hacer no se anula nada.
+	 *
+	 * @return la anulacion y la reserva hechas
+	 * @throws SQLException con el codigo de GestionMedicosException de la operacion que falla
+	 */
+	public List<Cambio> reprograma(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
+			Date m_Fecha_Nueva, Date m_Fecha_Anulacion, String motivo) throws SQLException {
+		Medico m = medico(m_NIF_medico);
+		if (!clientes.contains(m_NIF_cliente))
+			throw new GestionMedicosException(GestionMedicosException.CLIENTE_NO_EXISTE);
+		int dia = Misc.diaEpoca(m_Fecha_Nueva);
+		Apunte anulacion;
+		Apunte reserva;
+		long secuencia;
+		synchronized (m) {
+			anulacion = anulacion(m, m_NIF_cliente, m_Fecha_Consulta, m_Fecha_Anulacion, motivo);
+			//El dia de la consulta anulada queda libre para la nueva.
+			if (m.activas.containsKey(dia) && dia != anulacion.dia)
+				throw new GestionMedicosException(GestionMedicosException.MEDICO_OCUPADO);
+			reserva = new Apunte(RESERVA, idsConsulta.siguiente(), m.id, m_NIF_cliente, dia, 0, 0, null);
+			secuencia = anota(anulacion, reserva);
+			aplica(m, anulacion);
+			aplica(m, reserva);
+		}
+		confirma(secuencia);
+		List<Cambio> cambios = new ArrayList<Cambio>(2);
+		cambios.add(new Cambio(false, anulacion.idConsulta, m.id, m_NIF_cliente, m_Fecha_Consulta));
+		cambios.add(new Cambio(true, reserva.idConsulta, m.id, m_NIF_cliente, m_Fecha_Nueva));
+		return cambios;
+	}
+
+	/**
+	 * Comprueba una anulacion con el cerrojo del medico tomado.
+	 */
+	private Apunte anulacion(Medico m, String m_NIF_cliente, Date m_Fecha_Consulta, Date m_Fecha_Anulacion,
+			String motivo) throws SQLException {
+		Consulta c = m.activas.get(Misc.diaEpoca(m_Fecha_Consulta));
+		if (c == null || !c.nif.equals(m_NIF_cliente))
+			throw new GestionMedicosException(GestionMedicosException.CONSULTA_NO_EXISTE);
+		//Oracle guarda la cadena vacia como null, que ANULACION no admite.
+		if (motivo == null || motivo.isEmpty())
+			throw new GestionMedicosException(GestionMedicosException.MOTIVO_VACIO);
+		if (Misc.howManyDaysBetween(m_Fecha_Consulta, m_Fecha_Anulacion) < 2)
+			throw new GestionMedicosException(GestionMedicosException.CONSULTA_NO_ANULA);
+		return new Apunte(ANULACION, c.id, m.id, m_NIF_cliente, c.dia, idsAnulacion.siguiente(),
+				Misc.diaEpoca(m_Fecha_Anulacion), motivo);
+	}
+
+	/**
+	 * Obtiene el historial de un medico.
+	 *
+	 * @return consultas del medico ordenadas por fecha, que no se deben modificar
+	 * @throws SQLException 'medico_no_existe' si el medico no existe
+	 */
+	public List<FilaConsulta> historial(String m_NIF_medico) throws SQLException {
+		Medico m = medico(m_NIF_medico);
+		List<FilaConsulta> filas;
+		synchronized (m) {
+			filas = new ArrayList<FilaConsulta>(m.historial.size());
+			for (Consulta c : m.historial) {
+				filas.add(new FilaConsulta(c.id, new java.sql.Date(Misc.fechaDeDiaEpoca(c.dia).getTime()), m.id,
+						c.nif, c.anulada ? "Sí" : "No"));
+			}
+		}
+		filas.sort(ORDEN_HISTORIAL);
+		return Collections.unmodifiableList(filas);
+	}
+
+	private Medico medico(String m_NIF_medico) throws SQLException {
+		Medico m = medicos.get(m_NIF_medico);
+		if (m == null)
+			throw new GestionMedicosException(GestionMedicosException.MEDICO_NO_EXISTE);
+		return m;
+	}
+
+	private void aplica(Medico m, Apunte a) {
+		if (a.tipo == RESERVA) {
+			Consulta c = new Consulta(a.idConsulta, a.dia, a.nif, false);
+			m.historial.add(c);
+			m.activas.put(c.dia, c);
+			consultas.put(c.id, c);
+			m.consultas++;
+		} else {
+			Consulta c = consultas.get(a.idConsulta);
+			c.anulada = true;
+			m.activas.remove(c.dia);
+			m.consultas--;
+		}
+	}
+
+	/**
+	 * Anota los cambios de una operacion en un registro del diario y los
+	 * encola para copiarlos.
+	 *
+	 * @return numero del registro en el diario
+	 */
+	private long anota(Apunte... apuntes) throws SQLException {
+		byte[] registro;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(apuntes.length);
+			for (Apunte a : apuntes)
+				a.escribe(out);
+			out.flush();
+			registro = bytes.toByteArray();
+		} catch (IOException e) {
+			throw new SQLException("No se puede codificar el cambio", e);
+		}
+		synchronized (orden) {
+			if (cerrado)
+				throw new SQLException("Motor en memoria cerrado");
+			long secuencia;
+			try {
+				secuencia = diario.anota(registro);
+			} catch (IOException e) {
+				logger.error("No se puede escribir el diario: {}", e.getMessage());
+				throw new SQLException("No se puede escribir el diario", e);
+			}
+			for (Apunte a : apuntes) {
+				a.secuencia = secuencia;
+				pendientes.add(a);
+			}
+			encolados.addAndGet(apuntes.length);
+			return secuencia;
+		}
+	}
+
+	private void confirma(long secuencia) throws SQLException {
+		try {
+			diario.confirma(secuencia);
+		} catch (IOException e) {
+			//El cambio ya esta en memoria y en la cola; sin disco no se aceptan mas.
+			logger.error("No se puede volcar el diario, se cierra el motor: {}", e.getMessage());
+			cerrado = true;
+			throw new SQLException("No se puede volcar el diario", e);
+		}
+	}
+
+	private static List<Apunte> decodifica(byte[] registro) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(registro));
+		int n = in.readByte();
+		List<Apunte> apuntes = new ArrayList<Apunte>(n);
+		for (int i = 0; i < n; i++)
+			apuntes.add(Apunte.lee(in));
+		return apuntes;
+	}
+
+	/**
+	 * Hilo que copia los cambios a las tablas en lotes.
+	 */
+	private void copia() {
+		List<Apunte> lote = new ArrayList<Apunte>(tamLote);
+		int fallos = 0;
+		while (!parado && (!cerrado || !pendientes.isEmpty() || !lote.isEmpty())) {
+			try {
+				if (lote.isEmpty()) {
+					Apunte primero = pendientes.poll(100, TimeUnit.MILLISECONDS);
+					if (primero == null) {
+						//Todo copiado: el diario ya no hace falta.
+						diario.vacia(sincronizado);
+						continue;
+					}
+					lote.add(primero);
+					if (pendientes.size() < tamLote - 1 && ventanaMs > 0)
+						Thread.sleep(ventanaMs);
+					pendientes.drainTo(lote, tamLote - 1);
+				}
+				try {
+					copia(lote);
+					copiados.addAndGet(lote.size());
+					lotes.incrementAndGet();
+					avanza(lote.get(lote.size() - 1).secuencia);
+					lote.clear();
+				} catch (SQLException e) {
+					if (Dialecto.actual().getErrores().isTransient(e))
+						throw e;
+					//Algun cambio no se puede copiar nunca: se copian de uno en uno y se aparta el que falle.
+					logger.error("Lote de {} cambios rechazado, se copian de uno en uno: {}", lote.size(),
+							e.getMessage());
+					separa(lote);
+				}
+				fallos = 0;
+			} catch (InterruptedException e) {
+				parado = true;
+			} catch (SQLException | IOException e) {
+				//El lote se reintenta entero; los cambios siguen en el diario.
+				if (++fallos > maxReintentos) {
+					logger.error("No se pueden copiar {} cambios tras {} intentos, se para el motor: {}",
+							lote.size() + pendientes.size(), fallos, e.getMessage());
+					synchronized (orden) {
+						cerrado = true;
+					}
+					parado = true;
+					break;
+				}
+				logger.error("No se pueden copiar {} cambios (intento {} de {}): {}", lote.size(), fallos,
+						maxReintentos + 1, e.getMessage());
+				try {
+					Thread.sleep(pausaMs);
+				} catch (InterruptedException ex) {
+					parado = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copia los cambios de un lote de uno en uno y aparta los que fallan por
+	 * un error permanente. Quita del lote los que ya estan resueltos.
+	 *
+	 * @throws SQLException
+	 *             si falla alguno por un error transitorio
+	 */
+	private void separa(List<Apunte> lote) throws SQLException, IOException {
+		while (!lote.isEmpty()) {
+			Apunte a = lote.get(0);
+			try {
+				copia(Collections.singletonList(a));
+				copiados.incrementAndGet();
+				lotes.incrementAndGet();
+			} catch (SQLException e) {
+				if (Dialecto.actual().getErrores().isTransient(e))
+					throw e;
+				aparta(a, e);
+			}
+			lote.remove(0);
+			avanza(a.secuencia);
+		}
+	}
+
+	/**
+	 * Anota en el fichero de cuarentena un cambio que no se puede copiar.
+	 */
+	private void aparta(Apunte a, SQLException e) {
+		apartados.incrementAndGet();
+		String linea = (char) a.tipo + " consulta=" + a.idConsulta + " medico=" + a.idMedico + " nif=" + a.nif
+				+ " dia=" + Misc.fechaDeDiaEpoca(a.dia) + (a.tipo == ANULACION ? " anulacion=" + a.idAnulacion
+						+ " dia_anulacion=" + Misc.fechaDeDiaEpoca(a.diaAnulacion) + " motivo=" + a.motivo : "")
+				+ " error=" + e.getMessage().replace('\n', ' ');
+		logger.error("Cambio apartado en {}: {}", cuarentena, linea);
+		try {
+			Files.write(cuarentena, Collections.singletonList(linea), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch (IOException ex) {
+			logger.error("No se puede escribir {}: {}", cuarentena, ex.getMessage());
+		}
+	}
+
+	/**
+	 * Anota hasta donde estan resueltos los cambios del diario y avisa a quien
+	 * espera en sincroniza().
+	 */
+	private void avanza(long secuencia) {
+		sincronizado = secuencia;
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private void copia(List<Apunte> lote) throws SQLException, IOException {
+		//Solo se copia lo que ya esta en disco.
+		diario.confirma(lote.get(lote.size() - 1).secuencia);
+
+		Connection con = null;
+		PreparedStatement st_cons = null;
+		PreparedStatement st_anul = null;
+		PreparedStatement st_cuenta = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			st_cons = con.prepareStatement(SQL_INSERTA_CONSULTA);
+			st_anul = con.prepareStatement(SQL_INSERTA_ANULACION);
+			int nCons = 0;
+			int nAnul = 0;
+			//Por id de medico, para actualizar siempre en el mismo orden.
+			Map<Integer, Integer> cuentas = new TreeMap<Integer, Integer>();
+			for (Apunte a : lote) {
+				if (a.tipo == RESERVA) {
+					st_cons.setInt(1, a.idConsulta);
+					st_cons.setDate(2, new java.sql.Date(Misc.fechaDeDiaEpoca(a.dia).getTime()));
+					st_cons.setInt(3, a.idMedico);
+					st_cons.setString(4, a.nif);
+					st_cons.addBatch();
+					nCons++;
+					cuentas.merge(a.idMedico, 1, Integer::sum);
+				} else {
+					st_anul.setInt(1, a.idAnulacion);
+					st_anul.setInt(2, a.idConsulta);
+					st_anul.setDate(3, new java.sql.Date(Misc.fechaDeDiaEpoca(a.diaAnulacion).getTime()));
+					st_anul.setString(4, a.motivo);
+					st_anul.addBatch();
+					nAnul++;
+					cuentas.merge(a.idMedico, -1, Integer::sum);
+				}
+			}
+			//Las consultas antes que las anulaciones que las referencian.
+			if (nCons > 0) st_cons.executeBatch();
+			if (nAnul > 0) st_anul.executeBatch();
+			st_cuenta = con.prepareStatement(SQL_CUENTA);
+			for (Map.Entry<Integer, Integer> e : cuentas.entrySet()) {
+				if (e.getValue() == 0)
+					continue;
+				st_cuenta.setInt(1, e.getValue());
+				st_cuenta.setInt(2, e.getKey());
+				st_cuenta.addBatch();
+			}
+			st_cuenta.executeBatch();
+			con.commit();
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			throw e;
+		} finally {
+			if (st_cuenta != null) st_cuenta.close();
+			if (st_anul != null) st_anul.close();
+			if (st_cons != null) st_cons.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Espera a que los cambios hechos hasta ahora esten copiados en las tablas
+	 * o apartados.
+	 *
+	 * @param timeoutMs
+	 *            espera maxima en milisegundos
+	 * @return true si se han copiado a tiempo
+	 * @throws InterruptedException
+	 *             si se interrumpe la espera
+	 */
+	public boolean sincroniza(long timeoutMs) throws InterruptedException {
+		long objetivo = encolados.get();
+		long limite = System.currentTimeMillis() + timeoutMs;
+		synchronized (this) {
+			while (copiados.get() + apartados.get() < objetivo) {
+				long resto = limite - System.currentTimeMillis();
+				if (resto <= 0 || parado)
+					return false;
+				wait(Math.min(resto, 100));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Vuelve a cargar el estado de las tablas, por ejemplo despues de
+	 * reiniciarlas. Los cambios pendientes se deben haber copiado antes (ver
+	 * sincroniza) y no puede haber operaciones en curso.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public void recarga() throws SQLException {
+		if (!pendientes.isEmpty())
+			logger.warn("Se recarga el motor con {} cambios sin copiar", pendientes.size());
+		medicos.clear();
+		medicosPorId.clear();
+		clientes.clear();
+		consultas.clear();
+		//Las secuencias pueden haberse reiniciado.
+		idsConsulta.descarta();
+		idsAnulacion.descarta();
+		carga();
+	}
+
+	/** @return cambios copiados a las tablas */
+	public long getCopiados() {
+		return copiados.get();
+	}
+
+	/** @return cambios que no se han podido copiar y estan en motor.cuarentena */
+	public long getApartados() {
+		return apartados.get();
+	}
+
+	/** @return cambios pendientes de copiar */
+	public int getPendientes() {
+		return pendientes.size();
+	}
+
+	/** @return numero medio de cambios por commit en las tablas */
+	public double getCambiosPorLote() {
+		long l = lotes.get();
+		return l == 0 ? 0 : (double) copiados.get() / l;
+	}
+
+	/** @return numero de fsync del diario */
+	public long getVolcados() {
+		return diario.getVolcados();
+	}
+
+	/**
+	 * Deja de aceptar operaciones, espera a copiar lo pendiente (como mucho
+	 * 30 segundos) y cierra el diario. Lo que no se copie se aplica en el
+	 * siguiente arranque.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (orden) {
+			cerrado = true;
+		}
+		try {
+			copiador.join(30000);
+			if (copiador.isAlive()) {
+				logger.warn("Quedan {} cambios sin copiar en el diario", pendientes.size());
+				parado = true;
+				copiador.interrupt();
+				copiador.join();
+			} else {
+				diario.vacia(sincronizado);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			diario.close();
+		}
+	}
+}
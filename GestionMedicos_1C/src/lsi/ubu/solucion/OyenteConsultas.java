@@ -0,0 +1,51 @@
+package lsi.ubu.solucion;
+
+import java.util.Date;
+
+/**
+ * OyenteConsultas:
+ * Recibe los cambios de consultas que GestionMedicos confirma.
+ * Los avisos llegan despues del commit y en el hilo que hizo la operacion.
+ * GestionMedicos llama a cambioConfirmado(), que por defecto pasa el aviso a
+ * consultaReservada() o consultaAnulada(); los oyentes que necesitan la
+ * consulta o el cliente lo redefinen.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public interface OyenteConsultas {
+
+	/**
+	 * Se ha reservado una consulta.
+	 *
+	 * @param idMedico
+	 *            id del medico
+	 * @param fecha
+	 *            fecha de la consulta
+	 */
+	void consultaReservada(int idMedico, Date fecha);
+
+	/**
+	 * Se ha anulado una consulta.
+	 *
+	 * @param idMedico
+	 *            id del medico
+	 * @param fecha
+	 *            fecha de la consulta anulada
+	 */
+	void consultaAnulada(int idMedico, Date fecha);
+
+	/**
+	 * Se ha confirmado una reserva o anulacion.
+	 *
+	 * @param cambio
+	 *            reserva o anulacion confirmada
+	 */
+	default void cambioConfirmado(Cambio cambio) {
+		if (cambio.isReserva())
+			consultaReservada(cambio.getIdMedico(), cambio.getFecha());
+		else
+			consultaAnulada(cambio.getIdMedico(), cambio.getFecha());
+	}
+}
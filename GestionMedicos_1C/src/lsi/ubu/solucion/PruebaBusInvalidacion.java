@@ -0,0 +1,332 @@
+package lsi.ubu.solucion;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import lsi.ubu.util.Plazo;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * PruebaBusInvalidacion:
+ * Prueba el bus de invalidacion por socket con varios procesos en la misma
+ * maquina, sin base de datos.
+ *
+ * Cada nodo es una JVM con su CacheConsultas. Cuando todos se ven, cada uno
+ * guarda en cache un historial de cada uno de los demas y confirma una serie
+ * de cambios. Cada nodo comprueba que recibe todos los cambios de los demas
+ * con un retraso menor que la ventana, que sus historiales de los demas se
+ * han invalidado y que la cache no ha dejado de servir mientras todos
+ * estaban vivos. Despues se para el primer nodo y los demas comprueban que
+ * su cache deja de servir al pasar la ventana.
+ *
+ * Con "tabla" como primer argumento cada nodo usa en su lugar el bus de
+ * tabla (gestionmedicos.bus=tabla) sobre el esquema compartido de la
+ * configuracion: el de JNDI, o H2 en modo servidor con gestionmedicos.h2.url.
+ * Cada nodo tiene un medico propio, guarda en cache los historiales de los
+ * medicos de los demas y hace reservas reales del suyo. Se comprueba lo
+ * mismo salvo la parada, porque con el bus de tabla el desfase de un nodo
+ * solo depende de sus propios sondeos. Las propiedades gestionmedicos.* se
+ * pasan a los nodos.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class PruebaBusInvalidacion {
+
+	/** Los id_medico de cada nodo empiezan en indice * SEPARACION. */
+	private static final int SEPARACION = 1000000;
+	private static final long ESPERA_MAX_MS = 10000;
+	private static final String CLIENTE = "12345678A";
+	private static final LocalDate DIA_INICIAL = LocalDate.of(2030, 1, 1);
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            "tabla" para usar el bus de tabla (opcional), numero de
+	 *            nodos, cambios por nodo, ventana e intervalo en milisegundos
+	 *            (por defecto 3, 500, 500 y 50)
+	 * @throws Exception
+	 *             si no se pueden lanzar los nodos o preparar el esquema
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("nodo")) {
+			nodo(args);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("nodo-tabla")) {
+			nodoTabla(args);
+			return;
+		}
+		boolean tabla = args.length > 0 && args[0].equals("tabla");
+		int a = tabla ? 1 : 0;
+		int numNodos = args.length > a ? Integer.parseInt(args[a]) : 3;
+		int cambios = args.length > a + 1 ? Integer.parseInt(args[a + 1]) : 500;
+		long ventanaMs = args.length > a + 2 ? Long.parseLong(args[a + 2]) : 500;
+		long intervaloMs = args.length > a + 3 ? Long.parseLong(args[a + 3]) : 50;
+
+		StringBuilder puertos = new StringBuilder();
+		if (tabla) {
+			preparaEsquema(numNodos);
+		} else {
+			for (int i = 0; i < numNodos; i++) {
+				DatagramSocket s = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				puertos.append(i == 0 ? "" : ",").append(s.getLocalPort());
+				s.close();
+			}
+		}
+
+		String jvm = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> procesos = new ArrayList<Process>();
+		List<BufferedReader> salidas = new ArrayList<BufferedReader>();
+		List<PrintWriter> ordenes = new ArrayList<PrintWriter>();
+		for (int i = 0; i < numNodos; i++) {
+			List<String> orden = new ArrayList<String>();
+			orden.add(jvm);
+			if (tabla) {
+				//Misma base de datos que el coordinador; las ultimas -D mandan.
+				for (String p : System.getProperties().stringPropertyNames()) {
+					if (p.startsWith("gestionmedicos."))
+						orden.add("-D" + p + "=" + System.getProperty(p));
+				}
+				orden.add("-Dgestionmedicos.bus=tabla");
+				orden.add("-Dgestionmedicos.bus.ventanaMs=" + ventanaMs);
+				orden.add("-Dgestionmedicos.bus.intervaloMs=" + intervaloMs);
+			}
+			orden.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+					PruebaBusInvalidacion.class.getName(), tabla ? "nodo-tabla" : "nodo", String.valueOf(i),
+					tabla ? String.valueOf(numNodos) : puertos.toString(), String.valueOf(cambios),
+					String.valueOf(ventanaMs), String.valueOf(intervaloMs)));
+			ProcessBuilder pb = new ProcessBuilder(orden);
+			pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+			Process p = pb.start();
+			procesos.add(p);
+			salidas.add(new BufferedReader(new InputStreamReader(p.getInputStream())));
+			ordenes.add(new PrintWriter(p.getOutputStream(), true));
+		}
+
+		if (tabla) {
+			//Las reservas empiezan cuando todos tienen en cache los historiales de los demas.
+			for (int i = 0; i < numNodos; i++) {
+				if (linea(salidas.get(i), "LISTO") == null)
+					System.out.println(i + "\tno arranca");
+			}
+			for (PrintWriter orden : ordenes)
+				orden.println("empieza");
+		}
+
+		boolean correcto = true;
+		System.out.println("NODO\tRECIBIDOS\tESPERADOS\tRETRASO MEDIO(ms)\tMAX(ms)\tPERDIDOS\tDESFASES\tINVALIDADOS");
+		for (int i = 0; i < numNodos; i++) {
+			String[] r = linea(salidas.get(i), "RESULTADO");
+			if (r == null) {
+				System.out.println(i + "\tsin resultado");
+				correcto = false;
+				continue;
+			}
+			System.out.println(String.join("\t", Arrays.copyOfRange(r, 1, r.length)));
+			correcto &= r[2].equals(r[3]) && Long.parseLong(r[5]) <= ventanaMs && r[7].equals("0")
+					&& r[8].equals("true");
+		}
+
+		if (tabla) {
+			for (PrintWriter orden : ordenes)
+				orden.println("fin");
+		} else {
+			//Se para el primer nodo: los demas deben dejar de servir al pasar la ventana.
+			ordenes.get(0).println("fin");
+		}
+		for (int i = 1; i < numNodos && !tabla; i++) {
+			String[] r = linea(salidas.get(i), "PARADA");
+			boolean cerrada = r != null && r[2].equals("true");
+			System.out.println(i + "\tcache sin servir tras parar el nodo 0: " + (r == null ? "?" : r[2])
+					+ (r == null ? "" : " (" + r[3] + " ms)"));
+			correcto &= cerrada;
+		}
+		for (Process p : procesos)
+			p.waitFor();
+
+		if (correcto)
+			System.out.println("OK: Los " + numNodos + " nodos se invalidan dentro de la ventana de " + ventanaMs + " ms");
+		else
+			System.out.println("MAL: El bus de invalidacion no cumple la ventana de " + ventanaMs + " ms");
+	}
+
+	/**
+	 * Deja el esquema con los datos de prueba (inicializa_test vacia tambien
+	 * cambio_consulta) y un medico por nodo.
+	 */
+	private static void preparaEsquema(int numNodos) throws SQLException {
+		Connection con = null;
+		CallableStatement cll_reinicia = null;
+		PreparedStatement st = null;
+		try {
+			con = PoolDeConexiones.getInstance().getConnection();
+			cll_reinicia = con.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+			st = con.prepareStatement(
+					"INSERT INTO medico VALUES (seq_medico.nextval, ?, 'Nodo', ?, 'Bus', 'Medicina General', 0)");
+			for (int i = 0; i < numNodos; i++) {
+				st.setString(1, nif(i));
+				st.setString(2, String.valueOf(i));
+				st.executeUpdate();
+			}
+			con.commit();
+		} finally {
+			if (st != null) st.close();
+			if (cll_reinicia != null) cll_reinicia.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/** @return NIF del medico del nodo */
+	private static String nif(int indice) {
+		return String.format("PB%07d", indice);
+	}
+
+	private static String[] linea(BufferedReader salida, String prefijo) throws Exception {
+		String l;
+		while ((l = salida.readLine()) != null) {
+			if (l.startsWith(prefijo + " "))
+				return l.split(" ");
+		}
+		return null;
+	}
+
+	/**
+	 * Un nodo: nodo indice puertos cambios ventanaMs intervaloMs.
+	 */
+	private static void nodo(String[] args) throws Exception {
+		int indice = Integer.parseInt(args[1]);
+		String[] puertos = args[2].split(",");
+		int cambios = Integer.parseInt(args[3]);
+		long ventanaMs = Long.parseLong(args[4]);
+		long intervaloMs = Long.parseLong(args[5]);
+
+		List<InetSocketAddress> otros = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < puertos.length; i++) {
+			if (i != indice)
+				otros.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(puertos[i])));
+		}
+		CacheConsultas cache = CacheConsultas.getInstance();
+		//Un historial en cache de cada uno de los otros nodos; sus primeros cambios lo invalidan.
+		//Se guarda antes de arrancar el bus: los demas no envian cambios hasta que lo oyen.
+		List<FilaConsulta> vacio = Collections.emptyList();
+		for (int i = 0; i < puertos.length; i++) {
+			if (i != indice)
+				cache.guarda("M" + i, i * SEPARACION, cache.version(i * SEPARACION), vacio);
+		}
+
+		BusInvalidacionSocket bus = new BusInvalidacionSocket(cache, Integer.parseInt(puertos[indice]), otros,
+				ventanaMs, intervaloMs);
+
+		long limite = System.currentTimeMillis() + ESPERA_MAX_MS;
+		while ((!bus.isConectado() || cache.isDesfasada()) && System.currentTimeMillis() < limite)
+			Thread.sleep(intervaloMs);
+
+		long desfases = 0;
+		Date fecha = new Date();
+		for (int k = 0; k < cambios; k++) {
+			GestionMedicos.avisa(new Cambio(true, k, indice * SEPARACION + k, "12345678A", fecha));
+			if (cache.isDesfasada())
+				desfases++;
+			Thread.sleep(1);
+		}
+		long esperados = (long) cambios * otros.size();
+		limite = System.currentTimeMillis() + ESPERA_MAX_MS;
+		while (bus.getInvalidaciones() < esperados && System.currentTimeMillis() < limite) {
+			if (cache.isDesfasada())
+				desfases++;
+			Thread.sleep(intervaloMs);
+		}
+		boolean invalidados = true;
+		for (int i = 0; i < puertos.length; i++) {
+			if (i != indice && cache.busca("M" + i) != null)
+				invalidados = false;
+		}
+		System.out.println(String.format(Locale.ROOT, "RESULTADO %d %d %d %.1f %d %d %d %s", indice,
+				bus.getInvalidaciones(), esperados, bus.getRetrasoMedioMs(), bus.getRetrasoMaxMs(),
+				bus.getPerdidos(), desfases, invalidados));
+
+		if (indice == 0) {
+			//Sigue enviando latidos hasta que el coordinador lo pare.
+			new BufferedReader(new InputStreamReader(System.in)).readLine();
+			bus.close();
+			return;
+		}
+		long inicio = System.nanoTime();
+		limite = System.currentTimeMillis() + ESPERA_MAX_MS;
+		while (!cache.isDesfasada() && System.currentTimeMillis() < limite)
+			Thread.sleep(5);
+		System.out.println("PARADA " + indice + " " + cache.isDesfasada() + " " + (System.nanoTime() - inicio) / 1000000);
+		bus.close();
+	}
+
+	/**
+	 * Un nodo con el bus de tabla: nodo-tabla indice nodos reservas ventanaMs
+	 * intervaloMs. El bus lo arranca la cache con gestionmedicos.bus=tabla.
+	 */
+	private static void nodoTabla(String[] args) throws Exception {
+		int indice = Integer.parseInt(args[1]);
+		int numNodos = Integer.parseInt(args[2]);
+		int reservas = Integer.parseInt(args[3]);
+		long intervaloMs = Long.parseLong(args[5]);
+
+		CacheConsultas cache = CacheConsultas.getInstance();
+		BusInvalidacion bus = BusInvalidacion.getInstance();
+		if (bus == null)
+			throw new IllegalStateException("No se ha arrancado el bus de tabla");
+		//Un historial en cache del medico de cada uno de los otros nodos.
+		for (int i = 0; i < numNodos; i++) {
+			if (i != indice)
+				GestionMedicos.historial_medico(nif(i), false, Plazo.porDefecto());
+		}
+		BufferedReader orden = new BufferedReader(new InputStreamReader(System.in));
+		System.out.println("LISTO " + indice);
+		orden.readLine();
+
+		long desfases = 0;
+		for (int k = 0; k < reservas; k++) {
+			GestionMedicos.reservar_consulta(CLIENTE, nif(indice), java.sql.Date.valueOf(DIA_INICIAL.plusDays(k)));
+			if (cache.isDesfasada())
+				desfases++;
+		}
+		long esperados = (long) reservas * (numNodos - 1);
+		long limite = System.currentTimeMillis() + ESPERA_MAX_MS;
+		while (bus.getInvalidaciones() < esperados && System.currentTimeMillis() < limite) {
+			if (cache.isDesfasada())
+				desfases++;
+			Thread.sleep(intervaloMs);
+		}
+		//Los historiales de los demas ya no se sirven de la cache y se leen con todas sus reservas.
+		boolean invalidados = true;
+		for (int i = 0; i < numNodos; i++) {
+			if (i != indice && (cache.busca(nif(i)) != null
+					|| GestionMedicos.historial_medico(nif(i), false, Plazo.porDefecto()).size() != reservas))
+				invalidados = false;
+		}
+		System.out.println(String.format(Locale.ROOT, "RESULTADO %d %d %d %.1f %d %d %d %s", indice,
+				bus.getInvalidaciones(), esperados, bus.getRetrasoMedioMs(), bus.getRetrasoMaxMs(), 0, desfases,
+				invalidados));
+
+		orden.readLine();
+		bus.close();
+	}
+}
@@ -0,0 +1,411 @@
+package lsi.ubu.solucion;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * ReconciliaConsultas:
+ * Comprueba que MEDICO.consultas coincide con las consultas no anuladas de
+ * cada medico, incluidas las archivadas, y corrige las desviaciones.
+ *
+ * Los medicos se recorren por rangos de id_medico, varios a la vez y con
+ * hilos de prioridad minima. El ritmo se limita a un numero de medicos por
+ * segundo para no competir con las operaciones normales. Cada rango se revisa
+ * con una consulta de solo lectura que devuelve los medicos desviados, y cada
+ * uno se corrige en su propia transaccion: se bloquea su fila, se vuelven a
+ * contar sus consultas y se actualiza el contador, de modo que no se pisa una
+ * reserva o anulacion que llegue a la vez.
+ *
+ * Los rangos terminados se anotan en un fichero de control; si el trabajo se
+ * interrumpe, al volver a lanzarlo con el mismo fichero se salta lo ya
+ * revisado. El fichero se borra al terminar.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ReconciliaConsultas {
+
+	private static Logger logger = LoggerFactory.getLogger(ReconciliaConsultas.class);
+
+	private static final String SQL_LIMITES = "SELECT MIN(id_medico), MAX(id_medico) FROM medico";
+
+	/** Medicos del rango cuyo contador no coincide con sus consultas activas. */
+	private static final String SQL_DESVIADOS = "SELECT m.id_medico, m.consultas, NVL(c.activas,0)"+
+			" FROM medico m LEFT JOIN (SELECT id_medico, COUNT(*) activas FROM consulta_completa"+
+			" WHERE id_medico BETWEEN ? AND ? AND id_anulacion IS NULL"+
+			" GROUP BY id_medico) c ON c.id_medico=m.id_medico"+
+			" WHERE m.id_medico BETWEEN ? AND ? AND m.consultas<>NVL(c.activas,0)";
+
+	private static final String SQL_BLOQUEA = "SELECT consultas FROM medico WHERE id_medico=? FOR UPDATE";
+
+	private static final String SQL_ACTIVAS = "SELECT COUNT(*) FROM consulta_completa"+
+			" WHERE id_medico=? AND id_anulacion IS NULL";
+
+	private static final String SQL_CORRIGE = "UPDATE medico SET consultas=? WHERE id_medico=?";
+
+	private static final String CABECERA_CONTROL = "tamRango=";
+
+	private int hilos = 2;
+	private int tamRango = 1000;
+	private double medicosPorSegundo = 0;
+	private Path control = Paths.get("reconcilia_consultas.control");
+
+	/** Instante en nanosegundos a partir del cual se puede empezar otro rango. */
+	private long siguienteTurno;
+
+	private final AtomicLong revisados = new AtomicLong();
+	private final AtomicLong desviaciones = new AtomicLong();
+	private final AtomicLong reparadas = new AtomicLong();
+
+	/**
+	 * Resultado de una reconciliacion.
+	 */
+	public static class Resultado {
+		private final int rangos;
+		private final int saltados;
+		private final long revisados;
+		private final long desviaciones;
+		private final long reparadas;
+		private final long nanos;
+
+		Resultado(int rangos, int saltados, long revisados, long desviaciones, long reparadas, long nanos) {
+			this.rangos = rangos;
+			this.saltados = saltados;
+			this.revisados = revisados;
+			this.desviaciones = desviaciones;
+			this.reparadas = reparadas;
+			this.nanos = nanos;
+		}
+
+		/** @return identificadores de medico revisados en esta ejecucion */
+		public long getRevisados() {
+			return revisados;
+		}
+
+		/** @return medicos con el contador desviado */
+		public long getDesviaciones() {
+			return desviaciones;
+		}
+
+		/** @return contadores corregidos; puede ser menor si otra transaccion ya los corrigio */
+		public long getReparadas() {
+			return reparadas;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d rangos (%d ya revisados), %d ids en %.2f s, %d desviaciones, %d reparadas",
+					rangos, saltados, revisados, nanos / 1e9, desviaciones, reparadas);
+		}
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            opcionalmente, el numero de hilos, los medicos por segundo (0
+	 *            sin limite) y el fichero de control
+	 * @throws Exception
+	 *             si la reconciliacion no se puede completar
+	 */
+	public static void main(String[] args) throws Exception {
+		ReconciliaConsultas r = new ReconciliaConsultas();
+		if (args.length > 0)
+			r.setHilos(Integer.parseInt(args[0]));
+		if (args.length > 1)
+			r.setMedicosPorSegundo(Double.parseDouble(args[1]));
+		if (args.length > 2)
+			r.setControl(Paths.get(args[2]));
+		System.out.println(r.reconcilia());
+	}
+
+	public ReconciliaConsultas setHilos(int hilos) {
+		this.hilos = Math.max(1, hilos);
+		return this;
+	}
+
+	public ReconciliaConsultas setTamRango(int tamRango) {
+		this.tamRango = Math.max(1, tamRango);
+		return this;
+	}
+
+	/**
+	 * @param medicosPorSegundo
+	 *            ids de medico revisados por segundo entre todos los hilos; 0
+	 *            para no limitar
+	 */
+	public ReconciliaConsultas setMedicosPorSegundo(double medicosPorSegundo) {
+		this.medicosPorSegundo = Math.max(0, medicosPorSegundo);
+		return this;
+	}
+
+	public ReconciliaConsultas setControl(Path control) {
+		this.control = control;
+		return this;
+	}
+
+	/**
+	 * Revisa todos los medicos y corrige los contadores desviados.
+	 *
+	 * @return resumen de la ejecucion
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si no se puede usar el fichero de control
+	 */
+	public Resultado reconcilia() throws SQLException, IOException {
+		long inicio = System.nanoTime();
+		revisados.set(0);
+		desviaciones.set(0);
+		reparadas.set(0);
+		siguienteTurno = inicio;
+
+		long[] limites = limites();
+		if (limites == null) {
+			Files.deleteIfExists(control);
+			return new Resultado(0, 0, 0, 0, 0, System.nanoTime() - inicio);
+		}
+
+		Set<Long> hechos = leeControl();
+		List<Long> pendientes = new ArrayList<Long>();
+		int rangos = 0;
+		for (long desde = limites[0]; desde <= limites[1]; desde += tamRango) {
+			rangos++;
+			if (!hechos.contains(desde))
+				pendientes.add(desde);
+		}
+		final long maximo = limites[1];
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos, r -> {
+			Thread t = new Thread(r, "reconcilia-consultas");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		try {
+			List<Future<?>> tareas = new ArrayList<Future<?>>();
+			for (final long desde : pendientes) {
+				tareas.add(ejecutor.submit(() -> {
+					long hasta = Math.min(maximo, desde + tamRango - 1);
+					esperaTurno(hasta - desde + 1);
+					revisaRango(desde, hasta);
+					anotaControl(desde);
+					return null;
+				}));
+			}
+			for (Future<?> f : tareas)
+				f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Reconciliacion interrumpida", e);
+		} finally {
+			ejecutor.shutdownNow();
+		}
+
+		Files.deleteIfExists(control);
+		Resultado r = new Resultado(rangos, rangos - pendientes.size(), revisados.get(), desviaciones.get(),
+				reparadas.get(), System.nanoTime() - inicio);
+		logger.info(r.toString());
+		return r;
+	}
+
+	/**
+	 * @return menor y mayor id_medico, o null si no hay medicos
+	 */
+	private long[] limites() throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = pool.getConnection();
+			st = con.prepareStatement(SQL_LIMITES);
+			rs = st.executeQuery();
+			rs.next();
+			long min = rs.getLong(1);
+			if (rs.wasNull())
+				return null;
+			return new long[] { min, rs.getLong(2) };
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Espera hasta que el limite de ritmo permita revisar n medicos mas. El
+	 * turno se reserva bajo el cerrojo y se duerme fuera de el.
+	 */
+	private void esperaTurno(long n) throws InterruptedException {
+		if (medicosPorSegundo == 0)
+			return;
+		long turno;
+		synchronized (this) {
+			long ahora = System.nanoTime();
+			turno = Math.max(siguienteTurno, ahora);
+			siguienteTurno = turno + (long) (n * 1e9 / medicosPorSegundo);
+		}
+		long espera = turno - System.nanoTime();
+		if (espera > 0)
+			Thread.sleep(espera / 1000000, (int) (espera % 1000000));
+	}
+
+	/**
+	 * Busca los medicos desviados del rango y los corrige uno a uno.
+	 */
+	private void revisaRango(long desde, long hasta) throws SQLException {
+		PoolDeConexiones pool = PoolDeConexiones.getInstance();
+		Connection con = null;
+		PreparedStatement st_desviados = null;
+		ResultSet rs = null;
+		List<Long> desviados = new ArrayList<Long>();
+
+		try {
+			con = pool.getConnection();
+
+			//Se buscan los desviados sin bloquear nada.
+			st_desviados = con.prepareStatement(SQL_DESVIADOS);
+			st_desviados.setLong(1, desde);
+			st_desviados.setLong(2, hasta);
+			st_desviados.setLong(3, desde);
+			st_desviados.setLong(4, hasta);
+			rs = st_desviados.executeQuery();
+			while (rs.next()) {
+				desviados.add(rs.getLong(1));
+				logger.debug("Medico {}: consultas={} y tiene {} activas", rs.getLong(1), rs.getInt(2), rs.getInt(3));
+			}
+			rs.close();
+			rs = null;
+			con.commit();
+			revisados.addAndGet(hasta - desde + 1);
+			desviaciones.addAndGet(desviados.size());
+
+			for (long id : desviados)
+				corrige(con, id);
+		} catch (SQLException e) {
+			if (con != null) con.rollback();
+			logger.error(e.getMessage());
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st_desviados != null) st_desviados.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Corrige el contador de un medico en una transaccion corta.
+	 */
+	private void corrige(Connection con, long id_medico) throws SQLException {
+		PreparedStatement st_bloquea = null;
+		PreparedStatement st_activas = null;
+		PreparedStatement st_corrige = null;
+		ResultSet rs = null;
+
+		try {
+			//Se bloquea la fila del medico, igual que reservar y anular.
+			st_bloquea = con.prepareStatement(SQL_BLOQUEA);
+			st_bloquea.setLong(1, id_medico);
+			rs = st_bloquea.executeQuery();
+			if (!rs.next()) {
+				con.rollback();
+				return;
+			}
+			int consultas = rs.getInt(1);
+			rs.close();
+
+			//Se recuentan las activas con la fila ya bloqueada.
+			st_activas = con.prepareStatement(SQL_ACTIVAS);
+			st_activas.setLong(1, id_medico);
+			rs = st_activas.executeQuery();
+			rs.next();
+			int activas = rs.getInt(1);
+			rs.close();
+			rs = null;
+
+			if (consultas == activas) {
+				con.rollback();
+				return;
+			}
+			st_corrige = con.prepareStatement(SQL_CORRIGE);
+			st_corrige.setInt(1, activas);
+			st_corrige.setLong(2, id_medico);
+			st_corrige.executeUpdate();
+			con.commit();
+			reparadas.incrementAndGet();
+			logger.info("Medico {}: consultas corregido de {} a {}", id_medico, consultas, activas);
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st_bloquea != null) st_bloquea.close();
+			if (st_activas != null) st_activas.close();
+			if (st_corrige != null) st_corrige.close();
+		}
+	}
+
+	/**
+	 * Lee los rangos ya revisados. Si el fichero es de otro tamano de rango no
+	 * sirve y se empieza de nuevo.
+	 */
+	private Set<Long> leeControl() throws IOException {
+		Set<Long> hechos = new HashSet<Long>();
+		String cabecera = CABECERA_CONTROL + tamRango;
+		if (Files.exists(control)) {
+			List<String> lineas = Files.readAllLines(control, StandardCharsets.UTF_8);
+			if (lineas.isEmpty() || !lineas.get(0).equals(cabecera)) {
+				logger.warn("Fichero de control {} de otra ejecucion, se empieza de nuevo", control);
+			} else {
+				for (String l : lineas.subList(1, lineas.size())) {
+					//La ultima linea puede estar a medias si se corto la escritura.
+					try {
+						hechos.add(Long.parseLong(l.trim()));
+					} catch (NumberFormatException e) {
+						logger.debug("Linea de control ignorada: {}", l);
+					}
+				}
+				logger.info("Se reanuda desde {}: {} rangos ya revisados", control, hechos.size());
+				return hechos;
+			}
+		}
+		Files.write(control, Collections.singletonList(cabecera), StandardCharsets.UTF_8);
+		return hechos;
+	}
+
+	private synchronized void anotaControl(long desde) throws IOException {
+		Files.write(control, Collections.singletonList(Long.toString(desde)), StandardCharsets.UTF_8,
+				StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+	}
+}
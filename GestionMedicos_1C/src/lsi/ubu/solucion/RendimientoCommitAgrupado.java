@@ -0,0 +1,107 @@
+package lsi.ubu.solucion;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * RendimientoCommitAgrupado:
+ * Compara el rendimiento de las reservas con commit individual y con commit
+ * agrupado para varias ventanas, midiendo reservas por segundo y latencia.
+ *
+ * Cada reserva es para un dia distinto, alternando entre los medicos de
+ * inicializa_test, para que ninguna falle por medico ocupado.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class RendimientoCommitAgrupado {
+
+	private static final String[] MEDICOS = { "222222B", "8766788Y" };
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            numero de hilos, reservas por hilo y ventanas en microsegundos
+	 *            (por defecto 8 hilos, 200 reservas y ventanas 500, 2000 y 5000)
+	 * @throws Exception
+	 *             si hay un error con la base de datos
+	 */
+	public static void main(String[] args) throws Exception {
+		int hilos = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int reservas = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		long[] ventanas = args.length > 2
+				? Arrays.stream(args, 2, args.length).mapToLong(Long::parseLong).toArray()
+				: new long[] { 500, 2000, 5000 };
+
+		System.out.println("MODO\t\t\tRESERVAS/S\tMEDIA(ms)\tP99(ms)\tOPS/COMMIT");
+		System.out.println(mide("individual", null, hilos, reservas));
+		for (long v : ventanas) {
+			CommitAgrupado grupo = new CommitAgrupado(v, 64);
+			String r = mide("agrupado " + v + "us", grupo, hilos, reservas);
+			grupo.close();
+			System.out.println(r + String.format("\t%.1f", grupo.getOperacionesPorGrupo()));
+		}
+		GestionMedicos.setCommitAgrupado(null);
+	}
+
+	private static String mide(String modo, CommitAgrupado grupo, int hilos, final int reservas)
+			throws Exception {
+		reinicia();
+		GestionMedicos.setCommitAgrupado(grupo);
+		final long[] latencias = new long[hilos * reservas];
+		final AtomicInteger siguiente = new AtomicInteger();
+		final AtomicInteger errores = new AtomicInteger();
+		final Date base = Misc.addDays(Misc.getCurrentDate(), 1000);
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		long inicio = System.nanoTime();
+		for (int h = 0; h < hilos; h++) {
+			ejecutor.execute(() -> {
+				for (int i = 0; i < reservas; i++) {
+					int n = siguiente.getAndIncrement();
+					long t0 = System.nanoTime();
+					try {
+						GestionMedicos.reservar_consulta("12345678A", MEDICOS[n % MEDICOS.length],
+								Misc.addDays(base, n));
+					} catch (SQLException e) {
+						errores.incrementAndGet();
+					}
+					latencias[n] = System.nanoTime() - t0;
+				}
+			});
+		}
+		ejecutor.shutdown();
+		ejecutor.awaitTermination(1, TimeUnit.HOURS);
+		long total = System.nanoTime() - inicio;
+
+		Arrays.sort(latencias);
+		double media = Arrays.stream(latencias).average().orElse(0) / 1e6;
+		double p99 = latencias[(int) (latencias.length * 0.99)] / 1e6;
+		return String.format("%-20s\t%.0f\t\t%.2f\t\t%.2f%s", modo, latencias.length * 1e9 / total, media, p99,
+				errores.get() > 0 ? " (" + errores.get() + " errores)" : "");
+	}
+
+	private static void reinicia() throws SQLException {
+		Connection conn = null;
+		CallableStatement cll_reinicia = null;
+		try {
+			conn = PoolDeConexiones.getInstance().getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+		} finally {
+			if (cll_reinicia != null) cll_reinicia.close();
+			if (conn != null) conn.close();
+		}
+	}
+}
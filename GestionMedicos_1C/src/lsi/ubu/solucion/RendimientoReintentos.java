@@ -0,0 +1,106 @@
+package lsi.ubu.solucion;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsi.ubu.util.Plazo;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Reintentos;
+
+/**
+ * RendimientoReintentos:
+ * Compara las transacciones confirmadas por segundo con contencion, sin
+ * reintentos y con los reintentos configurados.
+ *
+ * Cada transaccion reserva una consulta con cada medico de inicializa_test,
+ * en un orden u otro segun el hilo, asi que las filas de medico se bloquean
+ * en orden opuesto y se producen interbloqueos. Sin reintentos esas
+ * transacciones se pierden; con reintentos se repiten con otra conexion.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class RendimientoReintentos {
+
+	private static final String[] MEDICOS = { "222222B", "8766788Y" };
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            numero de hilos y transacciones por hilo (por defecto 8 y 100)
+	 * @throws Exception
+	 *             si hay un error con la base de datos
+	 */
+	public static void main(String[] args) throws Exception {
+		int hilos = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int transacciones = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		System.out.println("MODO\t\tCONFIRMADAS/S\tCONFIRMADAS\tFALLIDAS\tREINTENTOS");
+		System.out.println(mide("sin reintentos", new Reintentos(0, 0, 0, 0), hilos, transacciones));
+		System.out.println(mide("con reintentos", null, hilos, transacciones));
+		Reintentos.setInstance(null);
+	}
+
+	private static String mide(String modo, Reintentos reintentos, int hilos, final int transacciones)
+			throws Exception {
+		reinicia();
+		Reintentos.setInstance(reintentos);
+		final Reintentos r = Reintentos.getInstance();
+		final AtomicInteger siguiente = new AtomicInteger();
+		final AtomicInteger confirmadas = new AtomicInteger();
+		final AtomicInteger fallidas = new AtomicInteger();
+		final Date base = Misc.addDays(Misc.getCurrentDate(), 1000);
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		long inicio = System.nanoTime();
+		for (int h = 0; h < hilos; h++) {
+			final int orden = h % 2;
+			ejecutor.execute(() -> {
+				for (int i = 0; i < transacciones; i++) {
+					final Date fecha = Misc.addDays(base, siguiente.getAndIncrement());
+					final Plazo plazo = Plazo.porDefecto();
+					try {
+						r.ejecuta("rendimiento", plazo, () -> {
+							try (UnidadDeTrabajo uw = new UnidadDeTrabajo(plazo)) {
+								uw.reservar_consulta("12345678A", MEDICOS[orden], fecha);
+								uw.reservar_consulta("87654321B", MEDICOS[1 - orden], fecha);
+								uw.commit();
+							}
+							return null;
+						});
+						confirmadas.incrementAndGet();
+					} catch (SQLException e) {
+						fallidas.incrementAndGet();
+					}
+				}
+			});
+		}
+		ejecutor.shutdown();
+		ejecutor.awaitTermination(1, TimeUnit.HOURS);
+		long total = System.nanoTime() - inicio;
+
+		return String.format("%-16s%.0f\t\t%d\t\t%d\t\t%d", modo, confirmadas.get() * 1e9 / total,
+				confirmadas.get(), fallidas.get(), r.getReintentos());
+	}
+
+	private static void reinicia() throws SQLException {
+		Connection conn = null;
+		CallableStatement cll_reinicia = null;
+		try {
+			conn = PoolDeConexiones.getInstance().getConnection();
+			cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+			cll_reinicia.execute();
+		} finally {
+			if (cll_reinicia != null) cll_reinicia.close();
+			if (conn != null) conn.close();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package lsi.ubu.solucion;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsi.ubu.util.Dialecto;
+import lsi.ubu.util.DialectoH2;
+import lsi.ubu.util.EnrutadorShards;
+import lsi.ubu.util.ExecuteScript;
+import lsi.ubu.util.PoolDeConexiones;
+
+/**
+ * RendimientoShards:
+ * Mide las reservas por segundo con 1, 2, ... N shards y comprueba que
+ * crecen casi en proporcion al numero de shards.
+ *
+ * Cada shard se reinicia con inicializa_test y recibe su parte de los
+ * medicos de la prueba segun EnrutadorShards. Los hilos crecen con los
+ * shards para que la carga por shard sea la misma; cada reserva es para un
+ * par medico y dia distinto, asi que ninguna falla por medico ocupado.
+ *
+ * Los shards son recursos JNDI con el esquema de gestion_medicos.sql o,
+ * con -h2=N y el dialecto h2, N bases de datos H2 en memoria
+ * (jdbc:h2:mem:shard1 ... shardN) registradas con PoolDeConexiones.registra
+ * y con el esquema cargado en cada una. Los shards embebidos comparten la
+ * CPU de la JVM, asi que la aceleracion queda limitada por sus nucleos.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class RendimientoShards {
+
+	/** Medicos de la prueba, repartidos entre los shards. */
+	private static final int MEDICOS = 64;
+
+	/** Eficiencia minima respecto a un solo shard para dar la prueba por buena. */
+	private static final double EFICIENCIA_MINIMA = 0.7;
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            nombres JNDI de los shards, o -h2=N para N shards H2 en
+	 *            memoria; opcionalmente -hilos=N (hilos por shard, 4 por
+	 *            defecto) y -reservas=N (reservas por hilo, 200 por defecto)
+	 * @throws Exception
+	 *             si hay un error con la base de datos
+	 */
+	public static void main(String[] args) throws Exception {
+		int hilosPorShard = 4;
+		int reservas = 200;
+		List<String> nombres = new ArrayList<String>();
+		for (String a : args) {
+			if (a.startsWith("-hilos="))
+				hilosPorShard = Integer.parseInt(a.substring(7));
+			else if (a.startsWith("-reservas="))
+				reservas = Integer.parseInt(a.substring(10));
+			else if (a.startsWith("-h2="))
+				nombres.addAll(shardsEmbebidos(Integer.parseInt(a.substring(4))));
+			else
+				nombres.add(a);
+		}
+		if (nombres.isEmpty()) {
+			System.out.println("Uso: RendimientoShards [-hilos=N] [-reservas=N] -h2=N | <jndi shard 1> [<jndi shard 2> ...]");
+			return;
+		}
+		List<PoolDeConexiones> pools = new ArrayList<PoolDeConexiones>();
+		for (String nombre : nombres)
+			pools.add(PoolDeConexiones.getInstance(nombre));
+		System.out.println(mide(pools, hilosPorShard, reservas));
+	}
+
+	/**
+	 * Crea n bases de datos H2 en memoria, las registra como los pools
+	 * jdbc/shard1 ... jdbc/shardN y carga en cada una el esquema.
+	 *
+	 * @return nombres de los pools
+	 * @throws SQLException
+	 *             si el dialecto no es h2 o falla el script
+	 */
+	static List<String> shardsEmbebidos(int n) throws SQLException {
+		if (!Dialecto.actual().getNombre().equals("h2"))
+			throw new SQLException("Los shards embebidos necesitan -Dgestionmedicos.dialecto=h2");
+		DialectoH2 h2 = (DialectoH2) Dialecto.actual();
+		String script = "sql/" + h2.getScript();
+		List<String> nombres = new ArrayList<String>();
+		for (int k = 1; k <= n; k++) {
+			String nombre = "jdbc/shard" + k;
+			PoolDeConexiones pool = PoolDeConexiones.registra(nombre,
+					h2.creaDataSource(DialectoH2.urlMemoria("shard" + k)));
+			Connection con = null;
+			try (Reader entrada = Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) {
+				con = pool.getConnection();
+				ExecuteScript.run(con, script, entrada);
+			} catch (IOException e) {
+				throw new SQLException("No se puede leer el script " + script, e);
+			} finally {
+				if (con != null) con.close();
+			}
+			nombres.add(nombre);
+		}
+		return nombres;
+	}
+
+	/**
+	 * Mide el rendimiento con los primeros 1, 2, ... N pools como shards.
+	 *
+	 * @return tabla de resultados con una linea OK/MAL por numero de shards
+	 * @throws Exception
+	 *             si hay un error con la base de datos
+	 */
+	public static String mide(List<PoolDeConexiones> pools, int hilosPorShard, int reservas) throws Exception {
+		StringBuilder sb = new StringBuilder("SHARDS\tHILOS\tRESERVAS/S\tACELERACION\tEFICIENCIA\n");
+		double base = 0;
+		List<String> veredictos = new ArrayList<String>();
+		for (int n = 1; n <= pools.size(); n++) {
+			EnrutadorShards enrutador = new EnrutadorShards(pools.subList(0, n), EnrutadorShards.NODOS_VIRTUALES);
+			GestionMedicosShards gestion = new GestionMedicosShards(enrutador);
+			String[] medicos = prepara(gestion);
+			int hilos = hilosPorShard * n;
+			double porSegundo = mide(gestion, medicos, hilos, reservas);
+			if (n == 1)
+				base = porSegundo;
+			double aceleracion = porSegundo / base;
+			double eficiencia = aceleracion / n;
+			sb.append(String.format("%d\t%d\t%.0f\t\t%.2f\t\t%.2f%n", n, hilos, porSegundo, aceleracion, eficiencia));
+			if (n > 1)
+				veredictos.add(String.format("%s: %d shards dan %.2f veces el rendimiento de uno (eficiencia %.2f)",
+						eficiencia >= EFICIENCIA_MINIMA ? "OK" : "MAL", n, aceleracion, eficiencia));
+		}
+		for (String v : veredictos)
+			sb.append(v).append('\n');
+		return sb.toString();
+	}
+
+	private static double mide(final GestionMedicosShards gestion, final String[] medicos, int hilos,
+			final int reservas) throws InterruptedException {
+		final AtomicInteger siguiente = new AtomicInteger();
+		final AtomicInteger errores = new AtomicInteger();
+		final Date base = Misc.addDays(Misc.getCurrentDate(), 1000);
+
+		ExecutorService ejecutor = Executors.newFixedThreadPool(hilos);
+		long inicio = System.nanoTime();
+		for (int h = 0; h < hilos; h++) {
+			ejecutor.execute(() -> {
+				for (int i = 0; i < reservas; i++) {
+					int n = siguiente.getAndIncrement();
+					try {
+						gestion.reservar_consulta("12345678A", medicos[n % medicos.length],
+								Misc.addDays(base, n / medicos.length));
+					} catch (SQLException e) {
+						errores.incrementAndGet();
+					}
+				}
+			});
+		}
+		ejecutor.shutdown();
+		ejecutor.awaitTermination(1, TimeUnit.HOURS);
+		long total = System.nanoTime() - inicio;
+		if (errores.get() > 0)
+			System.out.println("MAL: " + errores.get() + " reservas con error");
+		return (siguiente.get() - errores.get()) * 1e9 / total;
+	}
+
+	/**
+	 * Reinicia los shards y da de alta los medicos de la prueba.
+	 *
+	 * @return NIF de los medicos
+	 */
+	private static String[] prepara(GestionMedicosShards gestion) throws SQLException {
+		for (PoolDeConexiones pool : gestion.getEnrutador().getShards()) {
+			Connection conn = null;
+			CallableStatement cll_reinicia = null;
+			try {
+				conn = pool.getConnection();
+				cll_reinicia = conn.prepareCall("{call inicializa_test()}");
+				cll_reinicia.execute();
+			} finally {
+				if (cll_reinicia != null) cll_reinicia.close();
+				if (conn != null) conn.close();
+			}
+		}
+		String[] medicos = new String[MEDICOS];
+		for (int i = 0; i < MEDICOS; i++) {
+			medicos[i] = GeneradorDatos.nif(i, 7919, 60000000);
+			gestion.alta_medico(medicos[i], "Medico", "Prueba", "Shard", "Medicina General");
+		}
+		int[] porShard = new int[gestion.getEnrutador().getNumShards()];
+		for (String m : medicos)
+			porShard[gestion.getEnrutador().shard(m)]++;
+		System.out.println("Medicos por shard: " + Arrays.toString(porShard));
+		return medicos;
+	}
+}
@@ -0,0 +1,451 @@
+package lsi.ubu.solucion;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.Plazo;
+
+/**
+ * ServicioHttp:
+ * Servicio HTTP/JSON con las operaciones de GestionMedicos, sobre el
+ * servidor HTTP de la JDK y sin servidor de aplicaciones.
+ *
+ * POST /consultas             reserva (cliente, medico, fecha)
+ * POST /anulaciones           anula (cliente, medico, fecha, fechaAnulacion, motivo)
+ * GET  /medicos/{NIF}/consultas[?completo=true]   historial del medico
+ * GET  /salud                 comprobacion para el balanceador
+ *
+ * Los parametros van en la URL o en el cuerpo como
+ * application/x-www-form-urlencoded, y las fechas como dd-MM-yyyy. El
+ * historial se lee entero con historial_medico (cache y reintentos) y se
+ * serializa a JSON fila a fila con codificacion chunked, sin montar el
+ * documento en memoria; el resto de respuestas llevan Content-Length para
+ * que la conexion se reutilice (keep-alive).
+ *
+ * Cada peticion se atiende en un hilo virtual si la JVM los tiene (Java 21
+ * o posterior) y si no en un pool de hilos que crece segun la carga. Los
+ * errores de GestionMedicosException se devuelven con su codigo:
+ * inexistentes 404, medico ocupado y consulta que no se puede anular 409,
+ * motivo vacio 400 y tiempo agotado 503.
+ *
+ * Puerto con la propiedad del sistema gestionmedicos.http.puerto (8080 por
+ * defecto).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ServicioHttp implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(ServicioHttp.class);
+
+	/** Tamaño maximo del cuerpo de una peticion. */
+	private static final int MAX_CUERPO = 4096;
+
+	private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+	private static final byte[] JSON_SALUD = "{\"estado\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+
+	private final HttpServer servidor;
+	private final ExecutorService ejecutor;
+
+	/**
+	 * Parametro que falta o no es valido.
+	 */
+	private static class PeticionIncorrecta extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final int estado;
+
+		PeticionIncorrecta(int estado, String mensaje) {
+			super(mensaje);
+			this.estado = estado;
+		}
+	}
+
+	private ServicioHttp(HttpServer servidor, ExecutorService ejecutor) {
+		this.servidor = servidor;
+		this.ejecutor = ejecutor;
+	}
+
+	/**
+	 * Arranca el servicio.
+	 *
+	 * @param puerto
+	 *            puerto, o 0 para uno libre
+	 * @return el servicio arrancado
+	 * @throws IOException
+	 *             si no se puede abrir el puerto
+	 */
+	public static ServicioHttp arranca(int puerto) throws IOException {
+		//Las cabeceras y el cuerpo se envian por separado: sin TCP_NODELAY cada respuesta
+		//esperaria al ACK retardado del cliente (unos 40 ms). Se lee al crear el primer servidor.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer servidor = HttpServer.create(new InetSocketAddress(puerto), 0);
+		ExecutorService ejecutor = ejecutorPeticiones();
+		servidor.setExecutor(ejecutor);
+		servidor.createContext("/consultas", ServicioHttp::reserva);
+		servidor.createContext("/anulaciones", ServicioHttp::anula);
+		servidor.createContext("/medicos/", ServicioHttp::historial);
+		servidor.createContext("/salud", ex -> responde(ex, 200, JSON_SALUD));
+		servidor.start();
+		logger.info("Servicio HTTP en el puerto {}", servidor.getAddress().getPort());
+		return new ServicioHttp(servidor, ejecutor);
+	}
+
+	/** @return puerto en el que escucha */
+	public int getPuerto() {
+		return servidor.getAddress().getPort();
+	}
+
+	/**
+	 * Deja de aceptar peticiones y espera hasta un segundo a las que estan en
+	 * curso.
+	 */
+	@Override
+	public void close() {
+		servidor.stop(1);
+		ejecutor.shutdown();
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            sin argumentos sirve en el puerto configurado; con 'carga',
+	 *            los clientes concurrentes, el numero de peticiones y la ruta
+	 *            a pedir, lanza una prueba de carga contra un servicio local
+	 * @throws Exception
+	 *             si no se puede arrancar el servicio
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("carga")) {
+			if (args.length < 4) {
+				System.out.println("Uso: ServicioHttp carga <clientes> <peticiones> <ruta>");
+				return;
+			}
+			try (ServicioHttp servicio = arranca(0)) {
+				System.out.println(carga(servicio.getPuerto(), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+						args[3]));
+			}
+			return;
+		}
+		ServicioHttp servicio = arranca(Integer.getInteger("gestionmedicos.http.puerto", 8080));
+		Runtime.getRuntime().addShutdownHook(new Thread(servicio::close));
+	}
+
+	/**
+	 * Un hilo virtual por peticion si la JVM los tiene; si no, hilos de un
+	 * pool que crece segun la carga.
+	 */
+	private static ExecutorService ejecutorPeticiones() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			logger.info("Peticiones HTTP en hilos virtuales");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			final AtomicInteger n = new AtomicInteger();
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "http-peticion-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	private static void reserva(HttpExchange ex) throws IOException {
+		try {
+			Map<String, String> p = parametros(ex, "POST");
+			GestionMedicos.reservar_consulta(obligatorio(p, "cliente"), obligatorio(p, "medico"), fecha(p, "fecha"));
+			responde(ex, 201, "{\"resultado\":\"reservada\"}".getBytes(StandardCharsets.UTF_8));
+		} catch (PeticionIncorrecta e) {
+			error(ex, e.estado, "PETICION_INCORRECTA", 0, e.getMessage());
+		} catch (SQLException e) {
+			error(ex, e);
+		}
+	}
+
+	private static void anula(HttpExchange ex) throws IOException {
+		try {
+			Map<String, String> p = parametros(ex, "POST");
+			GestionMedicos.anular_consulta(obligatorio(p, "cliente"), obligatorio(p, "medico"), fecha(p, "fecha"),
+					fecha(p, "fechaAnulacion"), p.get("motivo"));
+			responde(ex, 200, "{\"resultado\":\"anulada\"}".getBytes(StandardCharsets.UTF_8));
+		} catch (PeticionIncorrecta e) {
+			error(ex, e.estado, "PETICION_INCORRECTA", 0, e.getMessage());
+		} catch (SQLException e) {
+			error(ex, e);
+		}
+	}
+
+	/**
+	 * GET /medicos/{NIF}/consultas: el historial. Las filas se leen antes de
+	 * responder, para no retener una conexion del pool mientras escribe un
+	 * cliente lento; solo el JSON se escribe fila a fila.
+	 */
+	private static void historial(HttpExchange ex) throws IOException {
+		List<FilaConsulta> filas;
+		try {
+			Map<String, String> p = parametros(ex, "GET");
+			String[] partes = ex.getRequestURI().getPath().split("/");
+			if (partes.length != 4 || !partes[3].equals("consultas"))
+				throw new PeticionIncorrecta(404, "Ruta inexistente");
+			filas = GestionMedicos.historial_medico(partes[2], Boolean.parseBoolean(p.get("completo")),
+					Plazo.porDefecto());
+		} catch (PeticionIncorrecta e) {
+			error(ex, e.estado, "PETICION_INCORRECTA", 0, e.getMessage());
+			return;
+		} catch (SQLException e) {
+			error(ex, e);
+			return;
+		}
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(200, 0);
+		StringBuilder sb = new StringBuilder(128);
+		try (OutputStream out = new BufferedOutputStream(ex.getResponseBody(), 8192)) {
+			out.write('[');
+			for (int i = 0; i < filas.size(); i++) {
+				FilaConsulta f = filas.get(i);
+				sb.setLength(0);
+				if (i > 0)
+					sb.append(',');
+				sb.append("{\"idConsulta\":").append(f.getIdConsulta());
+				sb.append(",\"fecha\":\"").append(f.getFecha()).append('"');
+				sb.append(",\"idMedico\":").append(f.getIdMedico());
+				sb.append(",\"nifCliente\":");
+				cadenaJson(sb, f.getNifCliente());
+				sb.append(",\"anulada\":").append(!"No".equals(f.getAnulada())).append('}');
+				out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			out.write(']');
+		}
+	}
+
+	/**
+	 * Comprueba el metodo y lee los parametros de la URL y, si es un
+	 * formulario, del cuerpo. El cuerpo se consume siempre para poder
+	 * reutilizar la conexion.
+	 */
+	private static Map<String, String> parametros(HttpExchange ex, String metodo)
+			throws IOException, PeticionIncorrecta {
+		byte[] cuerpo;
+		try (InputStream in = ex.getRequestBody()) {
+			cuerpo = in.readNBytes(MAX_CUERPO);
+			if (in.read() != -1)
+				throw new PeticionIncorrecta(413, "Cuerpo de mas de " + MAX_CUERPO + " bytes");
+		}
+		if (!ex.getRequestMethod().equals(metodo)) {
+			ex.getResponseHeaders().set("Allow", metodo);
+			throw new PeticionIncorrecta(405, "Metodo no permitido");
+		}
+		Map<String, String> p = new HashMap<String, String>();
+		decodifica(ex.getRequestURI().getRawQuery(), p);
+		if (cuerpo.length > 0)
+			decodifica(new String(cuerpo, StandardCharsets.UTF_8), p);
+		return p;
+	}
+
+	private static void decodifica(String s, Map<String, String> p) {
+		if (s == null || s.isEmpty())
+			return;
+		int i = 0;
+		while (i < s.length()) {
+			int fin = s.indexOf('&', i);
+			if (fin < 0)
+				fin = s.length();
+			int igual = s.indexOf('=', i);
+			if (igual > i && igual < fin) {
+				p.put(URLDecoder.decode(s.substring(i, igual), StandardCharsets.UTF_8),
+						URLDecoder.decode(s.substring(igual + 1, fin), StandardCharsets.UTF_8));
+			}
+			i = fin + 1;
+		}
+	}
+
+	private static String obligatorio(Map<String, String> p, String nombre) throws PeticionIncorrecta {
+		String v = p.get(nombre);
+		if (v == null || v.isEmpty())
+			throw new PeticionIncorrecta(400, "Falta el parametro " + nombre);
+		return v;
+	}
+
+	private static java.sql.Date fecha(Map<String, String> p, String nombre) throws PeticionIncorrecta {
+		String v = obligatorio(p, nombre);
+		try {
+			return java.sql.Date.valueOf(LocalDate.parse(v, FORMATO_FECHA));
+		} catch (DateTimeParseException e) {
+			throw new PeticionIncorrecta(400, "Fecha no valida en " + nombre + ": " + v);
+		}
+	}
+
+	private static void error(HttpExchange ex, SQLException e) throws IOException {
+		if (!(e instanceof GestionMedicosException)) {
+			logger.error(e.getMessage());
+			error(ex, 500, "ERROR_BASE_DATOS", e.getErrorCode(), null);
+			return;
+		}
+		switch (e.getErrorCode()) {
+		case GestionMedicosException.CLIENTE_NO_EXISTE:
+			error(ex, 404, "CLIENTE_NO_EXISTE", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.MEDICO_NO_EXISTE:
+			error(ex, 404, "MEDICO_NO_EXISTE", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.CONSULTA_NO_EXISTE:
+			error(ex, 404, "CONSULTA_NO_EXISTE", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.MEDICO_OCUPADO:
+			error(ex, 409, "MEDICO_OCUPADO", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.CONSULTA_NO_ANULA:
+			error(ex, 409, "CONSULTA_NO_ANULA", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.MOTIVO_VACIO:
+			error(ex, 400, "MOTIVO_VACIO", e.getErrorCode(), null);
+			break;
+		case GestionMedicosException.TIEMPO_AGOTADO:
+			ex.getResponseHeaders().set("Retry-After", "1");
+			error(ex, 503, "TIEMPO_AGOTADO", e.getErrorCode(), null);
+			break;
+		default:
+			error(ex, 500, "ERROR", e.getErrorCode(), null);
+		}
+	}
+
+	private static void error(HttpExchange ex, int estado, String error, int codigo, String mensaje)
+			throws IOException {
+		StringBuilder sb = new StringBuilder("{\"error\":\"").append(error).append("\",\"codigo\":").append(codigo);
+		if (mensaje != null) {
+			sb.append(",\"mensaje\":");
+			cadenaJson(sb, mensaje);
+		}
+		responde(ex, estado, sb.append('}').toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void responde(HttpExchange ex, int estado, byte[] cuerpo) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		ex.sendResponseHeaders(estado, cuerpo.length);
+		try (OutputStream out = ex.getResponseBody()) {
+			out.write(cuerpo);
+		}
+	}
+
+	private static void cadenaJson(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("null");
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Prueba de carga: varios clientes piden la misma ruta por conexiones
+	 * que se reutilizan y se mide la latencia de cada peticion.
+	 *
+	 * @param puerto
+	 *            puerto del servicio en la maquina local
+	 * @param clientes
+	 *            peticiones concurrentes
+	 * @param peticiones
+	 *            peticiones en total
+	 * @param ruta
+	 *            ruta a pedir con GET, por ejemplo /medicos/222222B/consultas
+	 * @return resumen con peticiones por segundo, latencias y respuestas por
+	 *         estado
+	 * @throws InterruptedException
+	 *             si se interrumpe la espera
+	 */
+	public static String carga(int puerto, int clientes, int peticiones, String ruta) throws InterruptedException {
+		HttpClient cliente = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(5)).build();
+		final HttpRequest peticion = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + puerto + ruta))
+				.timeout(Duration.ofSeconds(30)).GET().build();
+		final long[] latencias = new long[peticiones];
+		final AtomicInteger siguiente = new AtomicInteger();
+		final Map<Integer, AtomicLong> estados = new ConcurrentHashMap<Integer, AtomicLong>();
+		final AtomicLong bytes = new AtomicLong();
+
+		ExecutorService hilos = Executors.newFixedThreadPool(clientes);
+		long inicio = System.nanoTime();
+		for (int c = 0; c < clientes; c++) {
+			hilos.execute(() -> {
+				int i;
+				while ((i = siguiente.getAndIncrement()) < peticiones) {
+					long t = System.nanoTime();
+					int estado;
+					try {
+						HttpResponse<byte[]> r = cliente.send(peticion, HttpResponse.BodyHandlers.ofByteArray());
+						estado = r.statusCode();
+						bytes.addAndGet(r.body().length);
+					} catch (IOException e) {
+						estado = -1;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					latencias[i] = System.nanoTime() - t;
+					estados.computeIfAbsent(estado, k -> new AtomicLong()).incrementAndGet();
+				}
+			});
+		}
+		hilos.shutdown();
+		hilos.awaitTermination(1, TimeUnit.HOURS);
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+
+		Arrays.sort(latencias);
+		return String.format("%d peticiones a %s con %d clientes en %.2f s: %.0f peticiones/s, %.1f MB%n"
+				+ "latencia p50 %.2f ms, p99 %.2f ms, max %.2f ms%nrespuestas por estado (-1 es error de red): %s",
+				peticiones, ruta, clientes, segundos, peticiones / segundos, bytes.get() / 1048576.0,
+				percentil(latencias, 0.50), percentil(latencias, 0.99), percentil(latencias, 1.0), estados);
+	}
+
+	private static double percentil(long[] ordenadas, double p) {
+		if (ordenadas.length == 0)
+			return 0;
+		int i = (int) Math.min(ordenadas.length - 1, Math.ceil(p * ordenadas.length) - 1);
+		return ordenadas[Math.max(0, i)] / 1e6;
+	}
+}
@@ -0,0 +1,209 @@
+package lsi.ubu.solucion;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.enunciado.GestionMedicosException;
+import lsi.ubu.util.Plazo;
+import lsi.ubu.util.PoolDeConexiones;
+import lsi.ubu.util.Sentencias;
+
+/**
+ * UnidadDeTrabajo:
+ * Agrupa varias reservas y anulaciones en una sola transaccion.
+ *
+ * Usa una conexion del pool y sus sentencias preparadas para todas las
+ * operaciones, y resuelve el id de cada medico una sola vez. Cada operacion se
+ * ejecuta bajo su propio savepoint: si falla se deshace solo esa operacion y
+ * se lanza su error, y quien la use decide si sigue o abandona la unidad. Al
+ * cerrarla sin commit() se deshace todo.
+ *
+ * Los oyentes de GestionMedicos se avisan tras el commit, en el orden de las
+ * operaciones.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class UnidadDeTrabajo implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(UnidadDeTrabajo.class);
+
+	private final Connection con;
+	private final Sentencias s;
+	private final Plazo plazo;
+	private final Map<String, Integer> idsMedico = new HashMap<String, Integer>();
+
+	/** Avisos pendientes del commit. */
+	private final List<Cambio> avisos = new ArrayList<Cambio>();
+	private boolean terminada = false;
+
+	/**
+	 * Abre la unidad con una conexion del pool y el plazo por defecto.
+	 *
+	 * @throws SQLException
+	 *             si no se puede obtener la conexion
+	 */
+	public UnidadDeTrabajo() throws SQLException {
+		this(Plazo.porDefecto());
+	}
+
+	/**
+	 * Abre la unidad con una conexion del pool. Todas las operaciones de la
+	 * unidad comparten el plazo; si vence, la operacion en curso lanza
+	 * 'tiempo_agotado'.
+	 *
+	 * @param plazo
+	 *            plazo de toda la unidad
+	 * @throws SQLException
+	 *             si no se puede obtener la conexion a tiempo
+	 */
+	public UnidadDeTrabajo(Plazo plazo) throws SQLException {
+		this.plazo = plazo;
+		try {
+			this.con = PoolDeConexiones.getInstance().getConnection(plazo);
+		} catch (SQLException e) {
+			if (GestionMedicos.agotado(e, plazo))
+				throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
+			throw e;
+		}
+		this.s = new Sentencias(con, plazo);
+	}
+
+	/**
+	 * Reserva una consulta dentro de la unidad.
+	 *
+	 * @throws SQLException
+	 *             con el codigo de GestionMedicosException si no se puede
+	 *             reservar; la unidad sigue como antes de la llamada
+	 */
+	public void reservar_consulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta)
+			throws SQLException {
+		compruebaAbierta();
+		Savepoint sp = con.setSavepoint();
+		try {
+			int num_medico = id_medico(m_NIF_medico);
+			int num_consulta = GestionMedicos.reserva(s, m_NIF_cliente, num_medico, m_Fecha_Consulta);
+			avisos.add(new Cambio(true, num_consulta, num_medico, m_NIF_cliente, m_Fecha_Consulta));
+		} catch (SQLException e) {
+			deshaceHasta(sp, e);
+		}
+	}
+
+	/**
+	 * Anula una consulta dentro de la unidad.
+	 *
+	 * @throws SQLException
+	 *             con el codigo de GestionMedicosException si no se puede
+	 *             anular; la unidad sigue como antes de la llamada
+	 */
+	public void anular_consulta(String m_NIF_cliente, String m_NIF_medico, Date m_Fecha_Consulta,
+			Date m_Fecha_Anulacion, String motivo) throws SQLException {
+		compruebaAbierta();
+		Savepoint sp = con.setSavepoint();
+		try {
+			int num_medico = id_medico(m_NIF_medico);
+			int num_consulta = GestionMedicos.anula(s, m_NIF_cliente, num_medico, m_Fecha_Consulta,
+					m_Fecha_Anulacion, motivo);
+			avisos.add(new Cambio(false, num_consulta, num_medico, m_NIF_cliente, m_Fecha_Consulta));
+		} catch (SQLException e) {
+			deshaceHasta(sp, e);
+		}
+	}
+
+	/**
+	 * Confirma todas las operaciones de la unidad y avisa a los oyentes.
+	 *
+	 * @throws SQLException
+	 *             si falla el commit; en ese caso se deshace todo, salvo si
+	 *             se pierde la conexion despues de enviarlo: no se sabe si se
+	 *             ha confirmado y se lanza un error que no se reintenta
+	 */
+	public void commit() throws SQLException {
+		compruebaAbierta();
+		try {
+			con.commit();
+		} catch (SQLException e) {
+			if (GestionMedicos.conexionPerdida(e)) {
+				//Sin rollback: en la conexion perdida fallaria y ocultaria el error.
+				terminada = true;
+				avisos.clear();
+				throw GestionMedicos.commitIncierto(e);
+			}
+			logger.error(e.getMessage());
+			rollback();
+			throw e;
+		}
+		terminada = true;
+		for (Cambio c : avisos)
+			GestionMedicos.avisa(c);
+		avisos.clear();
+	}
+
+	/**
+	 * Deshace todas las operaciones de la unidad.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public void rollback() throws SQLException {
+		if (terminada)
+			return;
+		terminada = true;
+		avisos.clear();
+		con.rollback();
+	}
+
+	/**
+	 * Deshace lo que no se haya confirmado y devuelve la conexion al pool.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	@Override
+	public void close() throws SQLException {
+		plazo.termina();
+		try {
+			rollback();
+		} finally {
+			try {
+				s.close();
+			} finally {
+				con.close();
+			}
+		}
+	}
+
+	private int id_medico(String m_NIF_medico) throws SQLException {
+		Integer id = idsMedico.get(m_NIF_medico);
+		if (id == null) {
+			id = GestionMedicos.id_medico(s, m_NIF_medico);
+			idsMedico.put(m_NIF_medico, id);
+		}
+		return id;
+	}
+
+	private void deshaceHasta(Savepoint sp, SQLException e) throws SQLException {
+		con.rollback(sp);
+		if (e instanceof GestionMedicosException)
+			throw (GestionMedicosException) e;
+		if (GestionMedicos.agotado(e, plazo))
+			throw new GestionMedicosException(GestionMedicosException.TIEMPO_AGOTADO);
+		logger.error(e.getMessage());
+		throw e;
+	}
+
+	private void compruebaAbierta() throws SQLException {
+		if (terminada)
+			throw new SQLException("Unidad de trabajo ya terminada");
+	}
+}
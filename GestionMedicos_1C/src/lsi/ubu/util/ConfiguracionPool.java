@@ -0,0 +1,206 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import oracle.ucp.jdbc.PoolDataSource;
+import oracle.ucp.jdbc.PoolDataSourceFactory;
+
+/**
+ * Configuracion del pool de conexiones leida de un fichero de propiedades.
+ *
+ * Propiedades: url, usuario, password, minimo, maximo, inicial,
+ * ttlSegundos y maxSentencias. Las que faltan toman los valores por defecto,
+ * que son los que tenia el pool antes de existir el fichero.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ConfiguracionPool {
+
+	/** Fichero de configuracion por defecto. */
+	public static final Path FICHERO = Paths.get("res", "pool.properties");
+
+	private static final String CONNECTION_FACTORY = "oracle.jdbc.pool.OracleDataSource";
+
+	private final String url;
+	private final String usuario;
+	private final String password;
+	private final int minimo;
+	private final int maximo;
+	private final int inicial;
+	private final int ttlSegundos;
+	private final int maxSentencias;
+
+	private ConfiguracionPool(Properties p) {
+		this.url = p.getProperty("url", "jdbc:oracle:thin:@localhost:1521:xe").trim();
+		this.usuario = p.getProperty("usuario", "hr").trim();
+		this.password = p.getProperty("password", "hr");
+		this.minimo = entero(p, "minimo", 3);
+		this.maximo = entero(p, "maximo", 10);
+		this.inicial = entero(p, "inicial", 5);
+		this.ttlSegundos = entero(p, "ttlSegundos", 18000);
+		this.maxSentencias = entero(p, "maxSentencias", 20);
+		if (minimo < 0 || maximo < 1 || minimo > maximo || inicial < minimo || inicial > maximo)
+			throw new IllegalArgumentException(
+					"Tamaños del pool incorrectos: minimo=" + minimo + " maximo=" + maximo + " inicial=" + inicial);
+	}
+
+	private static int entero(Properties p, String clave, int porDefecto) {
+		String valor = p.getProperty(clave);
+		if (valor == null)
+			return porDefecto;
+		try {
+			return Integer.parseInt(valor.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Valor incorrecto para " + clave + ": " + valor);
+		}
+	}
+
+	/**
+	 * @return la configuracion por defecto
+	 */
+	public static ConfiguracionPool porDefecto() {
+		return new ConfiguracionPool(new Properties());
+	}
+
+	/**
+	 * Lee la configuracion de un fichero.
+	 *
+	 * @param fichero
+	 *            fichero de propiedades
+	 * @return la configuracion
+	 * @throws IOException
+	 *             si no se puede leer el fichero
+	 * @throws IllegalArgumentException
+	 *             si algun valor es incorrecto
+	 */
+	public static ConfiguracionPool carga(Path fichero) throws IOException {
+		Properties p = new Properties();
+		try (Reader r = Files.newBufferedReader(fichero, StandardCharsets.UTF_8)) {
+			p.load(r);
+		}
+		return new ConfiguracionPool(p);
+	}
+
+	/**
+	 * Lee el fichero por defecto, o la configuracion por defecto si no existe.
+	 *
+	 * @return la configuracion
+	 * @throws IOException
+	 *             si el fichero existe y no se puede leer
+	 */
+	public static ConfiguracionPool cargaPorDefecto() throws IOException {
+		return Files.exists(FICHERO) ? carga(FICHERO) : porDefecto();
+	}
+
+	/**
+	 * Crea un data source nuevo con esta configuracion.
+	 *
+	 * @return el data source, sin conexiones abiertas
+	 * @throws SQLException
+	 *             si algun valor no es valido para el pool
+	 */
+	public PoolDataSource creaDataSource() throws SQLException {
+		PoolDataSource pds = PoolDataSourceFactory.getPoolDataSource();
+		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
+		pds.setURL(url);
+		pds.setUser(usuario);
+		pds.setPassword(password);
+		aplicaLimites(pds);
+		return pds;
+	}
+
+	/**
+	 * Aplica los tamaños, el TTL y la cache de sentencias a un pool en uso.
+	 *
+	 * @param pds
+	 *            pool
+	 * @throws SQLException
+	 *             si algun valor no es valido para el pool
+	 */
+	public void aplicaLimites(PoolDataSource pds) throws SQLException {
+		//El orden evita que el minimo supere al maximo en algun momento.
+		if (maximo >= pds.getMinPoolSize()) {
+			pds.setMaxPoolSize(maximo);
+			pds.setMinPoolSize(minimo);
+		} else {
+			pds.setMinPoolSize(minimo);
+			pds.setMaxPoolSize(maximo);
+		}
+		pds.setInitialPoolSize(inicial);
+		pds.setTimeToLiveConnectionTimeout(ttlSegundos);
+		pds.setMaxStatements(maxSentencias);
+	}
+
+	/**
+	 * @param otra
+	 *            otra configuracion
+	 * @return true si se conectan a la misma base de datos con el mismo usuario
+	 */
+	public boolean mismaConexion(ConfiguracionPool otra) {
+		return url.equals(otra.url) && usuario.equals(otra.usuario) && password.equals(otra.password);
+	}
+
+	/**
+	 * Describe los cambios respecto a otra configuracion, sin mostrar la
+	 * contraseña.
+	 *
+	 * @param anterior
+	 *            configuracion anterior
+	 * @return una linea por cada valor que cambia
+	 */
+	public List<String> cambios(ConfiguracionPool anterior) {
+		List<String> cambios = new ArrayList<String>();
+		cambio(cambios, "url", anterior.url, url);
+		cambio(cambios, "usuario", anterior.usuario, usuario);
+		if (!anterior.password.equals(password))
+			cambios.add("password: ****** -> ******");
+		cambio(cambios, "minimo", anterior.minimo, minimo);
+		cambio(cambios, "maximo", anterior.maximo, maximo);
+		cambio(cambios, "inicial", anterior.inicial, inicial);
+		cambio(cambios, "ttlSegundos", anterior.ttlSegundos, ttlSegundos);
+		cambio(cambios, "maxSentencias", anterior.maxSentencias, maxSentencias);
+		return cambios;
+	}
+
+	private static void cambio(List<String> cambios, String clave, Object antes, Object despues) {
+		if (!antes.equals(despues))
+			cambios.add(clave + ": " + antes + " -> " + despues);
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getUsuario() {
+		return usuario;
+	}
+
+	public int getMinimo() {
+		return minimo;
+	}
+
+	public int getMaximo() {
+		return maximo;
+	}
+
+	public int getInicial() {
+		return inicial;
+	}
+
+	@Override
+	public String toString() {
+		return "url=" + url + ", usuario=" + usuario + ", minimo=" + minimo + ", maximo=" + maximo + ", inicial="
+				+ inicial + ", ttlSegundos=" + ttlSegundos + ", maxSentencias=" + maxSentencias;
+	}
+}
@@ -0,0 +1,372 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ControladorPool:
+ * Ajusta el tamaño maximo del pool de conexiones segun la carga medida.
+ *
+ * En cada muestra se mide la espera media para obtener una conexion, la
+ * fraccion de conexiones prestadas y la latencia de la base de datos. El pool
+ * crece si hay espera o casi todas las conexiones estan en uso, salvo que la
+ * latencia indique que la base de datos ya esta saturada; decrece si el uso
+ * es bajo y no hay espera. Para no oscilar, un cambio solo se aplica tras
+ * varias muestras seguidas en la misma direccion (mas para reducir que para
+ * crecer), los umbrales de crecer y reducir estan separados, cada paso esta
+ * acotado y tras un cambio se espera a que la carga se estabilice.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ControladorPool implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(ControladorPool.class);
+
+	/**
+	 * Pool controlado. Lo implementa PoolDeConexiones; las simulaciones usan
+	 * su propia implementacion.
+	 */
+	public interface Pool {
+		/** @return espera acumulada de todos los prestamos, en nanosegundos */
+		long getEsperaAcumuladaNanos();
+
+		/** @return numero de prestamos desde el arranque */
+		long getPrestamos();
+
+		/** @return conexiones prestadas en este momento */
+		int getConexionesPrestadas() throws SQLException;
+
+		/** @return tamaño maximo actual, o 0 si el pool no se puede redimensionar */
+		int getTamMaximo();
+
+		/** @return latencia de una consulta trivial, en nanosegundos, o -1 si no se puede medir */
+		long midaLatenciaNanos();
+
+		/** Cambia los limites del pool. */
+		void redimensiona(int minimo, int maximo) throws SQLException;
+	}
+
+	/**
+	 * Valores de una muestra.
+	 */
+	public static class Muestra {
+		private final double esperaMediaMicros;
+		private final double uso;
+		private final double latenciaMicros;
+
+		Muestra(double esperaMediaMicros, double uso, double latenciaMicros) {
+			this.esperaMediaMicros = esperaMediaMicros;
+			this.uso = uso;
+			this.latenciaMicros = latenciaMicros;
+		}
+
+		public double getEsperaMediaMicros() {
+			return esperaMediaMicros;
+		}
+
+		public double getUso() {
+			return uso;
+		}
+
+		public double getLatenciaMicros() {
+			return latenciaMicros;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("espera=%.0fus uso=%.2f latencia=%.0fus", esperaMediaMicros, uso, latenciaMicros);
+		}
+	}
+
+	/**
+	 * Cambio de tamaño aplicado.
+	 */
+	public static class Decision {
+		private final long instante;
+		private final int tamAnterior;
+		private final int tamNuevo;
+		private final String motivo;
+
+		Decision(int tamAnterior, int tamNuevo, String motivo) {
+			this.instante = System.currentTimeMillis();
+			this.tamAnterior = tamAnterior;
+			this.tamNuevo = tamNuevo;
+			this.motivo = motivo;
+		}
+
+		public long getInstante() {
+			return instante;
+		}
+
+		public int getTamAnterior() {
+			return tamAnterior;
+		}
+
+		public int getTamNuevo() {
+			return tamNuevo;
+		}
+
+		public String getMotivo() {
+			return motivo;
+		}
+
+		@Override
+		public String toString() {
+			return tamAnterior + " -> " + tamNuevo + " (" + motivo + ")";
+		}
+	}
+
+	private static final int MAX_DECISIONES = 100;
+
+	private final Pool pool;
+	private final int minLimite;
+	private final int maxLimite;
+
+	private double umbralEsperaMicros = 1000;
+	private double usoAlto = 0.85;
+	private double usoBajo = 0.30;
+	private double umbralLatenciaMicros = 50000;
+	private int muestrasCrecer = 2;
+	private int muestrasReducir = 5;
+	private int muestrasEstabilizar = 2;
+	private int pasoMax = 8;
+
+	private long esperaAnterior;
+	private long prestamosAnterior;
+	private int seguidasCrecer = 0;
+	private int seguidasReducir = 0;
+	private int enfriamiento = 0;
+
+	private volatile Muestra ultimaMuestra;
+	private volatile long muestras = 0;
+	private volatile long crecimientos = 0;
+	private volatile long reducciones = 0;
+	private volatile long frenadosPorLatencia = 0;
+	private final List<Decision> decisiones = new ArrayList<Decision>();
+
+	private ScheduledExecutorService planificador;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pool
+	 *            pool a controlar
+	 * @param minLimite
+	 *            tamaño minimo del pool, que nunca se reduce por debajo
+	 * @param maxLimite
+	 *            tamaño maximo al que puede crecer
+	 */
+	public ControladorPool(Pool pool, int minLimite, int maxLimite) {
+		if (minLimite < 1 || maxLimite < minLimite)
+			throw new IllegalArgumentException("Limites incorrectos: " + minLimite + ", " + maxLimite);
+		this.pool = pool;
+		this.minLimite = minLimite;
+		this.maxLimite = maxLimite;
+		this.esperaAnterior = pool.getEsperaAcumuladaNanos();
+		this.prestamosAnterior = pool.getPrestamos();
+	}
+
+	/**
+	 * Espera media a partir de la cual el pool crece.
+	 */
+	public ControladorPool setUmbralEsperaMicros(double umbral) {
+		this.umbralEsperaMicros = umbral;
+		return this;
+	}
+
+	/**
+	 * Fracciones de conexiones prestadas a partir de la cual crece y por
+	 * debajo de la cual decrece.
+	 */
+	public ControladorPool setUso(double bajo, double alto) {
+		if (bajo >= alto)
+			throw new IllegalArgumentException("Uso bajo debe ser menor que uso alto");
+		this.usoBajo = bajo;
+		this.usoAlto = alto;
+		return this;
+	}
+
+	/**
+	 * Latencia de la base de datos a partir de la cual no se crece, porque mas
+	 * conexiones solo aumentarian la contencion.
+	 */
+	public ControladorPool setUmbralLatenciaMicros(double umbral) {
+		this.umbralLatenciaMicros = umbral;
+		return this;
+	}
+
+	/**
+	 * Muestras seguidas necesarias para crecer y para reducir, y muestras sin
+	 * cambios tras aplicar uno.
+	 */
+	public ControladorPool setMuestras(int crecer, int reducir, int estabilizar) {
+		this.muestrasCrecer = crecer;
+		this.muestrasReducir = reducir;
+		this.muestrasEstabilizar = estabilizar;
+		return this;
+	}
+
+	/**
+	 * Numero maximo de conexiones que se añaden o quitan en un cambio.
+	 */
+	public ControladorPool setPasoMax(int pasoMax) {
+		this.pasoMax = pasoMax;
+		return this;
+	}
+
+	/**
+	 * Empieza a muestrear periodicamente en un hilo propio.
+	 *
+	 * @param periodoMs
+	 *            tiempo entre muestras
+	 * @return este controlador
+	 */
+	public synchronized ControladorPool arranca(long periodoMs) {
+		if (planificador != null)
+			return this;
+		planificador = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "controlador-pool");
+			t.setDaemon(true);
+			return t;
+		});
+		planificador.scheduleWithFixedDelay(() -> {
+			try {
+				paso();
+			} catch (SQLException | RuntimeException e) {
+				logger.error("Error en el controlador del pool: {}", e.getMessage());
+			}
+		}, periodoMs, periodoMs, TimeUnit.MILLISECONDS);
+		logger.info("Controlador del pool arrancado: limites [{}, {}], muestra cada {} ms", minLimite, maxLimite,
+				periodoMs);
+		return this;
+	}
+
+	/**
+	 * Toma una muestra y, si procede, cambia el tamaño del pool.
+	 *
+	 * @return la decision aplicada, o null si no se cambia nada
+	 * @throws SQLException
+	 *             si no se puede medir o redimensionar el pool
+	 */
+	public synchronized Decision paso() throws SQLException {
+		//Se mide la espera media de los prestamos desde la muestra anterior.
+		long espera = pool.getEsperaAcumuladaNanos();
+		long prestamos = pool.getPrestamos();
+		long n = prestamos - prestamosAnterior;
+		double esperaMedia = n == 0 ? 0 : (espera - esperaAnterior) / 1000.0 / n;
+		esperaAnterior = espera;
+		prestamosAnterior = prestamos;
+
+		int tam = pool.getTamMaximo();
+		if (tam <= 0)
+			return null; //Pool que no se puede redimensionar.
+		int prestadas = pool.getConexionesPrestadas();
+		long latencia = pool.midaLatenciaNanos();
+		Muestra m = new Muestra(esperaMedia, (double) prestadas / tam, latencia < 0 ? -1 : latencia / 1000.0);
+		ultimaMuestra = m;
+		muestras++;
+
+		if (enfriamiento > 0) {
+			enfriamiento--;
+			return null;
+		}
+
+		boolean presionAlta = m.esperaMediaMicros > umbralEsperaMicros || m.uso >= usoAlto;
+		boolean presionBaja = m.esperaMediaMicros <= umbralEsperaMicros / 10 && m.uso < usoBajo;
+		seguidasCrecer = presionAlta ? seguidasCrecer + 1 : 0;
+		seguidasReducir = presionBaja ? seguidasReducir + 1 : 0;
+
+		if (seguidasCrecer >= muestrasCrecer && tam < maxLimite) {
+			if (m.latenciaMicros > umbralLatenciaMicros) {
+				//La base de datos es el cuello de botella: crecer solo empeoraria la espera.
+				frenadosPorLatencia++;
+				seguidasCrecer = 0;
+				logger.info("Pool de {} conexiones con presion alta pero sin crecer por latencia ({})", tam, m);
+				return null;
+			}
+			int nuevo = Math.min(maxLimite, tam + Math.max(1, Math.min(pasoMax, tam / 2)));
+			crecimientos++;
+			return aplica(tam, nuevo, "presion alta: " + m);
+		}
+		if (seguidasReducir >= muestrasReducir && tam > minLimite) {
+			//No se baja del numero de conexiones en uso mas un margen.
+			int nuevo = Math.max(minLimite, tam - Math.max(1, Math.min(pasoMax, tam / 4)));
+			nuevo = Math.max(nuevo, (int) Math.ceil(prestadas / usoAlto) + 1);
+			if (nuevo >= tam)
+				return null;
+			reducciones++;
+			return aplica(tam, nuevo, "uso bajo: " + m);
+		}
+		return null;
+	}
+
+	private Decision aplica(int tam, int nuevo, String motivo) throws SQLException {
+		pool.redimensiona(minLimite, nuevo);
+		Decision d = new Decision(tam, nuevo, motivo);
+		synchronized (decisiones) {
+			if (decisiones.size() == MAX_DECISIONES)
+				decisiones.remove(0);
+			decisiones.add(d);
+		}
+		seguidasCrecer = 0;
+		seguidasReducir = 0;
+		enfriamiento = muestrasEstabilizar;
+		logger.info("Pool redimensionado: {}", d);
+		return d;
+	}
+
+	/** @return la ultima muestra tomada, o null si aun no hay ninguna */
+	public Muestra getUltimaMuestra() {
+		return ultimaMuestra;
+	}
+
+	public long getMuestras() {
+		return muestras;
+	}
+
+	public long getCrecimientos() {
+		return crecimientos;
+	}
+
+	public long getReducciones() {
+		return reducciones;
+	}
+
+	/** @return veces que no se ha crecido por la latencia de la base de datos */
+	public long getFrenadosPorLatencia() {
+		return frenadosPorLatencia;
+	}
+
+	/** @return las ultimas decisiones aplicadas, de la mas antigua a la mas reciente */
+	public List<Decision> getDecisiones() {
+		synchronized (decisiones) {
+			return new ArrayList<Decision>(decisiones);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ControladorPool[tam=%d, muestras=%d, crecimientos=%d, reducciones=%d, frenados=%d, ultima=%s]",
+				pool.getTamMaximo(), muestras, crecimientos, reducciones, frenadosPorLatencia, ultimaMuestra);
+	}
+
+	/**
+	 * Deja de muestrear.
+	 */
+	@Override
+	public synchronized void close() {
+		if (planificador != null) {
+			planificador.shutdownNow();
+			planificador = null;
+		}
+	}
+}
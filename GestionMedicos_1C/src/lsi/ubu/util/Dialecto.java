@@ -0,0 +1,102 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+
+/**
+ * Dialecto:
+ * Lo que cambia de un SGBD a otro: la traduccion de sus errores, el script
+ * de creacion de las tablas, las sentencias que no son comunes y, para las
+ * bases de datos embebidas, el data source.
+ *
+ * El dialecto se elige con la propiedad del sistema gestionmedicos.dialecto:
+ * 'oracle' (por defecto) o 'h2', una base de datos H2 en memoria en modo
+ * Oracle para ejecutar las pruebas sin servidor.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public abstract class Dialecto {
+
+	private static Logger logger = LoggerFactory.getLogger(Dialecto.class);
+
+	private static volatile Dialecto actual;
+
+	/**
+	 * @return el dialecto configurado
+	 * @throws IllegalArgumentException
+	 *             si gestionmedicos.dialecto no es un dialecto conocido
+	 */
+	public static Dialecto actual() {
+		Dialecto d = actual;
+		if (d == null) {
+			synchronized (Dialecto.class) {
+				d = actual;
+				if (d == null) {
+					d = de(System.getProperty("gestionmedicos.dialecto", "oracle"));
+					logger.info("Dialecto {}", d.getNombre());
+					actual = d;
+				}
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * @param nombre
+	 *            'oracle' o 'h2'
+	 * @return el dialecto con ese nombre
+	 * @throws IllegalArgumentException
+	 *             si no es un dialecto conocido
+	 */
+	public static Dialecto de(String nombre) {
+		if (nombre.equalsIgnoreCase("oracle"))
+			return new DialectoOracle();
+		if (nombre.equalsIgnoreCase("h2"))
+			return new DialectoH2();
+		throw new IllegalArgumentException("Dialecto desconocido: " + nombre);
+	}
+
+	/** @return nombre del dialecto */
+	public abstract String getNombre();
+
+	/** @return traduccion de los codigos de error del SGBD */
+	public abstract SGBDErrorUtil getErrores();
+
+	/** @return script de creacion de las tablas, dentro de sql/ */
+	public abstract String getScript();
+
+	/**
+	 * Consulta que devuelve varios valores seguidos de una secuencia, uno por
+	 * fila. Tiene un parametro: el numero de valores.
+	 *
+	 * @param secuencia
+	 *            nombre de la secuencia
+	 * @return texto de la consulta
+	 */
+	public abstract String bloqueSecuencia(String secuencia);
+
+	/**
+	 * Data source de una base de datos que no se publica en JNDI.
+	 *
+	 * @return el data source, o null si las conexiones se obtienen del
+	 *         recurso JNDI o del fichero de configuracion del pool
+	 * @throws SQLException
+	 *             si no se puede crear
+	 */
+	public DataSource creaDataSource() throws SQLException {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return getNombre();
+	}
+}
@@ -0,0 +1,112 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.h2.H2SGBDErrorUtil;
+
+/**
+ * DialectoH2:
+ * Base de datos H2 embebida, en memoria por defecto y en modo Oracle, para
+ * que las sentencias de la aplicacion (secuencias, dual, NVL, ROWNUM)
+ * funcionen sin cambios. Los procedimientos de gestion_medicos.sql se
+ * sustituyen por los metodos de ProcedimientosH2.
+ *
+ * El driver de H2 solo hace falta en el classpath si se usa este dialecto:
+ * se carga por reflexion. URL, usuario y conexiones maximas con las
+ * propiedades del sistema gestionmedicos.h2.url, gestionmedicos.h2.usuario
+ * y gestionmedicos.h2.maxConexiones (20 por defecto).
+ *
+ * H2 no interrumpe la espera de un bloqueo al cancelar la sentencia, asi
+ * que la URL por defecto limita esa espera con LOCK_TIMEOUT
+ * (gestionmedicos.h2.lockTimeoutMs, 300 ms): al agotarse es un error
+ * transitorio y la operacion se reintenta dentro de su plazo.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class DialectoH2 extends Dialecto {
+
+	private static Logger logger = LoggerFactory.getLogger(DialectoH2.class);
+
+	private static final String POOL_H2 = "org.h2.jdbcx.JdbcConnectionPool";
+
+	private final SGBDErrorUtil errores = new H2SGBDErrorUtil();
+
+	@Override
+	public String getNombre() {
+		return "h2";
+	}
+
+	@Override
+	public SGBDErrorUtil getErrores() {
+		return errores;
+	}
+
+	@Override
+	public String getScript() {
+		return "gestion_medicos_h2.sql";
+	}
+
+	@Override
+	public String bloqueSecuencia(String secuencia) {
+		return "SELECT NEXT VALUE FOR " + secuencia + " FROM system_range(1, ?)";
+	}
+
+	@Override
+	public DataSource creaDataSource() throws SQLException {
+		return creaDataSource(System.getProperty("gestionmedicos.h2.url", urlMemoria("gestionmedicos")));
+	}
+
+	/**
+	 * URL de una base de datos en memoria con las opciones de la URL por
+	 * defecto: modo Oracle, se conserva al cerrar la ultima conexion y
+	 * LOCK_TIMEOUT.
+	 *
+	 * @param nombre
+	 *            nombre de la base de datos dentro de la JVM
+	 * @return la URL
+	 */
+	public static String urlMemoria(String nombre) {
+		return "jdbc:h2:mem:" + nombre + ";MODE=Oracle;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT="
+				+ Integer.getInteger("gestionmedicos.h2.lockTimeoutMs", 300);
+	}
+
+	/**
+	 * Crea un pool de H2 sobre otra URL, por ejemplo para tener varias bases
+	 * de datos embebidas como shards.
+	 *
+	 * @param url
+	 *            URL JDBC de H2
+	 * @return el pool
+	 * @throws SQLException
+	 *             si falta el driver o no se puede crear el pool
+	 */
+	public DataSource creaDataSource(String url) throws SQLException {
+		String usuario = System.getProperty("gestionmedicos.h2.usuario", "sa");
+		int maximo = Integer.getInteger("gestionmedicos.h2.maxConexiones", 20);
+		try {
+			Class<?> clase = Class.forName(POOL_H2);
+			Object pool = clase.getMethod("create", String.class, String.class, String.class)
+					.invoke(null, url, usuario, "");
+			clase.getMethod("setMaxConnections", int.class).invoke(pool, maximo);
+			logger.info("Base de datos H2 en {} con {} conexiones como maximo", url, maximo);
+			return (DataSource) pool;
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("Falta el driver de H2 en el classpath para el dialecto h2", e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new SQLException("Version de H2 no soportada", e);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package lsi.ubu.util;
+
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+import lsi.ubu.util.exceptions.oracle.OracleSGBDErrorUtil;
+
+/**
+ * DialectoOracle:
+ * Oracle, con el pool de UCP publicado en JNDI o configurado en
+ * res/pool.properties.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class DialectoOracle extends Dialecto {
+
+	private final SGBDErrorUtil errores = new OracleSGBDErrorUtil();
+
+	@Override
+	public String getNombre() {
+		return "oracle";
+	}
+
+	@Override
+	public SGBDErrorUtil getErrores() {
+		return errores;
+	}
+
+	@Override
+	public String getScript() {
+		return "gestion_medicos.sql";
+	}
+
+	@Override
+	public String bloqueSecuencia(String secuencia) {
+		return "SELECT " + secuencia + ".nextval FROM dual CONNECT BY level <= ?";
+	}
+}
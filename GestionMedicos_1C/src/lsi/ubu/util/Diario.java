@@ -0,0 +1,214 @@
+package lsi.ubu.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Diario:
+ * Diario de escritura anticipada en un fichero local.
+ *
+ * Cada registro se guarda con su longitud y su CRC y recibe un numero de
+ * secuencia creciente. confirma() espera a que un registro este en disco;
+ * el primer hilo que llega hace un unico force() para todos los registros
+ * escritos hasta ese momento y los que esperaban detras lo encuentran ya
+ * hecho (fsync agrupado).
+ *
+ * Al abrirlo se leen los registros validos y se corta la cola rota de una
+ * caida. Cuando todo lo anotado se ha aplicado en otro sitio se puede vaciar.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Diario implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(Diario.class);
+
+	/** Longitud y CRC de cada registro. */
+	private static final int CABECERA = 8;
+
+	private final Path fichero;
+	private final FileChannel canal;
+	private final List<byte[]> recuperados = new ArrayList<byte[]>();
+
+	/** Orden de escritura de los registros. */
+	private final Object escritura = new Object();
+	private long escrito = 0;
+
+	/** Solo un hilo hace force() a la vez. */
+	private final ReentrantLock volcado = new ReentrantLock();
+	private volatile long duradero = 0;
+
+	private final AtomicLong volcados = new AtomicLong();
+
+	/**
+	 * Abre o crea el diario y lee los registros que contiene.
+	 *
+	 * @param fichero
+	 *            fichero del diario
+	 * @throws IOException
+	 *             si no se puede abrir o leer
+	 */
+	public Diario(Path fichero) throws IOException {
+		this.fichero = fichero;
+		this.canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		long valido = recupera();
+		if (valido < canal.size()) {
+			logger.warn("Diario {}: se descartan {} bytes de un registro incompleto", fichero,
+					canal.size() - valido);
+			canal.truncate(valido);
+		}
+		canal.position(valido);
+	}
+
+	/**
+	 * Lee los registros validos desde el principio.
+	 *
+	 * @return posicion del final del ultimo registro valido
+	 */
+	private long recupera() throws IOException {
+		long tam = canal.size();
+		if (tam == 0)
+			return 0;
+		MappedByteBuffer buf = canal.map(FileChannel.MapMode.READ_ONLY, 0, tam);
+		CRC32 crc = new CRC32();
+		int pos = 0;
+		while (tam - pos >= CABECERA) {
+			int len = buf.getInt(pos);
+			int suma = buf.getInt(pos + 4);
+			if (len <= 0 || len > tam - pos - CABECERA)
+				break;
+			byte[] datos = new byte[len];
+			buf.position(pos + CABECERA);
+			buf.get(datos);
+			crc.reset();
+			crc.update(datos);
+			if ((int) crc.getValue() != suma)
+				break;
+			recuperados.add(datos);
+			pos += CABECERA + len;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return registros que habia en el diario al abrirlo, en orden
+	 */
+	public List<byte[]> getRecuperados() {
+		return recuperados;
+	}
+
+	/**
+	 * Escribe un registro, sin esperar a que llegue a disco.
+	 *
+	 * @param datos
+	 *            contenido del registro
+	 * @return numero de secuencia del registro, para confirma()
+	 * @throws IOException
+	 *             si no se puede escribir
+	 */
+	public long anota(byte[] datos) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(datos);
+		ByteBuffer bb = ByteBuffer.allocate(CABECERA + datos.length);
+		bb.putInt(datos.length).putInt((int) crc.getValue()).put(datos).flip();
+		synchronized (escritura) {
+			while (bb.hasRemaining())
+				canal.write(bb);
+			return ++escrito;
+		}
+	}
+
+	/**
+	 * Espera a que un registro, y todos los anteriores, esten en disco.
+	 *
+	 * @param secuencia
+	 *            numero devuelto por anota()
+	 * @throws IOException
+	 *             si falla el force()
+	 */
+	public void confirma(long secuencia) throws IOException {
+		while (duradero < secuencia) {
+			volcado.lock();
+			try {
+				//Otro hilo puede haberlo volcado mientras se esperaba el cerrojo.
+				if (duradero >= secuencia)
+					return;
+				long hasta;
+				synchronized (escritura) {
+					hasta = escrito;
+				}
+				canal.force(false);
+				duradero = hasta;
+				volcados.incrementAndGet();
+			} finally {
+				volcado.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Vacia el diario si no se ha anotado nada despues de un registro.
+	 *
+	 * @param secuencia
+	 *            ultimo registro ya aplicado
+	 * @return true si se ha vaciado
+	 * @throws IOException
+	 *             si no se puede truncar el fichero
+	 */
+	public boolean vacia(long secuencia) throws IOException {
+		synchronized (escritura) {
+			if (escrito != secuencia || canal.size() == 0)
+				return false;
+			//Si una caida deja registros antiguos, se vuelven a leer al abrir y
+			//quien los aplica los tiene que ignorar.
+			canal.truncate(0);
+			canal.position(0);
+			logger.debug("Diario {} vaciado en el registro {}", fichero, secuencia);
+			return true;
+		}
+	}
+
+	/** @return numero de secuencia del ultimo registro anotado */
+	public long getAnotado() {
+		synchronized (escritura) {
+			return escrito;
+		}
+	}
+
+	/** @return numero de force() hechos */
+	public long getVolcados() {
+		return volcados.get();
+	}
+
+	/** @return tamaño actual del fichero */
+	public long getTamanio() throws IOException {
+		return canal.size();
+	}
+
+	/**
+	 * Vuelca lo pendiente y cierra el fichero.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			confirma(getAnotado());
+		} finally {
+			canal.close();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package lsi.ubu.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * EnrutadorShards:
+ * Reparte los medicos entre varias bases de datos (shards) con un anillo de
+ * hash consistente sobre el NIF del medico.
+ *
+ * Cada shard ocupa varios puntos del anillo (nodos virtuales) y un medico
+ * pertenece al shard del primer punto que sigue al hash de su NIF. Asi el
+ * reparto es uniforme y, al añadir un shard, solo cambian de dueño los
+ * medicos que pasan al nuevo. Se usa el NIF y no id_medico porque cada shard
+ * tiene su propia secuencia de medicos.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class EnrutadorShards {
+
+	private static Logger logger = LoggerFactory.getLogger(EnrutadorShards.class);
+
+	/** Nodos virtuales por shard si no se indica otro numero. */
+	public static final int NODOS_VIRTUALES = 128;
+
+	private final List<PoolDeConexiones> shards;
+	private final TreeMap<Long, Integer> anillo = new TreeMap<Long, Integer>();
+
+	/**
+	 * Crea el enrutador sobre los pools de los recursos JNDI indicados.
+	 *
+	 * @param nombresJndi
+	 *            un recurso JNDI por shard, en orden fijo
+	 * @return el enrutador
+	 */
+	public static EnrutadorShards deJndi(String... nombresJndi) {
+		List<PoolDeConexiones> pools = new ArrayList<PoolDeConexiones>();
+		for (String nombre : nombresJndi)
+			pools.add(PoolDeConexiones.getInstance(nombre));
+		return new EnrutadorShards(pools, NODOS_VIRTUALES);
+	}
+
+	/**
+	 * @param shards
+	 *            pool de cada shard; el orden forma parte del reparto
+	 * @param nodosVirtuales
+	 *            puntos del anillo por shard
+	 */
+	public EnrutadorShards(List<PoolDeConexiones> shards, int nodosVirtuales) {
+		if (shards.isEmpty())
+			throw new IllegalArgumentException("Hace falta al menos un shard");
+		this.shards = Collections.unmodifiableList(new ArrayList<PoolDeConexiones>(shards));
+		for (int i = 0; i < shards.size(); i++) {
+			for (int v = 0; v < nodosVirtuales; v++) {
+				//Los puntos dependen del nombre del shard, no de su posicion.
+				anillo.put(hash(shards.get(i).getNombre() + "#" + v), i);
+			}
+		}
+		logger.info("Enrutador con {} shards y {} puntos en el anillo", shards.size(), anillo.size());
+	}
+
+	/**
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @return indice del shard que guarda sus consultas
+	 */
+	public int shard(String m_NIF_medico) {
+		SortedMap<Long, Integer> cola = anillo.tailMap(hash(m_NIF_medico));
+		return cola.isEmpty() ? anillo.firstEntry().getValue() : cola.get(cola.firstKey());
+	}
+
+	/**
+	 * @param m_NIF_medico
+	 *            NIF del medico
+	 * @return pool del shard que guarda sus consultas
+	 */
+	public PoolDeConexiones pool(String m_NIF_medico) {
+		return shards.get(shard(m_NIF_medico));
+	}
+
+	/** @return los pools de todos los shards */
+	public List<PoolDeConexiones> getShards() {
+		return shards;
+	}
+
+	public int getNumShards() {
+		return shards.size();
+	}
+
+	/**
+	 * @return fraccion del anillo que corresponde a cada shard
+	 */
+	public double[] getReparto() {
+		double[] reparto = new double[shards.size()];
+		long anterior = anillo.lastKey() - (1L << 32);
+		for (Map.Entry<Long, Integer> e : anillo.entrySet()) {
+			reparto[e.getValue()] += (e.getKey() - anterior) / (double) (1L << 32);
+			anterior = e.getKey();
+		}
+		return reparto;
+	}
+
+	/**
+	 * Hash de 32 bits sin signo (FNV-1a con mezcla final).
+	 */
+	static long hash(String clave) {
+		int h = 0x811c9dc5;
+		for (byte b : clave.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x01000193;
+		}
+		//Mezcla final para repartir claves parecidas como los NIF.
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0xffffffffL;
+	}
+}
@@ -1,67 +1,162 @@
 package lsi.ubu.util;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lsi.ubu.util.LectorScriptSQL.SentenciaSQL;
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+
 /**
  * Utilidad para ejecutar el script sql de borrado y creacion de datos. Permite
  * la ejecucion de los "tests" con independencia.
- * 
+ *
+ * El script se ejecuta por JDBC sobre una unica conexion del pool, sin lanzar
+ * SQL*Plus. Las sentencias DML consecutivas se envian en lotes.
+ *
  * @author <a href="mailto:jmaudes@ubu.es">Jesus Maudes</a>
  * @author <a href="mailto:rmartico@ubu.es">Raul Marticorena</a>
  */
 public class ExecuteScript {
 	/** Logger. */
-	private static Logger l = LoggerFactory.getLogger(ExecuteScript.class);;
+	private static Logger l = LoggerFactory.getLogger(ExecuteScript.class);
+
+	/** Numero maximo de sentencias DML por lote. */
+	private static final int TAM_LOTE = 500;
 
 	/**
 	 * Principal.
-	 * 
+	 *
 	 * @param args
 	 *            el primer argumento incluye el nombre del script a ejecutar
+	 * @throws SQLException
+	 *             si falla alguna sentencia del script
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws SQLException {
 		run(args[0]);
-		//run();
 	}
 
 	/**
-	 * Ejecuta el script sql.
-	 * 
+	 * Ejecuta el script sql con una conexion del pool.
+	 *
 	 * @param file_name
 	 *            nombre del script .sql a ejecutar
+	 * @throws SQLException
+	 *             si no se puede leer el script o falla alguna sentencia,
+	 *             indicando la linea en la que empieza
 	 */
-	public static void run(String file_name) {
-		String OS = System.getProperty("os.name").toLowerCase();
-	
+	public static void run(String file_name) throws SQLException {
+		Connection con = null;
+		try (Reader entrada = Files.newBufferedReader(Paths.get(file_name), StandardCharsets.UTF_8)) {
+			con = PoolDeConexiones.getInstance().getConnection();
+			run(con, file_name, entrada);
+		} catch (IOException e) {
+			throw new SQLException("No se puede leer el script " + file_name, e);
+		} finally {
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Ejecuta un script sql sobre la conexion dada.
+	 *
+	 * @param con
+	 *            conexion, sin autocommit
+	 * @param nombre
+	 *            nombre del script, para los mensajes de error
+	 * @param entrada
+	 *            texto del script
+	 * @throws SQLException
+	 *             si falla alguna sentencia, indicando la linea en la que empieza
+	 * @throws IOException
+	 *             si hay un error leyendo el script
+	 */
+	public static void run(Connection con, String nombre, Reader entrada) throws SQLException, IOException {
+		SGBDErrorUtil errores = Dialecto.actual().getErrores();
+		LectorScriptSQL lector = new LectorScriptSQL(entrada);
+		List<Integer> lineasLote = new ArrayList<Integer>();
+		Statement st = null;
+		int ejecutadas = 0;
+
 		try {
-			
-			String line;
-			Process p=null;
-			
-			//if is linux
-			if (OS.indexOf("nux") >= 0) {
-				
-				String sqlLauncher ="sql/lanza_sqlplus.sh";	
-				p = Runtime.getRuntime().exec(new String[]{sqlLauncher,"hr/hr","@"+file_name});
-				
-			} else if (OS.indexOf("win") >= 0) { //if is windows
-				p = Runtime.getRuntime().exec("sqlplus hr/hr @" + file_name);
-			} else
-				throw (new Exception("lsi.ubu.util.ExecuteScript.java"
-						+ " Sistema operativo incompatible"));
-			
-			BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			while ((line = input.readLine()) != null) {
-				l.debug(line);
+			st = con.createStatement();
+			SentenciaSQL s;
+			while ((s = lector.siguiente()) != null) {
+				ejecutadas++;
+				if (s.isDML()) {
+					st.addBatch(s.getTexto());
+					lineasLote.add(s.getLinea());
+					if (lineasLote.size() >= TAM_LOTE)
+						ejecutaLote(st, nombre, lineasLote);
+					continue;
+				}
+
+				ejecutaLote(st, nombre, lineasLote);
+				try {
+					st.execute(s.getTexto());
+				} catch (SQLException e) {
+					//Como en SQL*Plus, borrar lo que todavia no existe no es un error.
+					SGBDError error = errores.translate(e.getErrorCode());
+					if (s.isDrop() && (error == SGBDError.NOT_EXISTS_TABLE
+							|| error == SGBDError.NOT_EXISTS_SEQUENCE)) {
+						l.warn("{} linea {}: {}", nombre, s.getLinea(), e.getMessage());
+						continue;
+					}
+					throw errorEnLinea(nombre, s.getLinea(), e);
+				}
+				//Un bloque PL/SQL que no compila solo genera un aviso.
+				SQLWarning aviso = st.getWarnings();
+				st.clearWarnings();
+				if (s.isPlsql() && aviso != null)
+					throw errorEnLinea(nombre, s.getLinea(), aviso);
 			}
-			input.close();
-		} catch (Exception err) {
-			err.printStackTrace();
+			ejecutaLote(st, nombre, lineasLote);
+			con.commit();
+			l.debug("{}: {} sentencias ejecutadas en {} lineas", nombre, ejecutadas, lector.getNumLinea());
+		} catch (SQLException e) {
+			con.rollback();
+			l.error(e.getMessage());
+			throw e;
+		} finally {
+			if (st != null) st.close();
 		}
 	}
 
+	/**
+	 * Envia el lote de sentencias DML pendiente.
+	 */
+	private static void ejecutaLote(Statement st, String nombre, List<Integer> lineasLote) throws SQLException {
+		if (lineasLote.isEmpty())
+			return;
+		try {
+			st.executeBatch();
+		} catch (BatchUpdateException e) {
+			//Las cuentas devueltas corresponden a las sentencias previas a la que falla.
+			int[] cuentas = e.getUpdateCounts();
+			int fallida = cuentas == null ? 0 : Math.min(cuentas.length, lineasLote.size() - 1);
+			throw errorEnLinea(nombre, lineasLote.get(fallida), e);
+		} finally {
+			st.clearBatch();
+			lineasLote.clear();
+		}
+	}
+
+	private static SQLException errorEnLinea(String nombre, int linea, SQLException causa) {
+		return new SQLException("Error en " + nombre + ", linea " + linea + ": " + causa.getMessage(),
+				causa.getSQLState(), causa.getErrorCode(), causa);
+	}
+
 }
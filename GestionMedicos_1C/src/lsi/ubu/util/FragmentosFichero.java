@@ -0,0 +1,136 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Utilidad para repartir un fichero de texto entre varios hilos.
+ *
+ * El fichero se divide en fragmentos que empiezan y terminan en un salto de
+ * linea, y cada fragmento se lee proyectandolo en memoria por trozos, sin
+ * cargar el fichero entero.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class FragmentosFichero {
+
+	/** Tamaño maximo de cada proyeccion en memoria. */
+	private static final long TAM_PROYECCION = 32L * 1024 * 1024;
+
+	private FragmentosFichero() {
+	}
+
+	/**
+	 * Divide el fichero en fragmentos alineados a final de linea.
+	 *
+	 * @param canal
+	 *            canal del fichero
+	 * @param partes
+	 *            numero de fragmentos deseado
+	 * @return posiciones de corte; el fragmento i va de [i] a [i+1]
+	 * @throws IOException
+	 *             si hay un error leyendo el fichero
+	 */
+	public static long[] divide(FileChannel canal, int partes) throws IOException {
+		long tam = canal.size();
+		long[] cortes = new long[partes + 1];
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		cortes[partes] = tam;
+		for (int i = 1; i < partes; i++) {
+			long pos = Math.max(cortes[i - 1], tam * i / partes);
+			cortes[i] = finDeLinea(canal, pos, buf);
+		}
+		return cortes;
+	}
+
+	/**
+	 * Posicion siguiente al primer salto de linea a partir de pos.
+	 */
+	private static long finDeLinea(FileChannel canal, long pos, ByteBuffer buf) throws IOException {
+		if (pos == 0)
+			return 0;
+		long tam = canal.size();
+		while (pos < tam) {
+			buf.clear();
+			int leidos = canal.read(buf, pos);
+			if (leidos <= 0)
+				break;
+			for (int i = 0; i < leidos; i++) {
+				if (buf.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += leidos;
+		}
+		return tam;
+	}
+
+	/**
+	 * Lector de lineas de un fragmento del fichero.
+	 */
+	public static class LectorLineas {
+		private final FileChannel canal;
+		private final long fin;
+		private long posProyeccion;
+		private MappedByteBuffer proyeccion;
+		private byte[] linea = new byte[256];
+
+		/**
+		 * Constructor.
+		 *
+		 * @param canal
+		 *            canal del fichero
+		 * @param inicio
+		 *            primera posicion del fragmento
+		 * @param fin
+		 *            posicion siguiente a la ultima del fragmento
+		 */
+		public LectorLineas(FileChannel canal, long inicio, long fin) {
+			this.canal = canal;
+			this.fin = fin;
+			this.posProyeccion = inicio;
+		}
+
+		/**
+		 * Lee la siguiente linea del fragmento.
+		 *
+		 * @return la linea sin el salto de linea, o null al final del fragmento
+		 * @throws IOException
+		 *             si hay un error leyendo el fichero
+		 */
+		public String siguiente() throws IOException {
+			int len = 0;
+			while (true) {
+				if (proyeccion == null || !proyeccion.hasRemaining()) {
+					if (proyeccion != null)
+						posProyeccion += proyeccion.capacity();
+					if (posProyeccion >= fin) {
+						proyeccion = null;
+						break;
+					}
+					proyeccion = canal.map(FileChannel.MapMode.READ_ONLY, posProyeccion,
+							Math.min(TAM_PROYECCION, fin - posProyeccion));
+				}
+				byte b = proyeccion.get();
+				if (b == '\n')
+					return texto(len);
+				if (len == linea.length)
+					linea = Arrays.copyOf(linea, len * 2);
+				linea[len++] = b;
+			}
+			//Ultima linea sin salto de linea.
+			return len > 0 ? texto(len) : null;
+		}
+
+		private String texto(int len) {
+			if (len > 0 && linea[len - 1] == '\r')
+				len--;
+			return new String(linea, 0, len, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package lsi.ubu.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Lector incremental de scripts .sql con la sintaxis de SQL*Plus.
+ *
+ * Las sentencias SQL terminan con ';' al final de la linea y los bloques
+ * PL/SQL con una linea que solo contiene '/'. La orden 'exit' (o 'quit')
+ * termina la lectura. El script se lee linea a linea, de modo que en memoria
+ * solo se mantiene la sentencia en curso.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class LectorScriptSQL implements Closeable {
+
+	/** Comienzo de un bloque PL/SQL, que termina con '/' y no con ';'. */
+	private static final Pattern INICIO_PLSQL = Pattern.compile(
+			"^(create\\s+(or\\s+replace\\s+)?(procedure|function|package|trigger|type)\\b|declare\\b|begin\\b).*",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/** Comienzo de una sentencia DML, que se puede agrupar en lotes. */
+	private static final Pattern INICIO_DML = Pattern.compile(
+			"^(insert|update|delete|merge)\\b.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/** Ordenes propias de SQL*Plus que no se envian a la base de datos. */
+	private static final Pattern ORDEN_SQLPLUS = Pattern.compile(
+			"^(set|spool|prompt|whenever|rem|remark|show)\\b.*", Pattern.CASE_INSENSITIVE);
+
+	private final BufferedReader entrada;
+	private int numLinea = 0;
+	private boolean terminado = false;
+
+	/**
+	 * Sentencia leida del script junto a la linea en la que empieza.
+	 */
+	public static class SentenciaSQL {
+		private final String texto;
+		private final int linea;
+		private final boolean plsql;
+
+		SentenciaSQL(String texto, int linea, boolean plsql) {
+			this.texto = texto;
+			this.linea = linea;
+			this.plsql = plsql;
+		}
+
+		/** @return texto de la sentencia sin el terminador */
+		public String getTexto() {
+			return texto;
+		}
+
+		/** @return linea del script en la que empieza la sentencia */
+		public int getLinea() {
+			return linea;
+		}
+
+		/** @return true si es un bloque PL/SQL */
+		public boolean isPlsql() {
+			return plsql;
+		}
+
+		/** @return true si es una sentencia insert, update, delete o merge */
+		public boolean isDML() {
+			return !plsql && INICIO_DML.matcher(texto).matches();
+		}
+
+		/** @return true si es una sentencia drop */
+		public boolean isDrop() {
+			return texto.regionMatches(true, 0, "drop", 0, 4);
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param entrada
+	 *            texto del script
+	 */
+	public LectorScriptSQL(Reader entrada) {
+		this.entrada = entrada instanceof BufferedReader ? (BufferedReader) entrada : new BufferedReader(entrada);
+	}
+
+	/**
+	 * Lee la siguiente sentencia del script.
+	 *
+	 * @return la sentencia, o null si se ha llegado al final o a 'exit'
+	 * @throws IOException
+	 *             si hay un error leyendo el script
+	 */
+	public SentenciaSQL siguiente() throws IOException {
+		if (terminado)
+			return null;
+
+		StringBuilder buffer = new StringBuilder();
+		int lineaInicio = 0;
+		boolean plsql = false;
+		boolean enComillas = false;
+		String linea;
+
+		while ((linea = entrada.readLine()) != null) {
+			numLinea++;
+			String recortada = linea.trim();
+
+			if (buffer.length() == 0) {
+				//Lineas que no forman parte de ninguna sentencia.
+				if (recortada.isEmpty() || recortada.startsWith("--")
+						|| ORDEN_SQLPLUS.matcher(recortada).matches())
+					continue;
+				String orden = recortada.toLowerCase(Locale.ROOT);
+				if (orden.endsWith(";"))
+					orden = orden.substring(0, orden.length() - 1).trim();
+				if (orden.equals("exit") || orden.equals("quit")
+						|| orden.startsWith("exit ") || orden.startsWith("quit ")) {
+					terminado = true;
+					return null;
+				}
+				if (recortada.equals("/"))
+					continue;
+				lineaInicio = numLinea;
+				plsql = INICIO_PLSQL.matcher(recortada).matches();
+			}
+
+			if (plsql) {
+				//Los bloques PL/SQL solo terminan con '/' en una linea aislada.
+				if (recortada.equals("/"))
+					return new SentenciaSQL(buffer.toString().trim(), lineaInicio, true);
+				buffer.append(linea).append('\n');
+				continue;
+			}
+
+			if (recortada.equals("/"))
+				return new SentenciaSQL(buffer.toString().trim(), lineaInicio, false);
+
+			//Se busca el ultimo caracter significativo fuera de literales y comentarios.
+			int ultimo = -1;
+			for (int i = 0; i < linea.length(); i++) {
+				char c = linea.charAt(i);
+				if (enComillas) {
+					if (c == '\'')
+						enComillas = false;
+					ultimo = i;
+				} else if (c == '\'') {
+					enComillas = true;
+					ultimo = i;
+				} else if (c == '-' && i + 1 < linea.length() && linea.charAt(i + 1) == '-') {
+					break;
+				} else if (!Character.isWhitespace(c)) {
+					ultimo = i;
+				}
+			}
+
+			if (!enComillas && ultimo >= 0 && linea.charAt(ultimo) == ';') {
+				buffer.append(linea, 0, ultimo);
+				return new SentenciaSQL(buffer.toString().trim(), lineaInicio, false);
+			}
+			buffer.append(linea).append('\n');
+		}
+
+		terminado = true;
+		if (buffer.toString().trim().isEmpty())
+			return null;
+		//Sentencia sin terminador al final del fichero: se ejecuta igualmente.
+		return new SentenciaSQL(buffer.toString().trim(), lineaInicio, plsql);
+	}
+
+	/**
+	 * @return numero de la ultima linea leida
+	 */
+	public int getNumLinea() {
+		return numLinea;
+	}
+
+	@Override
+	public void close() throws IOException {
+		entrada.close();
+	}
+}
@@ -0,0 +1,128 @@
+package lsi.ubu.util;
+
+import java.util.Arrays;
+
+/**
+ * Mapa de bits comprimido de dias (numero de dia desde la epoca).
+ *
+ * Solo se guardan las palabras de 64 dias que tienen algun dia marcado,
+ * ordenadas por indice, de modo que un medico con reservas repartidas en
+ * varios años ocupa unos pocos cientos de bytes.
+ *
+ * No es seguro para hilos: quien lo use debe sincronizar el acceso.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class MapaDias {
+
+	/** Indice (dia / 64) de cada palabra guardada, en orden creciente. */
+	private int[] indices = new int[4];
+	/** Bits de cada palabra: el bit i corresponde al dia indice*64+i. */
+	private long[] palabras = new long[4];
+	private int numPalabras = 0;
+
+	/**
+	 * Marca un dia como ocupado.
+	 *
+	 * @param dia
+	 *            numero de dia
+	 */
+	public void marca(int dia) {
+		int indice = dia >> 6;
+		int pos = Arrays.binarySearch(indices, 0, numPalabras, indice);
+		if (pos < 0) {
+			pos = -pos - 1;
+			if (numPalabras == indices.length) {
+				indices = Arrays.copyOf(indices, numPalabras * 2);
+				palabras = Arrays.copyOf(palabras, numPalabras * 2);
+			}
+			System.arraycopy(indices, pos, indices, pos + 1, numPalabras - pos);
+			System.arraycopy(palabras, pos, palabras, pos + 1, numPalabras - pos);
+			indices[pos] = indice;
+			palabras[pos] = 0L;
+			numPalabras++;
+		}
+		palabras[pos] |= 1L << (dia & 63);
+	}
+
+	/**
+	 * Marca un dia como libre.
+	 *
+	 * @param dia
+	 *            numero de dia
+	 */
+	public void desmarca(int dia) {
+		int pos = Arrays.binarySearch(indices, 0, numPalabras, dia >> 6);
+		if (pos < 0)
+			return;
+		palabras[pos] &= ~(1L << (dia & 63));
+		if (palabras[pos] == 0L) {
+			System.arraycopy(indices, pos + 1, indices, pos, numPalabras - pos - 1);
+			System.arraycopy(palabras, pos + 1, palabras, pos, numPalabras - pos - 1);
+			numPalabras--;
+		}
+	}
+
+	/**
+	 * @param dia
+	 *            numero de dia
+	 * @return true si el dia esta ocupado
+	 */
+	public boolean contiene(int dia) {
+		int pos = Arrays.binarySearch(indices, 0, numPalabras, dia >> 6);
+		return pos >= 0 && (palabras[pos] & (1L << (dia & 63))) != 0;
+	}
+
+	/**
+	 * Primer dia libre a partir de uno dado.
+	 *
+	 * @param desde
+	 *            primer dia a considerar
+	 * @return el primer dia libre mayor o igual que desde
+	 */
+	public int siguienteLibre(int desde) {
+		int indice = desde >> 6;
+		int pos = Arrays.binarySearch(indices, 0, numPalabras, indice);
+		if (pos < 0)
+			return desde;
+		//Dias libres de la primera palabra a partir de 'desde'.
+		long libres = ~palabras[pos] & (-1L << (desde & 63));
+		while (libres == 0L) {
+			indice++;
+			pos++;
+			if (pos == numPalabras || indices[pos] != indice)
+				return indice << 6;
+			libres = ~palabras[pos];
+		}
+		return (indice << 6) + Long.numberOfTrailingZeros(libres);
+	}
+
+	/**
+	 * Dias libres de un intervalo.
+	 *
+	 * @param desde
+	 *            primer dia del intervalo
+	 * @param hasta
+	 *            ultimo dia del intervalo (incluido)
+	 * @return los dias libres en orden creciente
+	 */
+	public int[] libres(int desde, int hasta) {
+		int[] resultado = new int[Math.max(0, hasta - desde + 1)];
+		int n = 0;
+		for (int dia = siguienteLibre(desde); dia <= hasta; dia = siguienteLibre(dia + 1))
+			resultado[n++] = dia;
+		return Arrays.copyOf(resultado, n);
+	}
+
+	/**
+	 * @return numero de dias ocupados
+	 */
+	public int cardinalidad() {
+		int n = 0;
+		for (int i = 0; i < numPalabras; i++)
+			n += Long.bitCount(palabras[i]);
+		return n;
+	}
+}
@@ -0,0 +1,445 @@
+package lsi.ubu.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PerfilJDBC:
+ * Cuenta las llamadas al driver que hace cada operacion de negocio.
+ *
+ * Una operacion abre un ambito con inicia(). Mientras esta abierto, las
+ * conexiones que presta PoolDeConexiones al mismo hilo se envuelven en un
+ * proxy que cuenta preparaciones, ejecuciones, lecturas de bloques de filas
+ * (estimadas con el fetch size), commits y rollbacks, llamadas de metadatos y
+ * otras llamadas que van al servidor (autocommit, aislamiento, savepoints),
+ * ademas de las filas leidas. Las preparaciones no se suman a las idas y
+ * vueltas porque el driver de Oracle las envia con la primera ejecucion.
+ * Con el commit agrupado, CommitAgrupado cuenta cada operacion en el perfil
+ * de quien la pide, incluido el commit del grupo.
+ *
+ * En pruebas se usa mide(), que siempre cuenta, para comprobar presupuestos.
+ * En produccion se activa con la propiedad del sistema
+ * gestionmedicos.perfil.muestreo (se mide una de cada N operaciones; 0, por
+ * defecto, para no medir ninguna) y vuelca() informa de las operaciones mas
+ * caras. Sin muestreo un ambito no cuesta mas que leer un ThreadLocal.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class PerfilJDBC {
+
+	private static Logger logger = LoggerFactory.getLogger(PerfilJDBC.class);
+
+	private static final ThreadLocal<Perfil> actual = new ThreadLocal<Perfil>();
+
+	private static volatile int muestreo = Integer.getInteger("gestionmedicos.perfil.muestreo", 0);
+	private static final AtomicLong operaciones = new AtomicLong();
+
+	private static final int MAX_PEORES = 20;
+	private static final Map<String, Estadistica> estadisticas = new ConcurrentHashMap<String, Estadistica>();
+	/** Perfiles mas caros, el mas barato en la cabeza. */
+	private static final PriorityQueue<Perfil> peores = new PriorityQueue<Perfil>(
+			(a, b) -> Long.compare(a.getIdasYVueltas(), b.getIdasYVueltas()));
+
+	/** Llamadas a la conexion que van al servidor, aparte de commit y rollback. */
+	private static final Set<String> OTRAS_CONEXION = new HashSet<String>(Arrays.asList("setAutoCommit",
+			"setTransactionIsolation", "getTransactionIsolation", "setSavepoint", "releaseSavepoint", "isValid",
+			"setReadOnly"));
+
+	/**
+	 * Operacion que se mide.
+	 */
+	public interface Operacion {
+		void ejecuta() throws SQLException;
+	}
+
+	/**
+	 * Contadores de una operacion.
+	 */
+	public static class Perfil {
+		private final String operacion;
+		private final long inicio = System.nanoTime();
+		private long nanos;
+		private long preparaciones;
+		private long ejecuciones;
+		private long lecturas;
+		private long commits;
+		private long metadatos;
+		private long otras;
+		private long filas;
+
+		Perfil(String operacion) {
+			this.operacion = operacion;
+		}
+
+		public String getOperacion() {
+			return operacion;
+		}
+
+		public long getPreparaciones() {
+			return preparaciones;
+		}
+
+		public long getEjecuciones() {
+			return ejecuciones;
+		}
+
+		/** @return bloques de filas pedidos despues de la ejecucion */
+		public long getLecturas() {
+			return lecturas;
+		}
+
+		/** @return commits y rollbacks */
+		public long getCommits() {
+			return commits;
+		}
+
+		public long getMetadatos() {
+			return metadatos;
+		}
+
+		public long getOtras() {
+			return otras;
+		}
+
+		public long getFilas() {
+			return filas;
+		}
+
+		public long getMicros() {
+			return nanos / 1000;
+		}
+
+		/** @return idas y vueltas al servidor */
+		public long getIdasYVueltas() {
+			return ejecuciones + lecturas + commits + metadatos + otras;
+		}
+
+		/**
+		 * @param max
+		 *            presupuesto
+		 * @return true si las idas y vueltas no superan el presupuesto
+		 */
+		public boolean dentroDe(long max) {
+			return getIdasYVueltas() <= max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d idas y vueltas (preparaciones=%d ejecuciones=%d lecturas=%d commits=%d"
+					+ " metadatos=%d otras=%d) filas=%d %d us", operacion, getIdasYVueltas(), preparaciones,
+					ejecuciones, lecturas, commits, metadatos, otras, filas, getMicros());
+		}
+	}
+
+	/**
+	 * Ambito de una operacion. Se cierra al terminarla.
+	 */
+	public static class Ambito implements AutoCloseable {
+		private static final Ambito VACIO = new Ambito(null);
+		private final Perfil perfil;
+
+		private Ambito(Perfil perfil) {
+			this.perfil = perfil;
+		}
+
+		@Override
+		public void close() {
+			if (perfil == null)
+				return;
+			actual.remove();
+			perfil.nanos = System.nanoTime() - perfil.inicio;
+			registra(perfil);
+		}
+	}
+
+	/** Acumulado de las muestras de una operacion. */
+	private static class Estadistica {
+		final LongAdder muestras = new LongAdder();
+		final LongAdder idasYVueltas = new LongAdder();
+		final LongAdder filas = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLong maxIdasYVueltas = new AtomicLong();
+	}
+
+	private PerfilJDBC() {
+	}
+
+	/**
+	 * Abre el ambito de una operacion, si le toca ser muestreada y no hay ya
+	 * otro abierto en el hilo.
+	 *
+	 * @param operacion
+	 *            nombre de la operacion
+	 * @return el ambito, que hay que cerrar al terminar
+	 */
+	public static Ambito inicia(String operacion) {
+		int n = muestreo;
+		if (n <= 0 || actual.get() != null || operaciones.incrementAndGet() % n != 0)
+			return Ambito.VACIO;
+		Perfil p = new Perfil(operacion);
+		actual.set(p);
+		return new Ambito(p);
+	}
+
+	/**
+	 * Ejecuta una operacion contando siempre sus llamadas, para comprobar
+	 * presupuestos en las pruebas.
+	 *
+	 * @param nombre
+	 *            nombre de la operacion
+	 * @param op
+	 *            operacion
+	 * @return perfil de la operacion, aunque haya fallado
+	 * @throws SQLException
+	 *             el error de la operacion
+	 */
+	public static Perfil mide(String nombre, Operacion op) throws SQLException {
+		Perfil anterior = actual.get();
+		Perfil p = new Perfil(nombre);
+		actual.set(p);
+		try {
+			op.ejecuta();
+			return p;
+		} finally {
+			p.nanos = System.nanoTime() - p.inicio;
+			if (anterior != null)
+				actual.set(anterior);
+			else
+				actual.remove();
+		}
+	}
+
+	/**
+	 * Cambia el muestreo.
+	 *
+	 * @param n
+	 *            se mide una de cada n operaciones; 0 para no medir
+	 */
+	public static void setMuestreo(int n) {
+		muestreo = n;
+	}
+
+	/**
+	 * Envuelve una conexion si el hilo tiene un ambito abierto. La usa
+	 * PoolDeConexiones al prestar cada conexion.
+	 *
+	 * @param con
+	 *            conexion
+	 * @return la conexion envuelta, o la misma si no hay nada que medir
+	 */
+	public static Connection envuelve(Connection con) {
+		return envuelve(con, actual.get());
+	}
+
+	/**
+	 * Envuelve una conexion para contar sus llamadas en un perfil, aunque sea
+	 * de otro hilo. La usa CommitAgrupado para ejecutar cada operacion en el
+	 * perfil de quien la pide.
+	 *
+	 * @param con
+	 *            conexion
+	 * @param p
+	 *            perfil, o null para no contar
+	 * @return la conexion envuelta, o la misma si no hay perfil
+	 */
+	public static Connection envuelve(Connection con, Perfil p) {
+		if (p == null)
+			return con;
+		return proxy(Connection.class, con, p);
+	}
+
+	/**
+	 * @return perfil que se esta midiendo en el hilo, o null si no hay ninguno
+	 */
+	public static Perfil getActual() {
+		return actual.get();
+	}
+
+	/**
+	 * Cuenta en un perfil un commit que otro hilo hace en su nombre, como el
+	 * commit compartido de un grupo de CommitAgrupado.
+	 *
+	 * @param p
+	 *            perfil, o null para no contar
+	 */
+	public static void cuentaCommit(Perfil p) {
+		if (p != null)
+			p.commits++;
+	}
+
+	private static <T> T proxy(Class<T> interfaz, Object real, Perfil p) {
+		return interfaz.cast(Proxy.newProxyInstance(interfaz.getClassLoader(), new Class<?>[] { interfaz },
+				new Contador(real, p)));
+	}
+
+	/**
+	 * Cuenta las llamadas a un objeto JDBC y envuelve los objetos que devuelve.
+	 */
+	private static class Contador implements InvocationHandler {
+		private final Object real;
+		private final Perfil p;
+		private int tamBloque;
+
+		Contador(Object real, Perfil p) {
+			this.real = real;
+			this.p = p;
+			if (real instanceof ResultSet) {
+				try {
+					tamBloque = ((ResultSet) real).getFetchSize();
+				} catch (SQLException e) {
+					tamBloque = 0;
+				}
+				//Tamaño por defecto del driver de Oracle.
+				if (tamBloque <= 0)
+					tamBloque = 10;
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+			String nombre = metodo.getName();
+			if (real instanceof Connection) {
+				if (nombre.startsWith("prepare"))
+					p.preparaciones++;
+				else if ("commit".equals(nombre) || "rollback".equals(nombre))
+					p.commits++;
+				else if ("getMetaData".equals(nombre))
+					p.metadatos++;
+				else if (OTRAS_CONEXION.contains(nombre))
+					p.otras++;
+			} else if (real instanceof Statement) {
+				if (nombre.startsWith("execute"))
+					p.ejecuciones++;
+				else if ("getMetaData".equals(nombre) || "getParameterMetaData".equals(nombre))
+					p.metadatos++;
+			} else if (real instanceof ResultSet) {
+				if ("next".equals(nombre)) {
+					Object hay = invocaReal(metodo, args);
+					if (Boolean.TRUE.equals(hay)) {
+						p.filas++;
+						//El primer bloque llega con la ejecucion.
+						if (p.filas % tamBloque == 0)
+							p.lecturas++;
+					}
+					return hay;
+				}
+				if ("getMetaData".equals(nombre))
+					p.metadatos++;
+			} else if (real instanceof DatabaseMetaData) {
+				Class<?> tipo = metodo.getReturnType();
+				if (tipo != Connection.class && !"unwrap".equals(nombre) && !"isWrapperFor".equals(nombre))
+					p.metadatos++;
+			}
+
+			Object resultado = invocaReal(metodo, args);
+			//Se envuelven las sentencias, resultados y metadatos que crea el objeto.
+			Class<?> tipo = metodo.getReturnType();
+			if (resultado != null && tipo.isInterface()
+					&& (Statement.class.isAssignableFrom(tipo) || tipo == ResultSet.class
+							|| tipo == DatabaseMetaData.class))
+				return proxy(tipo, resultado, p);
+			return resultado;
+		}
+
+		private Object invocaReal(Method metodo, Object[] args) throws Throwable {
+			try {
+				return metodo.invoke(real, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	private static void registra(Perfil p) {
+		Estadistica e = estadisticas.computeIfAbsent(p.operacion, k -> new Estadistica());
+		e.muestras.increment();
+		e.idasYVueltas.add(p.getIdasYVueltas());
+		e.filas.add(p.filas);
+		e.nanos.add(p.nanos);
+		e.maxIdasYVueltas.accumulateAndGet(p.getIdasYVueltas(), Math::max);
+		synchronized (peores) {
+			if (peores.size() < MAX_PEORES) {
+				peores.add(p);
+			} else if (peores.peek().getIdasYVueltas() < p.getIdasYVueltas()) {
+				peores.poll();
+				peores.add(p);
+			}
+		}
+	}
+
+	/**
+	 * Resume las operaciones muestreadas, de mas a menos idas y vueltas de
+	 * media, seguidas de las ejecuciones individuales mas caras.
+	 *
+	 * @param n
+	 *            numero de operaciones y de ejecuciones a mostrar
+	 * @return el resumen
+	 */
+	public static String resumen(int n) {
+		List<Map.Entry<String, Estadistica>> ops = new ArrayList<Map.Entry<String, Estadistica>>(
+				estadisticas.entrySet());
+		ops.sort((a, b) -> Double.compare(media(b.getValue()), media(a.getValue())));
+		StringBuilder sb = new StringBuilder("OPERACION\tMUESTRAS\tIDAS Y VUELTAS (MEDIA)\tMAX\tFILAS (MEDIA)\tMEDIA(us)\n");
+		for (Map.Entry<String, Estadistica> op : ops.subList(0, Math.min(n, ops.size()))) {
+			Estadistica e = op.getValue();
+			long m = e.muestras.sum();
+			sb.append(String.format("%s\t%d\t%.1f\t%d\t%.1f\t%d%n", op.getKey(), m, media(e), e.maxIdasYVueltas.get(),
+					(double) e.filas.sum() / m, e.nanos.sum() / 1000 / m));
+		}
+		List<Perfil> caros;
+		synchronized (peores) {
+			caros = new ArrayList<Perfil>(peores);
+		}
+		caros.sort((a, b) -> Long.compare(b.getIdasYVueltas(), a.getIdasYVueltas()));
+		for (Perfil p : caros.subList(0, Math.min(n, caros.size())))
+			sb.append(p).append('\n');
+		return sb.toString();
+	}
+
+	private static double media(Estadistica e) {
+		long m = e.muestras.sum();
+		return m == 0 ? 0 : (double) e.idasYVueltas.sum() / m;
+	}
+
+	/**
+	 * Escribe el resumen en el log.
+	 *
+	 * @param n
+	 *            numero de operaciones y de ejecuciones a mostrar
+	 */
+	public static void vuelca(int n) {
+		logger.info("Perfil JDBC:\n{}", resumen(n));
+	}
+
+	/**
+	 * Borra las estadisticas acumuladas.
+	 */
+	public static void reinicia() {
+		estadisticas.clear();
+		synchronized (peores) {
+			peores.clear();
+		}
+	}
+}
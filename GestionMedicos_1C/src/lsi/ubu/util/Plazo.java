@@ -0,0 +1,155 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plazo de una operacion completa.
+ *
+ * El tiempo que queda se reparte entre la espera por una conexion del pool
+ * (ver PoolDeConexiones.getConnection(Plazo)) y cada sentencia que se
+ * vigila: a cada una se le pone como query timeout el tiempo restante, y al
+ * vencer el plazo se cancela la sentencia en curso, de modo que el plazo se
+ * respeta con precision de milisegundos aunque el query timeout sea en
+ * segundos. Un plazo se usa desde un solo hilo y se termina con termina().
+ *
+ * El plazo por defecto se configura con la propiedad del sistema
+ * gestionmedicos.plazoMs (10000 por defecto; 0 para no poner plazo).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Plazo {
+
+	private static Logger logger = LoggerFactory.getLogger(Plazo.class);
+
+	private static final ScheduledThreadPoolExecutor cancelador;
+
+	static {
+		cancelador = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "cancelador-plazos");
+			t.setDaemon(true);
+			return t;
+		});
+		cancelador.setRemoveOnCancelPolicy(true);
+	}
+
+	/** Plazo sin limite. */
+	public static final Plazo ILIMITADO = new Plazo(Long.MAX_VALUE);
+
+	/** Instante limite en nanosegundos, o Long.MAX_VALUE si no hay limite. */
+	private final long limite;
+
+	private volatile Statement enCurso;
+	private ScheduledFuture<?> cancelacion;
+	private volatile boolean cancelado = false;
+
+	private Plazo(long limite) {
+		this.limite = limite;
+	}
+
+	/**
+	 * @param ms
+	 *            milisegundos desde ahora
+	 * @return un plazo que vence dentro de ms milisegundos
+	 */
+	public static Plazo en(long ms) {
+		return new Plazo(System.nanoTime() + ms * 1000000L);
+	}
+
+	/**
+	 * @return un plazo nuevo con la duracion por defecto
+	 */
+	public static Plazo porDefecto() {
+		long ms = Long.getLong("gestionmedicos.plazoMs", 10000L);
+		return ms <= 0 ? ILIMITADO : en(ms);
+	}
+
+	/** @return true si el plazo no tiene limite */
+	public boolean isIlimitado() {
+		return limite == Long.MAX_VALUE;
+	}
+
+	/** @return milisegundos que quedan, 0 si ya ha vencido */
+	public long restanteMs() {
+		if (isIlimitado())
+			return Long.MAX_VALUE;
+		return Math.max(0, (limite - System.nanoTime()) / 1000000L);
+	}
+
+	/** @return true si el plazo ha vencido */
+	public boolean vencido() {
+		return !isIlimitado() && System.nanoTime() - limite >= 0;
+	}
+
+	/**
+	 * @throws SQLTimeoutException
+	 *             si el plazo ha vencido
+	 */
+	public void compruebaVigente() throws SQLTimeoutException {
+		if (vencido())
+			throw new SQLTimeoutException("Plazo agotado");
+	}
+
+	/**
+	 * Limita una sentencia al tiempo restante. Hay que llamarlo justo antes
+	 * de ejecutarla; la sentencia queda vigilada hasta que se vigile otra o se
+	 * termine el plazo.
+	 *
+	 * @param st
+	 *            sentencia que se va a ejecutar
+	 * @throws SQLException
+	 *             SQLTimeoutException si el plazo ya ha vencido, u otro
+	 *             error al poner el query timeout
+	 */
+	public void vigila(Statement st) throws SQLException {
+		if (isIlimitado())
+			return;
+		long ms = restanteMs();
+		if (ms == 0)
+			throw new SQLTimeoutException("Plazo agotado");
+		st.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (ms + 999) / 1000));
+		enCurso = st;
+		if (cancelacion == null)
+			cancelacion = cancelador.schedule(this::cancela, limite - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	private void cancela() {
+		Statement st = enCurso;
+		if (st == null)
+			return;
+		cancelado = true;
+		try {
+			st.cancel();
+		} catch (SQLException e) {
+			logger.error("No se puede cancelar la sentencia al vencer el plazo: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true si se ha cancelado alguna sentencia por vencer el plazo
+	 */
+	public boolean isCancelado() {
+		return cancelado;
+	}
+
+	/**
+	 * Deja de vigilar sentencias. Hay que llamarlo al terminar la operacion,
+	 * antes de devolver la conexion.
+	 */
+	public void termina() {
+		enCurso = null;
+		if (cancelacion != null) {
+			cancelacion.cancel(false);
+			cancelacion = null;
+		}
+	}
+}
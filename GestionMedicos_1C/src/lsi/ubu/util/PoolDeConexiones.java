@@ -1,16 +1,34 @@
 package lsi.ubu.util;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import oracle.ucp.UniversalConnectionPoolException;
+import oracle.ucp.admin.UniversalConnectionPoolManagerImpl;
 import oracle.ucp.jdbc.PoolDataSource;
-import oracle.ucp.jdbc.PoolDataSourceFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,31 +42,43 @@ import org.slf4j.LoggerFactory;
  * @since 1.0 
  */
 
-public class PoolDeConexiones {
+public class PoolDeConexiones implements ControladorPool.Pool {
 	// Configuraci�n de JNDI
 	private static final String FILE_SYSTEM_CONTEXT_FACTORY = "com.sun.jndi.fscontext.RefFSContextFactory";
 	private static final String FILE_RES = "file:./res";
 	private static final String JDBC_TESTDB_DS = "jdbc/testdb_pooled";
 
-	// Constantes de conexi�n
-	private static final String DRIVER_TYPE = "thin";
-	private static final int PORT = 1521;
-	private static final String SID = "xe";
-	private static final String HOST = "localhost";
-	private static final String USER = "hr";
+	/** Pools de conexiones por nombre JNDI. */
+	private static final Map<String, PoolDeConexiones> pools = new ConcurrentHashMap<String, PoolDeConexiones>();
 	
-	//
-	private static final String CONNECTION_FACTORY = "oracle.jdbc.pool.OracleDataSource";
+	/** Pools de UCP creados desde un fichero de configuración, para darles nombres únicos. */
+	private static final AtomicLong poolsCreados = new AtomicLong();
 	
-	// Tip: si hay problemas de conexi�n, comprueba que en la BD el password est� en min�sculas,
-	// prueba desde SQL*Plus o SQLDeveloper que efectivamente puedes conectarte con hr/hr.
-	private static final String PASSWORD = "hr"; 
+	/** Nombre JNDI del pool. */
+	private final String nombre;
 	
-	/** Pool de conexiones. */
-	private static PoolDeConexiones poolDeConexiones;
+	/** DataSource. Cambia si la configuración cambia de base de datos o de usuario. */
+	private volatile DataSource ds;
 	
-	/** DataSource. */
-	private DataSource ds;
+	/** Configuración aplicada, o null si se usa la publicada en JNDI sin cambios. */
+	private ConfiguracionPool configuracion;
+	
+	/** Pools sustituidos que aún tienen conexiones prestadas. */
+	private final List<PoolDataSource> retirados = new ArrayList<PoolDataSource>();
+	
+	/** Vigilante del fichero de configuración, si está activo. */
+	private VigilanteConfiguracion vigilante;
+	
+	/** Espera acumulada y número de préstamos, para ControladorPool. */
+	private final AtomicLong esperaNanos = new AtomicLong();
+	private final AtomicLong prestamos = new AtomicLong();
+	
+	/** Hilos que esperan por conexiones con plazo. */
+	private static final ExecutorService esperasConPlazo = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "prestamo-con-plazo");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	/** Logger. */
 	private static Logger logger = LoggerFactory.getLogger(PoolDeConexiones.class);
@@ -57,21 +87,49 @@ public class PoolDeConexiones {
 	/**
 	 * Constructor del pool de conexiones, siguiendo el patr�n de dise�o Singleton.
 	 * 
+	 * @param nombre
+	 *            nombre del recurso JNDI
 	 * @throws RuntimeException
 	 *             si no encuentra el el recurso JNDI, y por tanto no logra instanciar el pool 
 	 */
-	private PoolDeConexiones() {	
+	private PoolDeConexiones(String nombre) {	
+		this.nombre = nombre;
 		
 		try {
+			//Las bases de datos embebidas no se publican en JNDI.
+			if (JDBC_TESTDB_DS.equals(nombre)) {
+				DataSource embebida = Dialecto.actual().creaDataSource();
+				if (embebida != null) {
+					ds = embebida;
+					logger.info("Pool {} sobre la base de datos embebida de {}", nombre, Dialecto.actual());
+					return;
+				}
+			}
 			Properties properties = new Properties();
 			properties.setProperty(Context.INITIAL_CONTEXT_FACTORY,	FILE_SYSTEM_CONTEXT_FACTORY);
 			properties.setProperty(Context.PROVIDER_URL, FILE_RES);
 			Context context = new InitialContext(properties);
 
-			ds = (DataSource) context.lookup(JDBC_TESTDB_DS);			
+			ds = (DataSource) context.lookup(nombre);			
 		
+			//Si hay fichero de configuración, tiene preferencia sobre el recurso JNDI del pool por defecto.
+			if (!JDBC_TESTDB_DS.equals(nombre)) {
+				logger.info("Pool {} obtenido de JNDI", nombre);
+				return;
+			}
+			if (Files.exists(ConfiguracionPool.FICHERO)) {
+				configuracion = ConfiguracionPool.carga(ConfiguracionPool.FICHERO);
+				ds = creaPool(configuracion);
+				logger.info("Pool configurado desde {}: {}", ConfiguracionPool.FICHERO, configuracion);
+			}
+			if (Boolean.getBoolean("gestionmedicos.pool.vigilar"))
+				vigilante = new VigilanteConfiguracion(this, ConfiguracionPool.FICHERO);
+		} catch (IOException | SQLException | IllegalArgumentException e) {
+			logger.error("Problema: no se puede aplicar la configuración de {}", ConfiguracionPool.FICHERO);
+			logger.error(e.getMessage());
+			throw new RuntimeException(e);
 		} catch (NamingException e) {
-			logger.error("Problema: no se encuentra el nombre del recurso en el contexto JNDI");
+			logger.error("Problema: no se encuentra el nombre del recurso {} en el contexto JNDI", nombre);
 			logger.error(e.getMessage());
 			
 			//La aplicaci�n ya no puede seguir si no se instancia un pool
@@ -81,17 +139,81 @@ public class PoolDeConexiones {
 			return;
 		}
 	
+	/**
+	 * Crea un pool sobre un data source ya construido, sin pasar por JNDI.
+	 */
+	private PoolDeConexiones(String nombre, DataSource ds) {
+		this.nombre = nombre;
+		this.ds = ds;
+	}
+	
 	/**
 	 * Obtiene la instancia del pool de conexiones si no exist�a.
 	 * 
 	 */	
 	public static PoolDeConexiones getInstance() {		
-		
-		if (poolDeConexiones == null) {
-				poolDeConexiones = new PoolDeConexiones();
-		}	
+		return getInstance(JDBC_TESTDB_DS);
+	}
+	
+	/**
+	 * Obtiene el pool de un recurso JNDI, creándolo si no existía. Hay un
+	 * único pool por nombre; el fichero de configuración solo se aplica al
+	 * pool por defecto.
+	 * 
+	 * @param nombreJndi
+	 *            nombre del recurso JNDI, por ejemplo jdbc/testdb_pooled
+	 * @return el pool
+	 * @throws RuntimeException
+	 *             si no encuentra el recurso JNDI
+	 */
+	public static PoolDeConexiones getInstance(String nombreJndi) {
+		PoolDeConexiones pool = pools.get(nombreJndi);
+		if (pool == null) {
+			synchronized (pools) {
+				pool = pools.get(nombreJndi);
+				if (pool == null) {
+					pool = new PoolDeConexiones(nombreJndi);
+					pools.put(nombreJndi, pool);
+				}
+			}
+		}
+		return pool;
+	}
+	
+	/**
+	 * Registra un pool con nombre sobre un data source creado por la
+	 * aplicación, por ejemplo el de una base de datos embebida. Sustituye al
+	 * pool que hubiera con ese nombre.
+	 * 
+	 * @param nombre
+	 *            nombre con el que se obtendrá con getInstance(String)
+	 * @param ds
+	 *            data source
+	 * @return el pool
+	 */
+	public static PoolDeConexiones registra(String nombre, DataSource ds) {
+		PoolDeConexiones pool = new PoolDeConexiones(nombre, ds);
+		pools.put(nombre, pool);
+		logger.info("Pool {} registrado", nombre);
+		return pool;
+	}
+	
+	/**
+	 * Vuelve a registrar un pool con su nombre, por ejemplo para restaurar el
+	 * original después de sustituirlo con registra(String, DataSource).
+	 * 
+	 * @param pool
+	 *            pool a registrar
+	 */
+	public static void registra(PoolDeConexiones pool) {
+		pools.put(pool.nombre, pool);
+	}
 	
-		return poolDeConexiones;
+	/**
+	 * @return nombre JNDI del pool
+	 */
+	public String getNombre() {
+		return nombre;
 	}
 	
 	/**
@@ -103,10 +225,96 @@ public class PoolDeConexiones {
 	 */
 	public Connection getConnection() throws SQLException {
 		Connection conn = null;
+		long inicio = System.nanoTime();
 		conn = ds.getConnection();
+		return entrega(conn, inicio);
+	}
+	
+	/**
+	 * Obtiene una conexión sin esperar más de lo que queda de un plazo.
+	 * Si hay conexiones libres se toma directamente; si no, se espera en otro
+	 * hilo y, si el plazo vence antes, la conexión que llegue después se
+	 * devuelve al pool.
+	 * 
+	 * @param plazo
+	 *            plazo de la operación
+	 * @return conexión
+	 * @throws SQLException
+	 *             SQLTimeoutException si vence el plazo, o si hay un error con
+	 *             la base de datos
+	 */
+	public Connection getConnection(Plazo plazo) throws SQLException {
+		if (plazo.isIlimitado())
+			return getConnection();
+		plazo.compruebaVigente();
+		final DataSource fuente = ds;
+		if (fuente instanceof PoolDataSource 
+				&& ((PoolDataSource) fuente).getAvailableConnectionsCount() > 0)
+			return getConnection();
+		
+		long inicio = System.nanoTime();
+		CompletableFuture<Connection> prestamo = CompletableFuture.supplyAsync(() -> {
+			try {
+				return fuente.getConnection();
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		}, esperasConPlazo);
+		try {
+			return entrega(prestamo.get(plazo.restanteMs(), TimeUnit.MILLISECONDS), inicio);
+		} catch (TimeoutException e) {
+			esperaNanos.addAndGet(System.nanoTime() - inicio);
+			prestamo.thenAccept(conn -> {
+				try {
+					conn.close();
+				} catch (SQLException ex) {
+					logger.error(ex.getMessage());
+				}
+			});
+			throw new SQLTimeoutException("Plazo agotado esperando una conexión del pool");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrumpido esperando una conexión del pool", e);
+		}
+	}
+	
+	/**
+	 * Obtiene una conexión de solo lectura para consultas largas, como los
+	 * informes, que no deben cargar la base de datos principal. Si la
+	 * propiedad del sistema gestionmedicos.soloLectura.jndi indica otro
+	 * recurso JNDI (por ejemplo una réplica) se toma de ese pool; si no, de
+	 * este. Cada transacción de la conexión ve los datos de un único
+	 * instante.
+	 * 
+	 * @return conexión de solo lectura
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	public Connection getConexionSoloLectura() throws SQLException {
+		String replica = System.getProperty("gestionmedicos.soloLectura.jndi");
+		PoolDeConexiones origen = replica == null || replica.equals(nombre) ? this : getInstance(replica);
+		Connection conn = origen.getConnection();
+		conn.setReadOnly(true);
+		return conn;
+	}
+	
+	/**
+	 * Prepara una conexión recién obtenida del data source para entregarla.
+	 */
+	private Connection entrega(Connection conn, long inicio) throws SQLException {
+		esperaNanos.addAndGet(System.nanoTime() - inicio);
+		prestamos.incrementAndGet();
+		//Si el hilo está midiendo una operación se cuentan también las llamadas de la configuración.
+		conn = PerfilJDBC.envuelve(conn);
 
 		conn.setAutoCommit(false);
-		logger.info("Activacion de Autocommit={}", conn.getAutoCommit());
+		//Puede volver al pool de solo lectura después de getConexionSoloLectura().
+		if (conn.isReadOnly())
+			conn.setReadOnly(false);
 		conn.setTransactionIsolation(
 			Connection.TRANSACTION_READ_COMMITTED);
 			//Connection.TRANSACTION_SERIALIZABLE);
@@ -114,8 +322,16 @@ public class PoolDeConexiones {
 				// conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
 				// conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 		
-		logger.info(traceConnectionSettings(conn));
+		//Consultar la configuración cuesta idas y vueltas al servidor: solo si se va a registrar.
+		if (logger.isDebugEnabled()) {
+			logger.debug("Activacion de Autocommit={}", conn.getAutoCommit());
+			logger.debug(traceConnectionSettings(conn));
+		}
 
+		//Se registra el préstamo hasta que se cierre la conexión.
+		SeguimientoConexiones seguimiento = SeguimientoConexiones.getInstance();
+		if (seguimiento != null)
+			conn = seguimiento.envuelve(conn);
 		return conn;
 	}
 	
@@ -127,9 +343,11 @@ public class PoolDeConexiones {
 	 *             si el nombre del recurso JNDI genera errores
 	 * @throws SQLException
 	 *             si hay un error con la base de datos
+	 * @throws IOException
+	 *             si no se puede leer el fichero de configuración
 	 */
 	public static void reconfigurarPool() 
-            throws NamingException, SQLException {
+            throws NamingException, SQLException, IOException {
 		
 		Properties properties = new Properties();
 		properties.setProperty(Context.INITIAL_CONTEXT_FACTORY,	FILE_SYSTEM_CONTEXT_FACTORY);
@@ -138,21 +356,8 @@ public class PoolDeConexiones {
 		
 		Context context = new InitialContext(properties);
 		
-		PoolDataSource  pds = 
-			PoolDataSourceFactory.getPoolDataSource();
-		pds.setConnectionFactoryClassName(CONNECTION_FACTORY);
-		
-		String url = "jdbc:oracle:" + DRIVER_TYPE + ":" + USER + "/" + PASSWORD + "@" + HOST + ":" + PORT + ":" + SID;
-		pds.setURL(url);
-			
-		//// Configuraci�n del pool   
-		pds.setMinPoolSize(3);
-		pds.setMaxPoolSize(10);
-		pds.setInitialPoolSize(5);
-		pds.setTimeToLiveConnectionTimeout(18000);
-		
-		////Activaci�n de la cach� de sentencias prepradas (6 sentencias)
-		pds.setMaxStatements(6);
+		//// Configuración del pool leída de res/pool.properties, o la de por defecto si no existe
+		PoolDataSource pds = ConfiguracionPool.cargaPorDefecto().creaDataSource();
 		
 		context.rebind(JDBC_TESTDB_DS, pds);
 		
@@ -207,14 +412,28 @@ public class PoolDeConexiones {
 	 *             si hay un error con la cach� de conexiones
 	 */	
 	public void resizePool(int initialLimit, int minLimit, int maxLimit) throws SQLException {
+		PoolDataSource pds = ucp();
+		if (pds == null) {
+			logger.warn("El pool {} no es de UCP: no se puede redimensionar", nombre);
+			return;
+		}
 
-		((PoolDataSource) ds).setMinPoolSize(minLimit);
-		((PoolDataSource) ds).setMaxPoolSize(maxLimit);
-		((PoolDataSource) ds).setInitialPoolSize(initialLimit);
+		pds.setMinPoolSize(minLimit);
+		pds.setMaxPoolSize(maxLimit);
+		pds.setInitialPoolSize(initialLimit);
 		
 		return;
 	}
 	
+	/**
+	 * @return el data source de UCP, o null si el pool es de otro tipo (el de
+	 *         una base de datos embebida), que no admite estos ajustes
+	 */
+	private PoolDataSource ucp() {
+		DataSource actual = ds;
+		return actual instanceof PoolDataSource ? (PoolDataSource) actual : null;
+	}
+	
 	/**
 	 * Consulta la configuraci�n del data source de Oracle.
 	 * 
@@ -225,7 +444,9 @@ public class PoolDeConexiones {
 	 *             si hay un error con la base de datos
 	 */
 	public String traceOracleSettings() throws SQLException {
-		PoolDataSource pds = (PoolDataSource) ds;
+		PoolDataSource pds = ucp();
+		if (pds == null)
+			return "trabajando con " + ds.getClass().getName() + "\n";
 		String retorno = "trabajando con OracleDataSource\n";
 		retorno += "Activacion de Cache de Sentencias Preparadas con " + pds.getMaxStatements()+" sentencias \n";
 		
@@ -238,4 +459,192 @@ public class PoolDeConexiones {
 		return retorno;
 	}
 
+	@Override
+	public long getEsperaAcumuladaNanos() {
+		return esperaNanos.get();
+	}
+
+	@Override
+	public long getPrestamos() {
+		return prestamos.get();
+	}
+
+	@Override
+	public int getConexionesPrestadas() throws SQLException {
+		PoolDataSource pds = ucp();
+		return pds == null ? 0 : pds.getBorrowedConnectionsCount();
+	}
+
+	/**
+	 * @return tamaño máximo del pool, o 0 si no es de UCP
+	 */
+	@Override
+	public int getTamMaximo() {
+		PoolDataSource pds = ucp();
+		return pds == null ? 0 : pds.getMaxPoolSize();
+	}
+
+	/**
+	 * Mide la latencia de la base de datos con una consulta trivial. La
+	 * conexión no cuenta como préstamo y su espera no se incluye.
+	 * 
+	 * @return latencia en nanosegundos, o -1 si no se puede medir
+	 */
+	@Override
+	public long midaLatenciaNanos() {
+		Connection conn = null;
+		Statement st = null;
+		ResultSet rs = null;
+		try {
+			conn = ds.getConnection();
+			st = conn.createStatement();
+			long inicio = System.nanoTime();
+			rs = st.executeQuery("SELECT 1 FROM dual");
+			rs.next();
+			return System.nanoTime() - inicio;
+		} catch (SQLException e) {
+			logger.error(e.getMessage());
+			return -1;
+		} finally {
+			try {
+				if (rs!=null) rs.close();
+				if (st!=null) st.close();
+				if (conn!=null) conn.close();
+			} catch (SQLException e) {
+				logger.error(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Cambia los límites del pool manteniendo el tamaño inicial dentro de ellos.
+	 */
+	@Override
+	public void redimensiona(int minimo, int maximo) throws SQLException {
+		int inicial = getTamInicial();
+		resizePool(Math.max(minimo, Math.min(inicial, maximo)), minimo, maximo);
+	}
+
+	/**
+	 * @return tamaño inicial configurado del pool, o 0 si no es de UCP
+	 */
+	public int getTamInicial() {
+		PoolDataSource pds = ucp();
+		return pds == null ? 0 : pds.getInitialPoolSize();
+	}
+
+	/**
+	 * Asegura que la caché de sentencias preparadas de cada conexión admite
+	 * al menos un número de sentencias.
+	 * 
+	 * @param sentencias
+	 *            número mínimo de sentencias
+	 * @throws SQLException
+	 *             si hay un error con la caché de conexiones
+	 */
+	public void aseguraCacheSentencias(int sentencias) throws SQLException {
+		PoolDataSource pds = ucp();
+		if (pds == null)
+			return;
+		if (pds.getMaxStatements() < sentencias) {
+			logger.info("Caché de sentencias ampliada de {} a {}", pds.getMaxStatements(), sentencias);
+			pds.setMaxStatements(sentencias);
+		}
+	}
+
+	/**
+	 * Aplica una configuración al pool en uso. Los tamaños, el TTL y la caché
+	 * de sentencias se cambian en el mismo pool. Si cambia la base de datos o
+	 * el usuario se crea un pool nuevo para los siguientes préstamos y el
+	 * anterior se retira: sus conexiones prestadas siguen siendo válidas y se
+	 * cierra cuando se devuelve la última (ver cierraRetirados()).
+	 * 
+	 * @param nueva
+	 *            configuración a aplicar
+	 * @throws SQLException
+	 *             si algún valor no es válido para el pool
+	 */
+	public synchronized void aplicaConfiguracion(ConfiguracionPool nueva) throws SQLException {
+		PoolDataSource actual = ucp();
+		if (actual == null) {
+			logger.warn("El pool {} no es de UCP: no se le aplica la configuración", nombre);
+			return;
+		}
+		boolean mismaConexion;
+		if (configuracion != null) {
+			List<String> cambios = nueva.cambios(configuracion);
+			if (cambios.isEmpty())
+				return;
+			for (String cambio : cambios)
+				logger.info("Configuración del pool: {}", cambio);
+			mismaConexion = nueva.mismaConexion(configuracion);
+		} else {
+			//Pool publicado en JNDI: la contraseña no se puede comparar.
+			logger.info("Configuración del pool: {}", nueva);
+			mismaConexion = nueva.getUrl().equals(actual.getURL()) && nueva.getUsuario().equals(actual.getUser());
+		}
+		
+		if (mismaConexion) {
+			nueva.aplicaLimites(actual);
+			logger.info("Configuración del pool aplicada sobre el pool en uso");
+		} else {
+			ds = creaPool(nueva);
+			retirados.add(actual);
+			logger.info("Pool sustituido por cambio de conexión; el anterior se retira con {} conexiones prestadas",
+					actual.getBorrowedConnectionsCount());
+		}
+		configuracion = nueva;
+		cierraRetirados();
+	}
+	
+	/**
+	 * Crea un pool de UCP con un nombre único, para poder destruirlo cuando
+	 * se retire.
+	 */
+	private PoolDataSource creaPool(ConfiguracionPool c) throws SQLException {
+		PoolDataSource pds = c.creaDataSource();
+		pds.setConnectionPoolName(nombre.replace('/', '_') + "_" + poolsCreados.incrementAndGet());
+		return pds;
+	}
+	
+	/**
+	 * Cierra los pools retirados que ya no tienen conexiones prestadas.
+	 */
+	public synchronized void cierraRetirados() {
+		for (int i = retirados.size() - 1; i >= 0; i--) {
+			PoolDataSource pds = retirados.get(i);
+			try {
+				if (pds.getBorrowedConnectionsCount() > 0)
+					continue;
+				//UCP nombra el pool al arrancarlo: sin nombre nunca ha abierto conexiones.
+				String nombre = pds.getConnectionPoolName();
+				if (nombre != null)
+					UniversalConnectionPoolManagerImpl.getUniversalConnectionPoolManager().destroyConnectionPool(nombre);
+				retirados.remove(i);
+				logger.info("Pool retirado {} cerrado", nombre);
+			} catch (SQLException | UniversalConnectionPoolException e) {
+				logger.error("Error cerrando un pool retirado: {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return número de pools retirados pendientes de cerrar
+	 */
+	public synchronized int getRetirados() {
+		return retirados.size();
+	}
+	
+	/**
+	 * Empieza a vigilar el fichero de configuración, si no se estaba haciendo.
+	 * También se activa con la propiedad gestionmedicos.pool.vigilar=true.
+	 * 
+	 * @throws IOException
+	 *             si no se puede vigilar el directorio del fichero
+	 */
+	public synchronized void vigilaConfiguracion() throws IOException {
+		if (vigilante == null)
+			vigilante = new VigilanteConfiguracion(this, ConfiguracionPool.FICHERO);
+	}
+
 }
@@ -0,0 +1,112 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * ProcedimientosH2:
+ * Los procedimientos PL/SQL de gestion_medicos.sql para H2. Se declaran en
+ * gestion_medicos_h2.sql con CREATE ALIAS, asi que se llaman igual que en
+ * Oracle ({call inicializa_test()}, {call avanza_seq(?,?)}). H2 pasa como
+ * primer parametro la conexion de quien los llama.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class ProcedimientosH2 {
+
+	private static final String[] DATOS_TEST = {
+		"delete from cambio_consulta",
+		"delete from anulacion_hist",
+		"delete from consulta_hist",
+		"delete from anulacion",
+		"delete from consulta",
+		"delete from cliente",
+		"delete from medico",
+		"insert into cliente values ('12345678A', 'Juan', 'Garcia', 'Porras', 'C/La Soledad n1')",
+		"insert into cliente values ('87654321B', 'Rosa', 'Ramos', 'Benito', 'C/Estafeta n27')",
+		"insert into cliente values ('78677433R', 'Ana Maria', 'Martin', 'Boyecro', 'Av/Burgos n23')",
+		"insert into medico values (seq_medico.nextval, '222222B', 'Jose', 'Sanchez', 'Sabchez', 'Medicina General', 0)",
+		"insert into medico values (seq_medico.nextval,'8766788Y', 'Alejandra', 'Amos', 'Garcia', 'Oncologia', 1)",
+		"insert into consulta values (seq_consulta.nextval, to_date('24/03/2023', 'DD/MM/YYYY'), 1, '12345678A')",
+		"insert into consulta values (seq_consulta.nextval, to_date('25/03/2022', 'DD/MM/YYYY'), 2, '87654321B')",
+		"insert into anulacion values (seq_anulacion.nextval, 1 , to_date('24/02/2023', 'DD/MM/YYYY'), 'Enfermedad infecciosa')",
+	};
+
+	private ProcedimientosH2() {
+	}
+
+	/**
+	 * reset_seq: el siguiente valor de la secuencia vuelve a ser 1.
+	 *
+	 * @param con
+	 *            conexion de quien llama
+	 * @param secuencia
+	 *            nombre de la secuencia
+	 * @throws SQLException
+	 *             si no existe la secuencia
+	 */
+	public static void resetSeq(Connection con, String secuencia) throws SQLException {
+		Statement st = con.createStatement();
+		try {
+			st.execute("ALTER SEQUENCE " + secuencia + " RESTART WITH 1");
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * avanza_seq: el siguiente valor de la secuencia sera mayor que el dado.
+	 *
+	 * @param con
+	 *            conexion de quien llama
+	 * @param secuencia
+	 *            nombre de la secuencia
+	 * @param valor
+	 *            ultimo valor ya usado
+	 * @throws SQLException
+	 *             si no existe la secuencia
+	 */
+	public static void avanzaSeq(Connection con, String secuencia, long valor) throws SQLException {
+		Statement st = con.createStatement();
+		ResultSet rs = null;
+		try {
+			//Como en Oracle, se gasta un valor para saber por donde va.
+			rs = st.executeQuery("SELECT NEXT VALUE FOR " + secuencia);
+			rs.next();
+			long actual = rs.getLong(1);
+			if (valor > actual)
+				st.execute("ALTER SEQUENCE " + secuencia + " RESTART WITH " + (valor + 1));
+		} finally {
+			if (rs != null) rs.close();
+			st.close();
+		}
+	}
+
+	/**
+	 * inicializa_test: reinicia las secuencias y deja los datos de las
+	 * pruebas, confirmados.
+	 *
+	 * @param con
+	 *            conexion de quien llama
+	 * @throws SQLException
+	 *             si falla alguna sentencia
+	 */
+	public static void inicializaTest(Connection con) throws SQLException {
+		resetSeq(con, "seq_medico");
+		resetSeq(con, "seq_consulta");
+		resetSeq(con, "seq_anulacion");
+		resetSeq(con, "seq_cambio");
+		Statement st = con.createStatement();
+		try {
+			for (String sql : DATOS_TEST)
+				st.execute(sql);
+		} finally {
+			st.close();
+		}
+		con.commit();
+	}
+}
@@ -0,0 +1,446 @@
+package lsi.ubu.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RegistroMapeado:
+ * Registro de solo añadir, de registros de tamaño fijo, en ficheros de
+ * segmento proyectados en memoria.
+ *
+ * Cada registro tiene un offset (su numero de orden desde el principio del
+ * registro) y ocupa una posicion fija de su segmento, asi que escribir solo
+ * requiere reservar el siguiente offset con un contador atomico y copiar los
+ * datos: los escritores no se bloquean entre si. El registro se publica al
+ * final escribiendo su marca con semantica release; los lectores la leen con
+ * acquire y no ven nunca un registro a medias.
+ *
+ * Cuando se llena un segmento se crea el siguiente, y se borran los mas
+ * antiguos para no superar el tamaño maximo. Los lectores pueden empezar en
+ * cualquier offset retenido y seguir la cola del registro; los consumidores
+ * con nombre guardan su offset en el directorio para continuar despues.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class RegistroMapeado implements Closeable {
+
+	private static Logger logger = LoggerFactory.getLogger(RegistroMapeado.class);
+
+	/** Acceso a la marca de cada registro con orden de memoria. */
+	private static final VarHandle MARCA = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	/** Marca de un registro sin escribir. */
+	private static final int VACIO = 0;
+	/** Marca de un registro reservado que no se llego a escribir (caida del proceso). */
+	private static final int HUECO = -1;
+
+	private static final String EXTENSION_SEGMENTO = ".seg";
+	private static final String EXTENSION_OFFSET = ".offset";
+
+	private final Path directorio;
+	private final int tamRegistro;
+	private final int registrosPorSegmento;
+	private final int maxSegmentos;
+
+	private final AtomicLong siguiente = new AtomicLong();
+	private final Map<Long, MappedByteBuffer> segmentos = new ConcurrentHashMap<Long, MappedByteBuffer>();
+	/** Segmento retenido mas antiguo. */
+	private volatile long primerSegmento;
+	/** Segmento mas reciente creado. */
+	private long ultimoSegmento;
+
+	/**
+	 * Abre o crea un registro.
+	 *
+	 * @param directorio
+	 *            directorio de los segmentos y los offsets de los consumidores
+	 * @param tamDatos
+	 *            bytes maximos de cada registro
+	 * @param registrosPorSegmento
+	 *            registros de cada fichero de segmento
+	 * @param maxBytes
+	 *            tamaño maximo de los segmentos retenidos; se guardan al menos
+	 *            dos
+	 * @throws IOException
+	 *             si no se puede crear o leer el directorio
+	 */
+	public RegistroMapeado(Path directorio, int tamDatos, int registrosPorSegmento, long maxBytes)
+			throws IOException {
+		this.directorio = directorio;
+		//La marca va alineada a 4 bytes para poder leerla y escribirla con orden de memoria.
+		this.tamRegistro = (4 + tamDatos + 3) & ~3;
+		this.registrosPorSegmento = registrosPorSegmento;
+		long tamSegmento = (long) tamRegistro * registrosPorSegmento;
+		if (tamSegmento > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Segmento demasiado grande: " + tamSegmento + " bytes");
+		this.maxSegmentos = (int) Math.max(2, maxBytes / tamSegmento);
+		Files.createDirectories(directorio);
+		recupera();
+	}
+
+	/**
+	 * Busca los segmentos existentes y sigue a partir del ultimo registro
+	 * escrito. Los registros reservados y no escritos antes de una caida se
+	 * marcan como huecos para que los lectores los salten.
+	 */
+	private void recupera() throws IOException {
+		long primero = -1;
+		long ultimo = -1;
+		try (DirectoryStream<Path> ficheros = Files.newDirectoryStream(directorio, "*" + EXTENSION_SEGMENTO)) {
+			for (Path f : ficheros) {
+				String nombre = f.getFileName().toString();
+				long n = Long.parseLong(nombre.substring(0, nombre.length() - EXTENSION_SEGMENTO.length()))
+						/ registrosPorSegmento;
+				primero = primero < 0 ? n : Math.min(primero, n);
+				ultimo = Math.max(ultimo, n);
+			}
+		}
+		if (ultimo < 0) {
+			primerSegmento = 0;
+			ultimoSegmento = 0;
+			siguiente.set(0);
+			return;
+		}
+		primerSegmento = primero;
+		ultimoSegmento = ultimo;
+		MappedByteBuffer buf = segmento(ultimo, true);
+		int escritos = 0;
+		for (int i = 0; i < registrosPorSegmento; i++) {
+			if ((int) MARCA.getAcquire(buf, i * tamRegistro) != VACIO)
+				escritos = i + 1;
+		}
+		int huecos = marcaHuecos(buf, escritos);
+		//Los escritores que cayeron a la vez pueden haber dejado huecos al final del segmento anterior.
+		if (ultimo > primero)
+			huecos += marcaHuecos(segmento(ultimo - 1, true), registrosPorSegmento);
+		siguiente.set(ultimo * registrosPorSegmento + escritos);
+		logger.info("Registro {} abierto: offsets {} a {}, {} huecos", directorio,
+				primerSegmento * registrosPorSegmento, siguiente.get(), huecos);
+	}
+
+	private int marcaHuecos(MappedByteBuffer buf, int hasta) {
+		int huecos = 0;
+		for (int i = 0; i < hasta; i++) {
+			if ((int) MARCA.getAcquire(buf, i * tamRegistro) == VACIO) {
+				MARCA.setRelease(buf, i * tamRegistro, HUECO);
+				huecos++;
+			}
+		}
+		return huecos;
+	}
+
+	/**
+	 * Añade un registro. Puede llamarse desde varios hilos a la vez.
+	 *
+	 * @param datos
+	 *            contenido, de como mucho el tamaño de datos del registro
+	 * @return offset del registro
+	 */
+	public long escribe(byte[] datos) {
+		if (datos.length > tamRegistro - 4)
+			throw new IllegalArgumentException("Registro de " + datos.length + " bytes, maximo " + (tamRegistro - 4));
+		long offset = siguiente.getAndIncrement();
+		MappedByteBuffer buf = segmento(offset / registrosPorSegmento, true);
+		if (buf == null) {
+			//El escritor se ha quedado tan atras que su segmento ya no se retiene.
+			logger.warn("Registro {}: offset {} descartado por la retencion", directorio, offset);
+			return offset;
+		}
+		int pos = (int) (offset % registrosPorSegmento) * tamRegistro;
+		//Cada escritor usa su propia vista del segmento para no compartir la posicion.
+		ByteBuffer vista = buf.duplicate();
+		vista.position(pos + 4);
+		vista.put(datos);
+		MARCA.setRelease(buf, pos, datos.length + 1);
+		return offset;
+	}
+
+	/**
+	 * Lee un registro.
+	 *
+	 * @param offset
+	 *            offset del registro
+	 * @return su contenido, un array vacio si es un hueco, o null si aun no
+	 *         se ha escrito
+	 * @throws IllegalArgumentException
+	 *             si el offset ya no se retiene
+	 */
+	public byte[] lee(long offset) {
+		if (offset < getPrimerOffset())
+			throw new IllegalArgumentException("Offset " + offset + " ya no se retiene");
+		if (offset >= siguiente.get())
+			return null;
+		MappedByteBuffer buf = segmento(offset / registrosPorSegmento, false);
+		if (buf == null)
+			return null;
+		int pos = (int) (offset % registrosPorSegmento) * tamRegistro;
+		int marca = (int) MARCA.getAcquire(buf, pos);
+		if (marca == VACIO)
+			return null;
+		if (marca == HUECO)
+			return new byte[0];
+		byte[] datos = new byte[marca - 1];
+		ByteBuffer vista = buf.duplicate();
+		vista.position(pos + 4);
+		vista.get(datos);
+		return datos;
+	}
+
+	/**
+	 * Obtiene un segmento proyectado, creandolo si hace falta. Al crear uno
+	 * nuevo se aplica la retencion.
+	 */
+	private MappedByteBuffer segmento(long numero, boolean crear) {
+		MappedByteBuffer buf = segmentos.get(numero);
+		if (buf != null)
+			return buf;
+		Path fichero = fichero(numero);
+		if (numero < primerSegmento || (!crear && !Files.exists(fichero)))
+			return null;
+		buf = segmentos.computeIfAbsent(numero, n -> {
+			//Un lector no crea el fichero: puede que la retencion lo acabe de borrar.
+			try (FileChannel canal = crear
+					? FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.READ,
+							StandardOpenOption.WRITE)
+					: FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				//Al proyectar mas alla del final el fichero crece con ceros.
+				return canal.map(FileChannel.MapMode.READ_WRITE, 0, (long) tamRegistro * registrosPorSegmento);
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		if (buf != null && numero < primerSegmento) {
+			//Segmento retirado mientras se proyectaba.
+			segmentos.remove(numero);
+			if (crear)
+				borra(numero);
+			return null;
+		}
+		if (crear)
+			retiene(numero);
+		return buf;
+	}
+
+	private synchronized void retiene(long numero) {
+		if (numero <= ultimoSegmento)
+			return;
+		ultimoSegmento = numero;
+		logger.debug("Registro {}: nuevo segmento {}", directorio, numero);
+		while (ultimoSegmento - primerSegmento + 1 > maxSegmentos) {
+			long viejo = primerSegmento;
+			primerSegmento = viejo + 1;
+			segmentos.remove(viejo);
+			borra(viejo);
+		}
+	}
+
+	private void borra(long numero) {
+		try {
+			Files.deleteIfExists(fichero(numero));
+		} catch (IOException e) {
+			logger.error("No se puede borrar el segmento {}: {}", numero, e.getMessage());
+		}
+	}
+
+	private Path fichero(long numero) {
+		return directorio.resolve(String.format("%020d%s", numero * registrosPorSegmento, EXTENSION_SEGMENTO));
+	}
+
+	/** @return offset del registro retenido mas antiguo */
+	public long getPrimerOffset() {
+		return primerSegmento * registrosPorSegmento;
+	}
+
+	/** @return offset que tendra el siguiente registro */
+	public long getSiguienteOffset() {
+		return siguiente.get();
+	}
+
+	/**
+	 * Guarda el offset de un consumidor: el del siguiente registro que tiene
+	 * que leer. Se escribe en un fichero temporal y se renombra, asi que una
+	 * caida deja el offset anterior o el nuevo.
+	 *
+	 * @param consumidor
+	 *            nombre del consumidor
+	 * @param offset
+	 *            siguiente offset que tiene que leer
+	 * @throws IOException
+	 *             si no se puede escribir el fichero
+	 */
+	public void guardaOffset(String consumidor, long offset) throws IOException {
+		Path fichero = directorio.resolve(consumidor + EXTENSION_OFFSET);
+		Path temporal = directorio.resolve(consumidor + EXTENSION_OFFSET + ".tmp");
+		try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer b = ByteBuffer.allocate(8).putLong(offset);
+			b.flip();
+			while (b.hasRemaining())
+				canal.write(b);
+			canal.force(true);
+		}
+		Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @param consumidor
+	 *            nombre del consumidor
+	 * @return offset guardado del consumidor, o el primero retenido si no
+	 *         tiene
+	 * @throws IOException
+	 *             si no se puede leer el fichero
+	 */
+	public long leeOffset(String consumidor) throws IOException {
+		Path fichero = directorio.resolve(consumidor + EXTENSION_OFFSET);
+		if (!Files.exists(fichero))
+			return getPrimerOffset();
+		return ByteBuffer.wrap(Files.readAllBytes(fichero)).getLong();
+	}
+
+	/**
+	 * Lector que sigue el registro desde un offset.
+	 *
+	 * @param desde
+	 *            primer offset que se lee
+	 * @return el lector
+	 */
+	public Lector lector(long desde) {
+		return new Lector(null, desde);
+	}
+
+	/**
+	 * Lector de un consumidor con nombre, que empieza en su offset guardado.
+	 *
+	 * @param consumidor
+	 *            nombre del consumidor
+	 * @return el lector
+	 * @throws IOException
+	 *             si no se puede leer su offset
+	 */
+	public Lector lector(String consumidor) throws IOException {
+		return new Lector(consumidor, leeOffset(consumidor));
+	}
+
+	/**
+	 * Lector secuencial del registro. Cada lector es de un solo hilo.
+	 */
+	public class Lector {
+		private final String consumidor;
+		private long offset;
+
+		private Lector(String consumidor, long offset) {
+			this.consumidor = consumidor;
+			this.offset = offset;
+		}
+
+		/**
+		 * @return el siguiente registro, o null si no hay ninguno nuevo
+		 */
+		public byte[] siguiente() {
+			while (true) {
+				long primero = getPrimerOffset();
+				if (offset < primero) {
+					logger.warn("Lector {}: {} registros perdidos por la retencion", consumidor, primero - offset);
+					offset = primero;
+				}
+				byte[] datos;
+				try {
+					datos = lee(offset);
+				} catch (IllegalArgumentException e) {
+					//Se ha retenido entre la comprobacion y la lectura.
+					continue;
+				}
+				if (datos == null)
+					return null;
+				offset++;
+				if (datos.length > 0)
+					return datos;
+			}
+		}
+
+		/**
+		 * Espera al siguiente registro.
+		 *
+		 * @param timeoutMs
+		 *            espera maxima en milisegundos
+		 * @return el registro, o null si no llega a tiempo
+		 * @throws InterruptedException
+		 *             si se interrumpe la espera
+		 */
+		public byte[] espera(long timeoutMs) throws InterruptedException {
+			long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+			long pausa = 1000;
+			while (true) {
+				byte[] datos = siguiente();
+				if (datos != null)
+					return datos;
+				if (System.nanoTime() - limite >= 0)
+					return null;
+				LockSupport.parkNanos(pausa);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				//La pausa crece hasta 1 ms mientras no lleguen registros.
+				pausa = Math.min(pausa * 2, 1000000);
+			}
+		}
+
+		/** @return offset del siguiente registro que se leera */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Guarda el offset del lector como el de su consumidor.
+		 *
+		 * @throws IOException
+		 *             si no se puede escribir
+		 */
+		public void confirma() throws IOException {
+			if (consumidor == null)
+				throw new IllegalStateException("Lector sin consumidor");
+			guardaOffset(consumidor, offset);
+		}
+	}
+
+	/**
+	 * Fuerza a disco los segmentos retenidos.
+	 */
+	public void fuerza() {
+		for (MappedByteBuffer buf : segmentos.values())
+			buf.force();
+	}
+
+	/**
+	 * Fuerza a disco los segmentos. Las proyecciones se liberan cuando el
+	 * recolector recoge el registro.
+	 */
+	@Override
+	public void close() {
+		fuerza();
+	}
+}
@@ -0,0 +1,236 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+
+/**
+ * Reintentos:
+ * Repite una transaccion completa cuando falla por un error transitorio
+ * (interbloqueo, fallo de serializacion, recurso ocupado o conexion
+ * perdida, segun SGBDErrorUtil.isTransient). Cada intento debe obtener su
+ * propia conexion del pool.
+ *
+ * Entre intentos se espera un tiempo aleatorio entre 0 y una cota que se
+ * dobla en cada intento (backoff exponencial con jitter), sin pasar del
+ * plazo de la operacion. Los reintentos gastan un presupuesto comun que se
+ * recarga con las operaciones: si muchas fallan a la vez no se multiplica
+ * la carga de la base de datos con reintentos.
+ *
+ * Configuracion con las propiedades del sistema gestionmedicos.reintentos.max
+ * (3 reintentos por operacion; 0 los desactiva), .baseMs (5), .maxMs (200) y
+ * .proporcion (0.2 reintentos de presupuesto por operacion).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Reintentos {
+
+	private static Logger logger = LoggerFactory.getLogger(Reintentos.class);
+
+	/** Presupuesto inicial y maximo, en reintentos. */
+	private static final double PRESUPUESTO_MINIMO = 10;
+	private static final double PRESUPUESTO_MAXIMO = 100;
+
+	private static volatile Reintentos instancia;
+
+	private final int maxReintentos;
+	private final long baseMs;
+	private final long maxMs;
+	private final double proporcion;
+
+	private final Object cerrojo = new Object();
+	private double presupuesto = PRESUPUESTO_MINIMO;
+
+	private final AtomicLong operaciones = new AtomicLong();
+	private final AtomicLong reintentos = new AtomicLong();
+	private final AtomicLong recuperadas = new AtomicLong();
+	private final AtomicLong abandonadas = new AtomicLong();
+	private final AtomicLong sinPresupuesto = new AtomicLong();
+	private final Map<SGBDError, AtomicLong> porError = new EnumMap<SGBDError, AtomicLong>(SGBDError.class);
+
+	/**
+	 * Transaccion que se puede repetir.
+	 */
+	public interface Intento<T> {
+		/**
+		 * @return resultado de la transaccion
+		 * @throws SQLException
+		 *             si falla
+		 */
+		T ejecuta() throws SQLException;
+	}
+
+	/**
+	 * @param maxReintentos
+	 *            reintentos por operacion, 0 para no reintentar
+	 * @param baseMs
+	 *            cota de la primera espera
+	 * @param maxMs
+	 *            cota maxima de las esperas
+	 * @param proporcion
+	 *            reintentos que se añaden al presupuesto por cada operacion
+	 */
+	public Reintentos(int maxReintentos, long baseMs, long maxMs, double proporcion) {
+		this.maxReintentos = maxReintentos;
+		this.baseMs = baseMs;
+		this.maxMs = maxMs;
+		this.proporcion = proporcion;
+		for (SGBDError e : SGBDError.values())
+			porError.put(e, new AtomicLong());
+	}
+
+	/**
+	 * @return los reintentos de las operaciones de GestionMedicos
+	 */
+	public static Reintentos getInstance() {
+		Reintentos r = instancia;
+		if (r == null) {
+			synchronized (Reintentos.class) {
+				r = instancia;
+				if (r == null) {
+					r = new Reintentos(Integer.getInteger("gestionmedicos.reintentos.max", 3),
+							Long.getLong("gestionmedicos.reintentos.baseMs", 5),
+							Long.getLong("gestionmedicos.reintentos.maxMs", 200),
+							Double.parseDouble(System.getProperty("gestionmedicos.reintentos.proporcion", "0.2")));
+					instancia = r;
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Sustituye los reintentos de las operaciones de GestionMedicos, por
+	 * ejemplo para comparar configuraciones.
+	 *
+	 * @param r
+	 *            reintentos, o null para volver a los configurados
+	 */
+	public static void setInstance(Reintentos r) {
+		instancia = r;
+	}
+
+	/**
+	 * Ejecuta una transaccion y la repite mientras falle por un error
+	 * transitorio, queden reintentos y presupuesto, y no venza el plazo.
+	 *
+	 * @param operacion
+	 *            nombre de la operacion, para el registro
+	 * @param plazo
+	 *            plazo de la operacion completa
+	 * @param intento
+	 *            transaccion completa, con su propia conexion
+	 * @return resultado de la transaccion
+	 * @throws SQLException
+	 *             el error del ultimo intento
+	 */
+	public <T> T ejecuta(String operacion, Plazo plazo, Intento<T> intento) throws SQLException {
+		operaciones.incrementAndGet();
+		synchronized (cerrojo) {
+			presupuesto = Math.min(PRESUPUESTO_MAXIMO, presupuesto + proporcion);
+		}
+		SGBDErrorUtil errores = Dialecto.actual().getErrores();
+		for (int n = 0;; n++) {
+			try {
+				T resultado = intento.ejecuta();
+				if (n > 0)
+					recuperadas.incrementAndGet();
+				return resultado;
+			} catch (SQLException e) {
+				//Los errores de la aplicacion y los plazos vencidos no se arreglan repitiendo.
+				if (e instanceof lsi.ubu.enunciado.GestionMedicosException || e instanceof SQLTimeoutException
+						|| !errores.isTransient(e))
+					throw e;
+				porError.get(errores.translate(e.getErrorCode())).incrementAndGet();
+				if (n >= maxReintentos) {
+					abandonadas.incrementAndGet();
+					throw e;
+				}
+				long espera = ThreadLocalRandom.current().nextLong(Math.min(maxMs, baseMs << Math.min(n, 20)) + 1);
+				if (espera >= plazo.restanteMs()) {
+					abandonadas.incrementAndGet();
+					throw e;
+				}
+				if (!gasta()) {
+					sinPresupuesto.incrementAndGet();
+					throw e;
+				}
+				reintentos.incrementAndGet();
+				logger.warn("{}: error transitorio ({}), reintento {} en {} ms", operacion, e.getMessage(), n + 1,
+						espera);
+				try {
+					Thread.sleep(espera);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private boolean gasta() {
+		synchronized (cerrojo) {
+			if (presupuesto < 1)
+				return false;
+			presupuesto -= 1;
+			return true;
+		}
+	}
+
+	/** @return operaciones ejecutadas */
+	public long getOperaciones() {
+		return operaciones.get();
+	}
+
+	/** @return reintentos hechos */
+	public long getReintentos() {
+		return reintentos.get();
+	}
+
+	/** @return operaciones que han salido bien tras algun reintento */
+	public long getRecuperadas() {
+		return recuperadas.get();
+	}
+
+	/** @return operaciones con error transitorio que no se han vuelto a intentar */
+	public long getAbandonadas() {
+		return abandonadas.get() + sinPresupuesto.get();
+	}
+
+	/** @return reintentos denegados por falta de presupuesto */
+	public long getSinPresupuesto() {
+		return sinPresupuesto.get();
+	}
+
+	/**
+	 * @param error
+	 *            error transitorio
+	 * @return veces que se ha producido
+	 */
+	public long getErrores(SGBDError error) {
+		return porError.get(error).get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d operaciones, %d reintentos, %d recuperadas, %d abandonadas (%d sin presupuesto)",
+				operaciones.get(), reintentos.get(), recuperadas.get(), getAbandonadas(), sinPresupuesto.get()));
+		for (Map.Entry<SGBDError, AtomicLong> e : porError.entrySet()) {
+			if (e.getValue().get() > 0)
+				sb.append(", ").append(e.getKey()).append('=').append(e.getValue().get());
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,331 @@
+package lsi.ubu.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SeguimientoConexiones:
+ * Registra cada prestamo de PoolDeConexiones hasta que se devuelve.
+ *
+ * Las conexiones se entregan envueltas en un proxy que anota el instante del
+ * prestamo y el hilo que la pide y, uno de cada N prestamos, la pila de
+ * llamadas. Un hilo vigilante avisa de las conexiones retenidas mas de un
+ * umbral. Si el recolector de basura recoge una conexion sin cerrar se
+ * informa como fuga y la conexion real se devuelve al pool. Una conexion
+ * devuelta ya no se puede usar a traves del proxy ni de sus sentencias, que
+ * tambien se envuelven para que getConnection() devuelva el proxy.
+ *
+ * El resumen y los titulares actuales se publican en JMX como
+ * lsi.ubu.util:type=SeguimientoConexiones.
+ *
+ * Se configura con las propiedades del sistema
+ * gestionmedicos.conexiones.seguimiento (true por defecto),
+ * gestionmedicos.conexiones.muestreo (se guarda la pila de uno de cada N
+ * prestamos, 100 por defecto; 0 para no guardarla nunca) y
+ * gestionmedicos.conexiones.umbralMs (10000 por defecto).
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class SeguimientoConexiones implements SeguimientoConexionesMXBean {
+
+	private static Logger logger = LoggerFactory.getLogger(SeguimientoConexiones.class);
+
+	private static SeguimientoConexiones seguimiento;
+
+	private static final Cleaner limpiador = Cleaner.create();
+
+	private final int muestreo;
+	private final long umbralNanos;
+
+	private final Map<Long, Prestamo> activos = new ConcurrentHashMap<Long, Prestamo>();
+	private final AtomicLong prestamos = new AtomicLong();
+	private final AtomicLong fugas = new AtomicLong();
+	private final AtomicLong retencionesLargas = new AtomicLong();
+	private final AtomicLong retencionMaximaNanos = new AtomicLong();
+	private final AtomicLong retencionTotalNanos = new AtomicLong();
+	private final AtomicLong devoluciones = new AtomicLong();
+
+	/** Lugar donde se pide una conexion muestreada. */
+	private static class LugarPrestamo extends Throwable {
+		private static final long serialVersionUID = 1L;
+
+		LugarPrestamo(String hilo) {
+			super("Conexion pedida por " + hilo);
+		}
+	}
+
+	/**
+	 * Estado de un prestamo. No referencia al proxy, para que el proxy se
+	 * pueda recoger y el limpiador detecte la fuga.
+	 */
+	private class Prestamo implements Runnable {
+		final long id;
+		final Connection real;
+		final long inicio = System.nanoTime();
+		final String hilo;
+		final LugarPrestamo lugar;
+		final AtomicBoolean devuelta = new AtomicBoolean(false);
+		volatile boolean avisada = false;
+		Cleaner.Cleanable limpieza;
+
+		Prestamo(long id, Connection real, LugarPrestamo lugar) {
+			this.id = id;
+			this.real = real;
+			this.hilo = Thread.currentThread().getName();
+			this.lugar = lugar;
+		}
+
+		long retenidaNanos() {
+			return System.nanoTime() - inicio;
+		}
+
+		/** Devuelve la conexion al pool. */
+		void devuelve() throws SQLException {
+			if (!devuelta.compareAndSet(false, true))
+				return;
+			activos.remove(id);
+			long retenida = retenidaNanos();
+			devoluciones.incrementAndGet();
+			retencionTotalNanos.addAndGet(retenida);
+			retencionMaximaNanos.accumulateAndGet(retenida, Math::max);
+			limpieza.clean();
+			real.close();
+		}
+
+		/** Lo ejecuta el limpiador cuando el proxy se recoge o tras devolverla. */
+		@Override
+		public void run() {
+			if (devuelta.get())
+				return;
+			fugas.incrementAndGet();
+			if (lugar != null)
+				logger.warn("Fuga de conexion: " + describe(), lugar);
+			else
+				logger.warn("Fuga de conexion: {}", describe());
+			try {
+				devuelve();
+			} catch (SQLException e) {
+				logger.error(e.getMessage());
+			}
+		}
+
+		String describe() {
+			return "#" + id + " hilo=" + hilo + " retenida=" + retenidaNanos() / 1000000 + "ms";
+		}
+	}
+
+	private static class Manejador implements InvocationHandler {
+		private final Prestamo prestamo;
+
+		Manejador(Prestamo prestamo) {
+			this.prestamo = prestamo;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+			String nombre = metodo.getName();
+			if (args == null) {
+				if ("close".equals(nombre)) {
+					prestamo.devuelve();
+					return null;
+				}
+				if ("isClosed".equals(nombre) && prestamo.devuelta.get())
+					return true;
+				if ("hashCode".equals(nombre))
+					return System.identityHashCode(proxy);
+				if ("toString".equals(nombre))
+					return "Conexion " + prestamo.describe();
+			} else if ("equals".equals(nombre) && args.length == 1) {
+				return proxy == args[0];
+			}
+			if (prestamo.devuelta.get())
+				throw new SQLException("La conexion ya se ha devuelto al pool");
+			Object resultado = invocaReal(prestamo.real, metodo, args);
+			//Las sentencias devuelven el proxy como su conexion, y lo mantienen vivo mientras se usan.
+			Class<?> tipo = metodo.getReturnType();
+			if (resultado != null && tipo.isInterface() && Statement.class.isAssignableFrom(tipo))
+				return Proxy.newProxyInstance(tipo.getClassLoader(), new Class<?>[] { tipo },
+						new ManejadorSentencia(resultado, (Connection) proxy, prestamo));
+			return resultado;
+		}
+	}
+
+	private static class ManejadorSentencia implements InvocationHandler {
+		private final Object real;
+		private final Connection conexion;
+		private final Prestamo prestamo;
+
+		ManejadorSentencia(Object real, Connection conexion, Prestamo prestamo) {
+			this.real = real;
+			this.conexion = conexion;
+			this.prestamo = prestamo;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method metodo, Object[] args) throws Throwable {
+			String nombre = metodo.getName();
+			if (args == null) {
+				if ("getConnection".equals(nombre))
+					return conexion;
+				if ("hashCode".equals(nombre))
+					return System.identityHashCode(proxy);
+				if ("close".equals(nombre) || "isClosed".equals(nombre) || "toString".equals(nombre))
+					return invocaReal(real, metodo, args);
+			} else if ("equals".equals(nombre) && args.length == 1) {
+				return proxy == args[0];
+			}
+			if (prestamo.devuelta.get())
+				throw new SQLException("La conexion ya se ha devuelto al pool");
+			return invocaReal(real, metodo, args);
+		}
+	}
+
+	private static Object invocaReal(Object real, Method metodo, Object[] args) throws Throwable {
+		try {
+			return metodo.invoke(real, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private SeguimientoConexiones(int muestreo, long umbralMs) {
+		this.muestreo = muestreo;
+		this.umbralNanos = umbralMs * 1000000L;
+
+		ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "vigilante-conexiones");
+			t.setDaemon(true);
+			return t;
+		});
+		long periodo = Math.max(1000, umbralMs / 2);
+		vigilante.scheduleWithFixedDelay(this::revisa, periodo, periodo, TimeUnit.MILLISECONDS);
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("lsi.ubu.util:type=SeguimientoConexiones"));
+		} catch (JMException e) {
+			logger.error("No se puede publicar el seguimiento de conexiones en JMX: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Obtiene el seguimiento, creandolo si no existia.
+	 *
+	 * @return el seguimiento, o null si esta desactivado
+	 */
+	public static synchronized SeguimientoConexiones getInstance() {
+		if (seguimiento == null
+				&& Boolean.parseBoolean(System.getProperty("gestionmedicos.conexiones.seguimiento", "true"))) {
+			seguimiento = new SeguimientoConexiones(Integer.getInteger("gestionmedicos.conexiones.muestreo", 100),
+					Long.getLong("gestionmedicos.conexiones.umbralMs", 10000L));
+		}
+		return seguimiento;
+	}
+
+	/**
+	 * Envuelve una conexion recien prestada.
+	 *
+	 * @param real
+	 *            conexion del pool
+	 * @return conexion que registra su devolucion al cerrarse
+	 */
+	public Connection envuelve(Connection real) {
+		long id = prestamos.incrementAndGet();
+		LugarPrestamo lugar = muestreo > 0 && id % muestreo == 0
+				? new LugarPrestamo(Thread.currentThread().getName()) : null;
+		Prestamo p = new Prestamo(id, real, lugar);
+		Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new Manejador(p));
+		p.limpieza = limpiador.register(proxy, p);
+		activos.put(id, p);
+		return proxy;
+	}
+
+	private void revisa() {
+		for (Prestamo p : activos.values()) {
+			if (!p.avisada && p.retenidaNanos() > umbralNanos) {
+				p.avisada = true;
+				retencionesLargas.incrementAndGet();
+				if (p.lugar != null)
+					logger.warn("Conexion retenida mas de " + umbralNanos / 1000000 + " ms: " + p.describe(), p.lugar);
+				else
+					logger.warn("Conexion retenida mas de {} ms: {}", umbralNanos / 1000000, p.describe());
+			}
+		}
+	}
+
+	@Override
+	public int getPrestadas() {
+		return activos.size();
+	}
+
+	@Override
+	public long getPrestamos() {
+		return prestamos.get();
+	}
+
+	@Override
+	public long getFugas() {
+		return fugas.get();
+	}
+
+	@Override
+	public long getRetencionesLargas() {
+		return retencionesLargas.get();
+	}
+
+	@Override
+	public long getRetencionMaximaMs() {
+		return retencionMaximaNanos.get() / 1000000;
+	}
+
+	@Override
+	public double getRetencionMediaMs() {
+		long n = devoluciones.get();
+		return n == 0 ? 0 : retencionTotalNanos.get() / 1e6 / n;
+	}
+
+	@Override
+	public String[] getTitulares() {
+		List<String> titulares = new ArrayList<String>();
+		for (Prestamo p : activos.values()) {
+			String linea = p.describe();
+			if (p.lugar != null) {
+				StackTraceElement[] pila = p.lugar.getStackTrace();
+				//Primer marco fuera del pool y del seguimiento.
+				for (StackTraceElement e : pila) {
+					if (!e.getClassName().startsWith("lsi.ubu.util.")) {
+						linea += " en " + e;
+						break;
+					}
+				}
+			}
+			titulares.add(linea);
+		}
+		return titulares.toArray(new String[0]);
+	}
+}
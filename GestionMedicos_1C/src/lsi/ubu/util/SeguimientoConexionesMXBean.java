@@ -0,0 +1,32 @@
+package lsi.ubu.util;
+
+/**
+ * Vista JMX del seguimiento de las conexiones prestadas por el pool.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public interface SeguimientoConexionesMXBean {
+
+	/** @return conexiones prestadas en este momento */
+	int getPrestadas();
+
+	/** @return prestamos desde el arranque */
+	long getPrestamos();
+
+	/** @return conexiones recogidas por el recolector sin haberse cerrado */
+	long getFugas();
+
+	/** @return prestamos que han superado el umbral de retencion */
+	long getRetencionesLargas();
+
+	/** @return mayor tiempo que se ha retenido una conexion, en milisegundos */
+	long getRetencionMaximaMs();
+
+	/** @return tiempo medio de retencion, en milisegundos */
+	double getRetencionMediaMs();
+
+	/** @return una linea por conexion prestada: id, hilo, tiempo retenida y lugar del prestamo si se ha muestreado */
+	String[] getTitulares();
+}
@@ -0,0 +1,126 @@
+package lsi.ubu.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sentencias preparadas de una conexion, reutilizables entre operaciones.
+ *
+ * Cada texto SQL se prepara una sola vez mientras dure el objeto. Al cerrarlo
+ * se cierran las sentencias, pero no la conexion.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class Sentencias implements AutoCloseable {
+
+	private final Connection con;
+	private final Plazo plazo;
+	private final Map<String, PreparedStatement> preparadas = new HashMap<String, PreparedStatement>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param con
+	 *            conexion sobre la que se preparan las sentencias
+	 */
+	public Sentencias(Connection con) {
+		this(con, Plazo.ILIMITADO);
+	}
+
+	/**
+	 * Constructor con plazo: cada sentencia que se devuelve queda limitada al
+	 * tiempo que le queda al plazo.
+	 *
+	 * @param con
+	 *            conexion sobre la que se preparan las sentencias
+	 * @param plazo
+	 *            plazo de la operacion
+	 */
+	public Sentencias(Connection con, Plazo plazo) {
+		this.con = con;
+		this.plazo = plazo;
+	}
+
+	/**
+	 * @return conexion de las sentencias
+	 */
+	public Connection getConexion() {
+		return con;
+	}
+
+	/**
+	 * Devuelve la sentencia preparada para un texto SQL, preparandola si es la
+	 * primera vez. Los parametros de la ejecucion anterior se borran y se
+	 * limita al tiempo restante del plazo.
+	 *
+	 * @param sql
+	 *            texto de la sentencia
+	 * @return sentencia preparada
+	 * @throws SQLException
+	 *             si hay un error con la base de datos, o SQLTimeoutException
+	 *             si el plazo ha vencido
+	 */
+	public PreparedStatement prepara(String sql) throws SQLException {
+		PreparedStatement st = preparadas.get(sql);
+		if (st == null) {
+			st = con.prepareStatement(sql);
+			preparadas.put(sql, st);
+		} else {
+			st.clearParameters();
+		}
+		plazo.vigila(st);
+		return st;
+	}
+
+	/**
+	 * Como prepara(String), pero la sentencia devuelve con getGeneratedKeys()
+	 * los valores que la base de datos asigna a las columnas indicadas, sin
+	 * otra ida y vuelta al servidor.
+	 *
+	 * @param sql
+	 *            texto de la sentencia
+	 * @param columnas
+	 *            columnas generadas que se quieren obtener
+	 * @return sentencia preparada
+	 * @throws SQLException
+	 *             si hay un error con la base de datos, o SQLTimeoutException
+	 *             si el plazo ha vencido
+	 */
+	public PreparedStatement preparaConClaves(String sql, String... columnas) throws SQLException {
+		PreparedStatement st = preparadas.get(sql);
+		if (st == null) {
+			st = con.prepareStatement(sql, columnas);
+			preparadas.put(sql, st);
+		} else {
+			st.clearParameters();
+		}
+		plazo.vigila(st);
+		return st;
+	}
+
+	/**
+	 * Cierra las sentencias preparadas.
+	 *
+	 * @throws SQLException
+	 *             si hay un error con la base de datos
+	 */
+	@Override
+	public void close() throws SQLException {
+		SQLException error = null;
+		for (PreparedStatement st : preparadas.values()) {
+			try {
+				st.close();
+			} catch (SQLException e) {
+				error = e;
+			}
+		}
+		preparadas.clear();
+		if (error != null)
+			throw error;
+	}
+}
@@ -0,0 +1,165 @@
+package lsi.ubu.util;
+
+import java.sql.SQLException;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * SimulacionControladorPool:
+ * Comprueba que ControladorPool converge, sin oscilar, ante un escalon de
+ * carga, una rampa y una base de datos saturada.
+ *
+ * La carga se simula: en cada muestra hay un numero de peticiones
+ * concurrentes que quieren una conexion. Las que no caben en el pool esperan
+ * en proporcion al exceso, y la latencia de la base de datos sube cuando las
+ * conexiones en uso pasan de su capacidad.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class SimulacionControladorPool {
+
+	private static final int MIN = 3;
+	private static final int MAX = 80;
+	private static final int INICIAL = 5;
+
+	/** Tiempo de servicio de una peticion, en microsegundos. */
+	private static final long SERVICIO_MICROS = 2000;
+	private static final long LATENCIA_BASE_MICROS = 1000;
+	/**
+	 * Latencia a partir de la cual no se crece: la mitad por encima de la
+	 * base, que se alcanza con un 12% de conexiones sobre la capacidad.
+	 */
+	private static final long UMBRAL_LATENCIA_MICROS = LATENCIA_BASE_MICROS * 3 / 2;
+
+	/**
+	 * Pool simulado.
+	 */
+	static class PoolSimulado implements ControladorPool.Pool {
+		private final int capacidadBD;
+		private int tam = INICIAL;
+		private int demanda = 0;
+		private long espera = 0;
+		private long prestamos = 0;
+
+		PoolSimulado(int capacidadBD) {
+			this.capacidadBD = capacidadBD;
+		}
+
+		/** Avanza una muestra con la demanda dada. */
+		void avanza(int demanda) {
+			this.demanda = demanda;
+			//Cada peticion hace 1000/SERVICIO_MICROS prestamos por milisegundo; se cuentan 100 ms.
+			long n = demanda * 100 * 1000 / SERVICIO_MICROS;
+			prestamos += n;
+			if (demanda > tam)
+				espera += n * SERVICIO_MICROS * 1000 * (demanda - tam) / tam;
+		}
+
+		@Override
+		public long getEsperaAcumuladaNanos() {
+			return espera;
+		}
+
+		@Override
+		public long getPrestamos() {
+			return prestamos;
+		}
+
+		@Override
+		public int getConexionesPrestadas() {
+			return Math.min(demanda, tam);
+		}
+
+		@Override
+		public int getTamMaximo() {
+			return tam;
+		}
+
+		@Override
+		public long midaLatenciaNanos() {
+			int exceso = Math.max(0, getConexionesPrestadas() - capacidadBD);
+			return LATENCIA_BASE_MICROS * 1000 * (capacidadBD + 4 * exceso) / capacidadBD;
+		}
+
+		@Override
+		public void redimensiona(int minimo, int maximo) {
+			tam = maximo;
+		}
+	}
+
+	/**
+	 * Principal.
+	 *
+	 * @param args
+	 *            no se usan
+	 * @throws SQLException
+	 *             no se lanza con el pool simulado
+	 */
+	public static void main(String[] args) throws SQLException {
+		//Escalon: de 3 a 40 peticiones concurrentes y vuelta a 3.
+		PoolSimulado pool = new PoolSimulado(1000);
+		ControladorPool c = controlador(pool);
+		simula(pool, c, 30, t -> 3);
+		simula(pool, c, 60, t -> 40);
+		compruebaEstable("Escalon de subida", pool, c);
+		simula(pool, c, 80, t -> 3);
+		compruebaEstable("Escalon de bajada", pool, c);
+
+		//Rampa: de 2 a 60 peticiones en 120 muestras; no debe reducir mientras sube.
+		pool = new PoolSimulado(1000);
+		c = controlador(pool);
+		simula(pool, c, 120, t -> 2 + t * 58 / 119);
+		long reducciones = c.getReducciones();
+		simula(pool, c, 40, t -> 60);
+		compruebaEstable("Rampa", pool, c);
+		if (reducciones != 0)
+			System.out.println("MAL: La rampa reduce el pool " + reducciones + " veces mientras sube la carga");
+		else
+			System.out.println("OK: La rampa solo hace crecer el pool");
+
+		//Saturacion: la base de datos admite 40 conexiones y se piden 100; el pool
+		//debe detenerse cerca de la capacidad, a lo sumo un paso por encima.
+		int capacidadBD = 40;
+		pool = new PoolSimulado(capacidadBD);
+		c = controlador(pool);
+		simula(pool, c, 100, t -> 100);
+		if (pool.getTamMaximo() <= capacidadBD * 1.25 && c.getFrenadosPorLatencia() > 0)
+			System.out.println("OK: Con la base de datos saturada en " + capacidadBD + " conexiones el pool se detiene en "
+					+ pool.getTamMaximo());
+		else
+			System.out.println("MAL: Con la base de datos saturada en " + capacidadBD + " conexiones el pool crece hasta "
+					+ pool.getTamMaximo());
+	}
+
+	private static ControladorPool controlador(PoolSimulado pool) {
+		return new ControladorPool(pool, MIN, MAX).setUmbralEsperaMicros(1000).setUso(0.30, 0.85)
+				.setUmbralLatenciaMicros(UMBRAL_LATENCIA_MICROS).setMuestras(2, 5, 2).setPasoMax(8);
+	}
+
+	private static void simula(PoolSimulado pool, ControladorPool c, int muestras, IntUnaryOperator demanda)
+			throws SQLException {
+		for (int t = 0; t < muestras; t++) {
+			pool.avanza(demanda.applyAsInt(t));
+			c.paso();
+		}
+	}
+
+	/**
+	 * Comprueba que en las ultimas 20 muestras no hay cambios, no hay espera
+	 * y el uso queda entre los umbrales o en un limite.
+	 */
+	private static void compruebaEstable(String caso, PoolSimulado pool, ControladorPool c) throws SQLException {
+		long cambios = c.getCrecimientos() + c.getReducciones();
+		int tam = pool.getTamMaximo();
+		simula(pool, c, 20, t -> pool.demanda);
+		ControladorPool.Muestra m = c.getUltimaMuestra();
+		boolean estable = c.getCrecimientos() + c.getReducciones() == cambios && pool.getTamMaximo() == tam;
+		boolean dentro = m.getEsperaMediaMicros() == 0 && m.getUso() < 0.85
+				&& (m.getUso() >= 0.30 || tam == MIN);
+		if (estable && dentro)
+			System.out.println("OK: " + caso + " converge a " + tam + " conexiones (" + m + ")");
+		else
+			System.out.println("MAL: " + caso + " no converge: " + c);
+	}
+}
@@ -0,0 +1,118 @@
+package lsi.ubu.util;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Vigila el fichero de configuracion del pool y aplica sus cambios al pool
+ * en uso.
+ *
+ * Los editores suelen escribir el fichero en varios pasos, asi que tras un
+ * aviso se espera a que deje de cambiar antes de leerlo. Un fichero con
+ * errores se ignora y se mantiene la configuracion anterior. Ademas, en cada
+ * vuelta se cierran los pools retirados que ya no tienen conexiones prestadas.
+ *
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class VigilanteConfiguracion implements AutoCloseable {
+
+	private static Logger logger = LoggerFactory.getLogger(VigilanteConfiguracion.class);
+
+	private static final long ESPERA_ESTABLE_MS = 200;
+	private static final long VUELTA_MS = 1000;
+
+	private final PoolDeConexiones pool;
+	private final Path fichero;
+	private final WatchService servicio;
+	private final Thread hilo;
+
+	/**
+	 * Empieza a vigilar un fichero.
+	 *
+	 * @param pool
+	 *            pool al que se aplican los cambios
+	 * @param fichero
+	 *            fichero de configuracion
+	 * @throws IOException
+	 *             si no se puede vigilar el directorio del fichero
+	 */
+	public VigilanteConfiguracion(PoolDeConexiones pool, Path fichero) throws IOException {
+		this.pool = pool;
+		this.fichero = fichero.toAbsolutePath();
+		this.servicio = FileSystems.getDefault().newWatchService();
+		this.fichero.getParent().register(servicio, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.hilo = new Thread(this::vigila, "vigilante-pool");
+		this.hilo.setDaemon(true);
+		this.hilo.start();
+		logger.info("Vigilando la configuracion del pool en {}", this.fichero);
+	}
+
+	private void vigila() {
+		try {
+			while (true) {
+				WatchKey clave = servicio.poll(VUELTA_MS, TimeUnit.MILLISECONDS);
+				if (clave != null) {
+					boolean cambiado = false;
+					for (WatchEvent<?> evento : clave.pollEvents()) {
+						Object contexto = evento.context();
+						if (contexto instanceof Path && fichero.getFileName().equals(contexto))
+							cambiado = true;
+					}
+					clave.reset();
+					if (cambiado)
+						recarga();
+				}
+				pool.cierraRetirados();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//Se ha cerrado el vigilante.
+		}
+	}
+
+	private void recarga() throws InterruptedException {
+		//Se descartan los avisos de las escrituras que siguen a la primera.
+		WatchKey clave;
+		do {
+			Thread.sleep(ESPERA_ESTABLE_MS);
+			clave = servicio.poll();
+			if (clave != null) {
+				clave.pollEvents();
+				clave.reset();
+			}
+		} while (clave != null);
+
+		try {
+			pool.aplicaConfiguracion(ConfiguracionPool.carga(fichero));
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Configuracion del pool no aplicada, se mantiene la anterior: {}", e.getMessage());
+		} catch (java.sql.SQLException e) {
+			logger.error("Error aplicando la configuracion del pool: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Deja de vigilar el fichero.
+	 */
+	@Override
+	public void close() {
+		try {
+			servicio.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+		hilo.interrupt();
+	}
+}
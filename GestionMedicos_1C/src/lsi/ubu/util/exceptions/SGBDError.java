@@ -13,7 +13,30 @@ public enum SGBDError {
 	PK_VIOLATED, // Violacin de clave primaria
 	NOT_EXISTS_SEQUENCE, // No existe la secuencia utilizada
 	NOT_NULL_VIOLATED, //Violacion de not null
+	NOT_EXISTS_TABLE, // No existe la tabla o vista utilizada
+	DEADLOCK(true), // Interbloqueo con otra transaccin
+	SERIALIZATION_FAILURE(true), // No se puede serializar el acceso
+	RESOURCE_BUSY(true), // Recurso ocupado o bloqueo no obtenido a tiempo
+	CONNECTION_LOST(true), // Conexin perdida con el servidor
 	// Aadir antes de esta lnea si fuera necesario
 	
 	UNKNOWN; // No determinado.
+	
+	private final boolean transitorio;
+	
+	SGBDError() {
+		this(false);
+	}
+	
+	SGBDError(boolean transitorio) {
+		this.transitorio = transitorio;
+	}
+	
+	/**
+	 * @return true si la operacin puede salir bien al repetirla en una
+	 *         transaccin nueva
+	 */
+	public boolean isTransient() {
+		return transitorio;
+	}
 }
\ No newline at end of file
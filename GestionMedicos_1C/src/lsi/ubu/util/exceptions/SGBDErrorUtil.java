@@ -1,6 +1,8 @@
 package lsi.ubu.util.exceptions;
 
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 
 /**
  * Utilidad para el tratamiento de errores en bases de datos.
@@ -29,4 +31,23 @@ public interface SGBDErrorUtil {
 	 * @return true si coinciden, false en caso contrario
 	 */
 	boolean checkExceptionToCode(SQLException ex, SGBDError error);	
+	
+	/**
+	 * Clasifica un error como transitorio (interbloqueo, fallo de
+	 * serializacin, recurso ocupado o conexin perdida) o permanente. Los
+	 * transitorios pueden salir bien al repetir la transaccin completa con
+	 * otra conexin.
+	 * 
+	 * @param ex excepcin con cdigo interno de la base de datos
+	 * @return true si el error es transitorio
+	 */
+	default boolean isTransient(SQLException ex) {
+		if (translate(ex.getErrorCode()).isTransient())
+			return true;
+		//Clases de SQLState de la norma: 08 conexin y 40 transaccin deshecha.
+		String estado = ex.getSQLState();
+		if (estado != null && (estado.startsWith("08") || estado.startsWith("40")))
+			return true;
+		return ex instanceof SQLTransientException || ex instanceof SQLRecoverableException;
+	}
 } 
\ No newline at end of file
@@ -0,0 +1,82 @@
+package lsi.ubu.util.exceptions.h2;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import lsi.ubu.util.exceptions.SGBDError;
+import lsi.ubu.util.exceptions.SGBDErrorUtil;
+
+/**
+ * Errores codificados para H2. Referencia:
+ * https://h2database.com/javadoc/org/h2/api/ErrorCode.html.
+ * 
+ * Los cdigos se buscan en una tabla ordenada que se construye una vez. Si
+ * el cdigo del fabricante no est, se busca el SQLState, que en H2 suele
+ * ser el mismo nmero.
+ * 
+ * @author <a href="mailto:iau1001@alu.ubu.es">Irati Arraiza Urquiola</a>
+ * @version 1.0
+ * @since 1.0
+ */
+public class H2SGBDErrorUtil implements SGBDErrorUtil {
+
+	// Cdigos de error en H2, ordenados
+	private static final int[] CODIGOS = {
+		23502, // NULL_NOT_ALLOWED
+		23505, // DUPLICATE_KEY_1
+		23506, // REFERENTIAL_INTEGRITY_VIOLATED_PARENT_MISSING_1
+		40001, // DEADLOCK_1
+		42102, // TABLE_OR_VIEW_NOT_FOUND_1
+		42103, // TABLE_OR_VIEW_NOT_FOUND_WITH_CANDIDATES_2
+		42104, // TABLE_OR_VIEW_NOT_FOUND_DATABASE_EMPTY_1
+		50200, // LOCK_TIMEOUT_1
+		90036, // SEQUENCE_NOT_FOUND_1
+		90067, // CONNECTION_BROKEN_1
+		90131, // CONCURRENT_UPDATE_1
+	};
+	private static final SGBDError[] ERRORES = {
+		SGBDError.NOT_NULL_VIOLATED,
+		SGBDError.PK_VIOLATED,
+		SGBDError.FK_VIOLATED,
+		SGBDError.DEADLOCK,
+		SGBDError.NOT_EXISTS_TABLE,
+		SGBDError.NOT_EXISTS_TABLE,
+		SGBDError.NOT_EXISTS_TABLE,
+		SGBDError.RESOURCE_BUSY,
+		SGBDError.NOT_EXISTS_SEQUENCE,
+		SGBDError.CONNECTION_LOST,
+		SGBDError.SERIALIZATION_FAILURE,
+	};
+
+	/**
+	 * {@inheritDoc}.
+	 * 
+	 * @param errorSGBD
+	 *            {@inheritDoc
+	 * @return {@inheritDoc}
+	 */
+	@Override
+	public SGBDError translate(int errorSGBD) {
+		int i = Arrays.binarySearch(CODIGOS, errorSGBD);
+		return i < 0 ? SGBDError.UNKNOWN : ERRORES[i];
+	}
+
+	/**
+	 * Comprueba si la excepcin contiene un cdigo de error buscado, por su
+	 * cdigo de H2 o por su SQLState.
+	 * 
+	 * @param ex
+	 *            excepcin con cdigo interno de la base de datos
+	 * @param error
+	 *            error en la base de datos
+	 * @return true si coinciden, false en caso contrario
+	 */
+	@Override
+	public boolean checkExceptionToCode(SQLException ex, SGBDError error) {
+		SGBDError traducido = translate(ex.getErrorCode());
+		String estado = ex.getSQLState();
+		if (traducido == SGBDError.UNKNOWN && estado != null && estado.matches("\\d{5}"))
+			traducido = translate(Integer.parseInt(estado));
+		return traducido == error;
+	}
+}
@@ -21,6 +21,16 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 	private static final int FK_VIOLATED = 2291;
 	private static final int NOT_EXISTS_SEQUENCE = 2289;
 	private static final int NOT_NULL_VIOLATED = 1400;
+	private static final int NOT_EXISTS_TABLE = 942;
+	private static final int DEADLOCK = 60;
+	private static final int SERIALIZATION_FAILURE = 8177;
+	private static final int RESOURCE_BUSY = 54;
+	private static final int RESOURCE_BUSY_TIMEOUT = 30006;
+	private static final int END_OF_FILE_ON_CHANNEL = 3113;
+	private static final int NOT_CONNECTED = 3114;
+	private static final int CONNECTION_IO_ERROR = 17002; // Del driver JDBC
+	private static final int CLOSED_CONNECTION = 17008; // Del driver JDBC
+	private static final int NO_MORE_DATA = 17410; // Del driver JDBC
 	// Aadir segn sea necesario, por parte del alumno...
 
 	/**
@@ -49,6 +59,21 @@ public class OracleSGBDErrorUtil implements SGBDErrorUtil {
 			return SGBDError.NOT_EXISTS_SEQUENCE;
 		case NOT_NULL_VIOLATED:
 			return SGBDError.NOT_NULL_VIOLATED;
+		case NOT_EXISTS_TABLE:
+			return SGBDError.NOT_EXISTS_TABLE;
+		case DEADLOCK:
+			return SGBDError.DEADLOCK;
+		case SERIALIZATION_FAILURE:
+			return SGBDError.SERIALIZATION_FAILURE;
+		case RESOURCE_BUSY:
+		case RESOURCE_BUSY_TIMEOUT:
+			return SGBDError.RESOURCE_BUSY;
+		case END_OF_FILE_ON_CHANNEL:
+		case NOT_CONNECTED:
+		case CONNECTION_IO_ERROR:
+		case CLOSED_CONNECTION:
+		case NO_MORE_DATA:
+			return SGBDError.CONNECTION_LOST;
 		}
 		return SGBDError.UNKNOWN;
 	}